@@ -0,0 +1,30 @@
+package peergos.bench;
+
+import org.openjdk.jmh.annotations.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.concurrent.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Blake2bBench {
+
+    @Param({"32", "4096", "5242880"})
+    public int size;
+
+    private byte[] input;
+
+    @Setup
+    public void setup() {
+        input = Samples.randomBytes(size);
+    }
+
+    @Benchmark
+    public byte[] digest() {
+        return Blake2b.Digest.newInstance(32).digest(input);
+    }
+}
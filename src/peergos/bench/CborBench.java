@@ -0,0 +1,78 @@
+package peergos.bench;
+
+import org.openjdk.jmh.annotations.*;
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CborBench {
+
+    @Param({"champ", "metadata"})
+    public String shape;
+
+    private CborObject value;
+    private byte[] raw;
+
+    /** Shaped like a champ node with inline mappings and links
+     */
+    private static CborObject champNode() {
+        List<CborObject> contents = new ArrayList<>();
+        for (int i=0; i < 16; i++) {
+            if (i % 3 == 0)
+                contents.add(new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, Samples.randomBytes(32))));
+            else
+                contents.add(new CborObject.CborList(Arrays.asList(
+                        new CborObject.CborByteArray(Samples.randomBytes(32)),
+                        new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, Samples.randomBytes(32))))));
+        }
+        return new CborObject.CborList(Arrays.asList(
+                new CborObject.CborByteArray(Samples.randomBytes(8)),
+                new CborObject.CborByteArray(Samples.randomBytes(8)),
+                new CborObject.CborList(contents)));
+    }
+
+    /** Shaped like a cryptree node or writer data
+     */
+    private static CborObject metadata() {
+        SortedMap<String, Cborable> map = new TreeMap<>();
+        map.put("v", new CborObject.CborLong(1));
+        map.put("s", new CborObject.CborLong(Samples.randomLong()));
+        map.put("n", new CborObject.CborString("some-file-name.jpg"));
+        map.put("k", new CborObject.CborByteArray(Samples.randomBytes(72)));
+        map.put("p", new CborObject.CborByteArray(Samples.randomBytes(200)));
+        map.put("l", new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, Samples.randomBytes(32))));
+        map.put("b", new CborObject.CborBoolean(true));
+        map.put("x", new CborObject.CborNull());
+        return CborObject.CborMap.build(map);
+    }
+
+    @Setup
+    public void setup() {
+        value = shape.equals("champ") ? champNode() : metadata();
+        raw = value.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return value.toByteArray();
+    }
+
+    @Benchmark
+    public CborObject decode() {
+        return CborObject.fromByteArray(raw);
+    }
+
+    @Benchmark
+    public List<Cid> links() {
+        return CborReader.links(raw);
+    }
+}
@@ -0,0 +1,119 @@
+package peergos.bench;
+
+import org.openjdk.jmh.annotations.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Champ operations against an in memory store, so this measures cpu and allocation rather than latency
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChampBench {
+    private static final Function<Cborable, CborObject.CborMerkleLink> fromCbor = c -> (CborObject.CborMerkleLink) c;
+
+    @Param({"10000"})
+    public int size;
+
+    @Param({"10"})
+    public int changes;
+
+    private Crypto crypto;
+    private RAMStorage storage;
+    private SigningPrivateKeyAndPublicHash user;
+    private TransactionId tid;
+    private Cid root, updated;
+    private List<byte[]> keys;
+    // a fixed pool of new mappings, so repeated puts onto the same root don't grow the store
+    private List<Pair<byte[], CborObject.CborMerkleLink>> newMappings;
+    private int next;
+
+    private static List<Triple<byte[], Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> randomPuts(int n) {
+        return IntStream.range(0, n)
+                .mapToObj(i -> new Triple<>(Samples.randomBytes(32), Optional.<CborObject.CborMerkleLink>empty(),
+                        Optional.of(randomLink())))
+                .collect(Collectors.toList());
+    }
+
+    private static CborObject.CborMerkleLink randomLink() {
+        return new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, Samples.randomBytes(32)));
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        crypto = Main.initCrypto();
+        storage = new RAMStorage(crypto.hasher);
+        SigningKeyPair pair = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash ownerHash = ContentAddressedStorage.hashKey(pair.publicSigningKey);
+        tid = storage.startTransaction(ownerHash).get();
+        PublicKeyHash publicHash = storage.putSigningKey(pair.secretSigningKey.signMessage(pair.publicSigningKey.serialize()),
+                ownerHash, pair.publicSigningKey, tid).get();
+        user = new SigningPrivateKeyAndPublicHash(publicHash, pair.secretSigningKey);
+
+        List<Triple<byte[], Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> puts = randomPuts(size);
+        ChampWrapper<CborObject.CborMerkleLink> champ = ChampWrapper.create(user.publicKeyHash, user,
+                IpfsCoreNode::keyHash, tid, storage, crypto.hasher, fromCbor).join();
+        root = (Cid) champ.applyMutations(user.publicKeyHash, user, puts, tid).join();
+        keys = puts.stream().map(t -> t.left).collect(Collectors.toList());
+        newMappings = IntStream.range(0, 1024)
+                .mapToObj(i -> new Pair<>(Samples.randomBytes(32), randomLink()))
+                .collect(Collectors.toList());
+
+        List<Triple<byte[], Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> modifications =
+                puts.subList(0, changes).stream()
+                        .map(t -> new Triple<>(t.left, t.right, Optional.of(randomLink())))
+                        .collect(Collectors.toList());
+        updated = (Cid) champ.applyMutations(user.publicKeyHash, user, modifications, tid).join();
+    }
+
+    private ChampWrapper<CborObject.CborMerkleLink> load(Cid root) {
+        return ChampWrapper.create(root, IpfsCoreNode::keyHash, storage, crypto.hasher, fromCbor).join();
+    }
+
+    @Benchmark
+    public Optional<CborObject.CborMerkleLink> get() {
+        return load(root).get(keys.get(next++ % keys.size())).join();
+    }
+
+    @Benchmark
+    public Multihash put() {
+        Pair<byte[], CborObject.CborMerkleLink> mapping = newMappings.get(next++ % newMappings.size());
+        return load(root).put(user.publicKeyHash, user, mapping.left, Optional.empty(), mapping.right, tid).join();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Diff {
+        @Param({"1", "16"})
+        public int parallelism;
+    }
+
+    @Benchmark
+    public int diff(Diff params) {
+        AtomicInteger count = new AtomicInteger();
+        Champ.applyToDiff(MaybeMultihash.of(root), MaybeMultihash.of(updated), 0, IpfsCoreNode::keyHash,
+                Collections.emptyList(), Collections.emptyList(), t -> count.incrementAndGet(),
+                ChampWrapper.BIT_WIDTH, params.parallelism, storage, fromCbor).join();
+        if (count.get() != changes)
+            throw new IllegalStateException("Incorrect diff!");
+        return count.get();
+    }
+}
@@ -0,0 +1,40 @@
+package peergos.bench;
+
+import org.openjdk.jmh.annotations.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.concurrent.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CidBench {
+
+    private final Cid cid = Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, Samples.randomBytes(32));
+    private final byte[] raw = cid.toBytes();
+    private final String base58 = cid.toString();
+
+    @Benchmark
+    public byte[] toBytes() {
+        return cid.toBytes();
+    }
+
+    @Benchmark
+    public Cid fromBytes() {
+        return Cid.cast(raw);
+    }
+
+    @Benchmark
+    public String encode() {
+        return cid.toString();
+    }
+
+    @Benchmark
+    public Cid decode() {
+        return Cid.decode(base58);
+    }
+}
@@ -0,0 +1,50 @@
+package peergos.bench;
+
+import org.openjdk.jmh.annotations.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.concurrent.*;
+
+/** Erasure coding of a full chunk with the default fragment counts
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ErasureBench {
+
+    @Param({"5242880"})
+    public int size;
+
+    private final int originalBlobs = ErasureFragmenter.ERASURE_ORIGINAL;
+    private final int allowedFailures = ErasureFragmenter.ERASURE_ALLOWED_FAILURES;
+    private byte[] input;
+    private byte[][] encoded, damaged;
+
+    @Setup
+    public void setup() {
+        input = Samples.randomBytes(size);
+        encoded = Erasure.split(input, originalBlobs, allowedFailures);
+        damaged = encoded.clone();
+        for (int i=0; i < allowedFailures; i++)
+            damaged[i * 2] = new byte[encoded[i * 2].length];
+    }
+
+    @Benchmark
+    public byte[][] split() {
+        return Erasure.split(input, originalBlobs, allowedFailures);
+    }
+
+    @Benchmark
+    public byte[] recombine() {
+        return Erasure.recombine(encoded, size, originalBlobs, allowedFailures);
+    }
+
+    @Benchmark
+    public byte[] recombineWithFailures() {
+        return Erasure.recombine(damaged, size, originalBlobs, allowedFailures);
+    }
+}
@@ -0,0 +1,50 @@
+package peergos.bench;
+
+import org.openjdk.jmh.annotations.*;
+import peergos.server.net.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Parsing block uploads, in the format written by Multipart
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartBench {
+
+    @Param({"1", "50"})
+    public int files;
+
+    @Param({"4096", "524288"})
+    public int fileSize;
+
+    private final String boundary = "===1489731900000===";
+    private byte[] body;
+
+    @Setup
+    public void setup() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (int i=0; i < files; i++) {
+            bout.write(("--" + boundary + "\r\n"
+                    + "Content-Disposition: file; name=\"file\";\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Transfer-Encoding: binary\r\n\r\n").getBytes());
+            bout.write(Samples.randomBytes(fileSize));
+            bout.write("\r\n".getBytes());
+        }
+        bout.write(("--" + boundary + "--\r\n").getBytes());
+        body = bout.toByteArray();
+        if (MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary).size() != files)
+            throw new IllegalStateException("Incorrect multipart body!");
+    }
+
+    @Benchmark
+    public List<byte[]> extractFiles() {
+        return MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary);
+    }
+}
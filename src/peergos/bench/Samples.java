@@ -0,0 +1,19 @@
+package peergos.bench;
+
+import java.util.*;
+
+/** Deterministic inputs, so results are comparable between runs
+ */
+class Samples {
+    private static final Random r = new Random(28);
+
+    static byte[] randomBytes(int len) {
+        byte[] res = new byte[len];
+        r.nextBytes(res);
+        return res;
+    }
+
+    static long randomLong() {
+        return r.nextLong();
+    }
+}
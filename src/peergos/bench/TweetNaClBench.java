@@ -0,0 +1,63 @@
+package peergos.bench;
+
+import org.openjdk.jmh.annotations.*;
+import peergos.server.crypto.*;
+
+import java.util.concurrent.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TweetNaClBench {
+
+    @State(Scope.Benchmark)
+    public static class Box {
+        @Param({"4096", "5242880"})
+        public int size;
+
+        private final byte[] key = Samples.randomBytes(TweetNaCl.SECRETBOX_KEY_BYTES);
+        private final byte[] nonce = Samples.randomBytes(TweetNaCl.SECRETBOX_NONCE_BYTES);
+        private byte[] plain, cipher;
+
+        @Setup
+        public void setup() {
+            plain = Samples.randomBytes(size);
+            cipher = TweetNaCl.secretbox(plain, nonce, key);
+        }
+    }
+
+    private final byte[] publicSigningKey = new byte[TweetNaCl.SIGN_PUBLIC_KEY_BYTES];
+    private final byte[] secretSigningKey = new byte[TweetNaCl.SIGN_SECRET_KEY_BYTES];
+    // we sign hashes of blocks, not the blocks themselves
+    private final byte[] hash = Samples.randomBytes(32);
+    private byte[] signed;
+
+    @Setup
+    public void setup() {
+        TweetNaCl.crypto_sign_keypair(publicSigningKey, secretSigningKey, false);
+        signed = TweetNaCl.crypto_sign(hash, secretSigningKey);
+    }
+
+    @Benchmark
+    public byte[] secretbox(Box box) {
+        return TweetNaCl.secretbox(box.plain, box.nonce, box.key);
+    }
+
+    @Benchmark
+    public byte[] secretboxOpen(Box box) {
+        return TweetNaCl.secretbox_open(box.cipher, box.nonce, box.key);
+    }
+
+    @Benchmark
+    public byte[] sign() {
+        return TweetNaCl.crypto_sign(hash, secretSigningKey);
+    }
+
+    @Benchmark
+    public byte[] verify() {
+        return TweetNaCl.crypto_sign_open(signed, publicSigningKey);
+    }
+}
@@ -25,11 +25,16 @@ public class AggregatedMetrics {
     public static final Counter DHT_ID  = build("dht_id", "Total id calls.");
     public static final Counter DHT_BLOCK_PUT  = build("dht_block_put", "Total DHT block puts.");
     public static final Counter DHT_BLOCK_GET  = build("dht_block_get", "Total DHT block gets.");
+    public static final Counter DHT_BLOCK_GET_NOT_MODIFIED  = build("dht_block_get_not_modified", "Total DHT block gets answered with 304 Not Modified.");
+    public static final Counter DHT_BLOCK_GET_ALL  = build("dht_block_get_all", "Total DHT batched block gets.");
+    public static final Counter DHT_BLOCK_GET_ALL_BLOCKS  = build("dht_block_get_all_blocks", "Total blocks requested in DHT batched block gets.");
     public static final Counter DHT_BLOCK_STAT  = build("dht_block_stat", "Total DHT block stats.");
     public static final Counter DHT_BLOCK_REFS  = build("dht_block_refs", "Total DHT block refs.");
     public static final Counter DHT_TRANSACTION_START  = build("dht_transaction_start", "Total DHT transaction starts.");
     public static final Counter DHT_TRANSACTION_CLOSE  = build("dht_transaction_close", "Total DHT transaction closes.");
     public static final Counter DHT_CHAMP_GET  = build("dht_champ_get", "Total champ gets");
+    public static final Counter DHT_CHAMP_GET_ALL  = build("dht_champ_get_all", "Total batched champ gets");
+    public static final Counter DHT_CHAMP_GET_ALL_KEYS  = build("dht_champ_get_all_keys", "Total keys looked up in batched champ gets");
     public static final Histogram DHT_CHAMP_GET_DURATION = Histogram.build()
             .labelNames("duration")
             .name("champ_get_duration")
@@ -39,6 +39,7 @@ import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class Builder {
 
@@ -68,6 +69,20 @@ public class Builder {
         return getDBConnector(a, dbName);
     }
 
+    private static final Map<String, SqliteConnectionPool> sqlitePools = new ConcurrentHashMap<>();
+
+    /** Stores which share a sqlite file also share its writer
+     */
+    private static SqliteConnectionPool getSqlitePool(String sqlFilePath, int readConnections) {
+        return sqlitePools.computeIfAbsent(sqlFilePath, path -> {
+            try {
+                return new SqliteConnectionPool(path, readConnections);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
     public static Supplier<Connection> getDBConnector(Args a, String dbName) {
         boolean usePostgres = a.getBoolean("use-postgres", false);
         HikariConfig config;
@@ -99,6 +114,8 @@ public class Builder {
             String sqlFilePath = Sqlite.getDbPath(a, dbName);
             if (":memory:".equals(sqlFilePath))
                 return buildEphemeralSqlite();
+            if (a.getBoolean("sqlite.wal", false))
+                return getSqlitePool(sqlFilePath, a.getInt("sqlite.read-connections", SqliteConnectionPool.DEFAULT_READ_CONNECTIONS));
             try {
                 Connection memory = Sqlite.build(sqlFilePath);
                 // We need a connection that ignores close
@@ -121,9 +138,9 @@ public class Builder {
         }
     }
 
-    public static JavaPoster buildIpfsApi(Args a) {
+    public static HttpPoster buildIpfsApi(Args a) {
         URL ipfsApiAddress = AddressUtil.getAddress(new MultiAddress(a.getArg("ipfs-api-address", "/ip4/127.0.0.1/tcp/5001")));
-        return new JavaPoster(ipfsApiAddress, false);
+        return new AsyncJavaPoster(ipfsApiAddress, false);
     }
 
     /**
@@ -131,9 +148,9 @@ public class Builder {
      * @param a
      * @return This returns the P2P HTTP proxy, which is in the IPFS gateway
      */
-    public static JavaPoster buildP2pHttpProxy(Args a) {
+    public static HttpPoster buildP2pHttpProxy(Args a) {
         URL ipfsGatewayAddress = AddressUtil.getAddress(new MultiAddress(a.getArg("ipfs-gateway-address")));
-        return new JavaPoster(ipfsGatewayAddress, false);
+        return new AsyncJavaPoster(ipfsGatewayAddress, false);
     }
 
     /** A number representing the size in bytes of the blockstore's bloom filter. A value of zero represents the feature is disabled.
@@ -159,11 +176,11 @@ public class Builder {
      * @param a
      * @return This returns the ipfs bloom  filter api target
      */
-    public static JavaPoster buildBloomApiTarget(Args a) {
+    public static HttpPoster buildBloomApiTarget(Args a) {
         if (! a.hasArg("ipfs-bloom-api-address"))
             return buildIpfsApi(a);
         URL ipfsGatewayAddress = AddressUtil.getAddress(new MultiAddress(a.getArg("ipfs-bloom-api-address")));
-        return new JavaPoster(ipfsGatewayAddress, false);
+        return new AsyncJavaPoster(ipfsGatewayAddress, false);
     }
 
     /**
@@ -193,7 +210,7 @@ public class Builder {
         boolean useIPFS = a.getBoolean("useIPFS");
         boolean enableGC = a.getBoolean("enable-gc", false);
         boolean useS3 = S3Config.useS3(a);
-        JavaPoster ipfsApi = buildIpfsApi(a);
+        HttpPoster ipfsApi = buildIpfsApi(a);
         if (useIPFS) {
             DeletableContentAddressedStorage.HTTP ipfs = new DeletableContentAddressedStorage.HTTP(ipfsApi, false, hasher);
             if (useS3) {
@@ -203,7 +220,7 @@ public class Builder {
                 TransactionalIpfs p2pBlockRetriever = new TransactionalIpfs(ipfs, transactions, authoriser, ipfs.id().join(), hasher);
 
                 return new S3BlockStorage(config, ipfs.id().join(), props, transactions, authoriser,
-                        new RamBlockMetadataStore(), hasher, p2pBlockRetriever, ipfs);
+                        buildBlockMetadataStore(a), hasher, p2pBlockRetriever, ipfs, buildWriteBackTier(a));
             } else if (enableGC) {
                 return new TransactionalIpfs(ipfs, transactions, authoriser, ipfs.id().join(), hasher);
             } else
@@ -219,19 +236,66 @@ public class Builder {
                 S3Config config = S3Config.build(a);
                 BlockStoreProperties props = buildS3Properties(a);
 
-                JavaPoster bloomApiTarget = buildBloomApiTarget(a);
+                HttpPoster bloomApiTarget = buildBloomApiTarget(a);
                 DeletableContentAddressedStorage.HTTP bloomTarget = new DeletableContentAddressedStorage.HTTP(bloomApiTarget, false, hasher);
-                RamBlockMetadataStore blockMetadata = new RamBlockMetadataStore();
+                BlockMetadataStore blockMetadata = buildBlockMetadataStore(a);
                 S3BlockStorage s3 = new S3BlockStorage(config, ourId, props, transactions, authoriser, blockMetadata,
-                        hasher, p2pBlockRetriever, bloomTarget);
+                        hasher, p2pBlockRetriever, bloomTarget, buildWriteBackTier(a));
                 return new MetadataCachingStorage(s3, blockMetadata, hasher);
             } else {
+                if (a.getBoolean("blockstore.erasure", false))
+                    return buildErasureCodedStorage(a, transactions, authoriser, hasher);
+                if (a.getBoolean("blockstore.packed", false))
+                    return new PackFileStorage(a.fromPeergosDir("packed_blockstore_dir", "packed-blockstore"),
+                            transactions, authoriser, hasher,
+                            a.getLong("blockstore.packed.segment-bytes", PackFileStorage.DEFAULT_MAX_SEGMENT_BYTES),
+                            PackFileStorage.DEFAULT_MIN_LIVE_FRACTION);
                 return new FileContentAddressedStorage(blockstorePath(a), transactions, authoriser, hasher);
             }
         }
     }
 
 
+    /** A local blockstore striped across several disks with Reed-Solomon parity
+     */
+    public static ErasureCodedStorage buildErasureCodedStorage(Args a,
+                                                               TransactionStore transactions,
+                                                               BlockRequestAuthoriser authoriser,
+                                                               Hasher hasher) {
+        int dataShards = a.getInt("blockstore.erasure.data-shards", ErasureCodedStorage.DEFAULT_DATA_SHARDS);
+        int parityShards = a.getInt("blockstore.erasure.parity-shards", ErasureCodedStorage.DEFAULT_PARITY_SHARDS);
+        List<Path> disks = a.getOptionalArg("blockstore.erasure.dirs")
+                .map(dirs -> Arrays.stream(dirs.split(","))
+                        .map(String::trim)
+                        .filter(d -> ! d.isEmpty())
+                        .map(Paths::get)
+                        .collect(Collectors.toList()))
+                .orElseGet(() -> IntStream.range(0, dataShards + parityShards)
+                        .mapToObj(i -> a.getPeergosDirChild("erasure-blockstore").resolve("disk-" + i))
+                        .collect(Collectors.toList()));
+        ErasureCodedStorage store = new ErasureCodedStorage(disks, dataShards, parityShards, transactions, authoriser, hasher);
+        long scrubIntervalMillis = a.getLong("blockstore.erasure.scrub-interval-hours", 24) * 3600_000L;
+        if (scrubIntervalMillis > 0)
+            store.startScrubber(scrubIntervalMillis);
+        return store;
+    }
+
+    /** A local disk tier to acknowledge S3 block writes from before they are uploaded
+     */
+    public static Optional<WriteBackTier> buildWriteBackTier(Args a) {
+        if (! a.getBoolean("s3.write-back", false))
+            return Optional.empty();
+        return Optional.of(new WriteBackTier(a.fromPeergosDir("s3.write-back.dir", "s3-write-back"),
+                a.getLong("s3.write-back.max-bytes", WriteBackTier.DEFAULT_MAX_BACKLOG_BYTES),
+                a.getInt("s3.write-back.parallelism", WriteBackTier.DEFAULT_UPLOAD_PARALLELISM)));
+    }
+
+    public static BlockMetadataStore buildBlockMetadataStore(Args a) {
+        if (a.getBoolean("block-metadata.persist", false))
+            return JdbcBlockMetadataStore.build(getDBConnector(a, "block-metadata-sql-file"), getSqlCommands(a));
+        return new RamBlockMetadataStore();
+    }
+
     private static CompletableFuture<Boolean> ALLOW = Futures.of(true);
     private static CompletableFuture<Boolean> BLOCK = Futures.of(false);
     public static BlockRequestAuthoriser blockAuthoriser(Args a,
@@ -301,7 +365,12 @@ public class Builder {
     }
 
     public static TransactionStore buildTransactionStore(Args a, Supplier<Connection> transactionsDb) {
-        return JdbcTransactionStore.build(transactionsDb, getSqlCommands(a));
+        // incremental GC needs to know which blocks were written since its last run
+        boolean retainClosed = a.getBoolean("enable-gc", false) && a.getBoolean("gc.incremental", false);
+        JdbcTransactionStore jdbc = JdbcTransactionStore.build(transactionsDb, getSqlCommands(a), retainClosed);
+        if (a.getBoolean("transactions.group-commit", false))
+            return new BufferedTransactionStore(jdbc, a.getInt("transactions.group-commit.max-batch", BufferedTransactionStore.DEFAULT_MAX_BATCH));
+        return jdbc;
     }
 
     public static boolean isPaidInstance(Args a) {
@@ -332,7 +401,7 @@ public class Builder {
     }
 
     public static QuotaAdmin buildPaidQuotas(Args a) {
-        JavaPoster poster = new JavaPoster(AddressUtil.getAddress(new MultiAddress(a.getArg("quota-admin-address"))), true);
+        AsyncJavaPoster poster = new AsyncJavaPoster(AddressUtil.getAddress(new MultiAddress(a.getArg("quota-admin-address"))), true);
         return new HttpQuotaAdmin(poster);
     }
 
@@ -412,8 +481,8 @@ public class Builder {
 
     public static CompletableFuture<NetworkAccess> buildJavaGatewayAccess(URL apiAddress, URL proxyAddress, String pkiNodeId) {
         Multihash pkiServerNodeId = Cid.decode(pkiNodeId);
-        JavaPoster p2pPoster = new JavaPoster(proxyAddress, false);
-        JavaPoster apiPoster = new JavaPoster(apiAddress, false);
+        AsyncJavaPoster p2pPoster = new AsyncJavaPoster(proxyAddress, false);
+        AsyncJavaPoster apiPoster = new AsyncJavaPoster(apiAddress, false);
         ScryptJava hasher = new ScryptJava();
         return NetworkAccess.buildViaGateway(apiPoster, p2pPoster, pkiServerNodeId, 0, hasher, false);
     }
@@ -433,7 +502,7 @@ public class Builder {
                                                                                     boolean isPublicServer,
                                                                                     int mutableCacheTime,
                                                                                     Optional<String> basicAuth) {
-        JavaPoster poster = new JavaPoster(target, isPublicServer, basicAuth);
+        AsyncJavaPoster poster = new AsyncJavaPoster(target, isPublicServer, basicAuth);
         ScryptJava hasher = new ScryptJava();
         ContentAddressedStorage localDht = NetworkAccess.buildLocalDht(poster, true, hasher);
         return NetworkAccess.buildViaPeergosInstance(poster, poster, localDht, mutableCacheTime, hasher, false);
@@ -0,0 +1,87 @@
+package peergos.server;
+
+import io.prometheus.client.*;
+import peergos.shared.util.*;
+
+import java.lang.ref.*;
+import java.util.*;
+
+/** Exports the hit, miss and eviction counts of in memory caches, and the requests saved by coalescing concurrent
+ *  fetches, to prometheus, labelled by cache name. Caches with the same name are summed.
+ */
+public class CacheMetrics extends Collector {
+    private static final CacheMetrics INSTANCE = new CacheMetrics().register();
+
+    private final Map<String, List<WeakReference<WeightedCache<?, ?>>>> caches = new TreeMap<>();
+    private final Map<String, List<WeakReference<SingleFlight<?, ?>>>> flights = new TreeMap<>();
+
+    public static <K, V> WeightedCache<K, V> monitor(String name, WeightedCache<K, V> cache) {
+        synchronized (INSTANCE.caches) {
+            List<WeakReference<WeightedCache<?, ?>>> named = INSTANCE.caches.computeIfAbsent(name, n -> new ArrayList<>());
+            named.removeIf(r -> r.get() == null);
+            named.add(new WeakReference<>(cache));
+        }
+        return cache;
+    }
+
+    public static <K, V> SingleFlight<K, V> monitor(String name, SingleFlight<K, V> flight) {
+        synchronized (INSTANCE.caches) {
+            List<WeakReference<SingleFlight<?, ?>>> named = INSTANCE.flights.computeIfAbsent(name, n -> new ArrayList<>());
+            named.removeIf(r -> r.get() == null);
+            named.add(new WeakReference<>(flight));
+        }
+        return flight;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<String> labels = Collections.singletonList("cache");
+        CounterMetricFamily hits = new CounterMetricFamily("cache_hits", "Cache hits.", labels);
+        CounterMetricFamily misses = new CounterMetricFamily("cache_misses", "Cache misses.", labels);
+        CounterMetricFamily evictions = new CounterMetricFamily("cache_evictions", "Entries evicted from caches.", labels);
+        CounterMetricFamily rejections = new CounterMetricFamily("cache_rejections",
+                "New entries not admitted to caches because they were less popular than the entry they would replace.", labels);
+        GaugeMetricFamily weight = new GaugeMetricFamily("cache_weight", "Current total weight (usually bytes) of cached values.", labels);
+        GaugeMetricFamily entries = new GaugeMetricFamily("cache_entries", "Current number of cached entries.", labels);
+        CounterMetricFamily saved = new CounterMetricFamily("cache_coalesced_requests",
+                "Downstream fetches avoided by sharing a concurrent in flight fetch for the same key.", labels);
+        GaugeMetricFamily inFlight = new GaugeMetricFamily("cache_in_flight", "Current number of keys being fetched.", labels);
+        synchronized (caches) {
+            for (Map.Entry<String, List<WeakReference<WeightedCache<?, ?>>>> e : caches.entrySet()) {
+                long h = 0, m = 0, ev = 0, r = 0, w = 0, n = 0;
+                for (WeakReference<WeightedCache<?, ?>> ref : e.getValue()) {
+                    WeightedCache<?, ?> cache = ref.get();
+                    if (cache == null)
+                        continue;
+                    h += cache.hitCount();
+                    m += cache.missCount();
+                    ev += cache.evictionCount();
+                    r += cache.rejectionCount();
+                    w += cache.weightedSize();
+                    n += cache.size();
+                }
+                List<String> name = Collections.singletonList(e.getKey());
+                hits.addMetric(name, h);
+                misses.addMetric(name, m);
+                evictions.addMetric(name, ev);
+                rejections.addMetric(name, r);
+                weight.addMetric(name, w);
+                entries.addMetric(name, n);
+            }
+            for (Map.Entry<String, List<WeakReference<SingleFlight<?, ?>>>> e : flights.entrySet()) {
+                long s = 0, f = 0;
+                for (WeakReference<SingleFlight<?, ?>> ref : e.getValue()) {
+                    SingleFlight<?, ?> flight = ref.get();
+                    if (flight == null)
+                        continue;
+                    s += flight.savedCount();
+                    f += flight.inFlight();
+                }
+                List<String> name = Collections.singletonList(e.getKey());
+                saved.addMetric(name, s);
+                inFlight.addMetric(name, f);
+            }
+        }
+        return Arrays.asList(hits, misses, evictions, rejections, weight, entries, saved, inFlight);
+    }
+}
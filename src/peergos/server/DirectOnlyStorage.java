@@ -1,6 +1,8 @@
 package peergos.server;
 
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
 import peergos.shared.util.*;
 
 import java.util.*;
@@ -19,6 +21,11 @@ public class DirectOnlyStorage extends DelegatingStorage {
         return new DirectOnlyStorage(target.directToOrigin());
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+        return target.getAll(hashes, bats);
+    }
+
     @Override
     public CompletableFuture<BlockStoreProperties> blockStoreProperties() {
         return Futures.of(new BlockStoreProperties(false, false, false, Optional.empty(), Optional.empty()));
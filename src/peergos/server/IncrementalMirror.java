@@ -0,0 +1,331 @@
+package peergos.server;
+
+import io.prometheus.client.Counter;
+import peergos.server.storage.*;
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Mirrors a merkle tree by walking the diff between the version we already have and the new version.
+ *
+ *  Subtrees which are unchanged between the versions share a cid and are skipped. The remaining nodes are visited
+ *  breadth first, and blocks that are missing locally are fetched in parallel batches. If a checkpoint directory is
+ *  given, the traversal frontier is saved periodically so that an interrupted mirror can resume where it left off.
+ */
+public class IncrementalMirror {
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_PARALLELISM = 32;
+    private static final int FETCH_BATCH_SIZE = 16;
+    private static final int CHUNK_SIZE = 1024;
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 10_000;
+    // bounds the memory used to skip subtrees repeated within a tree, repeats after a reset are found by hasBlock
+    private static final int MAX_SEEN = 100_000;
+
+    private static final Counter fetched = Counter.build()
+            .name("mirror_blocks_fetched")
+            .help("Number of blocks retrieved from the origin server while mirroring")
+            .register();
+    private static final Counter reused = Counter.build()
+            .name("mirror_blocks_reused")
+            .help("Number of blocks already present locally while mirroring")
+            .register();
+
+    private static class Pair {
+        public final Optional<Cid> existing;
+        public final Cid updated;
+
+        public Pair(Optional<Cid> existing, Cid updated) {
+            this.existing = existing;
+            this.updated = updated;
+        }
+
+        public CborObject toCbor() {
+            Map<String, Cborable> state = new TreeMap<>();
+            state.put("u", new CborObject.CborMerkleLink(updated));
+            existing.ifPresent(e -> state.put("e", new CborObject.CborMerkleLink(e)));
+            return CborObject.CborMap.build(state);
+        }
+
+        public static Pair fromCbor(Cborable cbor) {
+            CborObject.CborMap m = (CborObject.CborMap) cbor;
+            Optional<Cid> existing = m.getOptional("e").map(c -> (Cid) ((CborObject.CborMerkleLink) c).target);
+            return new Pair(existing, (Cid) m.getMerkleLink("u"));
+        }
+    }
+
+    private static class Checkpoint {
+        public final Cid root;
+        public final TransactionId tid;
+        public final List<Pair> frontier;
+
+        public Checkpoint(Cid root, TransactionId tid, List<Pair> frontier) {
+            this.root = root;
+            this.tid = tid;
+            this.frontier = frontier;
+        }
+
+        public byte[] serialize() {
+            Map<String, Cborable> state = new TreeMap<>();
+            state.put("root", new CborObject.CborMerkleLink(root));
+            state.put("tid", new CborObject.CborString(tid.id));
+            state.put("frontier", new CborObject.CborList(frontier.stream()
+                    .map(Pair::toCbor)
+                    .collect(Collectors.toList())));
+            return CborObject.CborMap.build(state).serialize();
+        }
+
+        public static Checkpoint deserialize(byte[] raw) {
+            CborObject.CborMap m = (CborObject.CborMap) CborObject.fromByteArray(raw);
+            return new Checkpoint((Cid) m.getMerkleLink("root"),
+                    new TransactionId(m.getString("tid")),
+                    m.getList("frontier", Pair::fromCbor));
+        }
+    }
+
+    private final DeletableContentAddressedStorage storage;
+    private final TransactionStore transactions;
+    private final Hasher hasher;
+    private final Optional<Path> checkpointDir;
+    private final long checkpointIntervalMillis;
+    private final ExecutorService pool;
+
+    public IncrementalMirror(DeletableContentAddressedStorage storage,
+                             TransactionStore transactions,
+                             Hasher hasher,
+                             int parallelism,
+                             Optional<Path> checkpointDir,
+                             long checkpointIntervalMillis) {
+        this.storage = storage;
+        this.transactions = transactions;
+        this.hasher = hasher;
+        this.checkpointDir = checkpointDir;
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+        this.pool = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "Mirror");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointDir.ifPresent(dir -> dir.toFile().mkdirs());
+    }
+
+    public IncrementalMirror(DeletableContentAddressedStorage storage,
+                             TransactionStore transactions,
+                             Hasher hasher,
+                             int parallelism,
+                             Optional<Path> checkpointDir) {
+        this(storage, transactions, hasher, parallelism, checkpointDir, CHECKPOINT_INTERVAL_MILLIS);
+    }
+
+    public IncrementalMirror(DeletableContentAddressedStorage storage, TransactionStore transactions, Hasher hasher) {
+        this(storage, transactions, hasher, DEFAULT_PARALLELISM, Optional.empty());
+    }
+
+    /** Ensure every block of the updated tree is stored locally, then run commit, which should update the pointer
+     *
+     * @return The number of blocks fetched from the network
+     */
+    public long mirror(PublicKeyHash owner,
+                       PublicKeyHash writer,
+                       Optional<Cid> existing,
+                       Optional<Cid> updated,
+                       Optional<BatWithId> mirrorBat,
+                       Runnable commit) {
+        if (updated.isEmpty() || existing.equals(updated)) {
+            commit.run();
+            return 0;
+        }
+        Cid root = updated.get();
+        Optional<Checkpoint> previous = loadCheckpoint(writer);
+        if (previous.isPresent() && ! previous.get().root.equals(root)) {
+            // the target has moved on since we were interrupted, start again from the diff
+            transactions.closeTransaction(owner, previous.get().tid);
+            deleteCheckpoint(writer);
+            previous = Optional.empty();
+        }
+        TransactionId tid = previous.map(c -> c.tid)
+                .orElseGet(() -> transactions.startTransaction(owner));
+        LinkedList<Pair> frontier = new LinkedList<>(previous.map(c -> c.frontier)
+                .orElse(Collections.singletonList(new Pair(existing, root))));
+        if (previous.isPresent())
+            LOG.info("Resuming mirror of " + writer + " with " + previous.get().frontier.size() + " pending nodes");
+        boolean success = false;
+        try {
+            Cid ourNodeId = storage.id().join();
+            Set<Cid> seen = new HashSet<>();
+            long fetchedBlocks = 0;
+            long lastCheckpoint = System.currentTimeMillis();
+            while (! frontier.isEmpty()) {
+                if (seen.size() > MAX_SEEN)
+                    seen.clear();
+                List<Pair> chunk = new ArrayList<>();
+                while (! frontier.isEmpty() && chunk.size() < CHUNK_SIZE) {
+                    Pair next = frontier.removeFirst();
+                    if (next.updated.isIdentity() || next.existing.equals(Optional.of(next.updated)))
+                        continue;
+                    if (seen.add(next.updated))
+                        chunk.add(next);
+                }
+                fetchedBlocks += processChunk(owner, chunk, mirrorBat, ourNodeId, tid, frontier);
+
+                long now = System.currentTimeMillis();
+                if (now - lastCheckpoint >= checkpointIntervalMillis && ! frontier.isEmpty()) {
+                    saveCheckpoint(writer, new Checkpoint(root, tid, frontier));
+                    lastCheckpoint = now;
+                }
+            }
+            commit.run();
+            success = true;
+            return fetchedBlocks;
+        } finally {
+            // leave the transaction open to protect the fetched blocks if we will resume later
+            if (success || loadCheckpoint(writer).isEmpty())
+                transactions.closeTransaction(owner, tid);
+            if (success)
+                deleteCheckpoint(writer);
+        }
+    }
+
+    /** Fetch the blocks in a chunk that we don't have, and add the changed children of every node to the frontier
+     *
+     * @return the number of blocks fetched
+     */
+    private long processChunk(PublicKeyHash owner,
+                              List<Pair> chunk,
+                              Optional<BatWithId> mirrorBat,
+                              Cid ourNodeId,
+                              TransactionId tid,
+                              LinkedList<Pair> frontier) {
+        List<Boolean> present = Futures.combineAllInOrder(chunk.stream()
+                .map(p -> CompletableFuture.supplyAsync(() -> storage.hasBlock(p.updated), pool))
+                .collect(Collectors.toList())).join();
+
+        List<Pair> missing = new ArrayList<>();
+        List<Pair> local = new ArrayList<>();
+        for (int i=0; i < chunk.size(); i++)
+            (present.get(i) ? local : missing).add(chunk.get(i));
+
+        List<CompletableFuture<List<byte[]>>> fetches = new ArrayList<>();
+        for (int i=0; i < missing.size(); i += FETCH_BATCH_SIZE) {
+            List<Cid> batch = missing.subList(i, Math.min(missing.size(), i + FETCH_BATCH_SIZE)).stream()
+                    .map(p -> p.updated)
+                    .collect(Collectors.toList());
+            fetches.add(CompletableFuture.supplyAsync(() -> RetryStorage.runWithRetry(3,
+                    () -> storage.mirrorBlocks(owner, batch, mirrorBat, ourNodeId, tid, hasher)).join(), pool));
+        }
+        // nodes that are already present may still have missing descendants from an earlier interrupted mirror
+        List<CompletableFuture<byte[]>> reads = local.stream()
+                .map(p -> p.updated.isRaw() ?
+                        Futures.of(new byte[0]) :
+                        CompletableFuture.supplyAsync(() -> storage.getRaw(p.updated, mirrorBat, ourNodeId, hasher, false).join()
+                                .orElseThrow(() -> new IllegalStateException("Couldn't retrieve block: " + p.updated)), pool))
+                .collect(Collectors.toList());
+        // the previous versions of changed nodes, to find their unchanged children
+        Map<Cid, CompletableFuture<Optional<byte[]>>> previous = new HashMap<>();
+        for (Pair p : chunk) {
+            if (p.updated.isRaw() || p.existing.isEmpty() || p.existing.get().isRaw())
+                continue;
+            Cid e = p.existing.get();
+            previous.computeIfAbsent(e, c -> CompletableFuture.supplyAsync(() ->
+                    storage.getRaw(c, mirrorBat, ourNodeId, hasher).join(), pool));
+        }
+
+        List<byte[]> fetchedBlocks = Futures.combineAllInOrder(fetches).join().stream()
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+        List<byte[]> localBlocks = Futures.combineAllInOrder(reads).join();
+        Map<Cid, Optional<byte[]>> previousBlocks = new HashMap<>();
+        for (Map.Entry<Cid, CompletableFuture<Optional<byte[]>>> e : previous.entrySet())
+            previousBlocks.put(e.getKey(), e.getValue().join());
+        fetched.inc(missing.size());
+        reused.inc(local.size());
+
+        for (int i=0; i < missing.size(); i++)
+            addChildren(missing.get(i), fetchedBlocks.get(i), previousBlocks, frontier);
+        for (int i=0; i < local.size(); i++)
+            addChildren(local.get(i), localBlocks.get(i), previousBlocks, frontier);
+        return missing.size();
+    }
+
+    /** Links which are in both versions of a node are unchanged subtrees. Each new link is paired with a removed link,
+     *  if there is one, as the most likely previous version of that subtree.
+     */
+    private static void addChildren(Pair node,
+                                    byte[] block,
+                                    Map<Cid, Optional<byte[]>> previousBlocks,
+                                    LinkedList<Pair> frontier) {
+        if (node.updated.isRaw())
+            return;
+        List<Cid> newLinks = links(block);
+        if (newLinks.isEmpty())
+            return;
+        List<Cid> existingLinks = node.existing
+                .flatMap(e -> previousBlocks.getOrDefault(e, Optional.empty()))
+                .map(IncrementalMirror::links)
+                .orElse(Collections.emptyList());
+        Set<Cid> existingSet = new HashSet<>(existingLinks);
+        Set<Cid> newSet = new HashSet<>(newLinks);
+        Iterator<Cid> removed = existingLinks.stream()
+                .filter(c -> ! newSet.contains(c))
+                .iterator();
+        for (Cid link : newLinks) {
+            if (existingSet.contains(link))
+                continue;
+            frontier.add(new Pair(removed.hasNext() ? Optional.of(removed.next()) : Optional.empty(), link));
+        }
+    }
+
+    private static List<Cid> links(byte[] block) {
+        return CborReader.links(block).stream()
+                .filter(h -> ! h.isIdentity())
+                .collect(Collectors.toList());
+    }
+
+    private Optional<Path> checkpointFile(PublicKeyHash writer) {
+        return checkpointDir.map(dir -> dir.resolve(writer.toString() + ".cbor"));
+    }
+
+    private Optional<Checkpoint> loadCheckpoint(PublicKeyHash writer) {
+        Optional<Path> file = checkpointFile(writer);
+        if (file.isEmpty() || ! Files.exists(file.get()))
+            return Optional.empty();
+        try {
+            return Optional.of(Checkpoint.deserialize(Files.readAllBytes(file.get())));
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Ignoring invalid mirror checkpoint " + file.get(), e);
+            return Optional.empty();
+        }
+    }
+
+    private void saveCheckpoint(PublicKeyHash writer, Checkpoint checkpoint) {
+        Optional<Path> file = checkpointFile(writer);
+        if (file.isEmpty())
+            return;
+        try {
+            Path tmp = file.get().resolveSibling(file.get().getFileName() + ".tmp");
+            Files.write(tmp, checkpoint.serialize());
+            Files.move(tmp, file.get(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't save mirror checkpoint " + file.get(), e);
+        }
+    }
+
+    private void deleteCheckpoint(PublicKeyHash writer) {
+        checkpointFile(writer).ifPresent(f -> f.toFile().delete());
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
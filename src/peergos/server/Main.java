@@ -19,6 +19,7 @@ import peergos.shared.crypto.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.password.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multiaddr.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
@@ -176,6 +177,9 @@ public class Main extends Builder {
                     new Command.Arg("mirror.username", "Mirror a user's data locally", false),
                     new Command.Arg("mirror.bat", "BatWithId to enable mirroring a user's private data", false),
                     new Command.Arg("login-keypair", "The keypair used to mirror the login data for a user (use with 'mirror.username' arg)", false),
+                    new Command.Arg("champ-cache-size-mb", "The maximum size in MiB of the cache of decoded champ nodes, 0 disables it", false, "32"),
+                    new Command.Arg("mirror.parallelism", "The number of concurrent block retrievals when mirroring", false, "32"),
+                    new Command.Arg("mirror.checkpoint-dir", "The directory to store progress of interrupted mirrors in", false, "mirror-checkpoints"),
                     new Command.Arg("public-server", "Are we a public server? (allow http GETs to API)", false, "false"),
                     new Command.Arg("run-gateway", "Run a local Peergos gateway", false),
                     new Command.Arg("gateway-port", "Port to run a local gateway on", false, "9000"),
@@ -410,6 +414,9 @@ public class Main extends Builder {
                     new Command.Arg("transactions-sql-file", "The filename for the open transactions datastore", true, "transactions.sql"),
                     new Command.Arg("space-requests-sql-file", "The filename for the space requests datastore", true, "space-requests.sql"),
                     new Command.Arg("space-usage-sql-file", "The filename for the space usage datastore", true, "space-usage.sql"),
+                    new Command.Arg("gc-sql-file", "The filename for the incremental garbage collection datastore", false, "gc.sql"),
+                    new Command.Arg("block-metadata.persist", "Store block metadata in block-metadata-sql-file rather than in RAM (S3 mode)", false, "false"),
+                    new Command.Arg("block-metadata-sql-file", "The filename for the block metadata datastore (S3 mode)", false, "blockmetadata.sql"),
                     ARG_IPFS_API_ADDRESS,
                     new Command.Arg("ipfs-gateway-address", "ipfs gateway port", true, "/ip4/127.0.0.1/tcp/8080"),
                     new Command.Arg("allow-target", "Local address to listen on for IPFS allow calls", false, "/ip4/127.0.0.1/tcp/8002"),
@@ -559,7 +566,9 @@ public class Main extends Builder {
             int webPort = a.getInt("port");
             InetSocketAddress userAPIAddress = new InetSocketAddress(domain, webPort);
 
-            JavaPoster p2pHttpProxy = buildP2pHttpProxy(a);
+            PooledHttpClient.setMaxRequestsPerHost(a.getInt("max-http-requests-per-host", PooledHttpClient.DEFAULT_MAX_REQUESTS_PER_HOST));
+            CacheMetrics.monitor("champ_nodes", ChampCache.setMaxSize(a.getLong("champ-cache-size-mb", ChampCache.DEFAULT_MAX_BYTES / (1024 * 1024)) * 1024 * 1024));
+            HttpPoster p2pHttpProxy = buildP2pHttpProxy(a);
 
             SqlSupplier sqlCommands = getSqlCommands(a);
 
@@ -584,7 +593,13 @@ public class Main extends Builder {
             boolean enableGC = a.getBoolean("enable-gc", false);
             GarbageCollector gc = null;
             if (enableGC) {
-                gc = new GarbageCollector(localStorage, rawPointers, usageStore);
+                gc = new GarbageCollector(localStorage, rawPointers, usageStore,
+                        a.getLong("gc.max-index-bytes", GarbageCollector.DEFAULT_MAX_INDEX_BYTES),
+                        a.getInt("gc.mark-parallelism", GarbageCollector.DEFAULT_MARK_PARALLELISM),
+                        a.getBoolean("gc.incremental", false) ?
+                                Optional.of(JdbcGcState.build(getDBConnector(a, "gc-sql-file", dbConnectionPool), sqlCommands)) :
+                                Optional.empty(),
+                        a.getInt("gc.full-every", 7));
                 Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver =
                         S3Config.useS3(a) ?
                                 ((S3BlockStorage) localStorage)::savePointerSnapshot :
@@ -656,9 +671,9 @@ public class Main extends Builder {
             ProxyingBatCave p2pBats = new ProxyingBatCave(nodeId, core, batStore, new HttpBatCave(p2pHttpProxy, p2pHttpProxy));
             ServerMessageStore serverMessages = new ServerMessageStore(getDBConnector(a, "server-messages-sql-file", dbConnectionPool),
                     sqlCommands, core, p2pDht);
-            UserService localAPI = new UserService(cachingStorage, p2pBats, crypto, corePropagator, verifyingAccount,
+            UserService localAPI = new UserService(cachingStorage, Optional.of(localStorage), p2pBats, crypto, corePropagator, verifyingAccount,
                     p2pSocial, p2mMutable, storageAdmin, p2pSpaceUsage, serverMessages, gc);
-            UserService p2pAPI = new UserService(incomingP2PStorage, p2pBats, crypto, corePropagator, verifyingAccount,
+            UserService p2pAPI = new UserService(incomingP2PStorage, Optional.empty(), p2pBats, crypto, corePropagator, verifyingAccount,
                     p2pSocial, p2mMutable, storageAdmin, p2pSpaceUsage, serverMessages, gc);
             InetSocketAddress localAPIAddress = new InetSocketAddress("localhost", userAPIAddress.getPort());
             InetSocketAddress p2pAPIAddress = new InetSocketAddress("localhost", localP2PApi.getTCPPort());
@@ -667,7 +682,7 @@ public class Main extends Builder {
                     Optional.of(PathUtil.get(a.getArg("webroot"))) :
                     Optional.empty();
             Optional<HttpPoster> appDevTarget = a.getOptionalArg("app-dev-target")
-                    .map(url ->  new JavaPoster(HttpUtil.toURL(url),  true));
+                    .map(url ->  new AsyncJavaPoster(HttpUtil.toURL(url),  true));
             boolean useWebAssetCache = a.getBoolean("webcache", appDevTarget.isEmpty());
             Optional<String> tlsHostname = hostname.equals("localhost") ? Optional.empty() : Optional.of(hostname);
             Optional<String> publicHostname = tlsHostname.isPresent() ? tlsHostname : a.getOptionalArg("public-domain");
@@ -698,13 +713,16 @@ public class Main extends Builder {
             if (a.getBoolean("update-usage", true))
                 spaceChecker.calculateUsage();
 
+            IncrementalMirror mirrorEngine = new IncrementalMirror(localStorage, transactions, hasher,
+                    a.getInt("mirror.parallelism", IncrementalMirror.DEFAULT_PARALLELISM),
+                    Optional.of(a.fromPeergosDir("mirror.checkpoint-dir", "mirror-checkpoints")));
             if (a.hasArg("mirror.node.id")) {
                 Multihash nodeToMirrorId = Cid.decode(a.getArg("mirror.node.id"));
                 new Thread(() -> {
                     while (true) {
                         try {
                             BatWithId mirrorBat = BatWithId.decode(a.getArg("mirror.bat"));
-                            Mirror.mirrorNode(nodeToMirrorId, mirrorBat, core, p2mMutable, localStorage, rawPointers, transactions, hasher);
+                            Mirror.mirrorNode(nodeToMirrorId, mirrorBat, core, p2mMutable, localStorage, rawPointers, mirrorEngine, hasher);
                             try {
                                 Thread.sleep(60_000);
                             } catch (InterruptedException f) {}
@@ -736,7 +754,7 @@ public class Main extends Builder {
                                     batStore.addBat(username, mirrorId, mirrorBat.get().bat, new byte[0]).join();
                             }
                             Mirror.mirrorUser(username, mirrorLoginDataPair, mirrorBat, core, p2mMutable, p2pAccount, localStorage,
-                                    rawPointers, rawAccount, transactions, hasher);
+                                    rawPointers, rawAccount, mirrorEngine, hasher);
                             try {
                                 Thread.sleep(60_000);
                             } catch (InterruptedException f) {}
@@ -81,7 +81,7 @@ public class Mirror {
                                   MutablePointers p2pPointers,
                                   DeletableContentAddressedStorage storage,
                                   JdbcIpnsAndSocial targetPointers,
-                                  TransactionStore transactions,
+                                  IncrementalMirror engine,
                                   Hasher hasher) {
         Logging.LOG().log(Level.INFO, "Mirroring data for node " + nodeId);
         List<String> allUsers = core.getUsernames("").join();
@@ -91,7 +91,7 @@ public class Mirror {
             if (chain.get(chain.size() - 1).claim.storageProviders.contains(nodeId)) {
                 try {
                     mirrorUser(username, Optional.empty(), Optional.of(mirrorBat), core, p2pPointers, null,
-                            storage, targetPointers, null, transactions, hasher);
+                            storage, targetPointers, null, engine, hasher);
                     userCount++;
                 } catch (Exception e) {
                     Logging.LOG().log(Level.WARNING, "Couldn't mirror user: " + username, e);
@@ -123,6 +123,26 @@ public class Mirror {
                                                         JdbcAccount targetAccount,
                                                         TransactionStore transactions,
                                                         Hasher hasher) {
+        IncrementalMirror engine = new IncrementalMirror(storage, transactions, hasher);
+        try {
+            return mirrorUser(username, loginAuth, mirrorBat, core, p2pPointers, p2pAccount, storage, targetPointers,
+                    targetAccount, engine, hasher);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    public static Map<PublicKeyHash, byte[]> mirrorUser(String username,
+                                                        Optional<SigningKeyPair> loginAuth,
+                                                        Optional<BatWithId> mirrorBat,
+                                                        CoreNode core,
+                                                        MutablePointers p2pPointers,
+                                                        Account p2pAccount,
+                                                        DeletableContentAddressedStorage storage,
+                                                        JdbcIpnsAndSocial targetPointers,
+                                                        JdbcAccount targetAccount,
+                                                        IncrementalMirror engine,
+                                                        Hasher hasher) {
         Logging.LOG().log(Level.INFO, "Mirroring data for " + username);
         Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).join();
         if (! identity.isPresent())
@@ -132,7 +152,7 @@ public class Mirror {
         Set<PublicKeyHash> ownedKeys = WriterData.getOwnedKeysRecursive(owner, owner, p2pPointers, storage, hasher).join();
         for (PublicKeyHash ownedKey : ownedKeys) {
             Optional<byte[]> version = mirrorMutableSubspace(owner, ownedKey, mirrorBat, p2pPointers, storage,
-                    targetPointers, transactions, hasher);
+                    targetPointers, engine);
             if (version.isPresent())
                 versions.put(ownedKey, version.get());
         }
@@ -160,15 +180,14 @@ public class Mirror {
                                                          MutablePointers p2pPointers,
                                                          DeletableContentAddressedStorage storage,
                                                          JdbcIpnsAndSocial targetPointers,
-                                                         TransactionStore transactions,
-                                                         Hasher hasher) {
+                                                         IncrementalMirror engine) {
         Optional<byte[]> updated = p2pPointers.getPointer(owner, writer).join();
         if (! updated.isPresent()) {
             Logging.LOG().log(Level.WARNING, "Skipping unretrievable mutable pointer for: " + writer);
             return updated;
         }
 
-        mirrorMerkleTree(owner, writer, updated.get(), mirrorBat, storage, targetPointers, transactions, hasher);
+        mirrorMerkleTree(owner, writer, updated.get(), mirrorBat, storage, targetPointers, engine);
         return updated;
     }
 
@@ -180,21 +199,31 @@ public class Mirror {
                                         JdbcIpnsAndSocial targetPointers,
                                         TransactionStore transactions,
                                         Hasher hasher) {
+        IncrementalMirror engine = new IncrementalMirror(storage, transactions, hasher);
+        try {
+            mirrorMerkleTree(owner, writer, newPointer, mirrorBat, storage, targetPointers, engine);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    public static void mirrorMerkleTree(PublicKeyHash owner,
+                                        PublicKeyHash writer,
+                                        byte[] newPointer,
+                                        Optional<BatWithId> mirrorBat,
+                                        DeletableContentAddressedStorage storage,
+                                        JdbcIpnsAndSocial targetPointers,
+                                        IncrementalMirror engine) {
         Optional<byte[]> existing = targetPointers.getPointer(writer).join();
         // First pin the new root, then commit updated pointer
         MaybeMultihash existingTarget = existing.isPresent() ?
                 MutablePointers.parsePointerTarget(existing.get(), writer, storage).join().updated :
                 MaybeMultihash.empty();
         MaybeMultihash updatedTarget = MutablePointers.parsePointerTarget(newPointer, writer, storage).join().updated;
-        // use a mirror call to distinguish from normal pin calls
-        TransactionId tid = transactions.startTransaction(owner);
-        try {
-            storage.mirror(owner, existingTarget.toOptional().map(c -> (Cid)c),
-                    updatedTarget.toOptional().map(c -> (Cid)c),
-                    mirrorBat, storage.id().join(), tid, hasher);
-            targetPointers.setPointer(writer, existing, newPointer).join();
-        } finally {
-            transactions.closeTransaction(owner, tid);
-        }
+        engine.mirror(owner, writer,
+                existingTarget.toOptional().map(c -> (Cid)c),
+                updatedTarget.toOptional().map(c -> (Cid)c),
+                mirrorBat,
+                () -> targetPointers.setPointer(writer, existing, newPointer).join());
     }
 }
@@ -185,7 +185,7 @@ public class UserCleanup {
         byte[] block = raw.get();
         blocks.put(root, raw.get());
         if (! root.isRaw()) {
-            List<Cid> children = CborObject.fromByteArray(block).links().stream().map(c -> (Cid) c).collect(Collectors.toList());
+            List<Cid> children = CborReader.links(block);
             for (Cid child : children) {
                 if (child.isIdentity())
                     continue;
@@ -205,7 +205,7 @@ public class UserCleanup {
         byte[] block = raw.get();
         res.put(root, (long) block.length);
         if (! root.isRaw()) {
-            List<Cid> children = CborObject.fromByteArray(block).links().stream().map(c -> (Cid) c).collect(Collectors.toList());
+            List<Cid> children = CborReader.links(block);
             for (Cid child : children) {
                 if (child.isIdentity())
                     continue;
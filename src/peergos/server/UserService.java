@@ -80,6 +80,7 @@ public class UserService {
     }
 
     public final ContentAddressedStorage storage;
+    private final Optional<DeletableContentAddressedStorage> localBlocks; // for serving local block gets directly
     public final BatCave bats;
     public final Crypto crypto;
     public final CoreNode coreNode;
@@ -92,6 +93,7 @@ public class UserService {
     public final GarbageCollector gc; // not exposed
 
     public UserService(ContentAddressedStorage storage,
+                       Optional<DeletableContentAddressedStorage> localBlocks,
                        BatCave bats,
                        Crypto crypto,
                        CoreNode coreNode,
@@ -103,6 +105,7 @@ public class UserService {
                        ServerMessager serverMessages,
                        GarbageCollector gc) {
         this.storage = storage;
+        this.localBlocks = localBlocks;
         this.bats = bats;
         this.crypto = crypto;
         this.coreNode = coreNode;
@@ -233,7 +236,7 @@ public class UserService {
         }
 
         addHandler(localhostServer, tlsServer, Constants.DHT_URL,
-                new DHTHandler(storage, crypto.hasher, (h, i) -> true, isPublicServer),
+                new DHTHandler(storage, localBlocks, crypto.hasher, (h, i) -> true, "/api/v0/", isPublicServer),
                 basicAuth, local, host, nodeId, false);
         addHandler(localhostServer, tlsServer, "/" + Constants.BATS_URL,
                 new BatCaveHandler(this.bats, coreNode, storage, isPublicServer), basicAuth, local, host, nodeId, false);
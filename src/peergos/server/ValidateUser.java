@@ -40,13 +40,13 @@ public class ValidateUser {
     }
 
     private static void validateBlock(Multihash target, NetworkAccess network) {
-        Optional<CborObject> block = network.dhtClient.get((Cid)target, Optional.empty()).join();
+        Optional<byte[]> block = network.dhtClient.getRaw((Cid)target, Optional.empty()).join();
         if (! block.isPresent())
             throw new IllegalStateException("Couldn't retrieve " + target);
 
-        List<Multihash> links = block.get().links();
-        for (Multihash link : links) {
-            if (link instanceof Cid && ((Cid) link).codec == Cid.Codec.Raw)
+        List<Cid> links = CborReader.links(block.get());
+        for (Cid link : links) {
+            if (link.codec == Cid.Codec.Raw)
                 network.dhtClient.getSize(link).join();
             else
                 validateBlock(link, network);
@@ -411,37 +411,42 @@ public class MirrorCoreNode implements CoreNode {
                     batCave.addBat(username, bat.id(), bat.bat, new byte[0]);
             }
             // Mirror all the data locally
-            Mirror.mirrorUser(username, Optional.empty(), mirrorBat, this, p2pMutable, null, ipfs, rawPointers, rawAccount, transactions, hasher);
-            Map<PublicKeyHash, byte[]> mirrored = Mirror.mirrorUser(username, Optional.empty(), mirrorBat, this, p2pMutable,
-                    null, ipfs, rawPointers, rawAccount, transactions, hasher);
-
-            // Proxy call to their current storage server
-            UserSnapshot res = writeTarget.migrateUser(username, newChain, currentStorageId, mirrorBat).join();
-            // pick up the new pki data locally
-            update();
-
-            res.mirrorBats.forEach(b -> {
-                batCave.addBat(username, b.id(), b.bat, new byte[0]);
-            });
-            res.login.ifPresent(rawAccount::setLoginData);
-
-            // commit diff since our mirror above
-            for (Map.Entry<PublicKeyHash, byte[]> e : res.pointerState.entrySet()) {
-                byte[] existingVal = mirrored.get(e.getKey());
-                if (! Arrays.equals(existingVal, e.getValue())) {
-                    Mirror.mirrorMerkleTree(owner, e.getKey(), e.getValue(), mirrorBat, ipfs, rawPointers, transactions, hasher);
+            IncrementalMirror engine = new IncrementalMirror(ipfs, transactions, hasher);
+            try {
+                Mirror.mirrorUser(username, Optional.empty(), mirrorBat, this, p2pMutable, null, ipfs, rawPointers, rawAccount, engine, hasher);
+                Map<PublicKeyHash, byte[]> mirrored = Mirror.mirrorUser(username, Optional.empty(), mirrorBat, this, p2pMutable,
+                        null, ipfs, rawPointers, rawAccount, engine, hasher);
+
+                // Proxy call to their current storage server
+                UserSnapshot res = writeTarget.migrateUser(username, newChain, currentStorageId, mirrorBat).join();
+                // pick up the new pki data locally
+                update();
+
+                res.mirrorBats.forEach(b -> {
+                    batCave.addBat(username, b.id(), b.bat, new byte[0]);
+                });
+                res.login.ifPresent(rawAccount::setLoginData);
+
+                // commit diff since our mirror above
+                for (Map.Entry<PublicKeyHash, byte[]> e : res.pointerState.entrySet()) {
+                    byte[] existingVal = mirrored.get(e.getKey());
+                    if (! Arrays.equals(existingVal, e.getValue())) {
+                        Mirror.mirrorMerkleTree(owner, e.getKey(), e.getValue(), mirrorBat, ipfs, rawPointers, engine);
+                    }
                 }
-            }
 
-            // Copy pending follow requests to local server
-            for (BlindFollowRequest req : res.pendingFollowReqs) {
-                // write directly to local social database to avoid being redirected to user's current node
-                localSocial.addFollowRequest(owner, req.serialize()).join();
-            }
+                // Copy pending follow requests to local server
+                for (BlindFollowRequest req : res.pendingFollowReqs) {
+                    // write directly to local social database to avoid being redirected to user's current node
+                    localSocial.addFollowRequest(owner, req.serialize()).join();
+                }
 
-            // Make sure usage is updated
-            SpaceCheckingKeyFilter.processCorenodeEvent(username, owner, usageStore, ipfs, p2pMutable, hasher);
-            return Futures.of(res);
+                // Make sure usage is updated
+                SpaceCheckingKeyFilter.processCorenodeEvent(username, owner, usageStore, ipfs, p2pMutable, hasher);
+                return Futures.of(res);
+            } finally {
+                engine.shutdown();
+            }
         } else // Proxy call to their target storage server
             return writeTarget.migrateUser(username, newChain, migrationTargetNode, mirrorBat);
     }
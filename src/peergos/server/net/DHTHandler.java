@@ -4,6 +4,7 @@ import java.util.logging.*;
 
 import io.prometheus.client.*;
 import peergos.server.AggregatedMetrics;
+import peergos.server.storage.*;
 import peergos.server.util.*;
 
 import peergos.shared.cbor.*;
@@ -29,23 +30,36 @@ public class DHTHandler implements HttpHandler {
 
     private static final boolean LOGGING = true;
     private final ContentAddressedStorage dht;
+    private final Optional<DeletableContentAddressedStorage> localBlocks;
+    private final Optional<Cid> localId;
     private final Hasher hasher;
     private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
     private final String apiPrefix;
     private final boolean isPublicServer;
 
     public DHTHandler(ContentAddressedStorage dht,
+                      Optional<DeletableContentAddressedStorage> localBlocks,
                       Hasher hasher,
                       BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
                       String apiPrefix,
                       boolean isPublicServer) {
         this.dht = dht;
+        this.localBlocks = localBlocks;
+        this.localId = localBlocks.map(s -> s.id().join());
         this.hasher = hasher;
         this.keyFilter = keyFilter;
         this.apiPrefix = apiPrefix;
         this.isPublicServer = isPublicServer;
     }
 
+    public DHTHandler(ContentAddressedStorage dht,
+                      Hasher hasher,
+                      BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
+                      String apiPrefix,
+                      boolean isPublicServer) {
+        this(dht, Optional.empty(), hasher, keyFilter, apiPrefix, isPublicServer);
+    }
+
     public DHTHandler(ContentAddressedStorage dht,
                       Hasher hasher,
                       BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
@@ -138,6 +152,20 @@ public class DHTHandler implements HttpHandler {
                     }
                     break;
                 }
+                case CHAMP_GET_ALL: {
+                    AggregatedMetrics.DHT_CHAMP_GET_ALL.inc();
+                    PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
+                    CborObject cbor = CborObject.fromByteArray(Serialize.readFully(httpExchange.getRequestBody()));
+                    ChampLookupRequest req = ChampLookupRequest.fromCbor(cbor);
+                    if (req.keys.size() > ContentAddressedStorage.MAX_CHAMP_KEYS_PER_LOOKUP)
+                        throw new IllegalStateException("Too many champ keys requested: " + req.keys.size() + " > " + ContentAddressedStorage.MAX_CHAMP_KEYS_PER_LOOKUP);
+                    AggregatedMetrics.DHT_CHAMP_GET_ALL_KEYS.inc(req.keys.size());
+                    dht.getChampLookups(ownerHash, req.root, req.keys, req.bats).thenAccept(blocks -> {
+                        replyBytes(httpExchange, new CborObject.CborList(blocks.stream()
+                                .map(CborObject.CborByteArray::new).collect(Collectors.toList())).serialize(), Optional.empty());
+                    }).exceptionally(Futures::logAndThrow).get();
+                    break;
+                }
                 case BLOCK_PUT: {
                     AggregatedMetrics.DHT_BLOCK_PUT.inc();
                     PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
@@ -213,14 +241,52 @@ public class DHTHandler implements HttpHandler {
                     Optional<BatWithId> bat = params.containsKey("bat") ?
                             Optional.of(BatWithId.decode(last.apply("bat"))) :
                             Optional.empty();
+                    // blocks are immutable, so a client with any copy has the current one. We only say so once the
+                    // block is known to exist and the request is authorised to read it.
+                    boolean notModified = matchesETag(httpExchange, hash);
+                    if (hash.isRaw() && localBlocks.isPresent()) {
+                        Optional<BlockRegion> region = localBlocks.get().getRawRegion(hash, bat, localId.get(), hasher).get();
+                        if (region.isPresent()) {
+                            try (BlockRegion block = region.get()) {
+                                if (notModified) {
+                                    AggregatedMetrics.DHT_BLOCK_GET_NOT_MODIFIED.inc();
+                                    replyNotModified(httpExchange, hash);
+                                } else
+                                    replyRegion(httpExchange, block, hash);
+                            }
+                            break;
+                        }
+                    }
                     (hash.codec == Cid.Codec.Raw ?
                             dht.getRaw(hash, bat) :
                             dht.get(hash, bat).thenApply(opt -> opt.map(CborObject::toByteArray)))
-                            .thenAccept(opt -> replyBytes(httpExchange,
-                                    opt.orElse(new byte[0]), opt.map(x -> hash)))
+                            .thenAccept(opt -> {
+                                if (opt.isPresent() && notModified) {
+                                    AggregatedMetrics.DHT_BLOCK_GET_NOT_MODIFIED.inc();
+                                    replyNotModified(httpExchange, hash);
+                                } else
+                                    replyBytes(httpExchange, opt.orElse(new byte[0]), opt.map(x -> hash));
+                            })
                             .exceptionally(Futures::logAndThrow).get();
                     break;
                 }
+                case BLOCK_GET_ALL: {
+                    AggregatedMetrics.DHT_BLOCK_GET_ALL.inc();
+                    CborObject cbor = CborObject.fromByteArray(Serialize.readFully(httpExchange.getRequestBody()));
+                    List<MirrorCap> caps = ((CborObject.CborList) cbor).map(MirrorCap::fromCbor);
+                    if (caps.size() > ContentAddressedStorage.MAX_BLOCKS_PER_GET)
+                        throw new IllegalStateException("Too many blocks requested: " + caps.size() + " > " + ContentAddressedStorage.MAX_BLOCKS_PER_GET);
+                    AggregatedMetrics.DHT_BLOCK_GET_ALL_BLOCKS.inc(caps.size());
+                    List<Cid> hashes = caps.stream().map(c -> c.hash).collect(Collectors.toList());
+                    List<Optional<BatWithId>> bats = caps.stream().map(c -> c.bat).collect(Collectors.toList());
+                    dht.getAll(hashes, bats).thenAccept(blocks -> {
+                        List<CborObject> res = blocks.stream()
+                                .map(b -> b.<CborObject>map(CborObject.CborByteArray::new).orElse(new CborObject.CborNull()))
+                                .collect(Collectors.toList());
+                        replyBytes(httpExchange, new CborObject.CborList(res).serialize(), Optional.empty());
+                    }).exceptionally(Futures::logAndThrow).get();
+                    break;
+                }
                 case BLOCK_STAT: {
                     AggregatedMetrics.DHT_BLOCK_STAT.inc();
                     Multihash block = Cid.decode(args.get(0));
@@ -289,6 +355,41 @@ public class DHTHandler implements HttpHandler {
         }
     }
 
+    private static String etag(Multihash key) {
+        return "\"" + key.toString() + "\"";
+    }
+
+    private static boolean matchesETag(HttpExchange exchange, Multihash key) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch == null)
+            return false;
+        String etag = etag(key);
+        return Arrays.stream(ifNoneMatch.split(","))
+                .map(String::trim)
+                .map(t -> t.startsWith("W/") ? t.substring(2) : t)
+                .anyMatch(t -> t.equals(etag));
+    }
+
+    private static void replyNotModified(HttpExchange exchange, Multihash key) {
+        try {
+            exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31622400 immutable");
+            exchange.getResponseHeaders().set("ETag", etag(key));
+            exchange.sendResponseHeaders(304, -1);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    private static void replyRegion(HttpExchange exchange, BlockRegion block, Multihash key) throws IOException {
+        exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31622400 immutable");
+        exchange.getResponseHeaders().set("ETag", etag(key));
+        exchange.sendResponseHeaders(200, block.size);
+        OutputStream out = exchange.getResponseBody();
+        block.transferTo(out);
+        out.flush();
+        out.close();
+    }
+
     private static void replyBytes(HttpExchange exchange, byte[] body, Optional<Multihash> key) {
         try {
             if (key.isPresent()) {
@@ -49,6 +49,18 @@ public interface SqlSupplier {
                 "tid varchar(64) not null, owner varchar(64) not null, hash varchar(64) not null, time " + sqlInteger()+");";
     }
 
+    default String createGcStateTablesCommand() {
+        return "CREATE TABLE IF NOT EXISTS gcrefs (hash varchar(64) primary key not null, refs " + sqlInteger() + " not null);" +
+                "CREATE TABLE IF NOT EXISTS gcroots (hash varchar(64) primary key not null, refs " + sqlInteger() + " not null);" +
+                "CREATE TABLE IF NOT EXISTS gcmeta (name varchar(32) primary key not null, value BIGINT not null);" +
+                "CREATE TABLE IF NOT EXISTS gcpending (hash varchar(64) primary key not null);";
+    }
+
+    default String createBlockMetadataStoreTableCommand() {
+        return "CREATE TABLE IF NOT EXISTS blockmetadata (cid varchar(100) primary key not null, " +
+                "size " + sqlInteger() + " not null, links " + getByteArrayType() + " not null);";
+    }
+
     default String createServerMessageTableCommand() {
         return "CREATE TABLE IF NOT EXISTS messages (" +
                 "id " + getSerialIdType() + " PRIMARY KEY NOT NULL," +
@@ -1,5 +1,6 @@
 package peergos.server.storage;
 
+import peergos.server.*;
 import peergos.server.storage.auth.*;
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
@@ -14,10 +15,10 @@ import java.util.concurrent.*;
 
 public class AuthedCachingStorage extends DelegatingStorage {
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
-    private final LRUCache<Multihash, Boolean> legacyBlocks;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
+    private final WeightedCache<Multihash, byte[]> cache;
+    private final WeightedCache<Multihash, Boolean> legacyBlocks;
+    private final SingleFlight<Multihash, Optional<CborObject>> pending;
+    private final SingleFlight<Multihash, Optional<byte[]>> pendingRaw;
     private final BlockRequestAuthoriser authoriser;
     private final Hasher h;
     private final Cid ourNodeId;
@@ -33,12 +34,12 @@ public class AuthedCachingStorage extends DelegatingStorage {
         this.ourNodeId = target.id().join();
         this.authoriser = authoriser;
         this.h = h;
-        this.cache = new LRUCache<>(cacheSize);
-        this.legacyBlocks = new LRUCache<>(cacheSize);
+        this.cache = CacheMetrics.monitor("authed_blocks", WeightedCache.bytes((long) cacheSize * maxValueSize));
+        this.legacyBlocks = WeightedCache.count(cacheSize);
         this.maxValueSize = maxValueSize;
         this.cacheSize = cacheSize;
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+        this.pending = CacheMetrics.monitor("authed_blocks", new SingleFlight<>());
+        this.pendingRaw = CacheMetrics.monitor("authed_blocks", new SingleFlight<>());
     }
 
     public Collection<byte[]> getCached() {
@@ -89,37 +90,27 @@ public class AuthedCachingStorage extends DelegatingStorage {
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Cid key, Optional<BatWithId> bat) {
-        if (cache.containsKey(key))
-            return authoriseGet(key, cache.get(key), bat)
+        byte[] cached = cache.get(key);
+        if (cached != null)
+            return authoriseGet(key, cached, bat)
                     .thenApply(res -> Optional.of(CborObject.fromByteArray(res)));
 
-        if (pending.containsKey(key))
-            return pending.get(key)
-                    .thenCompose(copt -> copt.isEmpty() ?
-                            Futures.of(Optional.empty()) :
-                            authoriseGet(key, copt.get().serialize(), bat)
-                                    .thenApply(b -> copt));
-
-        CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
-
-        CompletableFuture<Optional<CborObject>> result = new CompletableFuture<>();
-        target.get(key, bat).thenAccept(cborOpt -> {
-            if (cborOpt.isPresent()) {
-                byte[] value = cborOpt.get().toByteArray();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
-            }
-            pending.remove(key);
-            pipe.complete(cborOpt);
-            result.complete(cborOpt);
-        }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            result.completeExceptionally(t);
-            return null;
-        });
-        return result;
+        // the fetch is authorised downstream, callers sharing another caller's fetch must be authorised here
+        boolean[] fetched = {false};
+        return pending.get(key, () -> {
+            fetched[0] = true;
+            return target.get(key, bat).thenApply(cborOpt -> {
+                if (cborOpt.isPresent()) {
+                    byte[] value = cborOpt.get().toByteArray();
+                    if (value.length > 0 && value.length < maxValueSize)
+                        cache.put(key, value);
+                }
+                return cborOpt;
+            });
+        }).thenCompose(copt -> fetched[0] || copt.isEmpty() ?
+                Futures.of(copt) :
+                authoriseGet(key, copt.get().serialize(), bat)
+                        .thenApply(b -> copt));
     }
 
     @Override
@@ -142,19 +133,27 @@ public class AuthedCachingStorage extends DelegatingStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Cid key, Optional<BatWithId> bat) {
-        if (cache.containsKey(key))
-            return authoriseGet(key, cache.get(key), bat)
+        byte[] cached = cache.get(key);
+        if (cached != null)
+            return authoriseGet(key, cached, bat)
                     .thenApply(res -> Optional.of(res));
 
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key)
-                    .thenCompose(opt -> opt.isEmpty() ?
-                            Futures.of(Optional.empty()) :
-                            authoriseGet(key, opt.get(), bat)
-                                    .thenApply(b -> opt));
+        boolean[] fetched = {false};
+        CompletableFuture<Optional<byte[]>> shared = pendingRaw.get(key, () -> {
+            fetched[0] = true;
+            return fetchRaw(key, bat);
+        });
+        if (fetched[0])
+            return shared.exceptionally(t -> Optional.empty());
+        // the shared fetch may have failed only because of the first caller's bat, so retry with ours
+        return Futures.asyncExceptionally(() -> shared, t -> fetchRaw(key, bat))
+                .thenCompose(opt -> opt.isEmpty() ?
+                        Futures.of(opt) :
+                        authoriseGet(key, opt.get(), bat)
+                                .thenApply(b -> opt));
+    }
 
-        CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
+    private CompletableFuture<Optional<byte[]>> fetchRaw(Cid key, Optional<BatWithId> bat) {
         return target.getRaw(key, bat).thenApply(rawOpt -> {
             if (rawOpt.isPresent()) {
                 byte[] value = rawOpt.get();
@@ -164,13 +163,40 @@ public class AuthedCachingStorage extends DelegatingStorage {
                         legacyBlocks.put(key, true);
                 }
             }
-            pendingRaw.remove(key);
-            pipe.complete(rawOpt);
             return rawOpt;
-        }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            return Optional.empty();
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+        List<CompletableFuture<Optional<byte[]>>> hits = new ArrayList<>();
+        List<Integer> misses = new ArrayList<>();
+        for (int i=0; i < hashes.size(); i++) {
+            byte[] cached = cache.get(hashes.get(i));
+            if (cached != null)
+                hits.add(authoriseGet(hashes.get(i), cached, bats.get(i)).thenApply(Optional::of));
+            else {
+                hits.add(null);
+                misses.add(i);
+            }
+        }
+        // the fetched blocks are authorised downstream
+        CompletableFuture<List<Optional<byte[]>>> fetched = misses.isEmpty() ?
+                Futures.of(Collections.emptyList()) :
+                target.getAll(ArrayOps.select(hashes, misses), ArrayOps.select(bats, misses));
+        return fetched.thenCompose(blocks -> {
+            for (int j=0; j < misses.size(); j++) {
+                int i = misses.get(j);
+                Cid key = hashes.get(i);
+                Optional<byte[]> block = blocks.get(j);
+                if (block.isPresent() && block.get().length > 0 && block.get().length < maxValueSize) {
+                    cache.put(key, block.get());
+                    if (bats.get(i).isEmpty() && key.isRaw())
+                        legacyBlocks.put(key, true);
+                }
+                hits.set(i, Futures.of(block));
+            }
+            return Futures.combineAllInOrder(hits);
         });
     }
 }
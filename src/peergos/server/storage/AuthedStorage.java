@@ -76,9 +76,8 @@ public class AuthedStorage extends DelegatingStorage implements DeletableContent
         if (root.codec == Cid.Codec.Raw)
             return CompletableFuture.completedFuture(Collections.emptyList());
         return getRaw(root, auth, false)
-                .thenApply(opt -> opt.map(CborObject::fromByteArray))
                 .thenApply(opt -> opt
-                        .map(cbor -> cbor.links().stream().map(c -> (Cid) c).collect(Collectors.toList()))
+                        .map(CborReader::links)
                         .orElse(Collections.emptyList())
                 );
     }
@@ -90,6 +89,16 @@ public class AuthedStorage extends DelegatingStorage implements DeletableContent
         return getChampLookup(root, champKey, bat, h);
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        if (! hasBlock(root))
+            return Futures.errored(new IllegalStateException("Champ root not present locally: " + root));
+        return getChampLookups(root, champKeys, bats, h);
+    }
+
     @Override
     public Stream<Cid> getAllBlockHashes() {
         return target.getAllBlockHashes();
@@ -105,6 +114,11 @@ public class AuthedStorage extends DelegatingStorage implements DeletableContent
         target.clearOldTransactions(cutoffMillis);
     }
 
+    @Override
+    public Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis) {
+        return target.getBlocksWrittenSince(cutoffMillis);
+    }
+
     @Override
     public void delete(Multihash hash) {
         target.delete(hash);
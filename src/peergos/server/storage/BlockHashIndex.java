@@ -0,0 +1,263 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+/** A compact index of the blocks in a blockstore used to mark reachability during garbage collection.
+ *
+ *  Each block is keyed by the first 16 bytes of its hash digest, with the lowest bit replaced by whether the block is
+ *  raw. Keys are held in a sorted primitive array with one reachability bit per entry, so the index costs ~16 bytes
+ *  per block. Marking is lock-free, so it doubles as the visited set for a concurrent mark traversal.
+ *
+ *  The keyspace can be split into partitions so that each index only holds a fraction of the blockstore.
+ *
+ *  Optionally the index can also count references to each block (4 bytes per block), which seeds the reference counts
+ *  used by incremental GC.
+ */
+public class BlockHashIndex {
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 16;
+
+    public final int partition, partitions;
+    public final long peakBytes;
+    // interleaved (high, low) key pairs
+    private final long[] keys;
+    private final int size;
+    private final AtomicLongArray reachable;
+    private final Optional<AtomicIntegerArray> refs;
+
+    private BlockHashIndex(int partition, int partitions, long[] keys, int size, long peakBytes, boolean countRefs) {
+        this.partition = partition;
+        this.partitions = partitions;
+        this.keys = keys;
+        this.size = size;
+        this.reachable = new AtomicLongArray((size + 63) / 64);
+        this.refs = countRefs ? Optional.of(new AtomicIntegerArray(size)) : Optional.empty();
+        this.peakBytes = peakBytes;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long sizeInBytes() {
+        return keys.length * 8L + size / 8 + (refs.isPresent() ? size * 4L : 0);
+    }
+
+    public boolean countsRefs() {
+        return refs.isPresent();
+    }
+
+    /** Record a reference to h, if we are counting references and h is in this index
+     *
+     * @param h
+     */
+    public void addRef(Multihash h) {
+        if (refs.isEmpty())
+            return;
+        int index = indexOf(h);
+        if (index >= 0)
+            refs.get().incrementAndGet(index);
+    }
+
+    public int getRefs(Multihash h) {
+        int index = indexOf(h);
+        if (index < 0 || refs.isEmpty())
+            return 0;
+        return refs.get().get(index);
+    }
+
+    public boolean inPartition(Multihash h) {
+        return ! h.isIdentity() && inPartition(high(h), partition, partitions);
+    }
+
+    public boolean contains(Multihash h) {
+        return indexOf(h) >= 0;
+    }
+
+    /** Mark h as reachable
+     *
+     * @param h
+     * @return true if h is in this index and this call was the first to mark it
+     */
+    public boolean mark(Multihash h) {
+        int index = indexOf(h);
+        if (index < 0)
+            return false;
+        long bit = 1L << (index & 63);
+        int word = index >>> 6;
+        while (true) {
+            long current = reachable.get(word);
+            if ((current & bit) != 0)
+                return false;
+            if (reachable.compareAndSet(word, current, current | bit))
+                return true;
+        }
+    }
+
+    /**
+     *
+     * @param h
+     * @return true if h is in this index and has not been marked reachable
+     */
+    public boolean isGarbage(Multihash h) {
+        int index = indexOf(h);
+        return index >= 0 && (reachable.get(index >>> 6) & (1L << (index & 63))) == 0;
+    }
+
+    private int indexOf(Multihash h) {
+        if (! inPartition(h))
+            return -1;
+        long high = high(h), low = low(h);
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(keys[2 * mid], keys[2 * mid + 1], high, low) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        if (lo < size && keys[2 * lo] == high && keys[2 * lo + 1] == low)
+            return lo;
+        return -1;
+    }
+
+    /** Build an index of the blocks in a partition of the keyspace, consuming the block stream as it goes.
+     *
+     * @param blocks
+     * @param partition
+     * @param partitions
+     * @param maxBytes the maximum memory the index may use
+     * @param countRefs whether to also count references to each block
+     * @return The index, or Optional.empty() if the partition would not fit in maxBytes
+     */
+    public static Optional<BlockHashIndex> build(Stream<Cid> blocks,
+                                                 int partition,
+                                                 int partitions,
+                                                 long maxBytes,
+                                                 boolean countRefs) {
+        long[] keys = new long[2 * INITIAL_CAPACITY];
+        int size = 0;
+        long peakBytes = keys.length * 8L;
+        try (Stream<Cid> toIndex = blocks) {
+            Iterator<Cid> iter = toIndex.iterator();
+            while (iter.hasNext()) {
+                Cid block = iter.next();
+                if (block.isIdentity())
+                    continue;
+                long high = high(block);
+                if (! inPartition(high, partition, partitions))
+                    continue;
+                if (2 * size == keys.length) {
+                    int newLength = keys.length + (keys.length >> 1) & ~1;
+                    long required = (keys.length + (long) newLength) * 8;
+                    if (newLength < 0 || required + newLength / 16 > maxBytes)
+                        return Optional.empty();
+                    keys = Arrays.copyOf(keys, newLength);
+                    peakBytes = Math.max(peakBytes, required);
+                }
+                keys[2 * size] = high;
+                keys[2 * size + 1] = low(block);
+                size++;
+            }
+        }
+        if (keys.length * 8L + size / 8 + (countRefs ? size * 4L : 0) > maxBytes)
+            return Optional.empty();
+        ForkJoinPool.commonPool().invoke(new Sorter(keys, 0, size));
+        return Optional.of(new BlockHashIndex(partition, partitions, keys, size, peakBytes, countRefs));
+    }
+
+    public static Optional<BlockHashIndex> build(Stream<Cid> blocks, int partition, int partitions, long maxBytes) {
+        return build(blocks, partition, partitions, maxBytes, false);
+    }
+
+    /** A parallel quicksort over interleaved key pairs. Keys are hashes so the middle element is a good pivot.
+     */
+    @SuppressWarnings("serial")
+    private static class Sorter extends RecursiveAction {
+        private final long[] keys;
+        private final int from, to;
+
+        Sorter(long[] keys, int from, int to) {
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            List<Sorter> forked = new ArrayList<>();
+            int lo = from, hi = to;
+            while (hi - lo > 16) {
+                int mid = (lo + hi) >>> 1;
+                long pivotHigh = keys[2 * mid], pivotLow = keys[2 * mid + 1];
+                int i = lo, j = hi - 1;
+                while (i <= j) {
+                    while (compare(keys[2 * i], keys[2 * i + 1], pivotHigh, pivotLow) < 0)
+                        i++;
+                    while (compare(keys[2 * j], keys[2 * j + 1], pivotHigh, pivotLow) > 0)
+                        j--;
+                    if (i <= j)
+                        swap(keys, i++, j--);
+                }
+                // hand off the smaller side and loop on the larger
+                boolean leftSmaller = j + 1 - lo < hi - i;
+                Sorter smaller = leftSmaller ? new Sorter(keys, lo, j + 1) : new Sorter(keys, i, hi);
+                if (smaller.to - smaller.from > PARALLEL_SORT_THRESHOLD) {
+                    smaller.fork();
+                    forked.add(smaller);
+                } else
+                    smaller.compute();
+                if (leftSmaller)
+                    lo = i;
+                else
+                    hi = j + 1;
+            }
+            for (int i = lo + 1; i < hi; i++)
+                for (int j = i; j > lo && compare(keys[2 * (j - 1)], keys[2 * (j - 1) + 1], keys[2 * j], keys[2 * j + 1]) > 0; j--)
+                    swap(keys, j, j - 1);
+            forked.forEach(ForkJoinTask::join);
+        }
+    }
+
+    private static void swap(long[] keys, int i, int j) {
+        long high = keys[2 * i], low = keys[2 * i + 1];
+        keys[2 * i] = keys[2 * j];
+        keys[2 * i + 1] = keys[2 * j + 1];
+        keys[2 * j] = high;
+        keys[2 * j + 1] = low;
+    }
+
+    private static int compare(long high1, long low1, long high2, long low2) {
+        int res = Long.compare(high1, high2);
+        if (res != 0)
+            return res;
+        return Long.compare(low1, low2);
+    }
+
+    private static boolean inPartition(long high, int partition, int partitions) {
+        return partitions == 1 || Long.remainderUnsigned(high, partitions) == partition;
+    }
+
+    private static long high(Multihash h) {
+        return readLong(h.getHash(), 0);
+    }
+
+    private static long low(Multihash h) {
+        boolean isRaw = h instanceof Cid && ((Cid) h).isRaw();
+        return (readLong(h.getHash(), 8) & ~1L) | (isRaw ? 1 : 0);
+    }
+
+    private static long readLong(byte[] hash, int offset) {
+        long res = 0;
+        for (int i = offset; i < offset + 8; i++)
+            res = (res << 8) | (i < hash.length ? hash[i] & 0xFF : 0);
+        return res;
+    }
+}
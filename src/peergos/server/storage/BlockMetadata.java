@@ -13,4 +13,12 @@ public class BlockMetadata {
         this.size = size;
         this.links = links;
     }
+
+    /**
+     *
+     * @return An estimate of the RAM used by this object and its key
+     */
+    public int sizeInBytes() {
+        return 128 + 80 * links.size();
+    }
 }
@@ -4,7 +4,6 @@ import peergos.shared.cbor.*;
 import peergos.shared.io.ipfs.cid.*;
 
 import java.util.*;
-import java.util.stream.*;
 
 public interface BlockMetadataStore {
 
@@ -12,15 +11,19 @@ public interface BlockMetadataStore {
 
     void put(Cid block, BlockMetadata meta);
 
+    void remove(Cid block);
+
+    /**
+     *
+     * @return the number of blocks with stored metadata
+     */
+    long size();
+
     default void put(Cid block, byte[] data) {
         if (block.isRaw()) {
             put(block, new BlockMetadata(data.length, Collections.emptyList()));
         } else {
-            List<Cid> links = CborObject.fromByteArray(data)
-                    .links().stream()
-                    .map(h -> (Cid) h)
-                    .collect(Collectors.toList());
-            put(block, new BlockMetadata(data.length, links));
+            put(block, new BlockMetadata(data.length, CborReader.links(data)));
         }
     }
 }
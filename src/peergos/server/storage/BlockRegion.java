@@ -0,0 +1,49 @@
+package peergos.server.storage;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/** A locally stored block as a region of a file, so it can be streamed to a client without reading it onto the heap
+ */
+public class BlockRegion implements Closeable {
+
+    public final FileChannel channel;
+    public final long offset;
+    public final int size;
+
+    public BlockRegion(FileChannel channel, long offset, int size) {
+        this.channel = channel;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    public void transferTo(OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long pos = offset, end = offset + size;
+        while (pos < end) {
+            long written = channel.transferTo(pos, end - pos, target);
+            if (written <= 0)
+                throw new EOFException("Block region truncated");
+            pos += written;
+        }
+    }
+
+    /**
+     *
+     * @param maxLength
+     * @return The first bytes of the block, e.g. to check a raw block's BATs
+     */
+    public byte[] readPrefix(int maxLength) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(maxLength, size));
+        while (buf.hasRemaining())
+            if (channel.read(buf, offset + buf.position()) < 0)
+                throw new EOFException("Block region truncated");
+        return buf.array();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,214 @@
+package peergos.server.storage;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import peergos.server.util.Logging;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** A TransactionStore which keeps the blocks of open transactions in memory, and group commits writes to a persistent
+ *  target.
+ *
+ *  Concurrent addBlock calls are gathered into batches which are written in a single database transaction, and each
+ *  call returns once its batch is durable. GC's query for open transaction blocks is served from memory. Blocks of
+ *  transactions which were open in a previous run are loaded on startup, and kept until they are cleared.
+ */
+public class BufferedTransactionStore implements TransactionStore {
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_MAX_BATCH = 1000;
+
+    private static final Gauge openBlocks = Gauge.build()
+            .name("transactions_open_blocks")
+            .help("Number of blocks in open transactions")
+            .register();
+    private static final Counter commits = Counter.build()
+            .name("transactions_group_commits")
+            .help("Number of batches of transaction writes committed")
+            .register();
+    private static final Histogram batchSizes = Histogram.build()
+            .name("transactions_group_commit_size")
+            .help("Number of blocks in each batch of transaction writes")
+            .exponentialBuckets(1, 2, 12)
+            .register();
+
+    private static class OpenTransaction {
+        public final Set<Multihash> blocks = ConcurrentHashMap.newKeySet();
+        public volatile long lastWrite = System.currentTimeMillis();
+    }
+
+    private static class Write {
+        public final TransactionId tid;
+        public final PublicKeyHash owner;
+        public final List<Multihash> blocks;
+        public final boolean isClose;
+        public final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        public Write(TransactionId tid, PublicKeyHash owner, List<Multihash> blocks, boolean isClose) {
+            this.tid = tid;
+            this.owner = owner;
+            this.blocks = blocks;
+            this.isClose = isClose;
+        }
+
+        public boolean isBarrier() {
+            return tid == null;
+        }
+    }
+
+    private final TransactionStore target;
+    private final int maxBatch;
+    private final Map<String, OpenTransaction> open = new ConcurrentHashMap<>();
+    // open blocks from a previous run, which we don't know the transactions of
+    private volatile Set<Multihash> recovered;
+    private final long startTime = System.currentTimeMillis();
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+
+    public BufferedTransactionStore(TransactionStore target, int maxBatch) {
+        this.target = target;
+        this.maxBatch = maxBatch;
+        Set<Multihash> previous = ConcurrentHashMap.newKeySet();
+        previous.addAll(target.getOpenTransactionBlocks());
+        this.recovered = previous;
+        if (! previous.isEmpty())
+            LOG.info("Loaded " + previous.size() + " blocks from previously open transactions");
+        updateGauge();
+        this.committer = new Thread(this::commitLoop, "Transaction group commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    public BufferedTransactionStore(TransactionStore target) {
+        this(target, DEFAULT_MAX_BATCH);
+    }
+
+    private static String key(PublicKeyHash owner, TransactionId tid) {
+        return owner + "/" + tid;
+    }
+
+    @Override
+    public TransactionId startTransaction(PublicKeyHash owner) {
+        return target.startTransaction(owner);
+    }
+
+    @Override
+    public void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner) {
+        addBlocks(Collections.singletonList(hash), tid, owner);
+    }
+
+    @Override
+    public void addBlocks(List<Multihash> hashes, TransactionId tid, PublicKeyHash owner) {
+        if (hashes.isEmpty())
+            return;
+        // visible to GC immediately
+        OpenTransaction tx = open.computeIfAbsent(key(owner, tid), k -> new OpenTransaction());
+        tx.blocks.addAll(hashes);
+        tx.lastWrite = System.currentTimeMillis();
+        submit(new Write(tid, owner, hashes, false));
+    }
+
+    @Override
+    public void closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        // persist the close before forgetting the blocks, so they are never unprotected in both places
+        submit(new Write(tid, owner, Collections.emptyList(), true));
+        open.remove(key(owner, tid));
+        updateGauge();
+    }
+
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        Set<Multihash> res = new HashSet<>(recovered);
+        for (OpenTransaction tx : open.values())
+            res.addAll(tx.blocks);
+        return new ArrayList<>(res);
+    }
+
+    @Override
+    public Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis) {
+        flush();
+        return target.getBlocksWrittenSince(cutoffMillis);
+    }
+
+    @Override
+    public void clearOldTransactions(long cutoffMillis) {
+        flush();
+        target.clearOldTransactions(cutoffMillis);
+        open.entrySet().removeIf(e -> e.getValue().lastWrite < cutoffMillis);
+        if (cutoffMillis > startTime)
+            recovered = ConcurrentHashMap.newKeySet();
+        updateGauge();
+    }
+
+    /** Wait until all writes submitted so far are durable
+     */
+    public void flush() {
+        submit(new Write(null, null, Collections.emptyList(), false));
+    }
+
+    private void submit(Write w) {
+        queue.add(w);
+        try {
+            w.done.join();
+        } catch (CompletionException e) {
+            LOG.log(Level.WARNING, e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void updateGauge() {
+        openBlocks.set(recovered.size() + open.values().stream().mapToInt(tx -> tx.blocks.size()).sum());
+    }
+
+    private void commitLoop() {
+        List<Write> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatch - 1);
+                commit(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, t.getMessage(), t);
+                for (Write w : batch)
+                    w.done.completeExceptionally(t);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /** Writes are applied in order, with consecutive block writes merged into a single database transaction
+     */
+    private void commit(List<Write> batch) {
+        List<BlockWrite> pending = new ArrayList<>();
+        int blocks = 0;
+        for (Write w : batch) {
+            if (w.isClose) {
+                target.addBlocks(pending);
+                pending = new ArrayList<>();
+                target.closeTransaction(w.owner, w.tid);
+            } else if (! w.isBarrier()) {
+                for (Multihash hash : w.blocks)
+                    pending.add(new BlockWrite(hash, w.tid, w.owner));
+                blocks += w.blocks.size();
+            }
+        }
+        target.addBlocks(pending);
+        commits.inc();
+        batchSizes.observe(blocks);
+        updateGauge();
+        for (Write w : batch)
+            w.done.complete(true);
+    }
+
+    public void close() {
+        flush();
+        committer.interrupt();
+    }
+}
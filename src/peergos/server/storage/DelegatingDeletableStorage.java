@@ -36,6 +36,11 @@ public class DelegatingDeletableStorage implements DeletableContentAddressedStor
         target.clearOldTransactions(cutoffMillis);
     }
 
+    @Override
+    public Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis) {
+        return target.getBlocksWrittenSince(cutoffMillis);
+    }
+
     @Override
     public boolean hasBlock(Cid hash) {
         return target.hasBlock(hash);
@@ -56,6 +61,16 @@ public class DelegatingDeletableStorage implements DeletableContentAddressedStor
         target.bulkDelete(blocks);
     }
 
+    @Override
+    public CompletableFuture<Optional<BlockRegion>> getRawRegion(Cid hash, String auth) {
+        return target.getRawRegion(hash, auth);
+    }
+
+    @Override
+    public void compact() {
+        target.compact();
+    }
+
     @Override
     public CompletableFuture<Optional<CborObject>> get(Cid hash, String auth) {
         return target.get(hash, auth);
@@ -71,6 +86,11 @@ public class DelegatingDeletableStorage implements DeletableContentAddressedStor
         return target.mirror(owner, existing, updated, mirrorBat, ourNodeId, tid, hasher);
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> mirrorBlocks(PublicKeyHash owner, List<Cid> blocks, Optional<BatWithId> mirrorBat, Cid ourNodeId, TransactionId tid, Hasher hasher) {
+        return target.mirrorBlocks(owner, blocks, mirrorBat, ourNodeId, tid, hasher);
+    }
+
     @Override
     public CompletableFuture<BlockStoreProperties> blockStoreProperties() {
         return target.blockStoreProperties();
@@ -150,6 +170,14 @@ public class DelegatingDeletableStorage implements DeletableContentAddressedStor
         return target.getChampLookup(owner, root, champKey, bat);
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        return target.getChampLookups(owner, root, champKeys, bats);
+    }
+
     @Override
     public CompletableFuture<List<FragmentWithHash>> downloadFragments(PublicKeyHash owner,
                                                                        List<Cid> hashes,
@@ -28,6 +28,15 @@ public interface DeletableContentAddressedStorage extends ContentAddressedStorag
 
     void clearOldTransactions(long cutoffMillis);
 
+    /**
+     *
+     * @param cutoffMillis
+     * @return The blocks written since the cutoff, or Optional.empty() if they are not tracked
+     */
+    default Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis) {
+        return Optional.empty();
+    }
+
     boolean hasBlock(Cid hash);
 
     void delete(Multihash hash);
@@ -40,6 +49,10 @@ public interface DeletableContentAddressedStorage extends ContentAddressedStorag
         }
     }
 
+    /** Reclaim the space freed by deletes, called after garbage collection
+     */
+    default void compact() {}
+
     /**
      *
      * @param hash
@@ -78,6 +91,25 @@ public interface DeletableContentAddressedStorage extends ContentAddressedStorag
                 .thenCompose(auth -> getRaw(hash, auth, doAuth));
     }
 
+    /**
+     *
+     * @param hash
+     * @param auth
+     * @return A handle on the bytes of a locally stored raw block which can be sent without copying them onto the heap,
+     * or Optional.empty() if this isn't supported or the block isn't local
+     */
+    default CompletableFuture<Optional<BlockRegion>> getRawRegion(Cid hash, String auth) {
+        return Futures.of(Optional.empty());
+    }
+
+    default CompletableFuture<Optional<BlockRegion>> getRawRegion(Cid hash, Optional<BatWithId> bat, Cid ourId, Hasher h) {
+        if (bat.isEmpty())
+            return getRawRegion(hash, "");
+        return bat.get().bat.generateAuth(hash, ourId, 300, S3Request.currentDatetime(), bat.get().id, h)
+                .thenApply(BlockAuth::encode)
+                .thenCompose(auth -> getRawRegion(hash, auth));
+    }
+
     /** Ensure that local copies of all blocks in merkle tree referenced are present locally
      *
      * @param owner
@@ -105,26 +137,41 @@ public interface DeletableContentAddressedStorage extends ContentAddressedStorag
         if (isRaw)
             return Futures.of(Collections.singletonList(newRoot));
 
-        CborObject newBlock = CborObject.fromByteArray(newVal.get());
-        List<Multihash> newLinks = newBlock.links().stream()
+        List<Cid> newLinks = CborReader.links(newVal.get()).stream()
                 .filter(h -> !h.isIdentity())
                 .collect(Collectors.toList());
-        List<Multihash> existingLinks = existing.map(h -> get(h, mirrorBat, ourNodeId, hasher).join())
-                .flatMap(copt -> copt.map(CborObject::links).map(links -> links.stream()
+        List<Cid> existingLinks = existing.map(h -> getRaw(h, mirrorBat, ourNodeId, hasher).join())
+                .flatMap(bopt -> bopt.map(CborReader::links).map(links -> links.stream()
                         .filter(h -> !h.isIdentity())
                         .collect(Collectors.toList())))
                 .orElse(Collections.emptyList());
 
         for (int i=0; i < newLinks.size(); i++) {
             Optional<Cid> existingLink = i < existingLinks.size() ?
-                    Optional.of((Cid)existingLinks.get(i)) :
+                    Optional.of(existingLinks.get(i)) :
                     Optional.empty();
-            Optional<Cid> updatedLink = Optional.of((Cid)newLinks.get(i));
+            Optional<Cid> updatedLink = Optional.of(newLinks.get(i));
             mirror(owner, existingLink, updatedLink, mirrorBat, ourNodeId, tid, hasher).join();
         }
         return Futures.of(Collections.singletonList(newRoot));
     }
 
+    /** Retrieve blocks for mirroring, from the network if they aren't present locally, and store them locally
+     *
+     * @return The blocks, in order
+     */
+    default CompletableFuture<List<byte[]>> mirrorBlocks(PublicKeyHash owner,
+                                                         List<Cid> blocks,
+                                                         Optional<BatWithId> mirrorBat,
+                                                         Cid ourNodeId,
+                                                         TransactionId tid,
+                                                         Hasher hasher) {
+        return Futures.combineAllInOrder(blocks.stream()
+                .map(c -> getRaw(c, mirrorBat, ourNodeId, hasher, false)
+                        .thenApply(opt -> opt.orElseThrow(() -> new IllegalStateException("Couldn't retrieve block: " + c))))
+                .collect(Collectors.toList()));
+    }
+
     /**
      * Get all the merkle-links referenced directly from this object
      * @param root The hash of the object whose links we want
@@ -133,8 +180,8 @@ public interface DeletableContentAddressedStorage extends ContentAddressedStorag
     default CompletableFuture<List<Cid>> getLinks(Cid root, String auth) {
         if (root.isRaw())
             return CompletableFuture.completedFuture(Collections.emptyList());
-        return get(root, auth).thenApply(opt -> opt
-                .map(cbor -> cbor.links().stream().map(c -> (Cid) c).collect(Collectors.toList()))
+        return getRaw(root, auth).thenApply(opt -> opt
+                .map(CborReader::links)
                 .orElse(Collections.emptyList())
         );
     }
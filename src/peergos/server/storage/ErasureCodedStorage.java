@@ -0,0 +1,572 @@
+package peergos.server.storage;
+
+import io.prometheus.client.Counter;
+import peergos.server.storage.auth.*;
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.user.fs.erasure.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+import java.util.zip.*;
+
+/** A local blockstore which stripes every block across several disks with Reed-Solomon parity, so that blocks survive
+ *  the loss of up to parityShards disks.
+ *
+ *  Each block is split into dataShards shards plus parityShards parity shards, which are written to distinct disks.
+ *  Reads use the data shards, and only fall back to reconstructing from parity when a shard is missing or fails its
+ *  checksum. A background scrubber rewrites any missing or corrupt shards.
+ *
+ *  Each shard file consists of a header: [version: byte][shard index: byte][block length: int][crc32: int], followed by
+ *  the shard.
+ */
+public class ErasureCodedStorage implements DeletableContentAddressedStorage {
+    private static final Logger LOG = Logging.LOG();
+    private static final int CID_V1 = 1;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 10;
+    public static final int DEFAULT_DATA_SHARDS = 4, DEFAULT_PARITY_SHARDS = 2;
+
+    private static final Counter reconstructedReads = Counter.build()
+            .name("erasure_reconstructed_reads")
+            .help("Number of block reads which needed to be reconstructed from parity")
+            .register();
+    private static final Counter failedShardWrites = Counter.build()
+            .name("erasure_failed_shard_writes")
+            .help("Number of shards which could not be written when storing a block")
+            .register();
+    private static final Counter repairedShards = Counter.build()
+            .name("erasure_repaired_shards")
+            .help("Number of missing or corrupt shards rewritten by the scrubber")
+            .register();
+    private static final Counter unrecoverableBlocks = Counter.build()
+            .name("erasure_unrecoverable_blocks")
+            .help("Number of blocks with too few valid shards to be reconstructed")
+            .register();
+
+    private final List<Path> disks;
+    private final ReedSolomon codec;
+    private final TransactionStore transactions;
+    private final BlockRequestAuthoriser authoriser;
+    private final Hasher hasher;
+    private final ExecutorService ioPool;
+    private volatile Thread scrubber;
+
+    public ErasureCodedStorage(List<Path> disks,
+                               int dataShards,
+                               int parityShards,
+                               TransactionStore transactions,
+                               BlockRequestAuthoriser authoriser,
+                               Hasher hasher) {
+        if (disks.size() < dataShards + parityShards)
+            throw new IllegalStateException("Need at least " + (dataShards + parityShards) + " disks for " + dataShards +
+                    " data shards and " + parityShards + " parity shards, but only have " + disks.size());
+        this.disks = disks;
+        this.codec = new ReedSolomon(dataShards, parityShards);
+        this.transactions = transactions;
+        this.authoriser = authoriser;
+        this.hasher = hasher;
+        for (Path disk : disks) {
+            File dir = disk.toFile();
+            if (! dir.exists() && ! dir.mkdirs())
+                throw new IllegalStateException("Unable to create directory " + disk);
+            if (! dir.isDirectory())
+                throw new IllegalStateException("Erasure coded store path must be a directory! " + disk);
+        }
+        this.ioPool = Executors.newFixedThreadPool(disks.size() * 2, r -> {
+            Thread t = new Thread(r, "Erasure coded IO");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<Cid> id() {
+        return CompletableFuture.completedFuture(new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())));
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return CompletableFuture.completedFuture(transactions.startTransaction(owner));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        transactions.closeTransaction(owner, tid);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookup(PublicKeyHash owner, Cid root, byte[] champKey, Optional<BatWithId> bat) {
+        if (! hasBlock(root))
+            return Futures.errored(new IllegalStateException("Champ root not present locally: " + root));
+        return getChampLookup(root, champKey, bat, hasher);
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        if (! hasBlock(root))
+            return Futures.errored(new IllegalStateException("Champ root not present locally: " + root));
+        return getChampLookups(root, champKeys, bats, hasher);
+    }
+
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        return transactions.getOpenTransactionBlocks();
+    }
+
+    @Override
+    public void clearOldTransactions(long cutoffMillis) {
+        transactions.clearOldTransactions(cutoffMillis);
+    }
+
+    @Override
+    public Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis) {
+        return transactions.getBlocksWrittenSince(cutoffMillis);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
+                                            PublicKeyHash writer,
+                                            List<byte[]> signedHashes,
+                                            List<byte[]> blocks,
+                                            TransactionId tid) {
+        return put(owner, blocks, false, tid);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putRaw(PublicKeyHash owner,
+                                               PublicKeyHash writer,
+                                               List<byte[]> signatures,
+                                               List<byte[]> blocks,
+                                               TransactionId tid,
+                                               ProgressConsumer<Long> progressConsumer) {
+        return put(owner, blocks, true, tid);
+    }
+
+    private CompletableFuture<List<Cid>> put(PublicKeyHash owner,
+                                             List<byte[]> blocks,
+                                             boolean isRaw,
+                                             TransactionId tid) {
+        return CompletableFuture.completedFuture(blocks.stream()
+                .map(b -> put(b, isRaw, tid, owner))
+                .collect(Collectors.toList()));
+    }
+
+    public Cid put(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
+        Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                Multihash.Type.sha2_256, RAMStorage.hash(data));
+        transactions.addBlock(cid, tid, owner);
+        byte[][] shards = codec.encode(data);
+        List<Future<Boolean>> writes = new ArrayList<>();
+        for (int i=0; i < shards.length; i++) {
+            int index = i;
+            writes.add(ioPool.submit(() -> writeShard(cid, index, data.length, shards[index])));
+        }
+        int written = 0;
+        for (Future<Boolean> write : writes) {
+            try {
+                if (write.get())
+                    written++;
+            } catch (InterruptedException | ExecutionException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+        failedShardWrites.inc(shards.length - written);
+        // With at least dataShards written the block is readable, and the scrubber will restore the rest
+        if (written < codec.dataShards)
+            throw new IllegalStateException("Only wrote " + written + " of " + shards.length + " shards of " + cid);
+        return cid;
+    }
+
+    private int diskIndex(Cid cid, int shard) {
+        byte[] hash = cid.getHash();
+        int start = hash.length == 0 ? 0 : (hash[hash.length - 1] & 0xFF) % disks.size();
+        return (start + shard) % disks.size();
+    }
+
+    private Path getShardPath(Cid cid, int shard) {
+        String name = cid.toString();
+        // the end of the encoded hash is uniformly distributed, unlike the prefix
+        return disks.get(diskIndex(cid, shard))
+                .resolve(name.substring(name.length() - 2))
+                .resolve(name.substring(name.length() - 4, name.length() - 2))
+                .resolve(name);
+    }
+
+    private boolean writeShard(Cid cid, int index, int blockLength, byte[] shard) {
+        Path target = getShardPath(cid, index);
+        try {
+            Files.createDirectories(target.getParent());
+            CRC32 crc = new CRC32();
+            crc.update(shard);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put((byte) VERSION);
+            header.put((byte) index);
+            header.putInt(blockLength);
+            header.putInt((int) crc.getValue());
+            Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                out.write(header.array());
+                out.write(shard);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to write shard " + index + " of " + cid + " to " + target + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static class Shard {
+        public final int blockLength;
+        public final byte[] data;
+
+        public Shard(int blockLength, byte[] data) {
+            this.blockLength = blockLength;
+            this.data = data;
+        }
+    }
+
+    /**
+     *
+     * @return The shard, or Optional.empty() if it is missing or corrupt
+     */
+    private Optional<Shard> readShard(Cid cid, int index) {
+        Path path = getShardPath(cid, index);
+        byte[] raw;
+        try {
+            raw = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to read shard " + index + " of " + cid + " from " + path + ": " + e.getMessage());
+            return Optional.empty();
+        }
+        if (raw.length < HEADER_SIZE)
+            return Optional.empty();
+        ByteBuffer header = ByteBuffer.wrap(raw, 0, HEADER_SIZE);
+        int version = header.get();
+        int storedIndex = header.get() & 0xFF;
+        int blockLength = header.getInt();
+        int expectedCrc = header.getInt();
+        if (version != VERSION || storedIndex != index || blockLength < 0 ||
+                raw.length - HEADER_SIZE != codec.shardSize(blockLength))
+            return Optional.empty();
+        CRC32 crc = new CRC32();
+        crc.update(raw, HEADER_SIZE, raw.length - HEADER_SIZE);
+        if ((int) crc.getValue() != expectedCrc) {
+            LOG.warning("Corrupt shard " + index + " of " + cid + " in " + path);
+            return Optional.empty();
+        }
+        return Optional.of(new Shard(blockLength, Arrays.copyOfRange(raw, HEADER_SIZE, raw.length)));
+    }
+
+    private List<Optional<Shard>> readShards(Cid cid, int from, int to) {
+        List<Future<Optional<Shard>>> reads = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            int index = i;
+            reads.add(ioPool.submit(() -> readShard(cid, index)));
+        }
+        return reads.stream()
+                .map(f -> {
+                    try {
+                        return f.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        return Optional.<Shard>empty();
+                    }
+                }).collect(Collectors.toList());
+    }
+
+    private Optional<byte[]> readBlock(Cid cid) {
+        List<Optional<Shard>> shards = new ArrayList<>(readShards(cid, 0, codec.dataShards));
+        if (shards.stream().allMatch(Optional::isPresent)) {
+            int blockLength = shards.get(0).get().blockLength;
+            if (shards.stream().allMatch(s -> s.get().blockLength == blockLength)) {
+                byte[][] data = shards.stream().map(s -> s.get().data).toArray(byte[][]::new);
+                return Optional.of(join(data, blockLength));
+            }
+        }
+        shards.addAll(readShards(cid, codec.dataShards, codec.totalShards()));
+        if (shards.stream().noneMatch(Optional::isPresent))
+            return Optional.empty();
+        byte[][] all = validShards(shards);
+        if (Arrays.stream(all).filter(Objects::nonNull).count() < codec.dataShards) {
+            unrecoverableBlocks.inc();
+            throw new IllegalStateException("Unrecoverable block " + cid + ", too few valid shards");
+        }
+        byte[] block = codec.decode(all, blockLength(shards));
+        if (! Arrays.equals(RAMStorage.hash(block), cid.getHash())) {
+            unrecoverableBlocks.inc();
+            throw new IllegalStateException("Reconstructed block " + cid + " has incorrect hash!");
+        }
+        reconstructedReads.inc();
+        return Optional.of(block);
+    }
+
+    /**
+     *
+     * @return The block length the majority of shards agree on
+     */
+    private static int blockLength(List<Optional<Shard>> shards) {
+        return shards.stream()
+                .flatMap(Optional::stream)
+                .collect(Collectors.groupingBy(s -> s.blockLength, Collectors.counting()))
+                .entrySet().stream()
+                .max(Comparator.comparing(Map.Entry::getValue))
+                .map(Map.Entry::getKey)
+                .orElse(0);
+    }
+
+    /**
+     *
+     * @return The shards which agree on the block length of the majority, with the rest null
+     */
+    private static byte[][] validShards(List<Optional<Shard>> shards) {
+        int blockLength = blockLength(shards);
+        byte[][] res = new byte[shards.size()][];
+        for (int i=0; i < shards.size(); i++) {
+            Optional<Shard> s = shards.get(i);
+            if (s.isPresent() && s.get().blockLength == blockLength)
+                res[i] = s.get().data;
+        }
+        return res;
+    }
+
+    private static byte[] join(byte[][] data, int blockLength) {
+        byte[] res = new byte[blockLength];
+        int shardSize = data[0].length;
+        for (int i=0; i < data.length; i++) {
+            int start = i * shardSize;
+            if (start >= blockLength)
+                break;
+            System.arraycopy(data[i], 0, res, start, Math.min(shardSize, blockLength - start));
+        }
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Cid hash, String auth) {
+        if (hash.codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash, auth).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Cid hash, Optional<BatWithId> bat) {
+        return get(hash, bat, id().join(), hasher);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, Optional<BatWithId> bat) {
+        return getRaw(hash, bat, id().join(), hasher);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, String auth) {
+        return getRaw(hash, auth, true);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, String auth, boolean doAuth) {
+        if (hash.isIdentity())
+            return Futures.of(Optional.of(hash.getHash()));
+        Optional<byte[]> block = readBlock(hash);
+        if (block.isEmpty())
+            return Futures.of(Optional.empty());
+        if (doAuth && ! authoriser.allowRead(hash, block.get(), id().join(), auth).join())
+            return Futures.errored(new IllegalStateException("Unauthorised!"));
+        return Futures.of(block);
+    }
+
+    @Override
+    public boolean hasBlock(Cid hash) {
+        int present = 0;
+        for (int i=0; i < codec.totalShards(); i++) {
+            if (getShardPath(hash, i).toFile().exists())
+                present++;
+            if (present >= codec.dataShards)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> getLinks(Cid root, String auth) {
+        if (root.codec == Cid.Codec.Raw)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return getRaw(root, auth, false)
+                .thenApply(opt -> opt
+                        .map(CborReader::links)
+                        .orElse(Collections.emptyList())
+                );
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
+        Cid cid = (Cid) h;
+        for (int i=0; i < codec.totalShards(); i++) {
+            Optional<Shard> shard = readShard(cid, i);
+            if (shard.isPresent())
+                return Futures.of(Optional.of(shard.get().blockLength));
+        }
+        return Futures.of(Optional.empty());
+    }
+
+    /** Every block is listed once, from the first disk in its placement order which holds one of its shards
+     */
+    @Override
+    public Stream<Cid> getAllBlockHashes() {
+        return IntStream.range(0, disks.size())
+                .boxed()
+                .flatMap(d -> listShards(disks.get(d))
+                        .filter(c -> isFirstPresentShard(c, d)));
+    }
+
+    private boolean isFirstPresentShard(Cid cid, int disk) {
+        for (int i=0; i < codec.totalShards(); i++) {
+            if (diskIndex(cid, i) == disk)
+                return true;
+            if (getShardPath(cid, i).toFile().exists())
+                return false;
+        }
+        return false;
+    }
+
+    private static Stream<Cid> listShards(Path disk) {
+        if (! disk.toFile().isDirectory()) {
+            LOG.warning("Missing erasure coded disk " + disk);
+            return Stream.empty();
+        }
+        try {
+            return Files.walk(disk)
+                    .filter(p -> p.toFile().isFile())
+                    .map(p -> p.getFileName().toString())
+                    .filter(name -> ! name.endsWith(".tmp"))
+                    .flatMap(name -> {
+                        try {
+                            return Stream.of(Cid.decode(name));
+                        } catch (IllegalStateException e) {
+                            // ignore files who's name isn't a valid cid
+                            return Stream.empty();
+                        }
+                    });
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void delete(Multihash h) {
+        Cid cid = (Cid) h;
+        for (int i=0; i < codec.totalShards(); i++) {
+            File file = getShardPath(cid, i).toFile();
+            if (file.exists() && ! file.delete())
+                LOG.warning("Could not delete " + file);
+        }
+    }
+
+    /** Check every shard of a block, and rewrite any which are missing or corrupt
+     *
+     * @return The number of shards rewritten
+     */
+    public int repair(Cid cid) {
+        List<Optional<Shard>> shards = readShards(cid, 0, codec.totalShards());
+        if (shards.stream().noneMatch(Optional::isPresent))
+            return 0; // deleted
+        byte[][] all = validShards(shards);
+        List<Integer> missing = IntStream.range(0, all.length)
+                .filter(i -> all[i] == null)
+                .boxed()
+                .collect(Collectors.toList());
+        if (missing.isEmpty())
+            return 0;
+        if (missing.size() > codec.parityShards) {
+            unrecoverableBlocks.inc();
+            LOG.severe("Unrecoverable block " + cid + ", only " + (all.length - missing.size()) + " valid shards");
+            return 0;
+        }
+        int blockLength = blockLength(shards);
+        codec.reconstruct(all);
+        if (! Arrays.equals(RAMStorage.hash(join(Arrays.copyOfRange(all, 0, codec.dataShards), blockLength)), cid.getHash())) {
+            unrecoverableBlocks.inc();
+            LOG.severe("Reconstructed block " + cid + " has incorrect hash!");
+            return 0;
+        }
+        int repaired = 0;
+        for (int i : missing)
+            if (writeShard(cid, i, blockLength, all[i]))
+                repaired++;
+        repairedShards.inc(repaired);
+        return repaired;
+    }
+
+    /** Verify every block, rewriting any missing or corrupt shards, e.g. after replacing a failed disk
+     *
+     * @return The number of shards rewritten
+     */
+    public long scrub() {
+        long start = System.currentTimeMillis();
+        long[] counts = new long[2];
+        getAllBlockHashes().forEach(c -> {
+            counts[0]++;
+            try {
+                counts[1] += repair(c);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Error scrubbing " + c + ": " + e.getMessage(), e);
+            }
+        });
+        LOG.info("Scrubbed " + counts[0] + " blocks, repairing " + counts[1] + " shards, in " +
+                (System.currentTimeMillis() - start) + "mS");
+        return counts[1];
+    }
+
+    public synchronized void startScrubber(long intervalMillis) {
+        if (scrubber != null)
+            return;
+        scrubber = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                    scrub();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, t.getMessage(), t);
+                }
+            }
+        }, "Erasure coded scrubber");
+        scrubber.setDaemon(true);
+        scrubber.start();
+    }
+
+    public synchronized void stopScrubber() {
+        if (scrubber != null)
+            scrubber.interrupt();
+        scrubber = null;
+    }
+
+    @Override
+    public String toString() {
+        return "ErasureCodedStorage " + codec.dataShards + "+" + codec.parityShards + " " + disks;
+    }
+}
@@ -1,5 +1,6 @@
 package peergos.server.storage;
 
+import io.prometheus.client.Counter;
 import peergos.server.util.Logging;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
@@ -8,27 +9,64 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.nio.file.*;
-import java.nio.file.attribute.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
 
 /** A local file based block cache LRU
  *
+ *  The access order and size of every cached block is kept in memory, and persisted as a snapshot plus an append only
+ *  journal of puts, accesses and evictions, so opening the cache only reads the index rather than the whole directory
+ *  tree. Eviction is byte accurate and happens on every put that takes the cache over its limit.
+ *
+ *  A durable cache syncs every put, both the block and its journal record, to disk before acknowledging it.
  */
 public class FileBlockCache implements BlockCache {
     private static final Logger LOG = Logging.LOG();
     private static final int DIRECTORY_DEPTH = 5;
+    private static final String SNAPSHOT = "cache.index";
+    private static final String JOURNAL = "cache.journal";
+    private static final String CLEAN = "cache.clean";
+    private static final byte PUT = 0, ACCESS = 1, REMOVE = 2;
+    private static final int MIN_JOURNAL_RECORDS = 100_000;
+
+    private static final Counter hits = Counter.build()
+            .name("file_block_cache_hits")
+            .help("Number of block gets found in the file block cache")
+            .register();
+    private static final Counter misses = Counter.build()
+            .name("file_block_cache_misses")
+            .help("Number of block gets not found in the file block cache")
+            .register();
+    private static final Counter evictions = Counter.build()
+            .name("file_block_cache_evictions")
+            .help("Number of blocks evicted from the file block cache")
+            .register();
+    private static final Counter evictedBytes = Counter.build()
+            .name("file_block_cache_evicted_bytes")
+            .help("Number of bytes evicted from the file block cache")
+            .register();
+
     private final Path root;
     private final long maxSizeBytes;
-    private long lastSizeCheckTime = 0;
-    private AtomicLong totalSize = new AtomicLong(0);
+    private final boolean durable;
+    // block -> size in bytes, in access order, guarded by this
+    private final LinkedHashMap<Cid, Integer> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalSize = 0;
+    private DataOutputStream journal;
+    private FileOutputStream journalFile;
+    private long journalRecords = 0;
+    private boolean isClosed = false;
 
     public FileBlockCache(Path root, long maxSizeBytes) {
+        this(root, maxSizeBytes, false);
+    }
+
+    public FileBlockCache(Path root, long maxSizeBytes, boolean durable) {
         this.root = root;
         this.maxSizeBytes = maxSizeBytes;
+        this.durable = durable;
         File rootDir = root.toFile();
         if (!rootDir.exists()) {
             final boolean mkdirs = root.toFile().mkdirs();
@@ -37,7 +75,28 @@ public class FileBlockCache implements BlockCache {
         }
         if (!rootDir.isDirectory())
             throw new IllegalStateException("File store path must be a directory! " + root);
-        applyToAll(c -> getSize(c).join().map(s -> totalSize.addAndGet(s)));
+        try {
+            long t0 = System.currentTimeMillis();
+            boolean hasIndex = root.resolve(SNAPSHOT).toFile().exists() || root.resolve(JOURNAL).toFile().exists();
+            boolean wasClean = Files.deleteIfExists(root.resolve(CLEAN));
+            replay(root.resolve(SNAPSHOT));
+            replay(root.resolve(JOURNAL));
+            if (! hasIndex) {
+                // first start with this format, build the index from the directory
+                applyToAll(c -> getFileSize(c).ifPresent(s -> add(c, s)));
+            }
+            writeSnapshot();
+            LOG.info("Loaded FileBlockCache index of " + index.size() + " blocks (" + totalSize / (1024*1024) +
+                    " MiB) in " + (System.currentTimeMillis() - t0) + "ms");
+            if (hasIndex && ! wasClean)
+                ForkJoinPool.commonPool().submit(this::reconcile);
+            synchronized (this) {
+                ensureWithinSizeLimit();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "FileBlockCache shutdown"));
     }
 
     private Path getFilePath(Cid h) {
@@ -64,14 +123,26 @@ public class FileBlockCache implements BlockCache {
         try {
             if (hash.isIdentity())
                 return Futures.of(Optional.of(hash.getHash()));
+            synchronized (this) {
+                if (index.get(hash) == null) {
+                    misses.inc();
+                    return CompletableFuture.completedFuture(Optional.empty());
+                }
+                log(ACCESS, hash, 0);
+            }
             Path path = getFilePath(hash);
             File file = root.resolve(path).toFile();
-            if (! file.exists()){
-                return CompletableFuture.completedFuture(Optional.empty());
-            }
             try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
                 byte[] block = Serialize.readFully(din);
+                hits.inc();
                 return CompletableFuture.completedFuture(Optional.of(block));
+            } catch (FileNotFoundException e) {
+                // deleted externally
+                synchronized (this) {
+                    removeFromIndex(hash);
+                }
+                misses.inc();
+                return CompletableFuture.completedFuture(Optional.empty());
             }
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
@@ -79,10 +150,8 @@ public class FileBlockCache implements BlockCache {
     }
 
     @Override
-    public boolean hasBlock(Cid hash) {
-        Path path = getFilePath(hash);
-        File file = root.resolve(path).toFile();
-        return file.exists();
+    public synchronized boolean hasBlock(Cid hash) {
+        return index.containsKey(hash);
     }
 
     public CompletableFuture<Boolean> put(Cid hash, byte[] data) {
@@ -103,11 +172,17 @@ public class FileBlockCache implements BlockCache {
                         throw new IllegalStateException("Could not make " + someParent.toString() + ", ancestor of " + parentDir.toString() + " writable");
                 }
             }
-            Files.write(target, data, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-            totalSize.addAndGet(data.length);
-            if (lastSizeCheckTime < System.currentTimeMillis() - 600_000) {
-                lastSizeCheckTime = System.currentTimeMillis();
-                ForkJoinPool.commonPool().submit(() -> ensureWithinSizeLimit(maxSizeBytes));
+            if (durable)
+                Files.write(target, data, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.DSYNC);
+            else
+                Files.write(target, data, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            synchronized (this) {
+                add(hash, data.length);
+                log(PUT, hash, data.length);
+                journal.flush();
+                if (durable && ! isClosed)
+                    journalFile.getFD().sync();
+                ensureWithinSizeLimit();
             }
             return Futures.of(true);
         } catch (IOException e) {
@@ -115,44 +190,82 @@ public class FileBlockCache implements BlockCache {
         }
     }
 
-    protected List<Cid> getFiles() {
-        List<Cid> existing = new ArrayList<>();
-        getFilesRecursive(root, existing::add);
-        return existing;
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    public synchronized int getBlockCount() {
+        return index.size();
+    }
+
+    /**
+     *
+     * @return Every block in the cache, from least to most recently used
+     */
+    public synchronized List<Cid> getBlocks() {
+        return new ArrayList<>(index.keySet());
     }
 
     public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
-        Path path = getFilePath((Cid)h);
-        File file = root.resolve(path).toFile();
-        return CompletableFuture.completedFuture(file.exists() ? Optional.of((int) file.length()) : Optional.empty());
+        synchronized (this) {
+            Integer size = index.get((Cid) h);
+            if (size != null)
+                return Futures.of(Optional.of(size));
+        }
+        return Futures.of(Optional.empty());
+    }
+
+    private Optional<Integer> getFileSize(Cid h) {
+        File file = root.resolve(getFilePath(h)).toFile();
+        return file.exists() ? Optional.of((int) file.length()) : Optional.empty();
     }
 
     @Override
     public CompletableFuture<Boolean> clear() {
-        applyToAll(c -> delete(c));
+        applyToAll(this::delete);
+        synchronized (this) {
+            index.clear();
+            totalSize = 0;
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
         return Futures.of(true);
     }
 
     public void delete(Multihash h) {
-        Path path = getFilePath((Cid)h);
+        synchronized (this) {
+            try {
+                removeFromIndex((Cid) h);
+                journal.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+        deleteFile((Cid) h);
+    }
+
+    private void deleteFile(Cid h) {
+        Path path = getFilePath(h);
         File file = root.resolve(path).toFile();
         if (file.exists())
             file.delete();
     }
 
-    public Optional<Long> getLastAccessTimeMillis(Cid h) {
-        Path path = getFilePath(h);
-        File file = root.resolve(path).toFile();
-        if (! file.exists())
-            return Optional.empty();
+    /** Persist the index and mark it as matching the directory. This is also run on shutdown.
+     */
+    public synchronized void close() {
+        if (isClosed)
+            return;
+        isClosed = true;
         try {
-            BasicFileAttributes attrs = Files.readAttributes(root.resolve(path), BasicFileAttributes.class);
-            FileTime time = attrs.lastAccessTime();
-            return Optional.of(time.toMillis());
-        } catch (NoSuchFileException nope) {
-            return Optional.empty();
+            writeSnapshot();
+            journal.close();
+            Files.createFile(root.resolve(CLEAN));
         } catch (IOException e) {
-            throw new RuntimeException(e.getMessage(), e);
+            LOG.log(Level.WARNING, e.getMessage(), e);
         }
     }
 
@@ -187,23 +300,144 @@ public class FileBlockCache implements BlockCache {
         }
     }
 
-    private void ensureWithinSizeLimit(long maxSize) {
-        if (totalSize.get() <= maxSize)
+    /** Must be called holding this lock
+     */
+    private void add(Cid h, int size) {
+        Integer previous = index.put(h, size);
+        totalSize += size - (previous == null ? 0 : previous);
+    }
+
+    /** Must be called holding this lock
+     */
+    private void removeFromIndex(Cid h) throws IOException {
+        Integer size = index.remove(h);
+        if (size == null)
+            return;
+        totalSize -= size;
+        log(REMOVE, h, 0);
+    }
+
+    /** Evict least recently used blocks until we are within the size limit. Must be called holding this lock.
+     */
+    private void ensureWithinSizeLimit() throws IOException {
+        if (totalSize <= maxSizeBytes)
+            return;
+        Iterator<Map.Entry<Cid, Integer>> lru = index.entrySet().iterator();
+        while (totalSize > maxSizeBytes && lru.hasNext()) {
+            Map.Entry<Cid, Integer> e = lru.next();
+            lru.remove();
+            totalSize -= e.getValue();
+            log(REMOVE, e.getKey(), 0);
+            deleteFile(e.getKey());
+            evictions.inc();
+            evictedBytes.inc(e.getValue());
+        }
+        journal.flush();
+    }
+
+    /** Must be called holding this lock
+     */
+    private void log(byte type, Cid h, int size) throws IOException {
+        if (isClosed) {
+            // a change after the index was persisted, so reconcile on the next start
+            Files.deleteIfExists(root.resolve(CLEAN));
             return;
-        Logging.LOG().info("Starting FileBlockCache reduction");
-        AtomicLong toDelete = new AtomicLong(totalSize.get() - (maxSize*9/10));
-        SortedMap<Long, Cid> byAccessTime = new TreeMap<>();
-        applyToAll(c -> getLastAccessTimeMillis(c).map(t -> byAccessTime.put(t, c)));
-        for (Map.Entry<Long, Cid> e : byAccessTime.entrySet()) {
-            if (toDelete.get() <= 0)
-                break;
-            Cid c = e.getValue();
-            Optional<Integer> sizeOpt = getSize(c).join();
-            if (sizeOpt.isEmpty())
-                continue;
-            long size = sizeOpt.get();
-            delete(c);
-            toDelete.addAndGet(-size);
+        }
+        byte[] cid = h.toBytes();
+        journal.writeByte(type);
+        journal.writeShort(cid.length);
+        journal.write(cid);
+        if (type == PUT)
+            journal.writeInt(size);
+        journalRecords++;
+        if (journalRecords > Math.max(MIN_JOURNAL_RECORDS, 2L * index.size()))
+            writeSnapshot();
+    }
+
+    /** Replay the records in an index file, ignoring any partially written record at the end
+     */
+    private void replay(Path file) throws IOException {
+        if (! file.toFile().exists())
+            return;
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file.toFile()), 1024 * 1024))) {
+            while (true) {
+                byte type = din.readByte();
+                byte[] cidBytes = new byte[din.readShort() & 0xFFFF];
+                din.readFully(cidBytes);
+                Cid cid = Cid.cast(cidBytes);
+                if (type == PUT)
+                    add(cid, din.readInt());
+                else if (type == ACCESS)
+                    index.get(cid);
+                else if (type == REMOVE) {
+                    Integer size = index.remove(cid);
+                    if (size != null)
+                        totalSize -= size;
+                } else
+                    throw new IllegalStateException("Invalid FileBlockCache index record type " + type);
+            }
+        } catch (EOFException e) {
+            // end of file
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Ignoring corrupt FileBlockCache index " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** Write the whole index, in access order, to a new snapshot and start a new journal. Must be called holding
+     *  this lock (or from the constructor).
+     */
+    private void writeSnapshot() throws IOException {
+        if (journal != null)
+            journal.close();
+        Path tmp = root.resolve(SNAPSHOT + ".tmp");
+        FileOutputStream snapshotFile = new FileOutputStream(tmp.toFile());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(snapshotFile, 1024 * 1024))) {
+            for (Map.Entry<Cid, Integer> e : index.entrySet()) {
+                byte[] cid = e.getKey().toBytes();
+                out.writeByte(PUT);
+                out.writeShort(cid.length);
+                out.write(cid);
+                out.writeInt(e.getValue());
+            }
+            out.flush();
+            if (durable)
+                snapshotFile.getFD().sync();
+        }
+        Files.move(tmp, root.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journalFile = new FileOutputStream(root.resolve(JOURNAL).toFile());
+        journal = new DataOutputStream(new BufferedOutputStream(journalFile, 64 * 1024));
+        journalRecords = 0;
+    }
+
+    /** After an unclean shutdown the directory may contain blocks the index lost, add them as least recently used.
+     */
+    private void reconcile() {
+        try {
+            long t0 = System.currentTimeMillis();
+            List<Pair<Cid, Integer>> untracked = new ArrayList<>();
+            applyToAll(c -> {
+                if (! hasBlock(c))
+                    getFileSize(c).ifPresent(s -> untracked.add(new Pair<>(c, s)));
+            });
+            synchronized (this) {
+                LinkedHashMap<Cid, Integer> reordered = new LinkedHashMap<>();
+                for (Pair<Cid, Integer> p : untracked)
+                    if (! index.containsKey(p.left))
+                        reordered.put(p.left, p.right);
+                if (reordered.isEmpty())
+                    return;
+                for (Map.Entry<Cid, Integer> e : reordered.entrySet())
+                    totalSize += e.getValue();
+                reordered.putAll(index);
+                index.clear();
+                index.putAll(reordered);
+                writeSnapshot();
+                ensureWithinSizeLimit();
+            }
+            LOG.info("Added " + untracked.size() + " untracked blocks to FileBlockCache index in " +
+                    (System.currentTimeMillis() - t0) + "ms");
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
         }
     }
 }
@@ -75,6 +75,16 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
         return getChampLookup(root, champKey, bat, hasher);
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        if (! hasBlock(root))
+            return Futures.errored(new IllegalStateException("Champ root not present locally: " + root));
+        return getChampLookups(root, champKeys, bats, hasher);
+    }
+
     @Override
     public List<Multihash> getOpenTransactionBlocks() {
         return transactions.getOpenTransactionBlocks();
@@ -85,6 +95,11 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
         transactions.clearOldTransactions(cutoffMillis);
     }
 
+    @Override
+    public Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis) {
+        return transactions.getBlocksWrittenSince(cutoffMillis);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
                                             PublicKeyHash writer,
@@ -177,6 +192,34 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
         }
     }
 
+    @Override
+    public CompletableFuture<Optional<BlockRegion>> getRawRegion(Cid hash, String auth) {
+        if (! hash.isRaw())
+            return Futures.of(Optional.empty());
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(root.resolve(getFilePath(hash)), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return Futures.of(Optional.empty());
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        try {
+            BlockRegion region = new BlockRegion(channel, 0, (int) channel.size());
+            byte[] prefix = region.readPrefix(Bat.MAX_RAW_BLOCK_PREFIX_SIZE);
+            if (! authoriser.allowRead(hash, prefix, id().join(), auth).join()) {
+                channel.close();
+                return Futures.errored(new IllegalStateException("Unauthorised!"));
+            }
+            return Futures.of(Optional.of(region));
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException f) {}
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
     @Override
     public boolean hasBlock(Cid hash) {
         Path path = getFilePath(hash);
@@ -189,9 +232,8 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
         if (root.codec == Cid.Codec.Raw)
             return CompletableFuture.completedFuture(Collections.emptyList());
         return getRaw(root, auth, false)
-                .thenApply(opt -> opt.map(CborObject::fromByteArray))
                 .thenApply(opt -> opt
-                        .map(cbor -> cbor.links().stream().map(c -> (Cid) c).collect(Collectors.toList()))
+                        .map(CborReader::links)
                         .orElse(Collections.emptyList())
                 );
     }
@@ -21,21 +21,66 @@ import java.util.stream.*;
 
 public class GarbageCollector {
     private static final Logger LOG = Logger.getGlobal();
+    public static final long DEFAULT_MAX_INDEX_BYTES = Runtime.getRuntime().maxMemory() / 4;
+    public static final int DEFAULT_MARK_PARALLELISM = 10;
+    private static final int MAX_PARTITIONS = 1 << 16;
+    private static final int BYTES_PER_VISITED_BLOCK = 160;
 
     private final DeletableContentAddressedStorage storage;
     private final JdbcIpnsAndSocial pointers;
     private final UsageStore usage;
+    private final long maxIndexBytes;
+    private final int markParallelism;
+    private final Optional<JdbcGcState> incrementalState;
+    private final int fullEvery;
+    private int runsSinceFull = 0;
 
+    /**
+     *
+     * @param storage
+     * @param pointers
+     * @param usage
+     * @param maxIndexBytes
+     * @param markParallelism
+     * @param incrementalState If present, reference counts are maintained so that most runs can be incremental
+     * @param fullEvery The maximum number of consecutive incremental runs before a full GC
+     */
     public GarbageCollector(DeletableContentAddressedStorage storage,
                             JdbcIpnsAndSocial pointers,
-                            UsageStore usage) {
+                            UsageStore usage,
+                            long maxIndexBytes,
+                            int markParallelism,
+                            Optional<JdbcGcState> incrementalState,
+                            int fullEvery) {
         this.storage = storage;
         this.pointers = pointers;
         this.usage = usage;
+        this.maxIndexBytes = maxIndexBytes;
+        this.markParallelism = markParallelism;
+        this.incrementalState = incrementalState;
+        this.fullEvery = fullEvery;
+    }
+
+    public GarbageCollector(DeletableContentAddressedStorage storage,
+                            JdbcIpnsAndSocial pointers,
+                            UsageStore usage) {
+        this(storage, pointers, usage, DEFAULT_MAX_INDEX_BYTES, DEFAULT_MARK_PARALLELISM, Optional.empty(), 0);
     }
 
     public synchronized void collect(Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
-        collect(storage, pointers, usage, snapshotSaver);
+        if (incrementalState.isPresent() && runsSinceFull < fullEvery) {
+            try {
+                if (IncrementalGarbageCollector.collect(storage, pointers, usage, incrementalState.get(), snapshotSaver, markParallelism)) {
+                    runsSinceFull++;
+                    return;
+                }
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Incremental GC failed, falling back to full GC", e);
+                incrementalState.get().invalidate();
+            }
+        }
+        collect(storage, pointers, usage, snapshotSaver, maxIndexBytes, markParallelism, incrementalState);
+        runsSinceFull = 0;
     }
 
     public void start(long periodMillis, Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
@@ -63,14 +108,84 @@ public class GarbageCollector {
                                JdbcIpnsAndSocial pointers,
                                UsageStore usage,
                                Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
+        collect(storage, pointers, usage, snapshotSaver, DEFAULT_MAX_INDEX_BYTES, DEFAULT_MARK_PARALLELISM, Optional.empty());
+    }
+
+    /** Collect garbage using a block index of at most maxIndexBytes. If the blockstore doesn't fit in a single index,
+     * the keyspace is split into partitions which are marked and swept one at a time.
+     *
+     * @param storage
+     * @param pointers
+     * @param usage
+     * @param snapshotSaver
+     * @param maxIndexBytes
+     * @param markParallelism the maximum number of concurrent block fetches during marking
+     * @param refCounts If present, store the reference count of every reachable block for subsequent incremental runs.
+     *                  This is only possible if the blockstore fits in a single partition.
+     */
+    public static void collect(DeletableContentAddressedStorage storage,
+                               JdbcIpnsAndSocial pointers,
+                               UsageStore usage,
+                               Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver,
+                               long maxIndexBytes,
+                               int markParallelism,
+                               Optional<JdbcGcState> refCounts) {
         System.out.println("Starting blockstore garbage collection on node " + storage.id().join() + "...");
-        // TODO: do this more efficiently with a bloom filter, and actual streaming and multithreading
-        storage.clearOldTransactions(System.currentTimeMillis() - 24*3600*1000L);
+        long runStart = System.currentTimeMillis();
+        storage.clearOldTransactions(runStart - 24*3600*1000L);
+        refCounts.ifPresent(JdbcGcState::invalidate);
         long t0 = System.nanoTime();
-        List<Multihash> present = storage.getAllBlockHashes().collect(Collectors.toList());
-        long t1 = System.nanoTime();
-        System.out.println("Listing " + present.size() + " blocks took " + (t1-t0)/1_000_000_000 + "s");
+        // each entry is a (partition, partitions) pair, partition p of n is the same as partitions p and p+n of 2n
+        Deque<Pair<Integer, Integer>> todo = new ArrayDeque<>();
+        todo.add(new Pair<>(0, 1));
+        long deletedCborBlocks = 0, deletedRawBlocks = 0, peakIndexBytes = 0;
+        while (! todo.isEmpty()) {
+            Pair<Integer, Integer> next = todo.poll();
+            long t1 = System.nanoTime();
+            boolean countRefs = refCounts.isPresent() && next.right == 1;
+            Optional<BlockHashIndex> index = BlockHashIndex.build(storage.getAllBlockHashes(), next.left, next.right,
+                    maxIndexBytes, countRefs);
+            if (index.isEmpty()) {
+                if (next.right >= MAX_PARTITIONS)
+                    throw new IllegalStateException("Couldn't fit GC block index in " + maxIndexBytes + " bytes");
+                System.out.println("GC block index exceeded " + maxIndexBytes + " bytes, splitting partition " +
+                        next.left + "/" + next.right);
+                todo.addFirst(new Pair<>(next.left + next.right, next.right * 2));
+                todo.addFirst(new Pair<>(next.left, next.right * 2));
+                continue;
+            }
+            long t2 = System.nanoTime();
+            BlockHashIndex present = index.get();
+            peakIndexBytes = Math.max(peakIndexBytes, present.peakBytes);
+            System.out.println("Listing " + present.size() + " blocks in partition " + next.left + "/" + next.right +
+                    " took " + (t2-t1)/1_000_000_000 + "s (" + rate(present.size(), t2 - t1) + " blocks/s), index size: " + present.sizeInBytes() / (1024*1024) +
+                    " MiB, peak: " + present.peakBytes / (1024*1024) + " MiB");
 
+            long maxVisitedOutsideIndex = (maxIndexBytes - present.sizeInBytes()) / BYTES_PER_VISITED_BLOCK;
+            Pair<Long, Long> deleted = collect(present, storage, pointers, usage, snapshotSaver, todo.isEmpty(),
+                    markParallelism, maxVisitedOutsideIndex, countRefs ? refCounts : Optional.empty(), runStart);
+            deletedCborBlocks += deleted.left;
+            deletedRawBlocks += deleted.right;
+        }
+        storage.compact();
+        long t3 = System.nanoTime();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println("GC complete. Freed " + deletedCborBlocks + " cbor blocks and " + deletedRawBlocks +
+                " raw blocks, total duration: " + (t3-t0)/1_000_000_000 + "s, peak index size: " +
+                peakIndexBytes / (1024*1024) + " MiB, heap used: " + (runtime.totalMemory() - runtime.freeMemory()) / (1024*1024) + " MiB");
+    }
+
+    private static Pair<Long, Long> collect(BlockHashIndex present,
+                                            DeletableContentAddressedStorage storage,
+                                            JdbcIpnsAndSocial pointers,
+                                            UsageStore usage,
+                                            Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver,
+                                            boolean saveSnapshot,
+                                            int markParallelism,
+                                            long maxVisitedOutsideIndex,
+                                            Optional<JdbcGcState> refCounts,
+                                            long runStart) {
+        long t1 = System.nanoTime();
         List<Multihash> pending = storage.getOpenTransactionBlocks();
         long t2 = System.nanoTime();
         System.out.println("Listing " + pending.size() + " pending blocks took " + (t2-t1)/1_000_000_000 + "s");
@@ -83,131 +198,247 @@ public class GarbageCollector {
         // Get the current roots from the usage store which shouldn't be GC'd until usage has been updated
         List<Multihash> usageRoots = usage.getAllTargets();
 
-
-        Map<Multihash, Integer> toIndex = new HashMap<>();
-        for (int i=0; i < present.size(); i++)
-            toIndex.put(present.get(i), i);
-        BitSet reachable = new BitSet(present.size());
-
-        int markParallelism = 10;
         ForkJoinPool markPool = new ForkJoinPool(markParallelism);
-        List<ForkJoinTask<Boolean>> usageMarked = usageRoots.stream()
-                .map(r -> markPool.submit(() -> markReachable(storage, (Cid)r, toIndex, reachable)))
+        Marker marker = new Marker(storage, present, maxVisitedOutsideIndex);
+        List<Cid> usageCids = usageRoots.stream()
+                .map(r -> (Cid) r)
                 .collect(Collectors.toList());
-        usageMarked.forEach(f -> f.join());
+        markPool.invoke(new MarkRoots(usageCids, marker));
         long t4 = System.nanoTime();
-        System.out.println("Marking reachable from "+usageRoots.size()+" usage roots took " + (t4-t3)/1_000_000_000 + "s");
+        long usageVisited = marker.visited.getAndSet(0);
+        System.out.println("Marking reachable from "+usageRoots.size()+" usage roots took " + (t4-t3)/1_000_000_000 +
+                "s, visited " + usageVisited + " blocks (" + rate(usageVisited, t4 - t3) + " blocks/s)");
 
-        Set<Multihash> fromUsage = new HashSet<>(usageRoots);
-        List<ForkJoinTask<Boolean>> marked = allPointers.entrySet().stream()
-                .map(e -> markPool.submit(() -> markReachable(e.getKey(), e.getValue(), reachable, toIndex, storage, fromUsage)))
-                .collect(Collectors.toList());
-        long rootsProcessed = marked.stream().filter(ForkJoinTask::join).count();
+        List<Cid> pointerTargets = markPool.submit(() -> allPointers.entrySet().stream()
+                .parallel()
+                .flatMap(e -> getTarget(e.getKey(), e.getValue(), storage).stream())
+                .collect(Collectors.toList())).join();
+        markPool.invoke(new MarkRoots(pointerTargets, marker));
+        markPool.shutdown();
 
         long t5 = System.nanoTime();
-        System.out.println("Marking reachable from "+rootsProcessed+" pointers took " + (t5-t4)/1_000_000_000 + "s");
-        for (Multihash additional : pending) {
-            int index = toIndex.getOrDefault(additional, -1);
-            if (index >= 0)
-                reachable.set(index);
-        }
+        long pointersVisited = marker.visited.get();
+        System.out.println("Marking reachable from "+pointerTargets.size()+" pointers took " + (t5-t4)/1_000_000_000 +
+                "s, visited " + pointersVisited + " blocks (" + rate(pointersVisited, t5 - t4) + " blocks/s)");
+        for (Multihash additional : pending)
+            present.mark(additional);
         long t6 = System.nanoTime();
         System.out.println("Marking "+pending.size()+" pending blocks reachable took " + (t6-t5)/1_000_000_000 + "s");
 
         // Save pointers snapshot
-        snapshotSaver.apply(allPointers.entrySet().stream()).join();
+        if (saveSnapshot)
+            snapshotSaver.apply(allPointers.entrySet().stream()).join();
 
         int deleteParallelism = 4;
-        ForkJoinPool pool = new ForkJoinPool(deleteParallelism);
-        int batchSize = present.size() / deleteParallelism;
-        AtomicLong progressCounter = new AtomicLong(0);
-        List<ForkJoinTask<Pair<Long, Long>>> futures = IntStream.range(0, deleteParallelism)
-                .mapToObj(i -> pool.submit(() -> deleteUnreachableBlocks(i * batchSize,
-                        Math.min((i + 1) * batchSize, present.size()), reachable, present, progressCounter, storage)))
-                .collect(Collectors.toList());
-        Pair<Long, Long> deleted = futures.stream()
-                .map(ForkJoinTask::join).reduce((a, b) -> new Pair<>(a.left + b.left, a.right + b.right))
-                .get();
-        long deletedCborBlocks = deleted.left;
-        long deletedRawBlocks = deleted.right;
+        boolean saveRefCounts = refCounts.isPresent() && ! marker.refsOverflowed;
+        if (saveRefCounts)
+            refCounts.get().clearRefCounts();
+        Pair<Long, Long> deleted = deleteUnreachableBlocks(storage.getAllBlockHashes(), present, deleteParallelism, storage,
+                saveRefCounts ? refCounts : Optional.empty());
+        if (saveRefCounts) {
+            refCounts.get().addRefCounts(marker.refsOutsideIndex.entrySet().stream()
+                    .map(e -> new Pair<>(e.getKey(), e.getValue().get()))
+                    .collect(Collectors.toList()));
+            refCounts.get().commit(getRoots(usageRoots, pointerTargets), runStart);
+        }
         long t7 = System.nanoTime();
-        System.out.println("Deleting blocks took " + (t7-t6)/1_000_000_000 + "s");
-        System.out.println("GC complete. Freed " + deletedCborBlocks + " cbor blocks and " + deletedRawBlocks + " raw blocks, total duration: " + (t7-t0)/1_000_000_000 + "s");
+        long deletedBlocks = deleted.left + deleted.right;
+        System.out.println("Deleting " + deletedBlocks + " blocks took " + (t7-t6)/1_000_000_000 + "s (" +
+                rate(deletedBlocks, t7 - t6) + " blocks/s)");
+        return deleted;
     }
 
-    private static boolean markReachable(PublicKeyHash writerHash,
-                                         byte[] signedRawCas,
-                                         BitSet reachable,
-                                         Map<Multihash, Integer> toIndex,
-                                         DeletableContentAddressedStorage storage,
-                                         Set<Multihash> done) {
+    static Map<Cid, Integer> getRoots(List<Multihash> usageRoots, List<Cid> pointerTargets) {
+        Map<Cid, Integer> roots = new HashMap<>();
+        for (Multihash usageRoot : usageRoots)
+            roots.merge((Cid) usageRoot, 1, Integer::sum);
+        for (Cid target : pointerTargets)
+            roots.merge(target, 1, Integer::sum);
+        return roots;
+    }
+
+    static Optional<Cid> getTarget(PublicKeyHash writerHash,
+                                   byte[] signedRawCas,
+                                   DeletableContentAddressedStorage storage) {
         PublicSigningKey writer = getWithBackoff(() -> storage.getSigningKey(writerHash).join().get());
         byte[] bothHashes = writer.unsignMessage(signedRawCas);
         PointerUpdate cas = PointerUpdate.fromCbor(CborObject.fromByteArray(bothHashes));
-        MaybeMultihash updated = cas.updated;
-        if (updated.isPresent() && ! done.contains(updated.get())) {
-            markReachable(storage, (Cid) updated.get(), toIndex, reachable);
-            return true;
+        return cas.updated.toOptional().map(h -> (Cid) h);
+    }
+
+    /** The state shared by all the mark tasks in a GC pass. Every block is claimed exactly once, either through its
+     *  bit in the block index, or, for blocks outside the index, through a bounded visited set. When the visited set
+     *  is full, blocks outside the index are traversed again each time they are reached.
+     *
+     *  If the index counts references, every link traversed is counted, including links to blocks already claimed.
+     */
+    private static class Marker {
+        final DeletableContentAddressedStorage storage;
+        final BlockHashIndex present;
+        final Set<Cid> visitedOutsideIndex = ConcurrentHashMap.newKeySet();
+        final Map<Cid, AtomicInteger> refsOutsideIndex = new ConcurrentHashMap<>();
+        final long maxVisitedOutsideIndex;
+        final AtomicLong visited = new AtomicLong(0);
+        volatile boolean refsOverflowed = false;
+
+        Marker(DeletableContentAddressedStorage storage, BlockHashIndex present, long maxVisitedOutsideIndex) {
+            this.storage = storage;
+            this.present = present;
+            this.maxVisitedOutsideIndex = maxVisitedOutsideIndex;
+        }
+
+        /**
+         *
+         * @param block
+         * @return true if the caller should traverse this block
+         */
+        boolean claim(Cid block) {
+            if (block.isIdentity())
+                return true;
+            if (present.contains(block))
+                return present.mark(block);
+            if (visitedOutsideIndex.size() >= maxVisitedOutsideIndex)
+                return ! visitedOutsideIndex.contains(block);
+            return visitedOutsideIndex.add(block);
+        }
+
+        void addRef(Cid block) {
+            if (! present.countsRefs() || block.isIdentity())
+                return;
+            if (present.contains(block)) {
+                present.addRef(block);
+                return;
+            }
+            if (refsOutsideIndex.size() >= maxVisitedOutsideIndex) {
+                refsOverflowed = true;
+                return;
+            }
+            refsOutsideIndex.computeIfAbsent(block, b -> new AtomicInteger()).incrementAndGet();
         }
-        return false;
     }
 
-    private static Pair<Long, Long> deleteUnreachableBlocks(int startIndex,
-                                                            int endIndex,
-                                                            BitSet reachable,
-                                                            List<Multihash> present,
-                                                            AtomicLong progress,
-                                                            DeletableContentAddressedStorage storage) {
+    /** Marks everything reachable from a list of roots, completing only once every descendant task has completed.
+     */
+    @SuppressWarnings("serial")
+    private static class MarkRoots extends CountedCompleter<Void> {
+        private final List<Cid> roots;
+        private final Marker marker;
+
+        MarkRoots(List<Cid> roots, Marker marker) {
+            this.roots = roots;
+            this.marker = marker;
+        }
+
+        @Override
+        public void compute() {
+            for (Cid root : roots) {
+                marker.addRef(root);
+                if (marker.claim(root)) {
+                    addToPendingCount(1);
+                    new MarkReachable(this, root, marker).fork();
+                }
+            }
+            tryComplete();
+        }
+    }
+
+    /** Fetches the links of a single block and forks a task for each child which hasn't been visited. Children are
+     *  never joined, so a worker thread is only ever blocked on its own block fetch, and the pool size bounds the
+     *  number of fetches in flight.
+     */
+    @SuppressWarnings("serial")
+    private static class MarkReachable extends CountedCompleter<Void> {
+        private final Cid block;
+        private final Marker marker;
+
+        MarkReachable(CountedCompleter<?> parent, Cid block, Marker marker) {
+            super(parent);
+            this.block = block;
+            this.marker = marker;
+        }
+
+        @Override
+        public void compute() {
+            marker.visited.incrementAndGet();
+            List<Cid> links = getWithBackoff(() -> marker.storage.getLinks(block, "").join());
+            for (Cid link : links) {
+                marker.addRef(link);
+                if (marker.claim(link)) {
+                    addToPendingCount(1);
+                    new MarkReachable(this, link, marker).fork();
+                }
+            }
+            tryComplete();
+        }
+    }
+
+    /** Stream the blockstore listing again and delete, in batches, every indexed block which wasn't marked. Blocks
+     * which have been written since the index was built are not in the index and so are retained. The reference
+     * counts of retained blocks are saved as we go, if requested.
+     */
+    private static Pair<Long, Long> deleteUnreachableBlocks(Stream<Cid> blocks,
+                                                            BlockHashIndex present,
+                                                            int parallelism,
+                                                            DeletableContentAddressedStorage storage,
+                                                            Optional<JdbcGcState> refCounts) {
         long deletedCborBlocks = 0, deletedRawBlocks = 0;
-        long logPoint = startIndex;
+        long processed = 0;
         final int maxDeleteCount = 1000;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        Deque<ForkJoinTask<Boolean>> inFlight = new ArrayDeque<>();
         List<Multihash> pendingDeletes = new ArrayList<>();
-        for (int i = reachable.nextClearBit(startIndex); i >= startIndex && i < endIndex; i = reachable.nextClearBit(i + 1)) {
-            Multihash hash = present.get(i);
-            if (hash instanceof Cid && ((Cid) hash).isRaw())
-                deletedRawBlocks++;
-            else
-                deletedCborBlocks++;
-            pendingDeletes.add(hash);
-
-            if (pendingDeletes.size() >= maxDeleteCount) {
-                getWithBackoff(() -> {storage.bulkDelete(pendingDeletes); return true;});
-                pendingDeletes.clear();
-            }
+        List<Pair<Cid, Integer>> pendingRefs = new ArrayList<>();
+        try (Stream<Cid> toCheck = blocks) {
+            Iterator<Cid> iter = toCheck.iterator();
+            while (iter.hasNext()) {
+                Cid hash = iter.next();
+                if (! present.inPartition(hash))
+                    continue;
+                processed++;
+                if (present.size() >= 10 && processed % (present.size() / 10) == 0)
+                    System.out.println("Deleting unreachable blocks: " + Math.min(100, processed * 100 / present.size()) + "% done");
+                if (! present.isGarbage(hash)) {
+                    int refs = present.getRefs(hash);
+                    if (refCounts.isPresent() && refs > 0) {
+                        pendingRefs.add(new Pair<>(hash, refs));
+                        if (pendingRefs.size() >= 10_000) {
+                            refCounts.get().addRefCounts(pendingRefs);
+                            pendingRefs.clear();
+                        }
+                    }
+                    continue;
+                }
+                if (hash.isRaw())
+                    deletedRawBlocks++;
+                else
+                    deletedCborBlocks++;
+                pendingDeletes.add(hash);
 
-            int tenth = (endIndex - startIndex) / 10;
-            if (i > logPoint + tenth) {
-                logPoint += tenth;
-                long updatedProgress = progress.addAndGet(tenth);
-                if (updatedProgress * 10 / present.size() > (updatedProgress - tenth) * 10 / present.size())
-                    System.out.println("Deleting unreachable blocks: " + updatedProgress * 100 / present.size() + "% done");
+                if (pendingDeletes.size() >= maxDeleteCount) {
+                    List<Multihash> batch = pendingDeletes;
+                    inFlight.add(pool.submit(() -> getWithBackoff(() -> {storage.bulkDelete(batch); return true;})));
+                    pendingDeletes = new ArrayList<>();
+                    if (inFlight.size() >= 2 * parallelism)
+                        inFlight.poll().join();
+                }
             }
         }
+        refCounts.ifPresent(state -> state.addRefCounts(pendingRefs));
         if (pendingDeletes.size() > 0) {
-            getWithBackoff(() -> {storage.bulkDelete(pendingDeletes); return true;});
+            List<Multihash> batch = pendingDeletes;
+            inFlight.add(pool.submit(() -> getWithBackoff(() -> {storage.bulkDelete(batch); return true;})));
         }
+        inFlight.forEach(ForkJoinTask::join);
+        pool.shutdown();
 
         return new Pair<>(deletedCborBlocks, deletedRawBlocks);
     }
 
-    private static boolean markReachable(DeletableContentAddressedStorage storage,
-                                         Cid root,
-                                         Map<Multihash, Integer> toIndex,
-                                         BitSet reachable) {
-        int index = toIndex.getOrDefault(root, -1);
-        if (index >= 0) {
-            synchronized (reachable) {
-                reachable.set(index);
-            }
-        }
-        List<Cid> links = getWithBackoff(() -> storage.getLinks(root, "").join());
-        for (Cid link : links) {
-            markReachable(storage, link, toIndex, reachable);
-        }
-        return true;
+    private static long rate(long count, long durationNanos) {
+        return count * 1_000_000_000L / Math.max(durationNanos, 1);
     }
 
-    private static <V> V getWithBackoff(Supplier<V> req) {
+    static <V> V getWithBackoff(Supplier<V> req) {
         long sleep = 1000;
         for (int i=0; i < 20; i++) {
             try {
@@ -0,0 +1,274 @@
+package peergos.server.storage;
+
+import peergos.server.corenode.*;
+import peergos.server.space.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Garbage collection whose cost is proportional to the churn since the last run rather than to the size of the
+ *  blockstore.
+ *
+ *  A full GC stores the number of references to every reachable block, and the roots (pointer and usage targets) it
+ *  marked from. Each incremental run diffs the current roots against the stored ones. Added references are applied
+ *  first, expanding only blocks whose count goes from 0 to 1, then removed references are applied, expanding only
+ *  blocks whose count drops to 0. Identical subtrees are never visited, and blocks shared between several parents
+ *  (or writers) stay alive until their last reference is gone. Finally, blocks written since the last run which have
+ *  no references are also garbage. Garbage in open transactions is kept, and checked again on every later run.
+ */
+public class IncrementalGarbageCollector {
+
+    /**
+     *
+     * @return false if an incremental run is not possible and a full GC is needed
+     */
+    public static boolean collect(DeletableContentAddressedStorage storage,
+                                  JdbcIpnsAndSocial pointers,
+                                  UsageStore usage,
+                                  JdbcGcState state,
+                                  Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver,
+                                  int parallelism) {
+        Optional<Long> lastRun = state.getLastRunStart();
+        if (lastRun.isEmpty())
+            return false;
+        long runStart = System.currentTimeMillis();
+        Optional<List<Multihash>> written = storage.getBlocksWrittenSince(lastRun.get());
+        if (written.isEmpty())
+            return false;
+        System.out.println("Starting incremental garbage collection on node " + storage.id().join() + "...");
+        storage.clearOldTransactions(runStart - 24*3600*1000L);
+        long t0 = System.nanoTime();
+        Set<Multihash> pending = new HashSet<>(storage.getOpenTransactionBlocks());
+
+        // This pointers call must happen AFTER the written and pending listing for correctness
+        Map<PublicKeyHash, byte[]> allPointers = pointers.getAllEntries();
+        List<Multihash> usageRoots = usage.getAllTargets();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Cid> pointerTargets = pool.submit(() -> allPointers.entrySet().stream()
+                    .parallel()
+                    .flatMap(e -> GarbageCollector.getTarget(e.getKey(), e.getValue(), storage).stream())
+                    .collect(Collectors.toList())).join();
+            Map<Cid, Integer> roots = GarbageCollector.getRoots(usageRoots, pointerTargets);
+            Map<Cid, Integer> previousRoots = state.getRoots();
+            long t1 = System.nanoTime();
+            System.out.println("Listing " + written.get().size() + " written blocks, " + pending.size() +
+                    " pending blocks and " + roots.size() + " roots took " + (t1 - t0) / 1_000_000_000 + "s");
+
+            Map<Cid, Integer> added = new HashMap<>();
+            Map<Cid, Integer> removed = new HashMap<>();
+            for (Map.Entry<Cid, Integer> e : roots.entrySet()) {
+                int delta = e.getValue() - previousRoots.getOrDefault(e.getKey(), 0);
+                if (delta > 0)
+                    added.put(e.getKey(), delta);
+            }
+            for (Map.Entry<Cid, Integer> e : previousRoots.entrySet()) {
+                int delta = e.getValue() - roots.getOrDefault(e.getKey(), 0);
+                if (delta > 0)
+                    removed.put(e.getKey(), delta);
+            }
+
+            // From here until the commit the stored state doesn't match the blockstore
+            state.invalidate();
+            RefCounts refs = new RefCounts(state, storage, pool);
+            long born = refs.addRefs(added);
+            long t2 = System.nanoTime();
+            System.out.println("Adding references from " + added.size() + " new roots took " + (t2 - t1) / 1_000_000_000 +
+                    "s, " + born + " blocks became reachable");
+            refs.removeRefs(removed);
+            long t3 = System.nanoTime();
+            System.out.println("Removing references from " + removed.size() + " old roots took " + (t3 - t2) / 1_000_000_000 +
+                    "s, " + refs.dead.size() + " blocks became unreachable");
+
+            Set<Cid> unreferencedWrites = written.get().stream()
+                    .filter(h -> ! h.isIdentity())
+                    .map(h -> (Cid) h)
+                    .collect(Collectors.toSet());
+            refs.load(unreferencedWrites);
+            unreferencedWrites.removeIf(c -> refs.get(c) > 0);
+            refs.dead.addAll(unreferencedWrites);
+            refs.addPreviouslyRetained(state.getPendingDeletes());
+
+            Set<Cid> toDelete = refs.withoutPendingSubtrees(pending);
+            Set<Cid> retained = new HashSet<>(refs.dead);
+            retained.removeAll(toDelete);
+            state.setRefCounts(refs.changed());
+            state.setPendingDeletes(retained);
+            state.commit(roots, runStart);
+            snapshotSaver.apply(allPointers.entrySet().stream()).join();
+            long t4 = System.nanoTime();
+
+            List<Multihash> batch = new ArrayList<>();
+            for (Cid block : toDelete) {
+                batch.add(block);
+                if (batch.size() >= 1000) {
+                    GarbageCollector.getWithBackoff(() -> {storage.bulkDelete(batch); return true;});
+                    batch.clear();
+                }
+            }
+            if (! batch.isEmpty())
+                GarbageCollector.getWithBackoff(() -> {storage.bulkDelete(batch); return true;});
+            storage.compact();
+            long t5 = System.nanoTime();
+            System.out.println("Incremental GC complete. Freed " + toDelete.size() + " blocks (" +
+                    retained.size() + " retained by open transactions), deleting took " +
+                    (t5 - t4) / 1_000_000_000 + "s, total duration: " + (t5 - t0) / 1_000_000_000 + "s");
+            return true;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** The reference counts of the blocks touched by this run, loaded lazily from the stored state. Counts are
+     *  applied a level at a time, so each level costs one batched lookup and a parallel fetch of links.
+     */
+    private static class RefCounts {
+        private final JdbcGcState state;
+        private final DeletableContentAddressedStorage storage;
+        private final ForkJoinPool pool;
+        private final Map<Cid, Integer> counts = new HashMap<>();
+        private final Set<Cid> changed = new HashSet<>();
+        private final Map<Cid, List<Cid>> deadLinks = new HashMap<>();
+        final Set<Cid> dead = new HashSet<>();
+
+        RefCounts(JdbcGcState state, DeletableContentAddressedStorage storage, ForkJoinPool pool) {
+            this.state = state;
+            this.storage = storage;
+            this.pool = pool;
+        }
+
+        void load(Collection<Cid> blocks) {
+            List<Cid> missing = blocks.stream()
+                    .filter(c -> ! counts.containsKey(c))
+                    .collect(Collectors.toList());
+            Map<Cid, Integer> stored = state.getRefCounts(missing);
+            for (Cid block : missing)
+                counts.put(block, stored.getOrDefault(block, 0));
+        }
+
+        int get(Cid block) {
+            return counts.getOrDefault(block, 0);
+        }
+
+        List<Pair<Cid, Integer>> changed() {
+            return changed.stream()
+                    .map(c -> new Pair<>(c, counts.get(c)))
+                    .collect(Collectors.toList());
+        }
+
+        /**
+         *
+         * @return the number of blocks which became reachable
+         */
+        long addRefs(Map<Cid, Integer> added) {
+            long born = 0;
+            Map<Cid, Integer> level = expandIdentities(added);
+            while (! level.isEmpty()) {
+                load(level.keySet());
+                List<Cid> newlyReachable = new ArrayList<>();
+                for (Map.Entry<Cid, Integer> e : level.entrySet()) {
+                    int before = counts.get(e.getKey());
+                    counts.put(e.getKey(), before + e.getValue());
+                    changed.add(e.getKey());
+                    if (before == 0)
+                        newlyReachable.add(e.getKey());
+                }
+                born += newlyReachable.size();
+                level = expandIdentities(childRefs(getLinks(newlyReachable)));
+            }
+            return born;
+        }
+
+        void removeRefs(Map<Cid, Integer> removed) {
+            Map<Cid, Integer> level = expandIdentities(removed);
+            while (! level.isEmpty()) {
+                load(level.keySet());
+                List<Cid> newlyDead = new ArrayList<>();
+                for (Map.Entry<Cid, Integer> e : level.entrySet()) {
+                    int before = counts.get(e.getKey());
+                    if (before < e.getValue())
+                        throw new IllegalStateException("Inconsistent GC reference count for " + e.getKey() +
+                                ": " + before + " < " + e.getValue());
+                    counts.put(e.getKey(), before - e.getValue());
+                    changed.add(e.getKey());
+                    if (before == e.getValue())
+                        newlyDead.add(e.getKey());
+                }
+                dead.addAll(newlyDead);
+                Map<Cid, List<Cid>> links = getLinks(newlyDead);
+                deadLinks.putAll(links);
+                level = expandIdentities(childRefs(links));
+            }
+        }
+
+        /** Blocks which were garbage, but retained by open transactions, in an earlier run are still garbage unless
+         *  they've been referenced again since.
+         */
+        void addPreviouslyRetained(Set<Cid> retained) {
+            load(retained);
+            List<Cid> stillDead = retained.stream()
+                    .filter(c -> get(c) == 0 && ! dead.contains(c))
+                    .collect(Collectors.toList());
+            dead.addAll(stillDead);
+            deadLinks.putAll(getLinks(stillDead));
+        }
+
+        /** Blocks in open transactions may be about to be referenced again, so neither they nor anything they link to
+         *  can be deleted.
+         *
+         * @param pending
+         * @return the dead blocks which are safe to delete
+         */
+        Set<Cid> withoutPendingSubtrees(Set<Multihash> pending) {
+            Set<Cid> deletable = new HashSet<>(dead);
+            Deque<Cid> retained = dead.stream()
+                    .filter(pending::contains)
+                    .collect(Collectors.toCollection(ArrayDeque::new));
+            while (! retained.isEmpty()) {
+                Cid next = retained.poll();
+                if (! deletable.remove(next))
+                    continue;
+                retained.addAll(deadLinks.getOrDefault(next, Collections.emptyList()));
+            }
+            return deletable;
+        }
+
+        private static Map<Cid, Integer> childRefs(Map<Cid, List<Cid>> links) {
+            Map<Cid, Integer> res = new HashMap<>();
+            for (List<Cid> children : links.values())
+                for (Cid child : children)
+                    res.merge(child, 1, Integer::sum);
+            return res;
+        }
+
+        /** Identity blocks are inlined and not counted, so a reference to one is a reference to each of its links.
+         */
+        private Map<Cid, Integer> expandIdentities(Map<Cid, Integer> refs) {
+            Map<Cid, Integer> res = new HashMap<>();
+            Map<Cid, Integer> identities = new HashMap<>();
+            for (Map.Entry<Cid, Integer> e : refs.entrySet())
+                (e.getKey().isIdentity() ? identities : res).merge(e.getKey(), e.getValue(), Integer::sum);
+            while (! identities.isEmpty()) {
+                Map<Cid, Integer> next = new HashMap<>();
+                for (Map.Entry<Cid, Integer> e : identities.entrySet())
+                    for (Cid link : GarbageCollector.getWithBackoff(() -> storage.getLinks(e.getKey(), "").join()))
+                        (link.isIdentity() ? next : res).merge(link, e.getValue(), Integer::sum);
+                identities = next;
+            }
+            return res;
+        }
+
+        private Map<Cid, List<Cid>> getLinks(List<Cid> blocks) {
+            return pool.submit(() -> blocks.parallelStream()
+                    .collect(Collectors.toMap(c -> c,
+                            c -> GarbageCollector.getWithBackoff(() -> storage.getLinks(c, "").join()))))
+                    .join();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package peergos.server.storage;
+
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.util.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A durable store of the size and links of every block written, so usage accounting and GC never need to fetch
+ *  block bodies. Recently used entries are also cached in RAM.
+ */
+public class JdbcBlockMetadataStore implements BlockMetadataStore {
+	private static final Logger LOG = Logging.LOG();
+
+    private static final String GET = "SELECT size, links FROM blockmetadata WHERE cid = ?;";
+    private static final String REMOVE = "DELETE FROM blockmetadata WHERE cid = ?;";
+    private static final String COUNT = "SELECT COUNT(*) FROM blockmetadata;";
+
+    private Supplier<Connection> conn;
+    private final SqlSupplier commands;
+    private final WeightedCache<Cid, BlockMetadata> cache;
+    private volatile boolean isClosed;
+
+    public JdbcBlockMetadataStore(Supplier<Connection> conn, SqlSupplier commands, long cacheBytes) {
+        this.conn = conn;
+        this.commands = commands;
+        this.cache = CacheMetrics.monitor("block_metadata",
+                new WeightedCache<>(4, cacheBytes, BlockMetadata::sizeInBytes));
+        init(commands);
+    }
+
+    private Connection getConnection() {
+        Connection connection = conn.get();
+        try {
+            connection.setAutoCommit(true);
+            connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            return connection;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void init(SqlSupplier commands) {
+        if (isClosed)
+            return;
+
+        try (Connection conn = getConnection()) {
+            commands.createTable(commands.createBlockMetadataStoreTableCommand(), conn);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Optional<BlockMetadata> get(Cid block) {
+        BlockMetadata cached = cache.get(block);
+        if (cached != null)
+            return Optional.of(cached);
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(GET)) {
+            select.setString(1, block.toString());
+            ResultSet rs = select.executeQuery();
+            if (! rs.next())
+                return Optional.empty();
+            List<Cid> links = ((CborObject.CborList) CborObject.fromByteArray(rs.getBytes("links"))).map(c -> (Cid) ((CborObject.CborMerkleLink) c).target);
+            BlockMetadata meta = new BlockMetadata(rs.getInt("size"), links);
+            cache.put(block, meta);
+            return Optional.of(meta);
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    @Override
+    public void put(Cid block, BlockMetadata meta) {
+        // metadata is immutable, and only cached once it is stored
+        if (cache.get(block) != null)
+            return;
+        try (Connection conn = getConnection();
+             PreparedStatement insert = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ", "INTO blockmetadata (cid, size, links) VALUES(?, ?, ?)"))) {
+            insert.setString(1, block.toString());
+            insert.setInt(2, meta.size);
+            insert.setBytes(3, new CborObject.CborList(meta.links.stream()
+                    .map(CborObject.CborMerkleLink::new)
+                    .collect(Collectors.toList())).serialize());
+            insert.executeUpdate();
+            cache.put(block, meta);
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    @Override
+    public void remove(Cid block) {
+        cache.remove(block);
+        try (Connection conn = getConnection();
+             PreparedStatement delete = conn.prepareStatement(REMOVE)) {
+            delete.setString(1, block.toString());
+            delete.executeUpdate();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    @Override
+    public long size() {
+        try (Connection conn = getConnection();
+             PreparedStatement count = conn.prepareStatement(COUNT)) {
+            ResultSet rs = count.executeQuery();
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    public synchronized void close() {
+        if (isClosed)
+            return;
+
+        isClosed = true;
+    }
+
+    public static JdbcBlockMetadataStore build(Supplier<Connection> conn, SqlSupplier commands) {
+        return new JdbcBlockMetadataStore(conn, commands, 16 * 1024 * 1024);
+    }
+}
@@ -0,0 +1,270 @@
+package peergos.server.storage;
+
+import peergos.server.sql.*;
+import peergos.server.util.Logging;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.util.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** The persistent state needed for incremental garbage collection: the number of references to each reachable block,
+ *  the roots (pointer and usage targets) those counts were computed from, the start time of the run which
+ *  produced them, and the unreachable blocks which couldn't be deleted yet because they were in open transactions.
+ */
+public class JdbcGcState {
+	private static final Logger LOG = Logging.LOG();
+
+    private static final String LAST_RUN = "last_run";
+    private static final String SELECT_META = "SELECT value FROM gcmeta WHERE name = ?;";
+    private static final String DELETE_META = "DELETE FROM gcmeta WHERE name = ?;";
+    private static final String INSERT_META = "INSERT INTO gcmeta (name, value) VALUES(?, ?);";
+    private static final String SELECT_ROOTS = "SELECT hash, refs FROM gcroots;";
+    private static final String DELETE_ROOTS = "DELETE FROM gcroots;";
+    private static final String INSERT_ROOT = "INSERT INTO gcroots (hash, refs) VALUES(?, ?);";
+    private static final String DELETE_REFS = "DELETE FROM gcrefs;";
+    private static final String DELETE_REF = "DELETE FROM gcrefs WHERE hash = ?;";
+    private static final String INSERT_REF = "INSERT INTO gcrefs (hash, refs) VALUES(?, ?);";
+    private static final String SELECT_PENDING = "SELECT hash FROM gcpending;";
+    private static final String DELETE_PENDING = "DELETE FROM gcpending;";
+    private static final String INSERT_PENDING = "INSERT INTO gcpending (hash) VALUES(?);";
+    private static final int MAX_PARAMS = 500;
+
+    private Supplier<Connection> conn;
+    private final SqlSupplier commands;
+    private volatile boolean isClosed;
+
+    public JdbcGcState(Supplier<Connection> conn, SqlSupplier commands) {
+        this.conn = conn;
+        this.commands = commands;
+        init(commands);
+    }
+
+    private Connection getConnection() {
+        Connection connection = conn.get();
+        try {
+            connection.setAutoCommit(true);
+            connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            return connection;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void init(SqlSupplier commands) {
+        if (isClosed)
+            return;
+
+        try (Connection conn = getConnection()) {
+            commands.createTable(commands.createGcStateTablesCommand(), conn);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     *
+     * @return The start time of the last run which left a consistent state, or Optional.empty() if there isn't one
+     */
+    public Optional<Long> getLastRunStart() {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(SELECT_META)) {
+            select.setString(1, LAST_RUN);
+            ResultSet rs = select.executeQuery();
+            if (rs.next())
+                return Optional.of(rs.getLong(1));
+            return Optional.empty();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /** Mark the state as inconsistent, so the next run must be a full GC
+     */
+    public void invalidate() {
+        try (Connection conn = getConnection();
+             PreparedStatement delete = conn.prepareStatement(DELETE_META)) {
+            delete.setString(1, LAST_RUN);
+            delete.executeUpdate();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /** Record the roots of a completed run, and mark the state as consistent
+     *
+     * @param roots
+     * @param runStart
+     */
+    public void commit(Map<Cid, Integer> roots, long runStart) {
+        try (Connection conn = getConnection();
+             PreparedStatement deleteRoots = conn.prepareStatement(DELETE_ROOTS);
+             PreparedStatement insertRoot = conn.prepareStatement(INSERT_ROOT);
+             PreparedStatement deleteMeta = conn.prepareStatement(DELETE_META);
+             PreparedStatement insertMeta = conn.prepareStatement(INSERT_META)) {
+            deleteRoots.executeUpdate();
+            for (Map.Entry<Cid, Integer> e : roots.entrySet()) {
+                insertRoot.setString(1, e.getKey().toString());
+                insertRoot.setInt(2, e.getValue());
+                insertRoot.addBatch();
+            }
+            insertRoot.executeBatch();
+            deleteMeta.setString(1, LAST_RUN);
+            deleteMeta.executeUpdate();
+            insertMeta.setString(1, LAST_RUN);
+            insertMeta.setLong(2, runStart);
+            insertMeta.executeUpdate();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    public Map<Cid, Integer> getRoots() {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(SELECT_ROOTS)) {
+            ResultSet rs = select.executeQuery();
+            Map<Cid, Integer> res = new HashMap<>();
+            while (rs.next())
+                res.put(Cid.decode(rs.getString(1)), rs.getInt(2));
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /**
+     *
+     * @param blocks
+     * @return The reference counts of those blocks which have any references
+     */
+    public Map<Cid, Integer> getRefCounts(Collection<Cid> blocks) {
+        List<Cid> all = new ArrayList<>(blocks);
+        Map<Cid, Integer> res = new HashMap<>();
+        try (Connection conn = getConnection()) {
+            for (int start = 0; start < all.size(); start += MAX_PARAMS) {
+                List<Cid> chunk = all.subList(start, Math.min(start + MAX_PARAMS, all.size()));
+                String params = chunk.stream().map(c -> "?").collect(Collectors.joining(","));
+                try (PreparedStatement select = conn.prepareStatement("SELECT hash, refs FROM gcrefs WHERE hash IN (" + params + ");")) {
+                    for (int i = 0; i < chunk.size(); i++)
+                        select.setString(i + 1, chunk.get(i).toString());
+                    ResultSet rs = select.executeQuery();
+                    while (rs.next())
+                        res.put(Cid.decode(rs.getString(1)), rs.getInt(2));
+                }
+            }
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /** Clear all reference counts, and the pending deletes which were derived from them
+     */
+    public void clearRefCounts() {
+        try (Connection conn = getConnection();
+             PreparedStatement delete = conn.prepareStatement(DELETE_REFS);
+             PreparedStatement deletePending = conn.prepareStatement(DELETE_PENDING)) {
+            delete.executeUpdate();
+            deletePending.executeUpdate();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /** Add reference counts for blocks which don't have one yet
+     *
+     * @param refCounts
+     */
+    public void addRefCounts(List<Pair<Cid, Integer>> refCounts) {
+        try (Connection conn = getConnection();
+             PreparedStatement insert = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ", "INTO gcrefs (hash, refs) VALUES(?, ?)"))) {
+            for (Pair<Cid, Integer> ref : refCounts) {
+                insert.setString(1, ref.left.toString());
+                insert.setInt(2, ref.right);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /** Set the reference counts of the given blocks, removing any which have no references
+     *
+     * @param refCounts
+     */
+    public void setRefCounts(List<Pair<Cid, Integer>> refCounts) {
+        try (Connection conn = getConnection();
+             PreparedStatement delete = conn.prepareStatement(DELETE_REF);
+             PreparedStatement insert = conn.prepareStatement(INSERT_REF)) {
+            for (Pair<Cid, Integer> ref : refCounts) {
+                delete.setString(1, ref.left.toString());
+                delete.addBatch();
+                if (ref.right > 0) {
+                    insert.setString(1, ref.left.toString());
+                    insert.setInt(2, ref.right);
+                    insert.addBatch();
+                }
+            }
+            delete.executeBatch();
+            insert.executeBatch();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /**
+     *
+     * @return The unreachable blocks which the last run couldn't delete because they were in open transactions
+     */
+    public Set<Cid> getPendingDeletes() {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(SELECT_PENDING)) {
+            ResultSet rs = select.executeQuery();
+            Set<Cid> res = new HashSet<>();
+            while (rs.next())
+                res.add(Cid.decode(rs.getString(1)));
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    public void setPendingDeletes(Collection<Cid> blocks) {
+        try (Connection conn = getConnection();
+             PreparedStatement delete = conn.prepareStatement(DELETE_PENDING);
+             PreparedStatement insert = conn.prepareStatement(INSERT_PENDING)) {
+            delete.executeUpdate();
+            for (Cid block : blocks) {
+                insert.setString(1, block.toString());
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    public synchronized void close() {
+        if (isClosed)
+            return;
+        isClosed = true;
+    }
+
+    public static JdbcGcState build(Supplier<Connection> conn, SqlSupplier commands) {
+        return new JdbcGcState(conn, commands);
+    }
+}
@@ -2,6 +2,7 @@ package peergos.server.storage;
 
 import peergos.server.sql.*;
 import peergos.server.util.Logging;
+import peergos.server.util.Sqlite;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
@@ -15,20 +16,35 @@ import java.util.logging.*;
 public class JdbcTransactionStore implements TransactionStore {
 	private static final Logger LOG = Logging.LOG();
 
-    private static final String SELECT_TRANSACTIONS_BLOCKS = "SELECT tid, owner, hash, time FROM transactions;";
+    private static final String SELECT_TRANSACTIONS_BLOCKS = "SELECT tid, owner, hash, time FROM transactions WHERE closed = 0;";
+    private static final String SELECT_BLOCKS_SINCE = "SELECT hash FROM transactions WHERE time >= ?;";
     private static final String DELETE_TRANSACTION = "DELETE FROM transactions WHERE tid = ? AND owner = ?;";
+    private static final String CLOSE_TRANSACTION = "UPDATE transactions SET closed = 1 WHERE tid = ? AND owner = ?;";
     private static final String DELETE_OLD_TRANSACTIONS = "DELETE FROM transactions WHERE time < ?;";
 
     private Supplier<Connection> conn;
     private final SqlSupplier commands;
+    private final boolean retainClosed;
     private volatile boolean isClosed;
 
-    public JdbcTransactionStore(Supplier<Connection> conn, SqlSupplier commands) {
+    /**
+     *
+     * @param conn
+     * @param commands
+     * @param retainClosed Whether to keep the blocks of closed transactions until they are cleared, so that incremental
+     *                    GC can find blocks written since its last run
+     */
+    public JdbcTransactionStore(Supplier<Connection> conn, SqlSupplier commands, boolean retainClosed) {
         this.conn = conn;
         this.commands = commands;
+        this.retainClosed = retainClosed;
         init(commands);
     }
 
+    public JdbcTransactionStore(Supplier<Connection> conn, SqlSupplier commands) {
+        this(conn, commands, false);
+    }
+
     private Connection getConnection() {
         Connection connection = conn.get();
         try {
@@ -52,6 +68,12 @@ public class JdbcTransactionStore implements TransactionStore {
                 if (!f.getMessage().contains("duplicate column"))
                     throw new RuntimeException(f);
             }
+            try {
+                commands.createTable(commands.ensureColumnExistsCommand("transactions", "closed", commands.sqlInteger() + " DEFAULT 0"), conn);
+            } catch (SQLException f) {
+                if (!f.getMessage().contains("duplicate column"))
+                    throw new RuntimeException(f);
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -77,10 +99,47 @@ public class JdbcTransactionStore implements TransactionStore {
         }
     }
 
+    /** Insert the blocks in a single database transaction, unless the connection is shared with other stores, in which
+     *  case a transaction here would also capture their statements, so insert each block on its own.
+     */
+    @Override
+    public void addBlocks(List<BlockWrite> writes) {
+        if (writes.isEmpty())
+            return;
+        Connection conn = getConnection();
+        if (conn instanceof Sqlite.UncloseableConnection) {
+            for (BlockWrite w : writes)
+                addBlock(w.hash, w.tid, w.owner);
+            return;
+        }
+        try (conn; PreparedStatement insert = conn.prepareStatement(commands.insertTransactionCommand())) {
+            conn.setAutoCommit(false);
+            try {
+                long now = System.currentTimeMillis();
+                for (BlockWrite w : writes) {
+                    insert.setString(1, w.tid.toString());
+                    insert.setString(2, w.owner.toString());
+                    insert.setString(3, w.hash.toString());
+                    insert.setLong(4, now);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+        }
+    }
+
     @Override
     public void closeTransaction(PublicKeyHash owner, TransactionId tid) {
         try (Connection conn = getConnection();
-             PreparedStatement delete = conn.prepareStatement(DELETE_TRANSACTION)) {
+             PreparedStatement delete = conn.prepareStatement(retainClosed ? CLOSE_TRANSACTION : DELETE_TRANSACTION)) {
             delete.setString(1, tid.toString());
             delete.setString(2, owner.toString());
             delete.executeUpdate();
@@ -119,6 +178,24 @@ public class JdbcTransactionStore implements TransactionStore {
         }
     }
 
+    @Override
+    public Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis) {
+        if (! retainClosed)
+            return Optional.empty();
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(SELECT_BLOCKS_SINCE)) {
+            select.setLong(1, cutoffMillis);
+            ResultSet rs = select.executeQuery();
+            List<Multihash> results = new ArrayList<>();
+            while (rs.next())
+                results.add(Cid.decode(rs.getString("hash")));
+            return Optional.of(results);
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
     public synchronized void close() {
         if (isClosed)
             return;
@@ -126,6 +203,10 @@ public class JdbcTransactionStore implements TransactionStore {
     }
 
     public static JdbcTransactionStore build(Supplier<Connection> conn, SqlSupplier commands) {
-        return new JdbcTransactionStore(conn, commands);
+        return new JdbcTransactionStore(conn, commands, false);
+    }
+
+    public static JdbcTransactionStore build(Supplier<Connection> conn, SqlSupplier commands, boolean retainClosed) {
+        return new JdbcTransactionStore(conn, commands, retainClosed);
     }
 }
@@ -46,14 +46,21 @@ public class MetadataCachingStorage extends DelegatingDeletableStorage {
         if (meta.isPresent())
             return Futures.of(new Pair<>(meta.get().size, meta.get().links));
         return target.getLinksAndSize(block, auth).thenApply(res -> {
-            metadata.put(block, new BlockMetadata(res.left, res.right));
+            if (metadata.get(block).isEmpty())
+                metadata.put(block, new BlockMetadata(res.left, res.right));
             return res;
         });
     }
 
+    /** Only write metadata we don't already have. The target may share the same store and have recorded it already.
+     */
+    private void cacheBlockMetadata(Cid cid, byte[] block) {
+        if (metadata.get(cid).isEmpty())
+            metadata.put(cid, block);
+    }
+
     private void cacheBlockMetadata(byte[] block, boolean isRaw) {
-        Cid cid = hashToCid(block, isRaw, hasher).join();
-        metadata.put(cid, block);
+        cacheBlockMetadata(hashToCid(block, isRaw, hasher).join(), block);
     }
 
     @Override
@@ -66,11 +73,35 @@ public class MetadataCachingStorage extends DelegatingDeletableStorage {
         });
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        return target.getChampLookups(owner, root, champKeys, bats).thenApply(blocks -> {
+            for (byte[] block : blocks) {
+                cacheBlockMetadata(block, false);
+            }
+            return blocks;
+        });
+    }
+
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, Optional<BatWithId> bat) {
         return target.getRaw(hash, bat).thenApply(bopt -> {
-            bopt.ifPresent(b -> cacheBlockMetadata(b, hash.isRaw()));
+            bopt.ifPresent(b -> cacheBlockMetadata(hash, b));
             return bopt;
         });
     }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+        return target.getAll(hashes, bats).thenApply(blocks -> {
+            for (int i=0; i < blocks.size(); i++) {
+                Cid hash = hashes.get(i);
+                blocks.get(i).ifPresent(b -> cacheBlockMetadata(hash, b));
+            }
+            return blocks;
+        });
+    }
 }
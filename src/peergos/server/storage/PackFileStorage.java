@@ -0,0 +1,605 @@
+package peergos.server.storage;
+
+import peergos.server.storage.auth.*;
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+import java.util.stream.*;
+import java.util.zip.*;
+
+/** A local blockstore which appends blocks to large segment files, rather than using a file per block.
+ *
+ *  Each record in a segment is either a block or a tombstone for a deleted block:
+ *  [magic: 4][type: 1][cid length: 2][data length: 4][cid][data][crc32 of everything before it: 4]
+ *
+ *  An in memory index maps each block to its location. On startup the index is rebuilt by scanning the segments in
+ *  order, and a torn record at the end of a segment (from a crash mid write) is truncated away. Deletes append a
+ *  tombstone, and compaction copies the live blocks out of mostly dead segments and then removes them.
+ */
+public class PackFileStorage implements DeletableContentAddressedStorage {
+    private static final Logger LOG = Logging.LOG();
+    private static final int CID_V1 = 1;
+    private static final int MAGIC = 0x50434b31; // "PCK1"
+    private static final byte BLOCK = 0, TOMBSTONE = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 2 + 4;
+    private static final int CRC_SIZE = 4;
+    private static final String SEGMENT_SUFFIX = ".pack";
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 256 * 1024 * 1024L;
+    public static final double DEFAULT_MIN_LIVE_FRACTION = 0.5;
+
+    private static class Location {
+        final int segment;
+        final long offset;
+        final int cidLength, size;
+
+        Location(int segment, long offset, int cidLength, int size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.cidLength = cidLength;
+            this.size = size;
+        }
+
+        long dataOffset() {
+            return offset + HEADER_SIZE + cidLength;
+        }
+
+        long recordSize() {
+            return HEADER_SIZE + cidLength + size + CRC_SIZE;
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final Path path;
+        // replaced if an interrupted reader closes it
+        volatile FileChannel channel;
+        final AtomicLong liveBytes = new AtomicLong(0);
+        volatile long size;
+
+        Segment(int id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    private final Path root;
+    private final TransactionStore transactions;
+    private final BlockRequestAuthoriser authoriser;
+    private final Hasher hasher;
+    private final long maxSegmentBytes;
+    private final double minLiveFraction;
+    private final Map<Cid, Location> index = new ConcurrentHashMap<>();
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    // guards appends, index updates from writes and segment removal
+    private final Object writeLock = new Object();
+    private volatile Segment active;
+
+    public PackFileStorage(Path root,
+                           TransactionStore transactions,
+                           BlockRequestAuthoriser authoriser,
+                           Hasher hasher,
+                           long maxSegmentBytes,
+                           double minLiveFraction) {
+        this.root = root;
+        this.transactions = transactions;
+        this.authoriser = authoriser;
+        this.hasher = hasher;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.minLiveFraction = minLiveFraction;
+        File rootDir = root.toFile();
+        if (!rootDir.exists()) {
+            final boolean mkdirs = root.toFile().mkdirs();
+            if (!mkdirs)
+                throw new IllegalStateException("Unable to create directory " + root);
+        }
+        if (!rootDir.isDirectory())
+            throw new IllegalStateException("Pack file store path must be a directory! " + root);
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public PackFileStorage(Path root, TransactionStore transactions, BlockRequestAuthoriser authoriser, Hasher hasher) {
+        this(root, transactions, authoriser, hasher, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_MIN_LIVE_FRACTION);
+    }
+
+    private Path segmentPath(int id) {
+        return root.resolve(String.format("%08d", id) + SEGMENT_SUFFIX);
+    }
+
+    private static Segment open(int id, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, path, channel, channel.size());
+    }
+
+    /** Rebuild the index by replaying every segment in order
+     */
+    private void recover() throws IOException {
+        long t0 = System.currentTimeMillis();
+        List<Integer> ids;
+        try (Stream<Path> files = Files.list(root)) {
+            ids = files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(SEGMENT_SUFFIX))
+                    .map(n -> Integer.parseInt(n.substring(0, n.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (int id : ids) {
+            Segment segment = open(id, segmentPath(id));
+            segments.put(id, segment);
+            long validEnd = scan(segment, (cid, loc, type) -> {
+                Location previous = type == BLOCK ? index.put(cid, loc) : index.remove(cid);
+                if (previous != null)
+                    segments.get(previous.segment).liveBytes.addAndGet(-previous.recordSize());
+                if (type == BLOCK)
+                    segment.liveBytes.addAndGet(loc.recordSize());
+            });
+            if (validEnd < segment.size) {
+                LOG.warning("Truncating corrupt or partially written data in " + segment.path + " from " + validEnd +
+                        " to " + segment.size);
+                segment.channel.truncate(validEnd);
+                segment.channel.force(true);
+                segment.size = validEnd;
+            }
+        }
+        if (ids.isEmpty())
+            newActiveSegment(0);
+        else
+            active = segments.get(ids.get(ids.size() - 1));
+        LOG.info("Loaded " + index.size() + " blocks from " + segments.size() + " segments in " +
+                (System.currentTimeMillis() - t0) + "ms");
+    }
+
+    interface RecordConsumer {
+        void accept(Cid cid, Location loc, byte type) throws IOException;
+    }
+
+    /**
+     *
+     * @param segment
+     * @param consumer
+     * @return the offset of the end of the last valid record
+     */
+    private static long scan(Segment segment, RecordConsumer consumer) throws IOException {
+        DataInputStream din = new DataInputStream(new BufferedInputStream(Channels.newInputStream(segment.channel.position(0)), 1024 * 1024));
+        long offset = 0;
+        CRC32 crc = new CRC32();
+        byte[] header = new byte[HEADER_SIZE];
+        while (offset + HEADER_SIZE + CRC_SIZE <= segment.size) {
+            try {
+                din.readFully(header);
+                ByteBuffer buf = ByteBuffer.wrap(header);
+                if (buf.getInt() != MAGIC)
+                    return offset;
+                byte type = buf.get();
+                int cidLength = buf.getShort() & 0xFFFF;
+                int size = buf.getInt();
+                if ((type != BLOCK && type != TOMBSTONE) || size < 0 ||
+                        offset + HEADER_SIZE + cidLength + size + CRC_SIZE > segment.size)
+                    return offset;
+                byte[] body = new byte[cidLength + size];
+                din.readFully(body);
+                int expectedCrc = din.readInt();
+                crc.reset();
+                crc.update(header);
+                crc.update(body);
+                if ((int) crc.getValue() != expectedCrc)
+                    return offset;
+                Cid cid = Cid.cast(Arrays.copyOfRange(body, 0, cidLength));
+                Location loc = new Location(segment.id, offset, cidLength, size);
+                consumer.accept(cid, loc, type);
+                offset += loc.recordSize();
+            } catch (EOFException e) {
+                return offset;
+            }
+        }
+        return offset;
+    }
+
+    private void newActiveSegment(int id) throws IOException {
+        Segment segment = open(id, segmentPath(id));
+        segments.put(id, segment);
+        if (active != null)
+            active.channel.force(true);
+        active = segment;
+    }
+
+    /** Interrupting a thread during a read closes the channel it shares with every other user of the segment. This
+     *  replaces the channel if the segment is still live and nobody else has replaced it already.
+     */
+    private void reopen(Segment segment, FileChannel closed) throws IOException {
+        synchronized (writeLock) {
+            if (segments.get(segment.id) == segment && segment.channel == closed)
+                segment.channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    private FileChannel channel(Segment segment) throws IOException {
+        FileChannel channel = segment.channel;
+        if (! channel.isOpen())
+            reopen(segment, channel);
+        return segment.channel;
+    }
+
+    /** Must be called holding the write lock
+     */
+    private Location append(byte type, Cid cid, byte[] data) throws IOException {
+        byte[] cidBytes = cid.toBytes();
+        if (active.size > 0 && active.size + HEADER_SIZE + cidBytes.length + data.length + CRC_SIZE > maxSegmentBytes)
+            newActiveSegment(active.id + 1);
+        FileChannel channel = channel(active);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + cidBytes.length + data.length + CRC_SIZE);
+        record.putInt(MAGIC);
+        record.put(type);
+        record.putShort((short) cidBytes.length);
+        record.putInt(data.length);
+        record.put(cidBytes);
+        record.put(data);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        long offset = active.size;
+        while (record.hasRemaining())
+            offset += channel.write(record, offset);
+        Location loc = new Location(active.id, active.size, cidBytes.length, data.length);
+        active.size = offset;
+        return loc;
+    }
+
+    private Optional<byte[]> read(Cid cid) throws IOException {
+        while (true) {
+            Location loc = index.get(cid);
+            if (loc == null)
+                return Optional.empty();
+            Segment segment = segments.get(loc.segment);
+            if (segment == null) {
+                if (index.get(cid) != loc)
+                    continue; // moved by a concurrent compaction
+                throw new IOException("Segment " + loc.segment + " is missing for block " + cid);
+            }
+            FileChannel channel = segment.channel;
+            ByteBuffer buf = ByteBuffer.allocate(loc.size);
+            try {
+                long pos = loc.dataOffset();
+                while (buf.hasRemaining()) {
+                    int read = channel.read(buf, pos + buf.position());
+                    if (read < 0)
+                        throw new EOFException("Unexpected end of segment " + segment.path);
+                }
+                return Optional.of(buf.array());
+            } catch (ClosedByInterruptException e) {
+                Thread.currentThread().interrupt();
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (index.get(cid) != loc || segments.get(loc.segment) != segment)
+                    continue; // moved by a concurrent compaction
+                // closed by a reader on another thread being interrupted
+                reopen(segment, channel);
+            }
+        }
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<Cid> id() {
+        return CompletableFuture.completedFuture(new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())));
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return CompletableFuture.completedFuture(transactions.startTransaction(owner));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        try {
+            synchronized (writeLock) {
+                active.channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        transactions.closeTransaction(owner, tid);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookup(PublicKeyHash owner, Cid root, byte[] champKey, Optional<BatWithId> bat) {
+        if (! hasBlock(root))
+            return Futures.errored(new IllegalStateException("Champ root not present locally: " + root));
+        return getChampLookup(root, champKey, bat, hasher);
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        if (! hasBlock(root))
+            return Futures.errored(new IllegalStateException("Champ root not present locally: " + root));
+        return getChampLookups(root, champKeys, bats, hasher);
+    }
+
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        return transactions.getOpenTransactionBlocks();
+    }
+
+    @Override
+    public void clearOldTransactions(long cutoffMillis) {
+        transactions.clearOldTransactions(cutoffMillis);
+    }
+
+    @Override
+    public Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis) {
+        return transactions.getBlocksWrittenSince(cutoffMillis);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
+                                            PublicKeyHash writer,
+                                            List<byte[]> signedHashes,
+                                            List<byte[]> blocks,
+                                            TransactionId tid) {
+        return put(owner, blocks, false, tid);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putRaw(PublicKeyHash owner,
+                                               PublicKeyHash writer,
+                                               List<byte[]> signatures,
+                                               List<byte[]> blocks,
+                                               TransactionId tid,
+                                               ProgressConsumer<Long> progressConsumer) {
+        return put(owner, blocks, true, tid);
+    }
+
+    private CompletableFuture<List<Cid>> put(PublicKeyHash owner,
+                                             List<byte[]> blocks,
+                                             boolean isRaw,
+                                             TransactionId tid) {
+        return CompletableFuture.completedFuture(blocks.stream()
+                .map(b -> put(b, isRaw, tid, owner))
+                .collect(Collectors.toList()));
+    }
+
+    public Cid put(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
+        Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                Multihash.Type.sha2_256, RAMStorage.hash(data));
+        transactions.addBlock(cid, tid, owner);
+        if (index.containsKey(cid))
+            return cid;
+        try {
+            synchronized (writeLock) {
+                if (index.containsKey(cid))
+                    return cid;
+                Location loc = append(BLOCK, cid, data);
+                index.put(cid, loc);
+                segments.get(loc.segment).liveBytes.addAndGet(loc.recordSize());
+            }
+            return cid;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Cid hash, String auth) {
+        if (hash.codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash, auth).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Cid hash, Optional<BatWithId> bat) {
+        return get(hash, bat, id().join(), hasher);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, Optional<BatWithId> bat) {
+        return getRaw(hash, bat, id().join(), hasher);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, String auth) {
+        return getRaw(hash, auth, true);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, String auth, boolean doAuth) {
+        try {
+            if (hash.isIdentity())
+                return Futures.of(Optional.of(hash.getHash()));
+            Optional<byte[]> block = read(hash);
+            if (block.isEmpty())
+                return CompletableFuture.completedFuture(Optional.empty());
+            if (doAuth && ! authoriser.allowRead(hash, block.get(), id().join(), auth).join())
+                return Futures.errored(new IllegalStateException("Unauthorised!"));
+            return CompletableFuture.completedFuture(block);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<BlockRegion>> getRawRegion(Cid hash, String auth) {
+        if (! hash.isRaw())
+            return Futures.of(Optional.empty());
+        while (true) {
+            Location loc = index.get(hash);
+            if (loc == null)
+                return Futures.of(Optional.empty());
+            FileChannel channel;
+            try {
+                // use a separate channel so a concurrent compaction can't close it during the transfer
+                channel = FileChannel.open(segmentPath(loc.segment), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                if (index.get(hash) != loc)
+                    continue; // moved by a concurrent compaction
+                throw new RuntimeException(e.getMessage(), e);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            try {
+                BlockRegion region = new BlockRegion(channel, loc.dataOffset(), loc.size);
+                byte[] prefix = region.readPrefix(Bat.MAX_RAW_BLOCK_PREFIX_SIZE);
+                if (! authoriser.allowRead(hash, prefix, id().join(), auth).join()) {
+                    channel.close();
+                    return Futures.errored(new IllegalStateException("Unauthorised!"));
+                }
+                return Futures.of(Optional.of(region));
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException f) {}
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasBlock(Cid hash) {
+        return index.containsKey(hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> getLinks(Cid root, String auth) {
+        if (root.codec == Cid.Codec.Raw)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return getRaw(root, auth, false)
+                .thenApply(opt -> opt
+                        .map(CborReader::links)
+                        .orElse(Collections.emptyList())
+                );
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
+        Location loc = index.get((Cid) h);
+        return CompletableFuture.completedFuture(loc == null ? Optional.empty() : Optional.of(loc.size));
+    }
+
+    @Override
+    public Stream<Cid> getAllBlockHashes() {
+        return new ArrayList<>(index.keySet()).stream();
+    }
+
+    @Override
+    public void delete(Multihash h) {
+        bulkDelete(Collections.singletonList(h));
+    }
+
+    @Override
+    public void bulkDelete(List<Multihash> blocks) {
+        try {
+            synchronized (writeLock) {
+                for (Multihash h : blocks) {
+                    Cid cid = (Cid) h;
+                    Location loc = index.remove(cid);
+                    if (loc == null)
+                        continue;
+                    segments.get(loc.segment).liveBytes.addAndGet(-loc.recordSize());
+                    append(TOMBSTONE, cid, new byte[0]);
+                }
+                active.channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /** Rewrite the live blocks of every inactive segment which is mostly dead, and then remove it.
+     */
+    @Override
+    public void compact() {
+        List<Segment> candidates = segments.values().stream()
+                .filter(s -> s != active)
+                .filter(s -> s.liveBytes.get() < s.size * minLiveFraction)
+                .sorted(Comparator.comparingInt(s -> s.id))
+                .collect(Collectors.toList());
+        for (Segment segment : candidates) {
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Error compacting " + segment.path + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        long t0 = System.currentTimeMillis();
+        long before = segment.size, live = segment.liveBytes.get();
+        boolean hasOlderSegments = segments.keySet().stream().anyMatch(id -> id < segment.id);
+        channel(segment);
+        scan(segment, (cid, loc, type) -> {
+            synchronized (writeLock) {
+                if (type == TOMBSTONE) {
+                    // an older segment may still contain the deleted block, keep the deletion durable
+                    if (hasOlderSegments && ! index.containsKey(cid))
+                        append(TOMBSTONE, cid, new byte[0]);
+                    return;
+                }
+                Location current = index.get(cid);
+                if (current == null || current.segment != segment.id || current.offset != loc.offset)
+                    return;
+                ByteBuffer data = ByteBuffer.allocate(loc.size);
+                while (data.hasRemaining())
+                    if (segment.channel.read(data, loc.dataOffset() + data.position()) < 0)
+                        throw new EOFException("Unexpected end of segment " + segment.path);
+                Location moved = append(BLOCK, cid, data.array());
+                index.put(cid, moved);
+                segments.get(moved.segment).liveBytes.addAndGet(moved.recordSize());
+            }
+        });
+        synchronized (writeLock) {
+            active.channel.force(true);
+            segments.remove(segment.id);
+        }
+        segment.channel.close();
+        Files.delete(segment.path);
+        LOG.info("Compacted " + segment.path + " in " + (System.currentTimeMillis() - t0) + "ms, reclaimed " +
+                (before - live) / 1024 + " KiB");
+    }
+
+    public void close() {
+        synchronized (writeLock) {
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.channel.force(true);
+                    segment.channel.close();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+            segments.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PackFileStorage " + root;
+    }
+}
@@ -53,6 +53,14 @@ public class RAMStorage implements DeletableContentAddressedStorage {
         return getChampLookup(root, champKey, bat, hasher);
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        return getChampLookups(root, champKeys, bats, hasher);
+    }
+
     @Override
     public Stream<Cid> getAllBlockHashes() {
         return storage.keySet().stream();
@@ -133,6 +141,15 @@ public class RAMStorage implements DeletableContentAddressedStorage {
         return get(hash, bat, id().join(), hasher);
     }
 
+    @Override
+    public synchronized CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+        return Futures.of(hashes.stream()
+                .map(h -> h.isIdentity() ?
+                        Optional.of(h.getHash()) :
+                        Optional.ofNullable(storage.get(h)))
+                .collect(Collectors.toList()));
+    }
+
     private synchronized Optional<CborObject> getAndParseObject(Multihash hash) {
         if (! storage.containsKey(hash))
             return Optional.empty();
@@ -151,8 +168,8 @@ public class RAMStorage implements DeletableContentAddressedStorage {
     public CompletableFuture<List<Cid>> getLinks(Cid root, String auth) {
         if (root.codec == Cid.Codec.Raw)
             return CompletableFuture.completedFuture(Collections.emptyList());
-        return get(root, auth).thenApply(opt -> opt
-                .map(cbor -> cbor.links().stream().map(c -> (Cid)c).collect(Collectors.toList()))
+        return getRaw(root, auth).thenApply(opt -> opt
+                .map(CborReader::links)
                 .orElse(Collections.emptyList())
         );
     }
@@ -1,5 +1,6 @@
 package peergos.server.storage;
 
+import peergos.server.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.util.*;
 
@@ -7,10 +8,11 @@ import java.util.*;
 
 public class RamBlockMetadataStore implements BlockMetadataStore {
 
-    private final LRUCache<Cid, BlockMetadata> cache;
+    private final WeightedCache<Cid, BlockMetadata> cache;
 
     public RamBlockMetadataStore() {
-        this.cache = new LRUCache<>(50_000);
+        this.cache = CacheMetrics.monitor("block_metadata",
+                new WeightedCache<>(4, 16 * 1024 * 1024, BlockMetadata::sizeInBytes));
     }
 
     @Override
@@ -22,4 +24,14 @@ public class RamBlockMetadataStore implements BlockMetadataStore {
     public void put(Cid block, BlockMetadata meta) {
         cache.put(block, meta);
     }
+
+    @Override
+    public void remove(Cid block) {
+        cache.remove(block);
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
 }
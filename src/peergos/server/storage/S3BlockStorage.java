@@ -25,6 +25,7 @@ import java.sql.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -33,6 +34,13 @@ import java.util.stream.*;
 public class S3BlockStorage implements DeletableContentAddressedStorage {
 
     private static final Logger LOG = Logger.getGlobal();
+    private static final int LIST_PARALLELISM = 16;
+    private static final int GET_ALL_PARALLELISM = 32;
+    private static final ExecutorService getAllPool = Executors.newFixedThreadPool(GET_ALL_PARALLELISM, r -> {
+        Thread t = new Thread(r, "S3 batched get");
+        t.setDaemon(true);
+        return t;
+    });
 
     private static final Histogram readTimerLog = Histogram.build()
             .labelNames("filesize")
@@ -101,6 +109,7 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
     private final BlockMetadataStore blockMetadata;
     private final Hasher hasher;
     private final DeletableContentAddressedStorage p2pFallback, bloomTarget;
+    private final Optional<WriteBackTier> writeBack;
 
     public S3BlockStorage(S3Config config,
                           Cid id,
@@ -111,6 +120,23 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                           Hasher hasher,
                           DeletableContentAddressedStorage p2pFallback,
                           DeletableContentAddressedStorage bloomTarget) {
+        this(config, id, props, transactions, authoriser, blockMetadata, hasher, p2pFallback, bloomTarget, Optional.empty());
+    }
+
+    /**
+     *
+     * @param writeBack A local tier to acknowledge puts from before they are uploaded to S3
+     */
+    public S3BlockStorage(S3Config config,
+                          Cid id,
+                          BlockStoreProperties props,
+                          TransactionStore transactions,
+                          BlockRequestAuthoriser authoriser,
+                          BlockMetadataStore blockMetadata,
+                          Hasher hasher,
+                          DeletableContentAddressedStorage p2pFallback,
+                          DeletableContentAddressedStorage bloomTarget,
+                          Optional<WriteBackTier> writeBack) {
         this.id = id;
         this.p2pGetId = p2pFallback.id().join();
         this.region = config.region;
@@ -129,6 +155,12 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         this.hasher = hasher;
         this.p2pFallback = p2pFallback;
         this.bloomTarget = bloomTarget;
+        this.writeBack = writeBack;
+        writeBack.ifPresent(w -> w.start(this::upload));
+    }
+
+    private boolean isPendingUpload(Cid hash) {
+        return writeBack.map(w -> w.contains(hash)).orElse(false);
     }
 
     @Override
@@ -155,6 +187,9 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
             throw new IllegalStateException("Too many reads to auth!");
         List<PresignedUrl> res = new ArrayList<>();
 
+        // blocks still in the write back tier can't be read directly from S3 yet
+        if (blocks.stream().anyMatch(c -> isPendingUpload(c.hash)))
+            return Futures.errored(new IllegalStateException("Blocks not uploaded yet"));
         if (! blocks.stream().allMatch(c -> hasBlock(c.hash)))
             return Futures.errored(new IllegalStateException("Blocks not present locally"));
 
@@ -202,11 +237,15 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                 Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, writer.unsignMessage(signedHashes.get(i)));
                 blockProps.add(new Pair<>(cid, blockSizes.get(i)));
             }
-            List<PresignedUrl> res = new ArrayList<>();
             for (Pair<Cid, Integer> props : blockProps) {
                 if (props.left.type != Multihash.Type.sha2_256)
                     throw new IllegalStateException("Can only pre-auth writes of sha256 hashed blocks!");
-                transactions.addBlock(props.left, tid, owner);
+            }
+            transactions.addBlocks(blockProps.stream()
+                    .map(p -> (Multihash) p.left)
+                    .collect(Collectors.toList()), tid, owner);
+            List<PresignedUrl> res = new ArrayList<>();
+            for (Pair<Cid, Integer> props : blockProps) {
                 String s3Key = hashToKey(props.left);
                 String contentSha256 = ArrayOps.bytesToHex(props.left.getHash());
                 Map<String, String> extraHeaders = new LinkedHashMap<>();
@@ -242,6 +281,18 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         return getRaw(object, bat, id, hasher);
     }
 
+    /** Fetch the blocks concurrently, S3 gets are blocking so this bounds the threads used by all batched gets
+     */
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+        List<CompletableFuture<Optional<byte[]>>> all = IntStream.range(0, hashes.size())
+                .mapToObj(i -> hashes.get(i).isIdentity() ?
+                        Futures.of(Optional.of(hashes.get(i).getHash())) :
+                        CompletableFuture.supplyAsync(() -> getRaw(hashes.get(i), bats.get(i), id, hasher).join(), getAllPool))
+                .collect(Collectors.toList());
+        return Futures.combineAllInOrder(all);
+    }
+
     private CompletableFuture<Optional<byte[]>> authRaw(Cid hash,
                                                        Optional<Pair<Integer, Integer>> range,
                                                        Optional<BatWithId> bat,
@@ -281,6 +332,15 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                                                                      String auth,
                                                                      boolean enforceAuth,
                                                                      Optional<BatWithId> bat) {
+        Optional<byte[]> pending = writeBack.flatMap(w -> w.get(hash));
+        if (pending.isPresent()) {
+            byte[] block = pending.get();
+            if (enforceAuth && ! authoriser.allowRead(hash, block, id, auth).join())
+                throw new IllegalStateException("Unauthorised!");
+            return Futures.of(Optional.of(range
+                    .map(r -> Arrays.copyOfRange(block, Math.min(r.left, block.length), Math.min(r.right + 1, block.length)))
+                    .orElse(block)));
+        }
         String path = folder + hashToKey(hash);
         PresignedUrl getUrl = S3Request.preSignGet(path, Optional.of(600), range,
                 S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, accessKeyId, secretKey, useHttps, hasher).join();
@@ -321,6 +381,8 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
 
     @Override
     public boolean hasBlock(Cid hash) {
+        if (isPendingUpload(hash))
+            return true;
         return getWithBackoff(() -> hasBlockWithoutBackoff(hash));
     }
 
@@ -376,29 +438,51 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         if (newRoot.isRaw())
             return Futures.of(Collections.singletonList(newRoot));
 
-        List<Multihash> newLinks = CborObject.fromByteArray(newBlock.get()).links()
+        List<Cid> newLinks = CborReader.links(newBlock.get())
                 .stream()
                 .filter(h -> !h.isIdentity())
                 .collect(Collectors.toList());
-        List<Multihash> existingLinks = existing.map(h -> h.isRaw() ?
+        List<Cid> existingLinks = existing.map(h -> h.isRaw() ?
                         Optional.<byte[]>empty() :
                         getRaw(h, Optional.empty(), "", false, mirrorBat).join())
-                .map(bopt -> bopt.map(CborObject::fromByteArray))
-                .flatMap(copt -> copt.map(CborObject::links).map(links -> links.stream()
+                .flatMap(bopt -> bopt.map(CborReader::links).map(links -> links.stream()
                         .filter(h -> !h.isIdentity())
                         .collect(Collectors.toList())))
                 .orElse(Collections.emptyList());
 
         for (int i=0; i < newLinks.size(); i++) {
             Optional<Cid> existingLink = i < existingLinks.size() ?
-                    Optional.of((Cid)existingLinks.get(i)) :
+                    Optional.of(existingLinks.get(i)) :
                     Optional.empty();
-            Optional<Cid> updatedLink = Optional.of((Cid)newLinks.get(i));
+            Optional<Cid> updatedLink = Optional.of(newLinks.get(i));
             mirror(owner, existingLink, updatedLink, mirrorBat, ourNodeId, tid, hasher).join();
         }
         return Futures.of(Collections.singletonList(newRoot));
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> mirrorBlocks(PublicKeyHash owner,
+                                                        List<Cid> blocks,
+                                                        Optional<BatWithId> mirrorBat,
+                                                        Cid ourNodeId,
+                                                        TransactionId tid,
+                                                        Hasher hasher) {
+        // This call will not verify the auth as we might not have the mirror bat present locally
+        List<CompletableFuture<byte[]>> fetched = blocks.stream()
+                .map(c -> p2pFallback.getRaw(c, mirrorBat, p2pGetId, hasher, false)
+                        .thenApply(opt -> opt.orElseThrow(() -> new IllegalStateException("Couldn't retrieve block: " + c))))
+                .collect(Collectors.toList());
+        return Futures.combineAllInOrder(fetched).thenApply(res -> {
+            for (int i=0; i < blocks.size(); i++) {
+                Cid c = blocks.get(i);
+                byte[] block = res.get(i);
+                if (! hasBlock(c))
+                    getWithBackoff(() -> put(block, c.isRaw(), tid, owner));
+            }
+            return res;
+        });
+    }
+
     @Override
     public CompletableFuture<List<byte[]>> getChampLookup(PublicKeyHash owner, Cid root, byte[] champKey, Optional<BatWithId> bat) {
         if (! hasBlock(root))
@@ -406,9 +490,25 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         return getChampLookup(root, champKey, bat, hasher);
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        if (! hasBlock(root))
+            return Futures.errored(new IllegalStateException("Champ root not present locally: " + root));
+        return getChampLookups(root, champKeys, bats, hasher);
+    }
+
     @Override
     public List<Multihash> getOpenTransactionBlocks() {
-        return transactions.getOpenTransactionBlocks();
+        List<Multihash> open = transactions.getOpenTransactionBlocks();
+        if (writeBack.isEmpty())
+            return open;
+        // blocks waiting to be uploaded must not be collected
+        List<Multihash> res = new ArrayList<>(open);
+        res.addAll(writeBack.get().getBacklog());
+        return res;
     }
 
     @Override
@@ -416,6 +516,11 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         transactions.clearOldTransactions(cutoffMillis);
     }
 
+    @Override
+    public Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis) {
+        return transactions.getBlocksWrittenSince(cutoffMillis);
+    }
+
     private void collectGarbage(JdbcIpnsAndSocial pointers, UsageStore usage) {
         GarbageCollector.collect(this, pointers, usage, this::savePointerSnapshot);
     }
@@ -451,12 +556,23 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<Integer>> getSize(Multihash hash) {
+        if (hash instanceof Cid) {
+            Optional<BlockMetadata> meta = blockMetadata.get((Cid) hash);
+            if (meta.isPresent())
+                return Futures.of(Optional.of(meta.get().size));
+        }
+        return getSizeWithoutMetadata(hash);
+    }
+
+    private CompletableFuture<Optional<Integer>> getSizeWithoutMetadata(Multihash hash) {
         return getWithBackoff(() -> getSizeWithoutRetry(hash));
     }
 
     private CompletableFuture<Optional<Integer>> getSizeWithoutRetry(Multihash hash) {
         if (hash.isIdentity()) // Identity hashes are not actually stored explicitly
             return Futures.of(Optional.of(0));
+        if (hash instanceof Cid && isPendingUpload((Cid) hash))
+            return Futures.of(writeBack.get().getSize((Cid) hash));
         Histogram.Timer readTimer = readTimerLog.labels("size").startTimer();
         try {
             PresignedUrl headUrl = S3Request.preSignHead(folder + hashToKey(hash), Optional.of(60),
@@ -544,24 +660,29 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
      * @param data
      */
     public Cid put(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
-        Histogram.Timer writeTimer = writeTimerLog.labels("write").startTimer();
         Multihash hash = new Multihash(Multihash.Type.sha2_256, Hash.sha256(data));
         Cid cid = new Cid(1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, hash.type, hash.getHash());
-        String key = hashToKey(cid);
+        transactions.addBlock(cid, tid, owner);
+        if (writeBack.isEmpty() || ! writeBack.get().put(cid, data))
+            upload(cid, data);
+        blockMetadata.put(cid, data);
+        bloomTarget.bloomAdd(cid);
+        return cid;
+    }
+
+    private void upload(Cid cid, byte[] data) {
+        Histogram.Timer writeTimer = writeTimerLog.labels("write").startTimer();
         try {
-            transactions.addBlock(cid, tid, owner);
-            String s3Key = folder + key;
+            String s3Key = folder + hashToKey(cid);
             Map<String, String> extraHeaders = new TreeMap<>();
             extraHeaders.put("Content-Type", "application/octet-stream");
             boolean hashContent = true;
-            String contentHash = hashContent ? ArrayOps.bytesToHex(hash.getHash()) : "UNSIGNED-PAYLOAD";
+            String contentHash = hashContent ? ArrayOps.bytesToHex(cid.getHash()) : "UNSIGNED-PAYLOAD";
             PresignedUrl putUrl = S3Request.preSignPut(s3Key, data.length, contentHash, false,
                     S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, extraHeaders, region, accessKeyId, secretKey, useHttps, hasher).join();
             HttpUtil.put(putUrl, data);
-            bloomTarget.bloomAdd(cid);
             blockPuts.inc();
             blockPutBytes.labels("size").observe(data.length);
-            return cid;
         } catch (IOException e) {
             String msg = e.getMessage();
             boolean rateLimited = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>SlowDown</Code>");
@@ -580,95 +701,108 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
     public CompletableFuture<List<Cid>> getLinks(Cid root, String auth) {
         if (root.isRaw())
             return CompletableFuture.completedFuture(Collections.emptyList());
-        return getRaw(root, Optional.empty(), "", false, Optional.empty()).thenApply(opt -> opt
-                .map(CborObject::fromByteArray)
-                .map(cbor -> cbor.links().stream().map(c -> (Cid) c).collect(Collectors.toList()))
-                .orElse(Collections.emptyList())
-        );
+        return getLinksAndSize(root, auth).thenApply(p -> p.right);
     }
 
     @Override
     public CompletableFuture<Pair<Integer, List<Cid>>> getLinksAndSize(Cid block, String auth) {
+        Optional<BlockMetadata> meta = blockMetadata.get(block);
+        if (meta.isPresent())
+            return Futures.of(new Pair<>(meta.get().size, meta.get().links));
         if (block.isRaw()) {
-            return getSize(block)
-                    .thenApply(s -> new Pair<>(s.orElse(0), Collections.emptyList()));
+            return getSizeWithoutMetadata(block)
+                    .thenApply(s -> {
+                        s.ifPresent(size -> blockMetadata.put(block, new BlockMetadata(size, Collections.emptyList())));
+                        return new Pair<>(s.orElse(0), Collections.emptyList());
+                    });
         }
         Optional<byte[]> data = getRaw(block, Optional.empty(), "", false, Optional.empty()).join();
-        List<Cid> links = data.map(CborObject::fromByteArray)
-                .map(cbor -> cbor.links().stream().map(c -> (Cid) c).collect(Collectors.toList()))
+        data.ifPresent(d -> blockMetadata.put(block, d));
+        List<Cid> links = data.map(CborReader::links)
                 .orElse(Collections.emptyList());
         int size = data.map(a -> a.length).orElse(0);
         return Futures.of(new Pair<>(size, links));
     }
 
-    public Stream<Cid> getAllBlockHashes() {
-        // todo make this actually streaming
-        return getFiles(Long.MAX_VALUE).stream();
-    }
-
-    private List<Cid> getFiles(long maxReturned) {
-        List<Cid> results = new ArrayList<>();
-        applyToAll(obj -> {
-            try {
-                results.add(keyToHash(obj.key));
-            } catch (Exception e) {
-                LOG.warning("Couldn't parse S3 key to Cid: " + obj.key);
-            }
-        }, maxReturned);
-        return results;
+    /** Ensure the metadata store has the size and links of every block in the bucket, fetching only blocks which
+     *  are missing.
+     */
+    public void updateBlockMetadataStore(int parallelism) {
+        LOG.info("Updating block metadata store from S3 bucket listing");
+        AtomicLong added = new AtomicLong(0), total = new AtomicLong(0);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> getAllBlockHashes()
+                    .parallel()
+                    .forEach(c -> {
+                        total.incrementAndGet();
+                        if (blockMetadata.get(c).isPresent())
+                            return;
+                        getLinksAndSize(c, "").join();
+                        if (added.incrementAndGet() % 10_000 == 0)
+                            LOG.info("Added metadata for " + added.get() + " blocks");
+                    })).join();
+        } finally {
+            pool.shutdown();
+        }
+        LOG.info("Finished updating block metadata store, added " + added.get() + " of " + total.get() + " blocks");
     }
 
-    private List<String> getFilenames(long maxReturned) {
-        List<String> results = new ArrayList<>();
-        applyToAll(obj -> results.add(obj.key), maxReturned);
-        return results;
+    public Stream<Cid> getAllBlockHashes() {
+        if (writeBack.isPresent()) {
+            Set<Cid> pending = new HashSet<>(writeBack.get().getBacklog());
+            return Stream.concat(pending.stream(), getUploadedBlockHashes().filter(c -> ! pending.contains(c)));
+        }
+        return getUploadedBlockHashes();
+    }
+
+    private Stream<Cid> getUploadedBlockHashes() {
+        return S3ParallelLister.list(folder, this::listObjects, LIST_PARALLELISM)
+                .filter(obj -> {
+                    if (! obj.key.endsWith("/"))
+                        return true;
+                    LOG.fine(" - " + obj.key + "  " + "(directory)");
+                    return false;
+                })
+                .flatMap(obj -> {
+                    try {
+                        return Stream.of(keyToHash(obj.key));
+                    } catch (Exception e) {
+                        LOG.warning("Couldn't parse S3 key to Cid: " + obj.key);
+                        return Stream.empty();
+                    }
+                });
     }
 
-    private void applyToAll(Consumer<S3AdminRequests.ObjectMetadata> processor, long maxObjects) {
-        try {
-            Optional<String> continuationToken = Optional.empty();
-            S3AdminRequests.ListObjectsReply result;
-            long processedObjects = 0;
-            do {
-                result = S3AdminRequests.listObjects(folder, 1_000, continuationToken,
-                        ZonedDateTime.now(), host, region, accessKeyId, secretKey, url -> {
-                            try {
-                                return HttpUtil.get(url);
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }, S3AdminRequests.builder::get, useHttps, hasher);
-
-                for (S3AdminRequests.ObjectMetadata objectSummary : result.objects) {
-                    if (objectSummary.key.endsWith("/")) {
-                        LOG.fine(" - " + objectSummary.key + "  " + "(directory)");
-                        continue;
+    private S3AdminRequests.ListObjectsReply listObjects(String prefix, Optional<String> startAfter) {
+        return S3AdminRequests.listObjects(prefix, 1_000, Optional.empty(), startAfter,
+                ZonedDateTime.now(), host, region, accessKeyId, secretKey, url -> {
+                    try {
+                        return HttpUtil.get(url);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
                     }
-                    processor.accept(objectSummary);
-                    processedObjects++;
-                    if (processedObjects >= maxObjects)
-                        return;
-                }
-                LOG.log(Level.FINE, "Next Continuation Token : " + result.continuationToken);
-                continuationToken = result.continuationToken;
-            } while (result.isTruncated);
-
-        } catch (Exception e) {
-            LOG.log(Level.SEVERE, e.getMessage(), e);
-        }
+                }, S3AdminRequests.builder::get, useHttps, hasher);
     }
 
     public void delete(Multihash hash) {
+        if (hash instanceof Cid)
+            writeBack.ifPresent(w -> w.remove((Cid) hash));
         try {
             PresignedUrl delUrl = S3Request.preSignDelete(folder + hashToKey(hash), S3AdminRequests.asAwsDate(ZonedDateTime.now()), host,
                     region, accessKeyId, secretKey, useHttps, hasher).join();
             HttpUtil.delete(delUrl);
+            if (hash instanceof Cid)
+                blockMetadata.remove((Cid) hash);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
     public void bulkDelete(List<Multihash> hash) {
+        writeBack.ifPresent(w -> hash.stream()
+                .filter(h -> h instanceof Cid)
+                .forEach(h -> w.remove((Cid) h)));
         List<String> keys = hash.stream()
                 .map(h -> folder + hashToKey(h))
                 .collect(Collectors.toList());
@@ -687,6 +821,9 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                         throw new RuntimeException(e);
                     }
                 }, S3AdminRequests.builder::get, useHttps, hasher);
+        for (Multihash h : hash)
+            if (h instanceof Cid)
+                blockMetadata.remove((Cid) h);
     }
 
     public static void main(String[] args) throws Exception {
@@ -703,12 +840,17 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         Supplier<Connection> transactionsDb = Main.getDBConnector(a, "transactions-sql-file");
         TransactionStore transactions = JdbcTransactionStore.build(transactionsDb, sqlCommands);
         BlockRequestAuthoriser authoriser = (c, b, s, auth) -> Futures.of(true);
+        BlockMetadataStore blockMetadata = a.getBoolean("block-metadata.persist", false) ?
+                JdbcBlockMetadataStore.build(Main.getDBConnector(a, "block-metadata-sql-file"), sqlCommands) :
+                new RamBlockMetadataStore();
         S3BlockStorage s3 = new S3BlockStorage(config, Cid.decode(a.getArg("ipfs.id")),
-                BlockStoreProperties.empty(), transactions, authoriser, new RamBlockMetadataStore(),
+                BlockStoreProperties.empty(), transactions, authoriser, blockMetadata,
                 hasher, new RAMStorage(hasher), new RAMStorage(hasher));
         JdbcIpnsAndSocial rawPointers = new JdbcIpnsAndSocial(database, sqlCommands);
         Supplier<Connection> usageDb = Main.getDBConnector(a, "space-usage-sql-file");
         UsageStore usageStore = new JdbcUsageStore(usageDb, sqlCommands);
+        if (a.getBoolean("update-block-metadata", false))
+            s3.updateBlockMetadataStore(a.getInt("update-block-metadata.parallelism", 10));
         s3.collectGarbage(rawPointers, usageStore);
     }
 
@@ -13,6 +13,7 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
+import java.util.stream.*;
 
 public class S3BucketCopy {
 
@@ -23,44 +24,41 @@ public class S3BucketCopy {
                                           Optional<String> endPrefix,
                                           S3Config config,
                                           AtomicLong counter,
+                                          int listParallelism,
                                           Hasher h) {
-        try {
-            Optional<String> continuationToken = Optional.empty();
-            S3AdminRequests.ListObjectsReply result;
-            do {
-                result = S3AdminRequests.listObjects(startPrefix, 1_000, continuationToken,
-                        ZonedDateTime.now(), config.getHost(), config.region, config.accessKey, config.secretKey, url -> {
-                            try {
-                                return HttpUtil.get(url);
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }, S3AdminRequests.builder::get, true, h);
-
-                for (S3AdminRequests.ObjectMetadata objectSummary : result.objects) {
-                    if (objectSummary.key.endsWith("/")) {
-                        LOG.fine(" - " + objectSummary.key + "  " + "(directory)");
-                        continue;
+        S3ParallelLister.Lister lister = (prefix, startAfter) -> S3AdminRequests.listObjects(prefix, 1_000,
+                Optional.empty(), startAfter, ZonedDateTime.now(), config.getHost(), config.region, config.accessKey,
+                config.secretKey, url -> {
+                    try {
+                        return HttpUtil.get(url);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }, S3AdminRequests.builder::get, true, h);
+        try (Stream<S3AdminRequests.ObjectMetadata> objects = S3ParallelLister.list(startPrefix, Optional.empty(),
+                endPrefix, lister, listParallelism, 4 * listParallelism)
+                .filter(obj -> {
+                    if (obj.key.endsWith("/")) {
+                        LOG.fine(" - " + obj.key + "  " + "(directory)");
+                        return false;
                     }
-                    if (endPrefix.isPresent() && objectSummary.key.compareTo(endPrefix.get()) >= 0)
-                        return;
-                    processor.accept(objectSummary);
-                }
-                long done = counter.addAndGet(result.objects.size());
-                if ((done / 1000) % 10 == 0)
+                    return endPrefix.isEmpty() || obj.key.compareTo(endPrefix.get()) < 0;
+                })) {
+            Iterator<S3AdminRequests.ObjectMetadata> iter = objects.iterator();
+            while (iter.hasNext()) {
+                processor.accept(iter.next());
+                long done = counter.incrementAndGet();
+                if (done % 10_000 == 0)
                     System.out.println("Objects processed: " + done);
-                LOG.log(Level.FINE, "Next Continuation Token : " + result.continuationToken);
-                continuationToken = result.continuationToken;
-            } while (result.isTruncated);
-
+            }
         } catch (Exception e) {
             LOG.log(Level.SEVERE, e.getMessage(), e);
         }
     }
 
-    private static Set<String> getFilenames(S3Config config, Hasher h) {
+    private static Set<String> getFilenames(S3Config config, int listParallelism, Hasher h) {
         Set<String> results = new HashSet<>();
-        applyToAllInRange(obj -> results.add(obj.key), "", Optional.empty(), config, new AtomicLong(0), h);
+        applyToAllInRange(obj -> results.add(obj.key), "", Optional.empty(), config, new AtomicLong(0), listParallelism, h);
         return results;
     }
 
@@ -89,7 +87,7 @@ public class S3BucketCopy {
                                   int parallelism,
                                   Hasher h) {
         System.out.println("Listing destination bucket...");
-        Set<String> targetKeys = getFilenames(destConfig, h);
+        Set<String> targetKeys = getFilenames(destConfig, parallelism, h);
         ForkJoinPool pool = new ForkJoinPool(parallelism);
         System.out.println("Copying objects...");
         applyToAllInRange(obj -> {
@@ -99,7 +97,7 @@ public class S3BucketCopy {
                 copyCounter.incrementAndGet();
                 pool.submit(() -> copyObject(obj.key, sourceConfig.bucket, destConfig, h));
             }
-        }, startPrefix, endPrefix, sourceConfig, counter, h);
+        }, startPrefix, endPrefix, sourceConfig, counter, parallelism, h);
         while (! pool.isQuiescent())
             try {Thread.sleep(100);} catch (InterruptedException e) {}
         System.out.println("Objects copied: " + copyCounter.get());
@@ -14,6 +14,7 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
+import java.util.stream.*;
 
 public class S3DeleteOld {
 
@@ -24,38 +25,38 @@ public class S3DeleteOld {
                                           Optional<String> endPrefix,
                                           S3Config config,
                                           AtomicLong counter,
+                                          int listParallelism,
                                           Hasher h) {
-        try {
-            Optional<String> continuationToken = Optional.empty();
-            S3AdminRequests.ListObjectsReply result;
-            do {
-                result = S3AdminRequests.listObjects(startPrefix, 1_000, continuationToken,
-                        ZonedDateTime.now(), config.getHost(), config.region, config.accessKey, config.secretKey, url -> {
-                            try {
-                                return HttpUtil.get(url);
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }, S3AdminRequests.builder::get, true, h);
-
-                List<S3AdminRequests.ObjectMetadata> toProcess = new ArrayList<>();
-                for (S3AdminRequests.ObjectMetadata objectSummary : result.objects) {
-                    if (objectSummary.key.endsWith("/")) {
-                        LOG.fine(" - " + objectSummary.key + "  " + "(directory)");
-                        continue;
+        S3ParallelLister.Lister lister = (prefix, startAfter) -> S3AdminRequests.listObjects(prefix, 1_000,
+                Optional.empty(), startAfter, ZonedDateTime.now(), config.getHost(), config.region, config.accessKey,
+                config.secretKey, url -> {
+                    try {
+                        return HttpUtil.get(url);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
                     }
-                    if (endPrefix.isPresent() && objectSummary.key.compareTo(endPrefix.get()) >= 0)
-                        return;
-                    toProcess.add(objectSummary);
+                }, S3AdminRequests.builder::get, true, h);
+        try (Stream<S3AdminRequests.ObjectMetadata> objects = S3ParallelLister.list(startPrefix, Optional.empty(),
+                endPrefix, lister, listParallelism, 4 * listParallelism)
+                .filter(obj -> {
+                    if (obj.key.endsWith("/")) {
+                        LOG.fine(" - " + obj.key + "  " + "(directory)");
+                        return false;
+                    }
+                    return endPrefix.isEmpty() || obj.key.compareTo(endPrefix.get()) < 0;
+                })) {
+            Iterator<S3AdminRequests.ObjectMetadata> iter = objects.iterator();
+            List<S3AdminRequests.ObjectMetadata> toProcess = new ArrayList<>();
+            while (iter.hasNext()) {
+                toProcess.add(iter.next());
+                if (toProcess.size() == 1_000 || ! iter.hasNext()) {
+                    processor.accept(toProcess);
+                    long done = counter.addAndGet(toProcess.size());
+                    if ((done / 1000) % 10 == 0)
+                        System.out.println("Objects processed: " + done);
+                    toProcess = new ArrayList<>();
                 }
-                processor.accept(toProcess);
-                long done = counter.addAndGet(result.objects.size());
-                if ((done / 1000) % 10 == 0)
-                    System.out.println("Objects processed: " + done);
-                LOG.log(Level.FINE, "Next Continuation Token : " + result.continuationToken);
-                continuationToken = result.continuationToken;
-            } while (result.isTruncated);
-
+            }
         } catch (Exception e) {
             LOG.log(Level.SEVERE, e.getMessage(), e);
         }
@@ -76,7 +77,7 @@ public class S3DeleteOld {
                     try {Thread.sleep(100);} catch (InterruptedException e) {}
                 doneCounter.addAndGet(obj.size());
                 pool.submit(() -> processor.accept(obj));
-        }, startPrefix, endPrefix, conmfig, counter, h);
+        }, startPrefix, endPrefix, conmfig, counter, parallelism, h);
         while (! pool.isQuiescent())
             try {Thread.sleep(100);} catch (InterruptedException e) {}
         System.out.println("Objects processed: " + doneCounter.get());
@@ -0,0 +1,231 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Lists every key under a prefix in an S3 bucket as a lazy stream, using many concurrent list requests.
+ *
+ *  The keyspace is split into contiguous lexicographic ranges, each listed with start-after. Whenever a page of a
+ *  range is truncated, the remainder of the range is split again one character deeper, so the parallelism adapts to
+ *  however the keys are distributed (e.g. past the fixed cid header of block keys). Pages are handed to the consumer
+ *  through a bounded queue, so listing never gets more than a few pages ahead of processing. Keys are not returned
+ *  in order.
+ */
+public class S3ParallelLister {
+	private static final Logger LOG = Logging.LOG();
+
+    /** The characters of uppercase base32 block keys in byte order. Ranges stay contiguous so keys with any other
+     *  characters are still listed, just without splitting.
+     */
+    public static final String BASE32_ALPHABET = "234567ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    private static final int MAX_RETRIES = 5;
+
+    public interface Lister {
+        S3AdminRequests.ListObjectsReply list(String prefix, Optional<String> startAfter);
+    }
+
+    private static final List<S3AdminRequests.ObjectMetadata> END = new ArrayList<>();
+
+    /**
+     *
+     * @param prefix Only list keys starting with this
+     * @param startAfter Only list keys strictly after this
+     * @param endInclusive Only list keys up to and including this
+     * @param lister
+     * @param parallelism The maximum number of concurrent list requests
+     * @param bufferedPages The maximum number of listed pages waiting to be consumed
+     * @return A stream of the matching objects which must be closed if it is not fully consumed
+     */
+    public static Stream<S3AdminRequests.ObjectMetadata> list(String prefix,
+                                                              Optional<String> startAfter,
+                                                              Optional<String> endInclusive,
+                                                              Lister lister,
+                                                              int parallelism,
+                                                              int bufferedPages) {
+        Listing listing = new Listing(lister, parallelism, bufferedPages);
+        listing.submit(new Range(prefix, prefix, startAfter, endInclusive));
+        Iterator<List<S3AdminRequests.ObjectMetadata>> pages = new Iterator<>() {
+            List<S3AdminRequests.ObjectMetadata> next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null)
+                    next = listing.take();
+                return next != END;
+            }
+
+            @Override
+            public List<S3AdminRequests.ObjectMetadata> next() {
+                if (! hasNext())
+                    throw new NoSuchElementException();
+                List<S3AdminRequests.ObjectMetadata> res = next;
+                next = null;
+                return res;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.NONNULL), false)
+                .flatMap(List::stream)
+                .onClose(listing::close);
+    }
+
+    public static Stream<S3AdminRequests.ObjectMetadata> list(String prefix, Lister lister, int parallelism) {
+        return list(prefix, Optional.empty(), Optional.empty(), lister, parallelism, 4 * parallelism);
+    }
+
+    /** The keys after start (or all if empty) up to and including end (or all if empty) which start with prefix.
+     *  Splits are made by appending a character to splitPrefix.
+     */
+    private static class Range {
+        final String prefix, splitPrefix;
+        final Optional<String> start, end;
+
+        Range(String prefix, String splitPrefix, Optional<String> start, Optional<String> end) {
+            this.prefix = prefix;
+            this.splitPrefix = splitPrefix;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean contains(String key) {
+            return end.isEmpty() || key.compareTo(end.get()) <= 0;
+        }
+
+        /** Split the keys after lastKey in this range into contiguous subranges
+         */
+        List<Range> remainderAfter(String lastKey) {
+            String deeper = lastKey.length() > splitPrefix.length() ?
+                    lastKey.substring(0, splitPrefix.length() + 1) :
+                    lastKey;
+            List<String> splits = new ArrayList<>();
+            for (char c : BASE32_ALPHABET.toCharArray()) {
+                String split = splitPrefix + c;
+                if (split.compareTo(lastKey) > 0 && contains(split) && ! end.equals(Optional.of(split)))
+                    splits.add(split);
+            }
+            List<Range> res = new ArrayList<>();
+            String from = lastKey, fromSplitPrefix = deeper;
+            for (String split : splits) {
+                res.add(new Range(commonPrefix(from, split), fromSplitPrefix, Optional.of(from), Optional.of(split)));
+                from = split;
+                fromSplitPrefix = split;
+            }
+            String last = from;
+            res.add(new Range(end.map(e -> commonPrefix(last, e)).orElse(prefix), fromSplitPrefix, Optional.of(last), end));
+            return res;
+        }
+
+        /** All keys in a range share its bounds' common prefix, and listing by it stops S3 returning keys past the end
+         */
+        private String commonPrefix(String a, String b) {
+            int i = 0;
+            while (i < a.length() && i < b.length() && a.charAt(i) == b.charAt(i))
+                i++;
+            return i > prefix.length() ? a.substring(0, i) : prefix;
+        }
+    }
+
+    private static class Listing {
+        private final Lister lister;
+        private final ExecutorService pool;
+        private final BlockingQueue<List<S3AdminRequests.ObjectMetadata>> pages;
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+        private volatile Throwable failure;
+        private volatile boolean closed;
+
+        Listing(Lister lister, int parallelism, int bufferedPages) {
+            this.lister = lister;
+            this.pool = Executors.newFixedThreadPool(parallelism, r -> {
+                Thread t = new Thread(r, "S3 listing");
+                t.setDaemon(true);
+                return t;
+            });
+            this.pages = new ArrayBlockingQueue<>(Math.max(1, bufferedPages));
+        }
+
+        void submit(Range r) {
+            outstanding.incrementAndGet();
+            pool.submit(() -> {
+                try {
+                    process(r);
+                } catch (Throwable t) {
+                    if (! closed) {
+                        LOG.log(Level.WARNING, t.getMessage(), t);
+                        failure = t;
+                    }
+                } finally {
+                    if (outstanding.decrementAndGet() == 0) {
+                        put(END);
+                        pool.shutdown();
+                    }
+                }
+            });
+        }
+
+        private void process(Range r) throws InterruptedException {
+            S3AdminRequests.ListObjectsReply reply = listWithRetries(r);
+            List<S3AdminRequests.ObjectMetadata> inRange = new ArrayList<>();
+            boolean passedEnd = false;
+            for (S3AdminRequests.ObjectMetadata obj : reply.objects) {
+                if (! r.contains(obj.key)) {
+                    passedEnd = true;
+                    break;
+                }
+                inRange.add(obj);
+            }
+            if (reply.isTruncated && ! passedEnd && ! reply.objects.isEmpty()) {
+                String lastKey = reply.objects.get(reply.objects.size() - 1).key;
+                for (Range sub : r.remainderAfter(lastKey))
+                    submit(sub);
+            }
+            if (! inRange.isEmpty())
+                put(inRange);
+        }
+
+        private S3AdminRequests.ListObjectsReply listWithRetries(Range r) throws InterruptedException {
+            for (int attempt = 0;; attempt++) {
+                try {
+                    return lister.list(r.prefix, r.start);
+                } catch (RuntimeException e) {
+                    if (attempt >= MAX_RETRIES || closed)
+                        throw e;
+                    Thread.sleep(100L << attempt);
+                }
+            }
+        }
+
+        private void put(List<S3AdminRequests.ObjectMetadata> page) {
+            try {
+                while (! closed && failure == null)
+                    if (pages.offer(page, 100, TimeUnit.MILLISECONDS))
+                        return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<S3AdminRequests.ObjectMetadata> take() {
+            try {
+                while (true) {
+                    if (failure != null)
+                        throw new IllegalStateException("S3 listing failed", failure);
+                    List<S3AdminRequests.ObjectMetadata> page = pages.poll(100, TimeUnit.MILLISECONDS);
+                    if (page != null)
+                        return page;
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void close() {
+            closed = true;
+            pool.shutdownNow();
+        }
+    }
+}
@@ -5,6 +5,7 @@ import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 
 import java.util.*;
+import java.util.stream.*;
 
 public interface TransactionStore {
 
@@ -12,9 +13,42 @@ public interface TransactionStore {
 
     void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner);
 
+    default void addBlocks(List<Multihash> hashes, TransactionId tid, PublicKeyHash owner) {
+        addBlocks(hashes.stream()
+                .map(h -> new BlockWrite(h, tid, owner))
+                .collect(Collectors.toList()));
+    }
+
+    /** Record blocks, possibly from many transactions, in one go
+     */
+    default void addBlocks(List<BlockWrite> writes) {
+        for (BlockWrite w : writes)
+            addBlock(w.hash, w.tid, w.owner);
+    }
+
     void closeTransaction(PublicKeyHash owner, TransactionId tid);
 
     List<Multihash> getOpenTransactionBlocks();
 
+    /**
+     *
+     * @param cutoffMillis
+     * @return All the blocks written in a transaction (open or closed) since the cutoff, or Optional.empty() if closed
+     * transactions are not retained
+     */
+    Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis);
+
     void clearOldTransactions(long cutoff);
+
+    class BlockWrite {
+        public final Multihash hash;
+        public final TransactionId tid;
+        public final PublicKeyHash owner;
+
+        public BlockWrite(Multihash hash, TransactionId tid, PublicKeyHash owner) {
+            this.hash = hash;
+            this.tid = tid;
+            this.owner = owner;
+        }
+    }
 }
@@ -92,9 +92,8 @@ public class TransactionalIpfs extends DelegatingStorage implements DeletableCon
         if (root.isRaw())
             return CompletableFuture.completedFuture(Collections.emptyList());
         return getRaw(root, auth, false)
-                .thenApply(opt -> opt.map(CborObject::fromByteArray))
                 .thenApply(opt -> opt
-                        .map(cbor -> cbor.links().stream().map(c -> (Cid) c).collect(Collectors.toList()))
+                        .map(CborReader::links)
                         .orElse(Collections.emptyList())
                 );
     }
@@ -109,6 +108,16 @@ public class TransactionalIpfs extends DelegatingStorage implements DeletableCon
         return getChampLookup(root, champKey, bat, hasher);
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        if (! hasBlock(root))
+            return Futures.errored(new IllegalStateException("Champ root not present locally: " + root));
+        return getChampLookups(root, champKeys, bats, hasher);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
                                             PublicKeyHash writer,
@@ -157,4 +166,9 @@ public class TransactionalIpfs extends DelegatingStorage implements DeletableCon
     public void clearOldTransactions(long cutoffMillis) {
         transactions.clearOldTransactions(cutoffMillis);
     }
+
+    @Override
+    public Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis) {
+        return transactions.getBlocksWrittenSince(cutoffMillis);
+    }
 }
@@ -0,0 +1,244 @@
+package peergos.server.storage;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import peergos.server.util.Logging;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A local disk tier in front of a slower block store, e.g. S3.
+ *
+ *  Blocks are durably written to local disk and acknowledged immediately, then uploaded by a background queue, in
+ *  concurrent batches. A block whose upload fails or is rate limited is retried with its own exponential backoff, so
+ *  it doesn't hold up the rest of the queue. Blocks are served from
+ *  local disk until their upload completes. When the backlog reaches its size limit puts are refused, and the caller
+ *  should write straight to the target.
+ */
+public class WriteBackTier {
+    private static final Logger LOG = Logging.LOG();
+    public static final long DEFAULT_MAX_BACKLOG_BYTES = 10L * 1024 * 1024 * 1024;
+    public static final int DEFAULT_UPLOAD_PARALLELISM = 16;
+    private static final long MIN_BACKOFF_MILLIS = 100, MAX_BACKOFF_MILLIS = 60_000;
+
+    private static final Gauge backlogBlocks = Gauge.build()
+            .name("write_back_backlog_blocks")
+            .help("Number of blocks written locally which are waiting to be uploaded")
+            .register();
+    private static final Gauge backlogBytes = Gauge.build()
+            .name("write_back_backlog_bytes")
+            .help("Number of bytes written locally which are waiting to be uploaded")
+            .register();
+    private static final Counter uploads = Counter.build()
+            .name("write_back_uploads")
+            .help("Number of blocks uploaded from the write back tier")
+            .register();
+    private static final Counter failedUploads = Counter.build()
+            .name("write_back_upload_failures")
+            .help("Number of failed, and later retried, uploads from the write back tier")
+            .register();
+    private static final Counter refusedPuts = Counter.build()
+            .name("write_back_refused_puts")
+            .help("Number of puts written straight through because the write back backlog was full")
+            .register();
+
+    private static final class Retry implements Delayed {
+        public final Cid hash;
+        public final long backoff;
+        private final long readyAt;
+
+        public Retry(Cid hash, long backoff) {
+            this.hash = hash;
+            this.backoff = backoff;
+            this.readyAt = System.currentTimeMillis() + backoff;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(readyAt, ((Retry) other).readyAt);
+        }
+    }
+
+    public interface Uploader {
+        /** Upload a block, throwing if it did not succeed
+         */
+        void upload(Cid hash, byte[] data);
+    }
+
+    private final FileBlockCache local;
+    private final long maxBacklogBytes;
+    private final int parallelism;
+    private final BlockingQueue<Cid> queue = new LinkedBlockingQueue<>();
+    private final DelayQueue<Retry> retries = new DelayQueue<>();
+    private volatile Uploader uploader;
+    private volatile boolean running = false;
+    private ExecutorService uploadPool;
+    private Thread worker;
+
+    public WriteBackTier(Path dir, long maxBacklogBytes, int parallelism) {
+        // never evict, blocks are only removed once they've been uploaded
+        this.local = new FileBlockCache(dir, Long.MAX_VALUE, true);
+        this.maxBacklogBytes = maxBacklogBytes;
+        this.parallelism = parallelism;
+        updateGauges();
+    }
+
+    /** Start uploading, including any backlog left from a previous run
+     */
+    public synchronized void start(Uploader uploader) {
+        if (running)
+            throw new IllegalStateException("Write back tier already started!");
+        this.uploader = uploader;
+        running = true;
+        List<Cid> backlog = local.getBlocks();
+        if (! backlog.isEmpty())
+            LOG.info("Resuming upload of " + backlog.size() + " blocks from write back tier");
+        queue.addAll(backlog);
+        uploadPool = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "Write back upload");
+            t.setDaemon(true);
+            return t;
+        });
+        worker = new Thread(this::uploadLoop, "Write back queue");
+        worker.setDaemon(true);
+        worker.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "Write back shutdown"));
+    }
+
+    /**
+     *
+     * @return true if the block was written locally, and will be uploaded later, or false if the backlog is full
+     */
+    public boolean put(Cid hash, byte[] data) {
+        if (local.hasBlock(hash))
+            return true;
+        if (local.getTotalSize() + data.length > maxBacklogBytes) {
+            refusedPuts.inc();
+            return false;
+        }
+        local.put(hash, data).join();
+        queue.add(hash);
+        updateGauges();
+        return true;
+    }
+
+    public Optional<byte[]> get(Cid hash) {
+        if (! local.hasBlock(hash))
+            return Optional.empty();
+        return local.get(hash).join();
+    }
+
+    public boolean contains(Cid hash) {
+        return local.hasBlock(hash);
+    }
+
+    public Optional<Integer> getSize(Cid hash) {
+        return local.getSize(hash).join();
+    }
+
+    /** Remove a block without uploading it
+     */
+    public void remove(Cid hash) {
+        if (! local.hasBlock(hash))
+            return;
+        local.delete(hash);
+        updateGauges();
+    }
+
+    /**
+     *
+     * @return The blocks which have not been uploaded yet
+     */
+    public List<Cid> getBacklog() {
+        return local.getBlocks();
+    }
+
+    public long getBacklogBytes() {
+        return local.getTotalSize();
+    }
+
+    /** Stop uploading and persist the local index, the backlog is resumed on the next start. This is also run on
+     *  shutdown.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (worker != null)
+            worker.interrupt();
+        if (uploadPool != null)
+            uploadPool.shutdown();
+        local.close();
+    }
+
+    private void updateGauges() {
+        backlogBlocks.set(local.getBlockCount());
+        backlogBytes.set(local.getTotalSize());
+    }
+
+    private void uploadLoop() {
+        int maxBatch = parallelism * 4;
+        while (running) {
+            try {
+                // retries which are due go first, each failed block keeps its own backoff
+                List<Retry> due = new ArrayList<>();
+                retries.drainTo(due, maxBatch);
+                Map<Cid, Long> backoffs = new HashMap<>();
+                List<Cid> batch = new ArrayList<>();
+                for (Retry retry : due) {
+                    batch.add(retry.hash);
+                    backoffs.put(retry.hash, retry.backoff);
+                }
+                queue.drainTo(batch, maxBatch - batch.size());
+                if (batch.isEmpty()) {
+                    // wake up in time to retry the next failed block
+                    Cid first = queue.poll(MIN_BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null)
+                        continue;
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatch - 1);
+                }
+                List<Future<Boolean>> results = batch.stream()
+                        .map(c -> uploadPool.submit(() -> upload(c)))
+                        .collect(Collectors.toList());
+                for (int i=0; i < batch.size(); i++) {
+                    try {
+                        results.get(i).get();
+                    } catch (ExecutionException e) {
+                        failedUploads.inc();
+                        Cid failed = batch.get(i);
+                        if (! (e.getCause() instanceof RateLimitException))
+                            LOG.log(Level.WARNING, "Failed to upload " + failed + ": " + e.getCause().getMessage(), e.getCause());
+                        Long previous = backoffs.get(failed);
+                        retries.add(new Retry(failed, previous == null ?
+                                MIN_BACKOFF_MILLIS :
+                                Math.min(previous * 2, MAX_BACKOFF_MILLIS)));
+                    }
+                }
+                updateGauges();
+            } catch (InterruptedException e) {
+                // stopping
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, t.getMessage(), t);
+            }
+        }
+    }
+
+    private boolean upload(Cid hash) {
+        Optional<byte[]> data = get(hash);
+        if (data.isEmpty())
+            return true; // removed since it was queued
+        uploader.upload(hash, data.get());
+        local.delete(hash);
+        uploads.inc();
+        return true;
+    }
+}
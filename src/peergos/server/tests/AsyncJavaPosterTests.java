@@ -0,0 +1,207 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.util.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+public class AsyncJavaPosterTests {
+
+    private static HttpServer server;
+    private static URL base;
+    private static final AtomicInteger active = new AtomicInteger(), maxActive = new AtomicInteger();
+    private static final Set<String> clientPorts = ConcurrentHashMap.newKeySet();
+
+    @BeforeClass
+    public static void start() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+        server.createContext("/echo/", ex -> {
+            clientPorts.add(Integer.toString(ex.getRemoteAddress().getPort()));
+            byte[] body = Serialize.readFully(ex.getRequestBody());
+            reply(ex, 200, body);
+        });
+        server.createContext("/gzip/", ex -> {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(bout)) {
+                gzip.write("unzipped".getBytes());
+            }
+            ex.getResponseHeaders().set("Content-Encoding", "gzip");
+            reply(ex, 200, bout.toByteArray());
+        });
+        server.createContext("/error/", ex -> {
+            ex.getResponseHeaders().set("Trailer", "No such user");
+            reply(ex, 400, new byte[0]);
+        });
+        server.createContext("/slow/", ex -> {
+            Serialize.readFully(ex.getRequestBody());
+            int now = active.incrementAndGet();
+            maxActive.accumulateAndGet(now, Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {}
+            active.decrementAndGet();
+            reply(ex, 200, new byte[0]);
+        });
+        server.createContext("/redirect/", ex -> {
+            ex.getResponseHeaders().set("Location", "/gzip/x");
+            reply(ex, 302, new byte[0]);
+        });
+        server.createContext("/drip/", ex -> {
+            // headers straight away, then a body which takes longer than the timeout
+            Serialize.readFully(ex.getRequestBody());
+            ex.sendResponseHeaders(200, 5);
+            for (int i = 0; i < 5; i++) {
+                sleep(100);
+                ex.getResponseBody().write(i);
+                ex.getResponseBody().flush();
+            }
+            ex.close();
+        });
+        server.createContext("/hang/", ex -> {
+            Serialize.readFully(ex.getRequestBody());
+            sleep(2_000);
+            reply(ex, 200, new byte[0]);
+        });
+        server.setExecutor(Executors.newFixedThreadPool(32));
+        server.start();
+        base = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    @AfterClass
+    public static void stop() {
+        server.stop(0);
+        PooledHttpClient.setMaxRequestsPerHost(PooledHttpClient.DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {}
+    }
+
+    private static void reply(HttpExchange ex, int code, byte[] body) throws IOException {
+        ex.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        if (body.length > 0)
+            ex.getResponseBody().write(body);
+        ex.close();
+    }
+
+    @Test
+    public void postReusesConnections() throws Exception {
+        // a host name no other test uses, so the pool starts empty
+        AsyncJavaPoster poster = new AsyncJavaPoster(new URL("http://127.0.0.1:" + base.getPort() + "/"), false);
+        for (int i = 0; i < 20; i++) {
+            byte[] payload = ("hello" + i).getBytes();
+            Assert.assertArrayEquals(payload, poster.post("echo/x", payload, false).join());
+        }
+        Assert.assertTrue("sequential requests reuse kept-alive connections", clientPorts.size() < 10);
+    }
+
+    @Test
+    public void unzipAndErrors() {
+        AsyncJavaPoster poster = new AsyncJavaPoster(base, true);
+        Assert.assertEquals("unzipped", new String(poster.get("gzip/x").join()));
+        try {
+            poster.get("error/x").join();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertEquals("No such user", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void requestsPerHostAreLimited() {
+        PooledHttpClient.setMaxRequestsPerHost(4);
+        AsyncJavaPoster poster = new AsyncJavaPoster(base, false);
+        List<CompletableFuture<byte[]>> all = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+            all.add(poster.post("slow/x", new byte[0], false));
+        all.forEach(CompletableFuture::join);
+        Assert.assertTrue(maxActive.get() <= 4);
+        Assert.assertTrue(maxActive.get() > 1);
+        PooledHttpClient.setMaxRequestsPerHost(PooledHttpClient.DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    /** A single request server which reads the upload at 8 MiB/s through a small receive buffer, then replies with
+     *  the number of bytes it read
+     */
+    private static AsyncJavaPoster slowReader() throws IOException {
+        ServerSocket socket = new ServerSocket();
+        socket.setReceiveBufferSize(64 * 1024);
+        socket.bind(new InetSocketAddress("127.0.0.1", 0));
+        new Thread(() -> {
+            try (Socket conn = socket.accept()) {
+                InputStream in = conn.getInputStream();
+                long length = 0;
+                String line;
+                while (! (line = readLine(in)).isEmpty())
+                    if (line.toLowerCase().startsWith("content-length:"))
+                        length = Long.parseLong(line.substring(15).trim());
+                byte[] buf = new byte[64 * 1024];
+                long total = 0, start = System.currentTimeMillis();
+                while (total < length) {
+                    int r = in.read(buf, 0, (int) Math.min(buf.length, length - total));
+                    if (r < 0)
+                        break;
+                    total += r;
+                    long ahead = total * 1000 / (8 * 1024 * 1024) - (System.currentTimeMillis() - start);
+                    if (ahead > 0)
+                        sleep(ahead);
+                }
+                byte[] body = Long.toString(total).getBytes();
+                OutputStream out = conn.getOutputStream();
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n").getBytes());
+                out.write(body);
+                out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {}
+            }
+        }).start();
+        return new AsyncJavaPoster(new URL("http://127.0.0.1:" + socket.getLocalPort() + "/"), false);
+    }
+
+    // a byte at a time, so none of the body is consumed
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n')
+            if (c != '\r')
+                line.append((char) c);
+        return line.toString();
+    }
+
+    @Test
+    public void followsRedirects() {
+        AsyncJavaPoster poster = new AsyncJavaPoster(base, true);
+        Assert.assertEquals("unzipped", new String(poster.get("redirect/x").join()));
+    }
+
+    @Test
+    public void timeoutOnlyAppliesToResponseHeaders() throws Exception {
+        AsyncJavaPoster poster = new AsyncJavaPoster(base, false);
+        Assert.assertArrayEquals("slow response body", new byte[]{0, 1, 2, 3, 4},
+                poster.post("drip/x", new byte[0], false, 200).join());
+
+        byte[] upload = new byte[32 * 1024 * 1024];
+        Assert.assertEquals("slow upload", Integer.toString(upload.length),
+                new String(slowReader().post("x", upload, false, 2_000).join()));
+
+        try {
+            poster.post("hang/x", new byte[0], false, 200).join();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class BatchedChampLookupTests {
+    private static final Crypto crypto = Main.initCrypto();
+
+    private static class CountingStorage extends DelegatingStorage {
+        private final ContentAddressedStorage target;
+        final AtomicInteger gets = new AtomicInteger(), getAlls = new AtomicInteger();
+
+        public CountingStorage(ContentAddressedStorage target) {
+            super(target);
+            this.target = target;
+        }
+
+        @Override
+        public ContentAddressedStorage directToOrigin() {
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<Optional<CborObject>> get(Cid hash, Optional<BatWithId> bat) {
+            gets.incrementAndGet();
+            return target.get(hash, bat);
+        }
+
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+            getAlls.incrementAndGet();
+            return target.getAll(hashes, bats);
+        }
+    }
+
+    private static Pair<Cid, Map<ByteArrayWrapper, Cid>> buildChamp(RAMStorage storage, int size, Random r) throws Exception {
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        ChampWrapper<CborObject.CborMerkleLink> champ = ChampWrapper.create(user.publicKeyHash, user, x -> Futures.of(x.data),
+                tid, storage, crypto.hasher, c -> (CborObject.CborMerkleLink) c).join();
+        Map<ByteArrayWrapper, Cid> values = new HashMap<>();
+        Multihash root = null;
+        for (int i = 0; i < size; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            Cid value = storage.put(user.publicKeyHash, user, new CborObject.CborString("value " + i).serialize(), crypto.hasher, tid).join();
+            values.put(new ByteArrayWrapper(key), value);
+            root = champ.put(user.publicKeyHash, user, key, Optional.empty(), new CborObject.CborMerkleLink(value), tid).join();
+        }
+        return new Pair<>((Cid) root, values);
+    }
+
+    @Test
+    public void lookupManyKeysInFewRounds() throws Exception {
+        RAMStorage storage = new RAMStorage(crypto.hasher);
+        Random r = new Random(42);
+        Pair<Cid, Map<ByteArrayWrapper, Cid>> champ = buildChamp(storage, 1000, r);
+        Map<ByteArrayWrapper, Cid> values = champ.right;
+        List<byte[]> keys = new ArrayList<>();
+        values.keySet().forEach(k -> keys.add(k.data));
+        byte[] absentKey = new byte[32];
+        r.nextBytes(absentKey);
+        keys.add(absentKey);
+
+        CountingStorage counter = new CountingStorage(storage);
+        List<Cid> roots = Collections.nCopies(keys.size(), champ.left);
+        List<Optional<BatWithId>> bats = Collections.nCopies(keys.size(), Optional.empty());
+        List<Optional<Pair<Cid, CborObject>>> res = BatchedChampLookup.lookup(roots, keys, bats, counter, crypto.hasher).join();
+
+        for (int i = 0; i < keys.size() - 1; i++) {
+            Cid expected = values.get(new ByteArrayWrapper(keys.get(i)));
+            Assert.assertEquals(expected, res.get(i).get().left);
+            Assert.assertEquals(storage.get(expected, Optional.empty()).join().get(), res.get(i).get().right);
+        }
+        Assert.assertTrue(res.get(keys.size() - 1).isEmpty());
+        Assert.assertEquals(0, counter.gets.get());
+        Assert.assertTrue("Too many round trips: " + counter.getAlls.get(), counter.getAlls.get() <= 6);
+    }
+
+    @Test
+    public void multiKeyChampLookup() throws Exception {
+        RAMStorage storage = new RAMStorage(crypto.hasher);
+        Random r = new Random(42);
+        Pair<Cid, Map<ByteArrayWrapper, Cid>> champ = buildChamp(storage, 300, r);
+        PublicKeyHash owner = PublicKeyHash.NULL;
+        List<byte[]> keys = new ArrayList<>();
+        champ.right.keySet().stream().limit(50).forEach(k -> keys.add(k.data));
+        List<Optional<BatWithId>> bats = Collections.nCopies(keys.size(), Optional.empty());
+
+        List<byte[]> blocks = storage.getChampLookups(owner, champ.left, keys, bats).join();
+        Set<ByteArrayWrapper> returned = new HashSet<>();
+        blocks.forEach(b -> Assert.assertTrue("Duplicate block", returned.add(new ByteArrayWrapper(b))));
+
+        Set<ByteArrayWrapper> expected = new HashSet<>();
+        for (byte[] key : keys)
+            storage.getChampLookup(owner, champ.left, key, Optional.empty()).join()
+                    .forEach(b -> expected.add(new ByteArrayWrapper(b)));
+        Assert.assertEquals(expected, returned);
+
+        // the returned blocks are enough to resolve every key locally
+        Map<Cid, byte[]> known = new HashMap<>();
+        for (byte[] b : blocks)
+            known.put(crypto.hasher.hash(b, false).join(), b);
+        CountingStorage counter = new CountingStorage(storage);
+        List<Optional<Pair<Cid, CborObject>>> res = BatchedChampLookup.lookup(Collections.nCopies(keys.size(), champ.left),
+                keys, bats, counter, crypto.hasher, known).join();
+        for (int i = 0; i < keys.size(); i++)
+            Assert.assertEquals(champ.right.get(new ByteArrayWrapper(keys.get(i))), res.get(i).get().left);
+        Assert.assertEquals(0, counter.gets.get() + counter.getAlls.get());
+
+        ChampLookupRequest req = new ChampLookupRequest(champ.left, keys, bats);
+        ChampLookupRequest decoded = ChampLookupRequest.fromCbor(CborObject.fromByteArray(req.serialize()));
+        Assert.assertEquals(req.root, decoded.root);
+        Assert.assertEquals(keys.size(), decoded.keys.size());
+        Assert.assertArrayEquals(keys.get(7), decoded.keys.get(7));
+    }
+}
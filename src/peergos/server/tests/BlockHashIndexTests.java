@@ -0,0 +1,92 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+public class BlockHashIndexTests {
+    private static final Random r = new Random(42);
+
+    private static List<Cid> randomCids(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> {
+                    byte[] hash = new byte[32];
+                    r.nextBytes(hash);
+                    return Cid.buildCidV1(i % 2 == 0 ? Cid.Codec.Raw : Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash);
+                }).collect(Collectors.toList());
+    }
+
+    @Test
+    public void unmarkedBlocksAreGarbage() {
+        List<Cid> blocks = randomCids(100_000);
+        int partitions = 4;
+        int total = 0;
+        for (int p = 0; p < partitions; p++) {
+            BlockHashIndex index = BlockHashIndex.build(blocks.stream(), p, partitions, 1 << 30).get();
+            total += index.size();
+            for (int i = 0; i < blocks.size(); i += 3)
+                index.mark(blocks.get(i));
+            for (int i = 0; i < blocks.size(); i++) {
+                Cid block = blocks.get(i);
+                boolean expectGarbage = i % 3 != 0 && index.inPartition(block);
+                Assert.assertEquals(expectGarbage, index.isGarbage(block));
+            }
+        }
+        Assert.assertEquals(blocks.size(), total);
+    }
+
+    @Test
+    public void unknownBlocksAreNotGarbage() {
+        List<Cid> blocks = randomCids(1_000);
+        BlockHashIndex index = BlockHashIndex.build(blocks.stream(), 0, 1, 1 << 20).get();
+        for (Cid added : randomCids(1_000))
+            Assert.assertFalse(index.isGarbage(added));
+    }
+
+    @Test
+    public void respectsMemoryLimit() {
+        List<Cid> blocks = randomCids(200_000);
+        Assert.assertTrue(BlockHashIndex.build(blocks.stream(), 0, 1, 4 << 20).isEmpty());
+        Assert.assertTrue(BlockHashIndex.build(blocks.stream(), 0, 4, 4 << 20).isPresent());
+    }
+
+    @Test
+    public void markOnlyOnce() {
+        List<Cid> blocks = randomCids(10_000);
+        BlockHashIndex index = BlockHashIndex.build(blocks.stream(), 0, 1, 1 << 20).get();
+        long newlyMarked = blocks.parallelStream()
+                .flatMap(b -> Stream.of(b, b, b))
+                .filter(index::mark)
+                .count();
+        Assert.assertEquals(blocks.size(), newlyMarked);
+    }
+
+    @Test
+    public void rawAndCborAreDistinct() {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        Cid raw = Cid.buildCidV1(Cid.Codec.Raw, Multihash.Type.sha2_256, hash);
+        Cid cbor = Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash);
+        BlockHashIndex index = BlockHashIndex.build(Stream.of(raw, cbor), 0, 1, 1 << 20).get();
+        Assert.assertTrue(index.mark(raw));
+        Assert.assertTrue(index.isGarbage(cbor));
+        Assert.assertTrue(index.mark(cbor));
+    }
+
+    @Test
+    public void countRefs() {
+        List<Cid> blocks = randomCids(10_000);
+        BlockHashIndex index = BlockHashIndex.build(blocks.stream(), 0, 1, 1 << 20, true).get();
+        for (int i = 0; i < blocks.size(); i++)
+            for (int j = 0; j < i % 3; j++)
+                index.addRef(blocks.get(i));
+        for (int i = 0; i < blocks.size(); i++)
+            Assert.assertEquals(i % 3, index.getRefs(blocks.get(i)));
+        for (Cid unknown : randomCids(100))
+            Assert.assertEquals(0, index.getRefs(unknown));
+    }
+}
@@ -0,0 +1,39 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+
+public class BlockMetadataStoreTests {
+    private static final Random r = new Random(42);
+
+    private static Cid randomCid(boolean isRaw) {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return Cid.buildCidV1(isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash);
+    }
+
+    @Test
+    public void persistsSizeAndLinks() {
+        // no RAM cache, so every read hits the database
+        JdbcBlockMetadataStore store = new JdbcBlockMetadataStore(Main.buildEphemeralSqlite(), new SqliteCommands(), 0);
+        Cid block = randomCid(false);
+        List<Cid> links = Arrays.asList(randomCid(false), randomCid(true));
+        store.put(block, new BlockMetadata(1234, links));
+        Assert.assertTrue(store.get(randomCid(false)).isEmpty());
+
+        BlockMetadata meta = store.get(block).get();
+        Assert.assertEquals(1234, meta.size);
+        Assert.assertEquals(links, meta.links);
+        Assert.assertEquals(1, store.size());
+
+        store.remove(block);
+        Assert.assertTrue(store.get(block).isEmpty());
+        Assert.assertEquals(0, store.size());
+    }
+}
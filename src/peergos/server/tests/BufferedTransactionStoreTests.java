@@ -0,0 +1,122 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class BufferedTransactionStoreTests {
+    private static final Random r = new Random(42);
+    private static final PublicKeyHash owner = new PublicKeyHash(Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, new byte[32]));
+
+    /** A persistent store which records how many writes it receives
+     */
+    private static class CountingStore implements TransactionStore {
+        public final Map<String, Set<Multihash>> open = new ConcurrentHashMap<>();
+        public final AtomicInteger writes = new AtomicInteger();
+
+        @Override
+        public TransactionId startTransaction(PublicKeyHash owner) {
+            return new TransactionId(UUID.randomUUID().toString());
+        }
+
+        @Override
+        public void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner) {
+            addBlocks(Collections.singletonList(hash), tid, owner);
+        }
+
+        @Override
+        public synchronized void addBlocks(List<BlockWrite> blocks) {
+            if (blocks.isEmpty())
+                return;
+            writes.incrementAndGet();
+            for (BlockWrite w : blocks)
+                open.computeIfAbsent(w.tid.toString(), t -> ConcurrentHashMap.newKeySet()).add(w.hash);
+        }
+
+        @Override
+        public void closeTransaction(PublicKeyHash owner, TransactionId tid) {
+            open.remove(tid.toString());
+        }
+
+        @Override
+        public List<Multihash> getOpenTransactionBlocks() {
+            return open.values().stream().flatMap(Set::stream).collect(Collectors.toList());
+        }
+
+        @Override
+        public Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis) {
+            return Optional.empty();
+        }
+
+        @Override
+        public void clearOldTransactions(long cutoff) {
+            open.clear();
+        }
+    }
+
+    private static Cid randomCid() {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return Cid.buildCidV1(Cid.Codec.Raw, Multihash.Type.sha2_256, hash);
+    }
+
+    @Test
+    public void concurrentWritesAreGroupCommitted() throws Exception {
+        CountingStore target = new CountingStore();
+        BufferedTransactionStore store = new BufferedTransactionStore(target);
+        int writers = 32, perWriter = 200;
+        List<TransactionId> tids = IntStream.range(0, writers)
+                .mapToObj(i -> store.startTransaction(owner))
+                .collect(Collectors.toList());
+        List<Cid> blocks = IntStream.range(0, writers * perWriter)
+                .mapToObj(i -> randomCid())
+                .collect(Collectors.toList());
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        List<Future<?>> done = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            done.add(pool.submit(() -> {
+                for (int i = 0; i < perWriter; i++)
+                    store.addBlock(blocks.get(writer * perWriter + i), tids.get(writer), owner);
+            }));
+        }
+        for (Future<?> f : done)
+            f.get();
+        pool.shutdown();
+
+        Assert.assertEquals(new HashSet<>(blocks), new HashSet<>(store.getOpenTransactionBlocks()));
+        Assert.assertEquals(new HashSet<>(blocks), new HashSet<>(target.getOpenTransactionBlocks()));
+        Assert.assertTrue("Writes were batched", target.writes.get() < blocks.size());
+
+        for (TransactionId tid : tids)
+            store.closeTransaction(owner, tid);
+        Assert.assertTrue(store.getOpenTransactionBlocks().isEmpty());
+        Assert.assertTrue(target.getOpenTransactionBlocks().isEmpty());
+        store.close();
+    }
+
+    @Test
+    public void openBlocksSurviveRestart() {
+        CountingStore target = new CountingStore();
+        BufferedTransactionStore store = new BufferedTransactionStore(target);
+        TransactionId tid = store.startTransaction(owner);
+        List<Multihash> blocks = List.of(randomCid(), randomCid(), randomCid());
+        for (Multihash block : blocks)
+            store.addBlock(block, tid, owner);
+        store.close();
+
+        BufferedTransactionStore restarted = new BufferedTransactionStore(target);
+        Assert.assertEquals(new HashSet<>(blocks), new HashSet<>(restarted.getOpenTransactionBlocks()));
+        restarted.clearOldTransactions(System.currentTimeMillis() + 1);
+        Assert.assertTrue(restarted.getOpenTransactionBlocks().isEmpty());
+        restarted.close();
+    }
+}
@@ -0,0 +1,89 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.storage.*;
+import peergos.server.storage.auth.*;
+import peergos.shared.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class CachingStorageTests {
+    private static final Crypto crypto = Main.initCrypto();
+
+    /** Only serves the block to the good bat, and only once the gate is opened
+     */
+    private static class GatedStorage extends DelegatingStorage {
+        private final ContentAddressedStorage target;
+        private final Cid block;
+        private final byte[] data;
+        private final BatWithId good;
+        private final CompletableFuture<Boolean> gate = new CompletableFuture<>();
+
+        GatedStorage(ContentAddressedStorage target, Cid block, byte[] data, BatWithId good) {
+            super(target);
+            this.target = target;
+            this.block = block;
+            this.data = data;
+            this.good = good;
+        }
+
+        @Override
+        public ContentAddressedStorage directToOrigin() {
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, Optional<BatWithId> bat) {
+            return gate.thenCompose(x -> hash.equals(block) && bat.isPresent() && bat.get().id.equals(good.id) ?
+                    Futures.of(Optional.of(data)) :
+                    Futures.errored(new IllegalStateException("Unauthorised!")));
+        }
+    }
+
+    private static BatWithId randomBat() {
+        Bat bat = Bat.random(crypto.random);
+        return new BatWithId(bat, bat.calculateId(crypto.hasher).join().id);
+    }
+
+    private static byte[] randomBlock() {
+        byte[] data = new byte[1000];
+        crypto.random.randombytes(data, 0, data.length);
+        return data;
+    }
+
+    private static void checkSharedFailure(ContentAddressedStorage cache, GatedStorage target, BatWithId bad, BatWithId good) {
+        CompletableFuture<Optional<byte[]>> leader = cache.getRaw(target.block, Optional.of(bad));
+        CompletableFuture<Optional<byte[]>> follower = cache.getRaw(target.block, Optional.of(good));
+        target.gate.complete(true);
+
+        Assert.assertTrue("Leader's own failure reads as missing", leader.join().isEmpty());
+        Assert.assertArrayEquals("Follower retries with its own bat", target.data, follower.join().get());
+    }
+
+    @Test
+    public void followerOfFailedFetchRetriesWithItsOwnBat() {
+        BatWithId bad = randomBat(), good = randomBat();
+        byte[] data = randomBlock();
+        Cid block = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, RAMStorage.hash(data));
+        GatedStorage target = new GatedStorage(new RAMStorage(crypto.hasher), block, data, good);
+        checkSharedFailure(new CachingStorage(target, 100, 10 * 1024), target, bad, good);
+    }
+
+    @Test
+    public void authedFollowerOfFailedFetchRetriesWithItsOwnBat() {
+        BatWithId bad = randomBat(), good = randomBat();
+        byte[] data = randomBlock();
+        Cid block = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, RAMStorage.hash(data));
+        GatedStorage target = new GatedStorage(new RAMStorage(crypto.hasher), block, data, good);
+        BlockRequestAuthoriser authoriser = (b, d, node, auth) -> Futures.of(! auth.isEmpty() &&
+                BlockRequestAuthoriser.isValidAuth(BlockAuth.fromString(auth), b, node, good.bat, crypto.hasher));
+        checkSharedFailure(new AuthedCachingStorage(target, authoriser, crypto.hasher, 100, 10 * 1024), target, bad, good);
+    }
+}
@@ -5,6 +5,7 @@ import peergos.shared.cbor.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.util.*;
 
+import java.io.*;
 import java.util.*;
 
 public class CborObjects {
@@ -106,8 +107,84 @@ public class CborObjects {
         compatibleAndIdempotentSerialization(cborList);
     }
 
+    @Test
+    public void bufferCodecMatchesStreamCodec() {
+        for (int i=0; i < 1000; i++) {
+            CborObject value = randomObject(3);
+            byte[] raw = value.toByteArray();
+            Assert.assertArrayEquals(streamEncode(value), raw);
+            Assert.assertEquals(streamDecode(raw), CborReader.read(raw));
+            compatibleAndIdempotentSerialization(value);
+
+            // truncated input must be rejected
+            if (raw.length > 1) {
+                byte[] truncated = Arrays.copyOfRange(raw, 0, rnd.nextInt(raw.length - 1) + 1);
+                try {
+                    CborObject partial = CborReader.read(truncated);
+                    Assert.assertNotEquals(value, partial);
+                } catch (RuntimeException expected) {}
+            }
+        }
+    }
+
+    @Test
+    public void linkScanMatchesDecoder() throws IOException {
+        for (int i=0; i < 1000; i++) {
+            byte[] raw = randomObject(3).toByteArray();
+            Assert.assertEquals(CborObject.fromByteArray(raw).links(), CborReader.links(raw));
+        }
+
+        // maps with non ascii, or out of order, keys still return links in sorted key order
+        List<String> keys = Arrays.asList("bb", "a", "\u00e9", "c");
+        CborEncoder encoder = new CborEncoder();
+        encoder.writeMapStart(keys.size());
+        for (String key : keys) {
+            encoder.writeTextString(key);
+            new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, random(32))).serialize(encoder);
+        }
+        byte[] raw = encoder.toByteArray();
+        Assert.assertEquals(CborObject.fromByteArray(raw).links(), CborReader.links(raw));
+    }
+
+    private CborObject randomObject(int depth) {
+        int type = rnd.nextInt(depth > 0 ? 9 : 7);
+        switch (type) {
+            case 0: return new CborObject.CborLong(rnd.nextInt(3) == 0 ? rnd.nextLong() : rnd.nextInt(70_000) - 35_000);
+            case 1: return new CborObject.CborByteArray(random(rnd.nextInt(300)));
+            case 2: return new CborObject.CborString(rnd.nextBoolean() ? "ascii " + rnd.nextInt() : "\u00e9\u4e2d\ud83d\ude00 " + rnd.nextInt());
+            case 3: return new CborObject.CborBoolean(rnd.nextBoolean());
+            case 4: return new CborObject.CborNull();
+            case 5: return new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, random(32)));
+            case 6: return new CborObject.CborString("");
+            case 7: {
+                List<CborObject> list = new ArrayList<>();
+                for (int i=0; i < rnd.nextInt(30); i++)
+                    list.add(randomObject(depth - 1));
+                return new CborObject.CborList(list);
+            }
+            default: {
+                SortedMap<String, Cborable> map = new TreeMap<>();
+                for (int i=0; i < rnd.nextInt(30); i++)
+                    map.put("k" + rnd.nextInt(1000), randomObject(depth - 1));
+                return CborObject.CborMap.build(map);
+            }
+        }
+    }
+
+    private static byte[] streamEncode(CborObject value) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        value.serialize(new CborEncoder(bout));
+        return bout.toByteArray();
+    }
+
+    private static CborObject streamDecode(byte[] raw) {
+        return CborObject.deserialize(new CborDecoder(new ByteArrayInputStream(raw)), raw.length);
+    }
+
     public void compatibleAndIdempotentSerialization(CborObject value) {
         byte[] raw = value.toByteArray();
+        Assert.assertArrayEquals("Buffer and stream encoders agree", streamEncode(value), raw);
+        Assert.assertEquals("Buffer and stream decoders agree", streamDecode(raw), CborObject.fromByteArray(raw));
         CborObject deserialized = CborObject.fromByteArray(raw);
 
         boolean equals = deserialized.equals(value);
@@ -13,14 +13,17 @@ import peergos.shared.cbor.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
 import peergos.shared.util.*;
 
 import java.nio.file.*;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -282,6 +285,323 @@ public class ChampTests {
             }
     }
 
+    @Test
+    public void bulkMutationsMatchSequential() throws Exception {
+        RAMStorage storage = new RAMStorage(crypto.hasher);
+        int bitWidth = 3;
+        int maxCollisions = 2;
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+
+        for (int prefixLen = 0; prefixLen < 3; prefixLen++)
+            for (int i=0; i < 10; i++) {
+                int suffixLen = 4;
+                Pair<Champ<CborObject.CborMerkleLink>, Multihash> root = randomTree(user, r, prefixLen, suffixLen, r.nextInt(100),
+                        bitWidth, maxCollisions, hasher, randomHash, storage);
+                Map<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>> state = new HashMap<>();
+                root.left.applyToAllMappings(p -> {
+                    synchronized (state) {
+                        state.put(p.left, p.right);
+                    }
+                    return Futures.of(true);
+                }, storage).join();
+
+                // a random mixture of removes, updates and inserts
+                List<Champ.Mutation<CborObject.CborMerkleLink>> mutations = new ArrayList<>();
+                Set<ByteArrayWrapper> touched = new HashSet<>();
+                for (Map.Entry<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>> e : state.entrySet()) {
+                    int op = r.nextInt(3);
+                    byte[] keyHash = hasher.apply(e.getKey()).join();
+                    if (op == 0)
+                        mutations.add(Champ.Mutation.remove(e.getKey(), keyHash, e.getValue()));
+                    else if (op == 1)
+                        mutations.add(Champ.Mutation.put(e.getKey(), keyHash, e.getValue(),
+                                Optional.of(new CborObject.CborMerkleLink(randomHash.get()))));
+                    touched.add(e.getKey());
+                }
+                byte[] prefix = new byte[prefixLen];
+                r.nextBytes(prefix);
+                for (int j=0; j < r.nextInt(100); j++) {
+                    ByteArrayWrapper key = new ByteArrayWrapper(randomKey(prefix, suffixLen, r));
+                    if (! touched.add(key))
+                        continue;
+                    mutations.add(Champ.Mutation.put(key, hasher.apply(key).join(), Optional.empty(),
+                            Optional.of(new CborObject.CborMerkleLink(randomHash.get()))));
+                }
+                Collections.shuffle(mutations, r);
+
+                Pair<Champ<CborObject.CborMerkleLink>, Multihash> sequential = root;
+                for (Champ.Mutation<CborObject.CborMerkleLink> m : mutations) {
+                    sequential = m.isRemove ?
+                            sequential.left.remove(user.publicKeyHash, user, m.key, m.hash, 0, m.expected, bitWidth,
+                                    maxCollisions, tid, storage, writeHasher, sequential.right).join() :
+                            sequential.left.put(user.publicKeyHash, user, m.key, m.hash, 0, m.expected, m.value, bitWidth,
+                                    maxCollisions, hasher, tid, storage, writeHasher, sequential.right).join();
+                }
+                Pair<Champ<CborObject.CborMerkleLink>, Multihash> bulk = root.left.applyMutations(user.publicKeyHash, user,
+                        mutations, bitWidth, maxCollisions, hasher, tid, storage, writeHasher, root.right).join();
+                Assert.assertEquals("Bulk mutation is canonical", sequential.right, bulk.right);
+            }
+    }
+
+    @Test
+    public void cachedNodesAreSharedAndRecorded() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        RAMStorage storage = new RAMStorage(crypto.hasher) {
+            @Override
+            public CompletableFuture<Optional<CborObject>> get(Cid hash, Optional<BatWithId> bat) {
+                reads.incrementAndGet();
+                return super.get(hash, bat);
+            }
+        };
+        int bitWidth = 3;
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> root = randomTree(user, r, 0, 4, 200, bitWidth, 2,
+                hasher, randomHash, storage);
+        Map<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>> state = new HashMap<>();
+        root.left.applyToAllMappings(p -> {
+            synchronized (state) {
+                state.put(p.left, p.right);
+            }
+            return Futures.of(true);
+        }, storage).join();
+
+        ChampCache.clear();
+        for (ByteArrayWrapper key : state.keySet())
+            root.left.get(key, hasher.apply(key).join(), 0, bitWidth, storage).join();
+        int uncachedReads = reads.getAndSet(0);
+        Assert.assertTrue(uncachedReads > 0);
+
+        // a fresh recording storage still sees every node of a traversal, without any reads
+        CachingStorage recorder = new CachingStorage(storage, 1000, 10 * 1024);
+        for (Map.Entry<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>> e : state.entrySet())
+            Assert.assertEquals(e.getValue(), root.left.get(e.getKey(), hasher.apply(e.getKey()).join(), 0, bitWidth, recorder).join());
+        Assert.assertEquals("Cached nodes are not re-read", 0, reads.get());
+        Assert.assertTrue("Cached nodes are recorded", recorder.getCached().size() > 0);
+    }
+
+    @Test
+    public void parallelTraversal() throws Exception {
+        ScheduledExecutorService delays = Executors.newScheduledThreadPool(4);
+        AtomicInteger inFlight = new AtomicInteger(), maxInFlight = new AtomicInteger();
+        RAMStorage storage = new RAMStorage(crypto.hasher) {
+            @Override
+            public CompletableFuture<Optional<CborObject>> get(Cid hash, Optional<BatWithId> bat) {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                CompletableFuture<Optional<CborObject>> res = new CompletableFuture<>();
+                delays.schedule(() -> {
+                    inFlight.decrementAndGet();
+                    res.complete(super.get(hash, bat).join());
+                }, 1, TimeUnit.MILLISECONDS);
+                return res;
+            }
+        };
+        int bitWidth = 3;
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> root = randomTree(user, r, 0, 4, 500, bitWidth, 2,
+                hasher, randomHash, storage);
+
+        ChampCache.clear();
+        maxInFlight.set(0);
+        List<ByteArrayWrapper> sequential = root.left.reduceAllMappings(new ArrayList<ByteArrayWrapper>(), (acc, p) -> {
+            acc.add(p.left);
+            return Futures.of(acc);
+        }, 1, storage).join();
+        Assert.assertEquals(500, sequential.size());
+        Assert.assertEquals(1, maxInFlight.get());
+
+        ChampCache.clear();
+        maxInFlight.set(0);
+        List<ByteArrayWrapper> parallel = root.left.reduceAllMappings(new ArrayList<ByteArrayWrapper>(), (acc, p) -> {
+            acc.add(p.left);
+            return Futures.of(acc);
+        }, 8, storage).join();
+        Assert.assertEquals("Parallel traversal preserves order", sequential, parallel);
+        Assert.assertTrue(maxInFlight.get() > 1 && maxInFlight.get() <= 8);
+
+        Set<ByteArrayWrapper> applied = ConcurrentHashMap.newKeySet();
+        root.left.applyToAllMappings(p -> Futures.of(applied.add(p.left)), 8, storage).join();
+        Assert.assertEquals(new HashSet<>(sequential), applied);
+        delays.shutdown();
+    }
+
+    @Test
+    public void slowMappersOverlapAcrossNodes() throws Exception {
+        ScheduledExecutorService delays = Executors.newScheduledThreadPool(4);
+        RAMStorage storage = new RAMStorage(crypto.hasher);
+        int bitWidth = 3;
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> root = randomTree(user, r, 0, 4, 500, bitWidth, 2,
+                hasher, randomHash, storage);
+        int nodesWithMappings = root.left.traverse(1, storage)
+                .reduce(0, (n, batch) -> Futures.of(batch.isEmpty() ? n : n + 1)).join();
+
+        AtomicInteger active = new AtomicInteger(), rounds = new AtomicInteger();
+        Set<ByteArrayWrapper> applied = ConcurrentHashMap.newKeySet();
+        root.left.applyToAllMappings(p -> {
+            // a mapper starting when none are running begins a new round
+            if (active.getAndIncrement() == 0)
+                rounds.incrementAndGet();
+            CompletableFuture<Boolean> res = new CompletableFuture<>();
+            delays.schedule(() -> {
+                applied.add(p.left);
+                active.decrementAndGet();
+                res.complete(true);
+            }, 5, TimeUnit.MILLISECONDS);
+            return res;
+        }, 8, storage).join();
+        Assert.assertEquals(500, applied.size());
+        Assert.assertTrue("Mappers for different nodes run concurrently: " + rounds.get() + " rounds for " +
+                nodesWithMappings + " nodes", rounds.get() < nodesWithMappings / 2);
+        delays.shutdown();
+    }
+
+    @Test
+    public void parallelDiff() throws Exception {
+        RAMStorage storage = new RAMStorage(crypto.hasher);
+        int bitWidth = 3;
+        int maxCollisions = 2;
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+
+        for (int i=0; i < 20; i++) {
+            Pair<Champ<CborObject.CborMerkleLink>, Multihash> root = randomTree(user, r, 0, 4, r.nextInt(200),
+                    bitWidth, maxCollisions, hasher, randomHash, storage);
+            Map<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>> before = new HashMap<>();
+            root.left.applyToAllMappings(p -> {
+                synchronized (before) {
+                    before.put(p.left, p.right);
+                }
+                return Futures.of(true);
+            }, storage).join();
+
+            List<Champ.Mutation<CborObject.CborMerkleLink>> mutations = new ArrayList<>();
+            for (Map.Entry<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>> e : before.entrySet()) {
+                int op = r.nextInt(10);
+                if (op == 0)
+                    mutations.add(Champ.Mutation.remove(e.getKey(), hasher.apply(e.getKey()).join(), e.getValue()));
+                else if (op == 1)
+                    mutations.add(Champ.Mutation.put(e.getKey(), hasher.apply(e.getKey()).join(), e.getValue(),
+                            Optional.of(new CborObject.CborMerkleLink(randomHash.get()))));
+            }
+            for (int j=0; j < r.nextInt(20); j++) {
+                ByteArrayWrapper key = new ByteArrayWrapper(randomKey(new byte[0], 4, r));
+                if (! before.containsKey(key))
+                    mutations.add(Champ.Mutation.put(key, hasher.apply(key).join(), Optional.empty(),
+                            Optional.of(new CborObject.CborMerkleLink(randomHash.get()))));
+            }
+            Pair<Champ<CborObject.CborMerkleLink>, Multihash> updated = root.left.applyMutations(user.publicKeyHash, user,
+                    mutations, bitWidth, maxCollisions, hasher, tid, storage, writeHasher, root.right).join();
+
+            Map<ByteArrayWrapper, Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> expected = new HashMap<>();
+            for (Champ.Mutation<CborObject.CborMerkleLink> m : mutations)
+                expected.put(m.key, new Triple<>(m.key, m.expected, m.isRemove ? Optional.empty() : m.value));
+
+            ChampCache.clear();
+            List<Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> diffs = new ArrayList<>();
+            Champ.applyToDiff(MaybeMultihash.of(root.right), MaybeMultihash.of(updated.right), 0, hasher,
+                    Collections.emptyList(), Collections.emptyList(), diffs::add, bitWidth, 8, storage,
+                    c -> (CborObject.CborMerkleLink)c).join();
+            Assert.assertEquals(expected.size(), diffs.size());
+            for (Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>> diff : diffs)
+                Assert.assertEquals(expected.get(diff.left), diff);
+        }
+    }
+
+    @Test
+    public void sparseDiffWalksChangedPathsConcurrently() throws Exception {
+        ScheduledExecutorService delays = Executors.newScheduledThreadPool(4);
+        AtomicInteger inFlight = new AtomicInteger(), maxInFlight = new AtomicInteger(), roundTrips = new AtomicInteger();
+        AtomicBoolean measure = new AtomicBoolean(false);
+        RAMStorage storage = new RAMStorage(crypto.hasher) {
+            @Override
+            public CompletableFuture<Optional<CborObject>> get(Cid hash, Optional<BatWithId> bat) {
+                if (! measure.get())
+                    return super.get(hash, bat);
+                // a fetch starting when nothing is in flight begins a new round trip
+                if (inFlight.getAndIncrement() == 0)
+                    roundTrips.incrementAndGet();
+                maxInFlight.accumulateAndGet(inFlight.get(), Math::max);
+                CompletableFuture<Optional<CborObject>> res = new CompletableFuture<>();
+                delays.schedule(() -> {
+                    Optional<CborObject> block = super.get(hash, bat).join();
+                    inFlight.decrementAndGet();
+                    res.complete(block);
+                }, 5, TimeUnit.MILLISECONDS);
+                return res;
+            }
+        };
+        int bitWidth = 3;
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> root = randomTree(user, r, 0, 4, 1000, bitWidth, 2,
+                hasher, randomHash, storage);
+        List<ByteArrayWrapper> keys = root.left.reduceAllMappings(new ArrayList<ByteArrayWrapper>(), (acc, p) -> {
+            acc.add(p.left);
+            return Futures.of(acc);
+        }, 8, storage).join();
+
+        List<Champ.Mutation<CborObject.CborMerkleLink>> mutations = new ArrayList<>();
+        for (int i=0; i < 8; i++) {
+            ByteArrayWrapper key = keys.get(i * keys.size() / 8);
+            Optional<CborObject.CborMerkleLink> existing = root.left.get(key, hasher.apply(key).join(), 0, bitWidth, storage).join();
+            mutations.add(Champ.Mutation.put(key, hasher.apply(key).join(), existing,
+                    Optional.of(new CborObject.CborMerkleLink(randomHash.get()))));
+        }
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> updated = root.left.applyMutations(user.publicKeyHash, user,
+                mutations, bitWidth, 2, hasher, tid, storage, writeHasher, root.right).join();
+
+        ChampCache.clear();
+        measure.set(true);
+        List<Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> diffs = new ArrayList<>();
+        Champ.applyToDiff(MaybeMultihash.of(root.right), MaybeMultihash.of(updated.right), 0, hasher,
+                Collections.emptyList(), Collections.emptyList(), diffs::add, bitWidth, 16, storage,
+                c -> (CborObject.CborMerkleLink)c).join();
+        Assert.assertEquals(mutations.size(), diffs.size());
+        // each task fetches both sides of a shard
+        Assert.assertTrue("Parallelism respected: " + maxInFlight.get(), maxInFlight.get() <= 2 * 16);
+        // walking each changed path in turn takes over 10 round trips here
+        Assert.assertTrue("Round trips bounded by depth, not by changes: " + roundTrips.get(), roundTrips.get() <= 6);
+        delays.shutdown();
+    }
+
     @Test
     public void correctDelete() throws Exception {
         ContentAddressedStorage storage = new FileContentAddressedStorage(Files.createTempDirectory("peergos-tmp"),
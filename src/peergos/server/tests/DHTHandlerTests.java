@@ -0,0 +1,111 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.net.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class DHTHandlerTests {
+    private static final Crypto crypto = Main.initCrypto();
+
+    private static HttpServer server;
+    private static String base;
+    private static DeletableContentAddressedStorage storage;
+    private static PublicKeyHash owner;
+    private static TransactionId tid;
+    private static final Set<Cid> unreadable = ConcurrentHashMap.newKeySet();
+
+    @BeforeClass
+    public static void start() throws Exception {
+        storage = new FileContentAddressedStorage(Files.createTempDirectory("peergos-dht"),
+                JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands(), true),
+                (b, data, s, auth) -> Futures.of(! unreadable.contains(b)), crypto.hasher);
+        owner = ContentAddressedStorage.hashKey(SigningKeyPair.random(crypto.random, crypto.signer).publicSigningKey);
+        tid = storage.startTransaction(owner).join();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+        server.createContext("/api/v0/", new DHTHandler(storage, Optional.of(storage), crypto.hasher,
+                (h, i) -> true, "/api/v0/", true));
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v0/";
+    }
+
+    @AfterClass
+    public static void stop() {
+        server.stop(0);
+    }
+
+    private static Cid rawBlock() {
+        byte[] data = new byte[1000];
+        crypto.random.randombytes(data, 0, data.length);
+        return storage.putRaw(owner, owner, new byte[0], data, tid, x -> {}).join();
+    }
+
+    private static HttpURLConnection blockGet(Cid hash, Optional<String> ifNoneMatch) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base + ContentAddressedStorage.HTTP.BLOCK_GET +
+                "?stream-channels=true&arg=" + hash).openConnection();
+        conn.setRequestMethod("GET");
+        ifNoneMatch.ifPresent(t -> conn.setRequestProperty("If-None-Match", t));
+        return conn;
+    }
+
+    private static String etag(Cid hash) {
+        return "\"" + hash + "\"";
+    }
+
+    @Test
+    public void streamsLocalRawBlock() throws Exception {
+        Cid hash = rawBlock();
+        HttpURLConnection conn = blockGet(hash, Optional.empty());
+        Assert.assertEquals(200, conn.getResponseCode());
+        Assert.assertEquals(etag(hash), conn.getHeaderField("ETag"));
+        byte[] body = Serialize.readFully(conn.getInputStream());
+        Assert.assertArrayEquals(storage.getRaw(hash, "").join().get(), body);
+    }
+
+    @Test
+    public void notModifiedForMatchingETag() throws Exception {
+        Cid raw = rawBlock();
+        HttpURLConnection conn = blockGet(raw, Optional.of("W/" + etag(raw)));
+        Assert.assertEquals(304, conn.getResponseCode());
+        Assert.assertEquals(etag(raw), conn.getHeaderField("ETag"));
+
+        Cid cbor = storage.put(owner, owner, new byte[0], new CborObject.CborList(List.of(new CborObject.CborMerkleLink(raw))).serialize(), tid).join();
+        Assert.assertEquals(304, blockGet(cbor, Optional.of(etag(cbor))).getResponseCode());
+    }
+
+    @Test
+    public void noNotModifiedForMissingBlock() throws Exception {
+        Cid missing = rawBlock();
+        storage.delete(missing);
+        for (String tag : List.of(etag(missing), "*")) {
+            HttpURLConnection conn = blockGet(missing, Optional.of(tag));
+            Assert.assertEquals(200, conn.getResponseCode());
+            Assert.assertEquals(0, Serialize.readFully(conn.getInputStream()).length);
+        }
+    }
+
+    @Test
+    public void noNotModifiedForUnauthorisedRead() throws Exception {
+        Cid secret = rawBlock();
+        unreadable.add(secret);
+        int code = blockGet(secret, Optional.of(etag(secret))).getResponseCode();
+        Assert.assertNotEquals(304, code);
+        Assert.assertNotEquals(200, code);
+    }
+}
@@ -0,0 +1,158 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.fs.erasure.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class ErasureCodedStorageTests {
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Random r = new Random(42);
+    private static final PublicKeyHash owner = new PublicKeyHash(Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, new byte[32]));
+
+    private static List<Path> disks(int count) throws IOException {
+        Path root = Files.createTempDirectory("peergos-erasure");
+        return IntStream.range(0, count)
+                .mapToObj(i -> root.resolve("disk-" + i))
+                .collect(Collectors.toList());
+    }
+
+    private static ErasureCodedStorage build(List<Path> disks) {
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        return new ErasureCodedStorage(disks, 4, 2, transactions, (a, b, c, d) -> Futures.of(true), crypto.hasher);
+    }
+
+    private static byte[] randomBlock(int size) {
+        byte[] block = new byte[size];
+        r.nextBytes(block);
+        return block;
+    }
+
+    private static Map<Cid, byte[]> putBlocks(ErasureCodedStorage store, int count) {
+        TransactionId tid = store.startTransaction(owner).join();
+        Map<Cid, byte[]> blocks = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            byte[] block = randomBlock(r.nextInt(10_000));
+            blocks.put(store.put(block, true, tid, owner), block);
+        }
+        store.closeTransaction(owner, tid).join();
+        return blocks;
+    }
+
+    private static void checkBlocks(ErasureCodedStorage store, Map<Cid, byte[]> blocks) {
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet()) {
+            Assert.assertArrayEquals(e.getValue(), store.getRaw(e.getKey(), "").join().get());
+            Assert.assertEquals(e.getValue().length, (int) store.getSize(e.getKey()).join().get());
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void codecRecoversFromEveryErasurePattern() {
+        ReedSolomon codec = new ReedSolomon(4, 3);
+        for (int size : new int[] {0, 1, 3, 4, 1000, 4099}) {
+            byte[] data = randomBlock(size);
+            byte[][] encoded = codec.encode(data);
+            for (int erased = 0; erased < 1 << codec.totalShards(); erased++) {
+                if (Integer.bitCount(erased) > codec.parityShards)
+                    continue;
+                byte[][] shards = new byte[codec.totalShards()][];
+                for (int i = 0; i < shards.length; i++)
+                    if ((erased & (1 << i)) == 0)
+                        shards[i] = encoded[i].clone();
+                Assert.assertArrayEquals(data, codec.decode(shards, size));
+                for (int i = 0; i < shards.length; i++)
+                    Assert.assertArrayEquals(encoded[i], shards[i]);
+            }
+        }
+    }
+
+    @Test
+    public void bulkFieldOperations() {
+        GaloisField256 f = new GaloisField256();
+        byte[] src = randomBlock(1000);
+        for (int c = 0; c < 256; c++) {
+            byte[] dst = randomBlock(1000);
+            byte[] expected = new byte[dst.length];
+            for (int i = 0; i < dst.length; i++)
+                expected[i] = (byte) (dst[i] ^ f.mul(c, src[i] & 0xFF));
+            GaloisField256.mulAdd(c, src, 0, dst, 0, dst.length);
+            Assert.assertArrayEquals(expected, dst);
+            if (c > 0)
+                Assert.assertEquals(1, f.mul(c, GaloisField256.inverse(c)));
+        }
+    }
+
+    @Test
+    public void readThroughLostDisks() throws Exception {
+        List<Path> disks = disks(7);
+        ErasureCodedStorage store = build(disks);
+        Map<Cid, byte[]> blocks = putBlocks(store, 200);
+        checkBlocks(store, blocks);
+        Assert.assertEquals(blocks.keySet(), store.getAllBlockHashes().collect(Collectors.toSet()));
+        Assert.assertEquals(blocks.size(), store.getAllBlockHashes().count());
+
+        deleteRecursively(disks.get(1));
+        deleteRecursively(disks.get(4));
+        checkBlocks(store, blocks);
+        Assert.assertEquals(blocks.keySet(), store.getAllBlockHashes().collect(Collectors.toSet()));
+        Assert.assertEquals(blocks.size(), store.getAllBlockHashes().count());
+    }
+
+    @Test
+    public void scrubRepairsCorruptAndMissingShards() throws Exception {
+        List<Path> disks = disks(6);
+        ErasureCodedStorage store = build(disks);
+        Map<Cid, byte[]> blocks = putBlocks(store, 100);
+
+        deleteRecursively(disks.get(2));
+        List<Path> shardFiles;
+        try (Stream<Path> files = Files.walk(disks.get(5))) {
+            shardFiles = files.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path shard : shardFiles) {
+            byte[] raw = Files.readAllBytes(shard);
+            raw[raw.length - 1] ^= 1;
+            Files.write(shard, raw);
+        }
+        checkBlocks(store, blocks);
+
+        long repaired = store.scrub();
+        Assert.assertTrue(repaired > blocks.size());
+        Assert.assertEquals(0, store.scrub());
+
+        // the repaired shards are enough to survive losing two other disks
+        deleteRecursively(disks.get(0));
+        deleteRecursively(disks.get(3));
+        checkBlocks(store, blocks);
+    }
+
+    @Test
+    public void deleteRemovesAllShards() throws Exception {
+        List<Path> disks = disks(6);
+        ErasureCodedStorage store = build(disks);
+        Map<Cid, byte[]> blocks = putBlocks(store, 10);
+        Cid deleted = blocks.keySet().iterator().next();
+        store.delete(deleted);
+        Assert.assertFalse(store.hasBlock(deleted));
+        Assert.assertTrue(store.getRaw(deleted, "").join().isEmpty());
+        Assert.assertEquals(blocks.size() - 1, store.getAllBlockHashes().count());
+    }
+}
@@ -0,0 +1,107 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.file.*;
+import java.util.*;
+
+public class FileBlockCacheTests {
+    private static final Random r = new Random(42);
+
+    private static Cid randomCid() {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return Cid.buildCidV1(Cid.Codec.Raw, Multihash.Type.sha2_256, hash);
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-cache");
+        FileBlockCache cache = new FileBlockCache(dir, 10_000);
+        List<Cid> blocks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Cid c = randomCid();
+            blocks.add(c);
+            cache.put(c, new byte[1000]).join();
+        }
+        Assert.assertEquals(10_000, cache.getTotalSize());
+        // make the first block the most recently used
+        Assert.assertTrue(cache.get(blocks.get(0)).join().isPresent());
+
+        Cid extra = randomCid();
+        cache.put(extra, new byte[1500]).join();
+        Assert.assertTrue(cache.getTotalSize() <= 10_000);
+        Assert.assertTrue(cache.hasBlock(blocks.get(0)));
+        Assert.assertFalse(cache.hasBlock(blocks.get(1)));
+        Assert.assertFalse(cache.hasBlock(blocks.get(2)));
+        Assert.assertTrue(cache.hasBlock(blocks.get(3)));
+        Assert.assertTrue(cache.get(blocks.get(1)).join().isEmpty());
+    }
+
+    @Test
+    public void reopenKeepsIndex() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-cache");
+        FileBlockCache cache = new FileBlockCache(dir, 10_000);
+        List<Cid> blocks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Cid c = randomCid();
+            blocks.add(c);
+            cache.put(c, new byte[1000]).join();
+        }
+        cache.get(blocks.get(0)).join();
+        cache.close();
+
+        FileBlockCache reopened = new FileBlockCache(dir, 10_000);
+        Assert.assertEquals(10_000, reopened.getTotalSize());
+        reopened.put(randomCid(), new byte[1000]).join();
+        // the access before closing was persisted
+        Assert.assertTrue(reopened.hasBlock(blocks.get(0)));
+        Assert.assertFalse(reopened.hasBlock(blocks.get(1)));
+    }
+
+    @Test
+    public void recoverFromJournalWithoutClose() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-cache");
+        FileBlockCache cache = new FileBlockCache(dir, 1_000_000);
+        List<Cid> blocks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Cid c = randomCid();
+            blocks.add(c);
+            cache.put(c, new byte[100 + i]).join();
+        }
+        cache.delete(blocks.get(5));
+
+        FileBlockCache reopened = new FileBlockCache(dir, 1_000_000);
+        Assert.assertFalse(reopened.hasBlock(blocks.get(5)));
+        long expected = 0;
+        for (int i = 0; i < 10; i++) {
+            if (i == 5)
+                continue;
+            Assert.assertEquals(100 + i, (int) reopened.getSize(blocks.get(i)).join().get());
+            expected += 100 + i;
+        }
+        Assert.assertEquals(expected, reopened.getTotalSize());
+    }
+
+    @Test
+    public void writeAfterCloseIsReconciled() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-cache");
+        FileBlockCache cache = new FileBlockCache(dir, 1_000_000);
+        cache.put(randomCid(), new byte[100]).join();
+        cache.close();
+        // e.g. a put racing with the shutdown hook
+        Cid late = randomCid();
+        cache.put(late, new byte[200]).join();
+        cache.close();
+
+        FileBlockCache reopened = new FileBlockCache(dir, 1_000_000);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (! reopened.hasBlock(late) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertTrue("Block written after close is found by reconciling", reopened.hasBlock(late));
+        Assert.assertEquals(300, reopened.getTotalSize());
+    }
+}
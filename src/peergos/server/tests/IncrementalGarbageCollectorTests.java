@@ -0,0 +1,194 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.space.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class IncrementalGarbageCollectorTests {
+    private static final Crypto crypto = Main.initCrypto();
+    private final Random r = new Random(42);
+
+    private DeletableContentAddressedStorage storage;
+    private JdbcIpnsAndSocial pointers;
+    private UsageStore usage;
+    private JdbcGcState state;
+
+    private static class User {
+        public final SigningKeyPair pair;
+        public final PublicKeyHash owner;
+        private Optional<byte[]> currentCas = Optional.empty();
+        private MaybeMultihash current = MaybeMultihash.empty();
+        private long sequence = 0;
+
+        public User(SigningKeyPair pair) {
+            this.pair = pair;
+            this.owner = ContentAddressedStorage.hashKey(pair.publicSigningKey);
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        storage = new FileContentAddressedStorage(Files.createTempDirectory("peergos-gc"),
+                JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands(), true),
+                (a, b, c, d) -> Futures.of(true), crypto.hasher);
+        pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+        usage = new JdbcUsageStore(Main.buildEphemeralSqlite(), new SqliteCommands());
+        state = JdbcGcState.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+    }
+
+    private User createUser() {
+        return new User(SigningKeyPair.random(crypto.random, crypto.signer));
+    }
+
+    private void setRoot(User user, Cid root) {
+        PointerUpdate cas = new PointerUpdate(user.current, MaybeMultihash.of(root), Optional.of(user.sequence++));
+        byte[] signed = user.pair.signMessage(cas.serialize());
+        Assert.assertTrue(pointers.setPointer(user.owner, user.currentCas, signed).join());
+        user.currentCas = Optional.of(signed);
+        user.current = MaybeMultihash.of(root);
+    }
+
+    private Cid leaf(User user, TransactionId tid) {
+        byte[] data = new byte[100];
+        r.nextBytes(data);
+        return storage.putRaw(user.owner, user.owner, new byte[0], data, tid, x -> {}).join();
+    }
+
+    private Cid node(User user, TransactionId tid, Cid... children) {
+        byte[] block = new CborObject.CborList(Arrays.stream(children)
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList())).serialize();
+        return storage.put(user.owner, user.owner, new byte[0], block, tid).join();
+    }
+
+    private void fullGC() {
+        GarbageCollector.collect(storage, pointers, usage, s -> Futures.of(true),
+                GarbageCollector.DEFAULT_MAX_INDEX_BYTES, GarbageCollector.DEFAULT_MARK_PARALLELISM, Optional.of(state));
+    }
+
+    private void incrementalGC() {
+        Assert.assertTrue("Incremental run possible",
+                IncrementalGarbageCollector.collect(storage, pointers, usage, state, s -> Futures.of(true), 4));
+    }
+
+    private Map<Cid, Integer> refCounts(Cid... blocks) {
+        return state.getRefCounts(Arrays.asList(blocks));
+    }
+
+    @Test
+    public void fullGCSeedsReferenceCounts() {
+        User alice = createUser(), bob = createUser();
+        TransactionId tid = storage.startTransaction(alice.owner).join();
+        Cid shared = leaf(alice, tid);
+        Cid leafA = leaf(alice, tid);
+        Cid rootA = node(alice, tid, leafA, shared);
+        Cid leafB = leaf(bob, tid);
+        Cid rootB = node(bob, tid, shared, leafB);
+        Cid garbage = leaf(alice, tid);
+        setRoot(alice, rootA);
+        setRoot(bob, rootB);
+        storage.closeTransaction(alice.owner, tid).join();
+        storage.closeTransaction(bob.owner, tid).join();
+
+        fullGC();
+
+        Assert.assertFalse("Unreachable block deleted", storage.hasBlock(garbage));
+        Map<Cid, Integer> refs = refCounts(rootA, leafA, shared, rootB, leafB, garbage);
+        Assert.assertEquals(Integer.valueOf(1), refs.get(rootA));
+        Assert.assertEquals(Integer.valueOf(1), refs.get(leafA));
+        Assert.assertEquals("Shared block counted from both parents", Integer.valueOf(2), refs.get(shared));
+        Assert.assertEquals(Integer.valueOf(1), refs.get(rootB));
+        Assert.assertEquals(Integer.valueOf(1), refs.get(leafB));
+        Assert.assertFalse(refs.containsKey(garbage));
+        Assert.assertTrue(state.getLastRunStart().isPresent());
+        Assert.assertEquals(Set.of(rootA, rootB), state.getRoots().keySet());
+    }
+
+    @Test
+    public void incrementalRunAppliesRootDiff() {
+        User alice = createUser(), bob = createUser();
+        TransactionId tid = storage.startTransaction(alice.owner).join();
+        Cid shared = leaf(alice, tid);
+        Cid leafA = leaf(alice, tid);
+        Cid rootA = node(alice, tid, leafA, shared);
+        Cid leafB = leaf(bob, tid);
+        Cid rootB = node(bob, tid, shared, leafB);
+        setRoot(alice, rootA);
+        setRoot(bob, rootB);
+        storage.closeTransaction(alice.owner, tid).join();
+        storage.closeTransaction(bob.owner, tid).join();
+        fullGC();
+
+        TransactionId tid2 = storage.startTransaction(alice.owner).join();
+        Cid leafC = leaf(alice, tid2);
+        Cid rootA2 = node(alice, tid2, shared, leafC);
+        Cid garbage = leaf(alice, tid2);
+        setRoot(alice, rootA2);
+        storage.closeTransaction(alice.owner, tid2).join();
+
+        incrementalGC();
+
+        Assert.assertFalse("Old root swept", storage.hasBlock(rootA));
+        Assert.assertFalse("Block only referenced by old root swept", storage.hasBlock(leafA));
+        Assert.assertFalse("Unreferenced new write swept", storage.hasBlock(garbage));
+        for (Cid live : List.of(shared, rootA2, leafC, rootB, leafB))
+            Assert.assertTrue("Reachable block retained", storage.hasBlock(live));
+
+        Map<Cid, Integer> refs = refCounts(rootA, leafA, shared, rootA2, leafC, rootB, leafB);
+        Assert.assertFalse(refs.containsKey(rootA));
+        Assert.assertFalse(refs.containsKey(leafA));
+        Assert.assertEquals("Shared block moved parent", Integer.valueOf(2), refs.get(shared));
+        Assert.assertEquals(Integer.valueOf(1), refs.get(rootA2));
+        Assert.assertEquals(Integer.valueOf(1), refs.get(leafC));
+        Assert.assertEquals(Integer.valueOf(1), refs.get(rootB));
+        Assert.assertEquals(Set.of(rootA2, rootB), state.getRoots().keySet());
+    }
+
+    @Test
+    public void openTransactionsRetainGarbageUntilClosed() {
+        User alice = createUser();
+        TransactionId tid = storage.startTransaction(alice.owner).join();
+        Cid leafA = leaf(alice, tid);
+        Cid rootA = node(alice, tid, leafA);
+        setRoot(alice, rootA);
+        storage.closeTransaction(alice.owner, tid).join();
+        fullGC();
+
+        // a writer which is about to reference the old root again
+        TransactionId open = storage.startTransaction(alice.owner).join();
+        Assert.assertEquals(rootA, node(alice, open, leafA));
+
+        TransactionId tid2 = storage.startTransaction(alice.owner).join();
+        Cid rootA2 = node(alice, tid2, leaf(alice, tid2));
+        setRoot(alice, rootA2);
+        storage.closeTransaction(alice.owner, tid2).join();
+
+        incrementalGC();
+        Assert.assertTrue("Garbage in open transaction retained", storage.hasBlock(rootA));
+        Assert.assertTrue("Subtree of garbage in open transaction retained", storage.hasBlock(leafA));
+        Assert.assertEquals(Set.of(rootA, leafA), state.getPendingDeletes());
+
+        storage.closeTransaction(alice.owner, open).join();
+        // nothing is written before this run, so the retained blocks are only found through the pending set
+        incrementalGC();
+        Assert.assertFalse("Retained garbage collected after transaction closed", storage.hasBlock(rootA));
+        Assert.assertFalse(storage.hasBlock(leafA));
+        Assert.assertTrue(storage.hasBlock(rootA2));
+        Assert.assertTrue(state.getPendingDeletes().isEmpty());
+    }
+}
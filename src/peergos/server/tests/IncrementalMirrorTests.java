@@ -0,0 +1,217 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.crypto.hash.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class IncrementalMirrorTests {
+    private static final Random r = new Random(42);
+    private static final Hasher hasher = new ScryptJava();
+    private static final PublicKeyHash owner = new PublicKeyHash(Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, new byte[32]));
+
+    /** A local store which retrieves mirrored blocks from a remote store
+     */
+    private static class MirrorTarget extends RAMStorage {
+        private final ContentAddressedStorage remote;
+        public final AtomicInteger fetched = new AtomicInteger();
+        public final Map<Cid, Integer> fetchCounts = new ConcurrentHashMap<>();
+        // simulates the mirror being killed after this many fetches
+        public volatile int remainingFetches = Integer.MAX_VALUE;
+
+        public MirrorTarget(ContentAddressedStorage remote) {
+            super(hasher);
+            this.remote = remote;
+        }
+
+        @Override
+        public synchronized CompletableFuture<List<byte[]>> mirrorBlocks(PublicKeyHash owner,
+                                                                         List<Cid> blocks,
+                                                                         Optional<BatWithId> mirrorBat,
+                                                                         Cid ourNodeId,
+                                                                         TransactionId tid,
+                                                                         Hasher hasher) {
+            if (remainingFetches-- <= 0)
+                return Futures.errored(new ConnectException("Mirror killed"));
+            List<byte[]> res = new ArrayList<>();
+            TransactionId local = startTransaction(owner).join();
+            for (Cid c : blocks) {
+                byte[] block = remote.getRaw(c, mirrorBat).join().get();
+                if (c.isRaw())
+                    putRaw(owner, owner, List.of(new byte[0]), List.of(block), local, x -> {}).join();
+                else
+                    put(owner, owner, List.of(new byte[0]), List.of(block), local).join();
+                res.add(block);
+                fetchCounts.merge(c, 1, Integer::sum);
+            }
+            closeTransaction(owner, local).join();
+            fetched.addAndGet(blocks.size());
+            return Futures.of(res);
+        }
+
+        @Override
+        public synchronized boolean hasBlock(Cid hash) {
+            return super.hasBlock(hash);
+        }
+    }
+
+    private static class NoopTransactions implements TransactionStore {
+        public final Set<String> open = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public TransactionId startTransaction(PublicKeyHash owner) {
+            TransactionId tid = new TransactionId(UUID.randomUUID().toString());
+            open.add(tid.id);
+            return tid;
+        }
+
+        @Override
+        public void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner) {}
+
+        @Override
+        public void closeTransaction(PublicKeyHash owner, TransactionId tid) {
+            open.remove(tid.id);
+        }
+
+        @Override
+        public List<Multihash> getOpenTransactionBlocks() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Optional<List<Multihash>> getBlocksWrittenSince(long cutoffMillis) {
+            return Optional.empty();
+        }
+
+        @Override
+        public void clearOldTransactions(long cutoff) {}
+    }
+
+    private static Cid putTree(RAMStorage storage, List<byte[]> leaves, int fanout) {
+        TransactionId tid = storage.startTransaction(owner).join();
+        List<Cid> level = leaves.stream()
+                .map(leaf -> storage.putRaw(owner, owner, List.of(new byte[0]), List.of(leaf), tid, x -> {}).join().get(0))
+                .collect(Collectors.toList());
+        while (level.size() > 1) {
+            List<Cid> next = new ArrayList<>();
+            for (int i=0; i < level.size(); i += fanout) {
+                List<CborObject.CborMerkleLink> children = level.subList(i, Math.min(level.size(), i + fanout)).stream()
+                        .map(CborObject.CborMerkleLink::new)
+                        .collect(Collectors.toList());
+                byte[] node = new CborObject.CborList(children).serialize();
+                next.add(storage.put(owner, owner, List.of(new byte[0]), List.of(node), tid).join().get(0));
+            }
+            level = next;
+        }
+        storage.closeTransaction(owner, tid).join();
+        return level.get(0);
+    }
+
+    private static byte[] randomLeaf() {
+        byte[] leaf = new byte[64];
+        r.nextBytes(leaf);
+        return leaf;
+    }
+
+    @Test
+    public void onlyChangedBlocksAreFetched() {
+        RAMStorage remote = new RAMStorage(hasher);
+        MirrorTarget local = new MirrorTarget(remote);
+        NoopTransactions transactions = new NoopTransactions();
+        IncrementalMirror engine = new IncrementalMirror(local, transactions, hasher, 4, Optional.empty());
+
+        List<byte[]> leaves = IntStream.range(0, 512)
+                .mapToObj(i -> randomLeaf())
+                .collect(Collectors.toList());
+        Cid v1 = putTree(remote, leaves, 8);
+        AtomicBoolean committed = new AtomicBoolean();
+        long fetched = engine.mirror(owner, owner, Optional.empty(), Optional.of(v1), Optional.empty(), () -> committed.set(true));
+        Assert.assertTrue(committed.get());
+        Assert.assertEquals(512 + 64 + 8 + 1, fetched);
+        Assert.assertEquals(remote.size(), local.size());
+
+        // change a single leaf
+        leaves.set(100, randomLeaf());
+        Cid v2 = putTree(remote, leaves, 8);
+        long fetched2 = engine.mirror(owner, owner, Optional.of(v1), Optional.of(v2), Optional.empty(), () -> {});
+        Assert.assertEquals("Only the path to the changed leaf is fetched", 4, fetched2);
+        Assert.assertTrue(remote.getAllBlockHashes().allMatch(local::hasBlock));
+        Assert.assertTrue("Transactions are closed", transactions.open.isEmpty());
+        engine.shutdown();
+    }
+
+    @Test
+    public void failedMirrorDoesNotCommit() {
+        RAMStorage remote = new RAMStorage(hasher);
+        MirrorTarget local = new MirrorTarget(remote);
+        IncrementalMirror engine = new IncrementalMirror(local, new NoopTransactions(), hasher, 4, Optional.empty());
+
+        List<byte[]> leaves = IntStream.range(0, 64)
+                .mapToObj(i -> randomLeaf())
+                .collect(Collectors.toList());
+        Cid root = putTree(remote, leaves, 8);
+        remote.delete(remote.getAllBlockHashes().filter(Cid::isRaw).findFirst().get());
+        AtomicBoolean committed = new AtomicBoolean();
+        try {
+            engine.mirror(owner, owner, Optional.empty(), Optional.of(root), Optional.empty(), () -> committed.set(true));
+            Assert.fail("Mirror should fail with a missing block");
+        } catch (Exception expected) {}
+        Assert.assertFalse(committed.get());
+        engine.shutdown();
+    }
+
+    @Test
+    public void resumeAfterKillFetchesEachBlockOnce() throws Exception {
+        RAMStorage remote = new RAMStorage(hasher);
+        MirrorTarget local = new MirrorTarget(remote);
+        NoopTransactions transactions = new NoopTransactions();
+        Path checkpoints = Files.createTempDirectory("peergos-mirror");
+
+        List<byte[]> leaves = IntStream.range(0, 512)
+                .mapToObj(i -> randomLeaf())
+                .collect(Collectors.toList());
+        Cid root = putTree(remote, leaves, 8);
+
+        // checkpoint after every chunk, and die part way through the leaves
+        IncrementalMirror first = new IncrementalMirror(local, transactions, hasher, 4, Optional.of(checkpoints), 0);
+        local.remainingFetches = 1 + 1 + 4 + 10;
+        AtomicBoolean committed = new AtomicBoolean();
+        try {
+            first.mirror(owner, owner, Optional.empty(), Optional.of(root), Optional.empty(), () -> committed.set(true));
+            Assert.fail("Mirror should have been killed");
+        } catch (Exception expected) {}
+        first.shutdown();
+        Assert.assertFalse(committed.get());
+        Assert.assertTrue("Interrupted mirror left a checkpoint", Files.list(checkpoints).findAny().isPresent());
+        Assert.assertFalse("Transaction left open to protect fetched blocks", transactions.open.isEmpty());
+        int beforeResume = local.fetchCounts.size();
+        Assert.assertTrue(beforeResume > 0 && beforeResume < remote.size());
+
+        local.remainingFetches = Integer.MAX_VALUE;
+        IncrementalMirror resumed = new IncrementalMirror(local, transactions, hasher, 4, Optional.of(checkpoints), 0);
+        long fetched = resumed.mirror(owner, owner, Optional.empty(), Optional.of(root), Optional.empty(), () -> committed.set(true));
+        resumed.shutdown();
+
+        Assert.assertTrue("Resumed mirror committed", committed.get());
+        Assert.assertEquals(remote.size() - beforeResume, fetched);
+        Assert.assertEquals(remote.size(), local.fetchCounts.size());
+        Assert.assertTrue("No block fetched twice", local.fetchCounts.values().stream().allMatch(n -> n == 1));
+        Assert.assertTrue(remote.getAllBlockHashes().allMatch(local::hasBlock));
+        Assert.assertFalse("Checkpoint removed after success", Files.list(checkpoints).findAny().isPresent());
+        Assert.assertTrue("Transactions are closed", transactions.open.isEmpty());
+    }
+}
@@ -0,0 +1,145 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class PackFileStorageTests {
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Random r = new Random(42);
+    private static final PublicKeyHash owner = new PublicKeyHash(Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, new byte[32]));
+
+    private static PackFileStorage build(Path dir, long segmentBytes) {
+        TransactionStore transactions = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        return new PackFileStorage(dir, transactions, (a, b, c, d) -> Futures.of(true), crypto.hasher, segmentBytes, 0.5);
+    }
+
+    private static byte[] randomBlock(int size) {
+        byte[] block = new byte[size];
+        r.nextBytes(block);
+        return block;
+    }
+
+    private static Map<Cid, byte[]> putBlocks(PackFileStorage store, int count) {
+        TransactionId tid = store.startTransaction(owner).join();
+        Map<Cid, byte[]> blocks = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            byte[] block = randomBlock(100 + r.nextInt(10_000));
+            blocks.put(store.put(block, true, tid, owner), block);
+        }
+        store.closeTransaction(owner, tid).join();
+        return blocks;
+    }
+
+    private static void checkBlocks(PackFileStorage store, Map<Cid, byte[]> blocks) {
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet()) {
+            Assert.assertArrayEquals(e.getValue(), store.getRaw(e.getKey(), "").join().get());
+            Assert.assertEquals(e.getValue().length, (int) store.getSize(e.getKey()).join().get());
+        }
+    }
+
+    @Test
+    public void putGetAndReopen() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packs");
+        PackFileStorage store = build(dir, 1024 * 1024);
+        Map<Cid, byte[]> blocks = putBlocks(store, 1_000);
+        checkBlocks(store, blocks);
+        Assert.assertEquals(blocks.keySet(), store.getAllBlockHashes().collect(Collectors.toSet()));
+        store.close();
+
+        PackFileStorage reopened = build(dir, 1024 * 1024);
+        checkBlocks(reopened, blocks);
+        Assert.assertEquals(blocks.size(), reopened.getAllBlockHashes().count());
+    }
+
+    @Test
+    public void deleteAndCompact() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packs");
+        PackFileStorage store = build(dir, 256 * 1024);
+        Map<Cid, byte[]> blocks = putBlocks(store, 1_000);
+        long segmentsBefore = Files.list(dir).count();
+
+        List<Cid> toDelete = blocks.keySet().stream().filter(c -> r.nextInt(4) != 0).collect(Collectors.toList());
+        store.bulkDelete(new ArrayList<>(toDelete));
+        toDelete.forEach(blocks::remove);
+        store.compact();
+        Assert.assertTrue(Files.list(dir).count() < segmentsBefore);
+        checkBlocks(store, blocks);
+        for (Cid deleted : toDelete)
+            Assert.assertFalse(store.hasBlock(deleted));
+        store.close();
+
+        PackFileStorage reopened = build(dir, 256 * 1024);
+        checkBlocks(reopened, blocks);
+        Assert.assertEquals(blocks.keySet(), reopened.getAllBlockHashes().collect(Collectors.toSet()));
+    }
+
+    @Test
+    public void interruptedReaderDoesNotBreakOthers() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packs");
+        PackFileStorage store = build(dir, 1024 * 1024 * 1024);
+        Map<Cid, byte[]> blocks = putBlocks(store, 100);
+        Cid target = blocks.keySet().iterator().next();
+
+        // an interrupted read closes the segment's shared channel
+        CompletableFuture<Throwable> failure = new CompletableFuture<>();
+        CompletableFuture<Boolean> stillInterrupted = new CompletableFuture<>();
+        Thread reader = new Thread(() -> {
+            Thread.currentThread().interrupt();
+            try {
+                store.getRaw(target, "").join();
+                failure.complete(null);
+            } catch (Throwable t) {
+                failure.complete(t);
+            }
+            stillInterrupted.complete(Thread.currentThread().isInterrupted());
+        });
+        reader.start();
+        reader.join(10_000);
+        Throwable t = failure.get(10, TimeUnit.SECONDS);
+        Assert.assertNotNull("Interrupted read failed", t);
+        Assert.assertTrue(t.getCause() instanceof ClosedByInterruptException);
+        Assert.assertTrue("Interrupt flag restored", stillInterrupted.get(10, TimeUnit.SECONDS));
+
+        checkBlocks(store, blocks);
+        Map<Cid, byte[]> more = putBlocks(store, 10);
+        checkBlocks(store, more);
+        store.close();
+    }
+
+    @Test
+    public void truncateTornWrite() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packs");
+        PackFileStorage store = build(dir, 1024 * 1024 * 1024);
+        Map<Cid, byte[]> blocks = putBlocks(store, 100);
+        store.close();
+
+        // simulate a crash part way through appending a block
+        Path segment = Files.list(dir).findFirst().get();
+        try (OutputStream out = Files.newOutputStream(segment, StandardOpenOption.APPEND)) {
+            out.write(randomBlock(1000));
+        }
+        PackFileStorage reopened = build(dir, 1024 * 1024 * 1024);
+        checkBlocks(reopened, blocks);
+        Map<Cid, byte[]> more = putBlocks(reopened, 10);
+        reopened.close();
+
+        PackFileStorage again = build(dir, 1024 * 1024 * 1024);
+        checkBlocks(again, blocks);
+        checkBlocks(again, more);
+    }
+}
@@ -0,0 +1,97 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class S3ParallelListerTests {
+    private static final Random r = new Random(42);
+
+    private static S3ParallelLister.Lister bucket(NavigableSet<String> keys, int pageSize, AtomicInteger requests) {
+        return (prefix, startAfter) -> {
+            requests.incrementAndGet();
+            NavigableSet<String> after = startAfter.map(s -> keys.tailSet(s, false)).orElse(keys);
+            List<S3AdminRequests.ObjectMetadata> page = new ArrayList<>();
+            boolean truncated = false;
+            for (String key : after) {
+                if (! key.startsWith(prefix)) {
+                    if (key.compareTo(prefix) > 0)
+                        break;
+                    continue;
+                }
+                if (page.size() == pageSize) {
+                    truncated = true;
+                    break;
+                }
+                page.add(new S3AdminRequests.ObjectMetadata(key, "", LocalDateTime.now(), 0));
+            }
+            return new S3AdminRequests.ListObjectsReply(prefix, truncated, page, Optional.empty());
+        };
+    }
+
+    private static String blockKey(Cid.Codec codec) {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return DirectS3BlockStore.hashToKey(Cid.buildCidV1(codec, Multihash.Type.sha2_256, hash));
+    }
+
+    @Test
+    public void listsEveryKeyOnce() {
+        NavigableSet<String> keys = new TreeSet<>();
+        for (int i = 0; i < 20_000; i++)
+            keys.add("blocks/" + blockKey(i % 3 == 0 ? Cid.Codec.DagCbor : Cid.Codec.Raw));
+        // keys outside the block key alphabet and prefix
+        keys.add("blocks/");
+        keys.add("blocks/a-lowercase-key");
+        keys.add("blocks/~");
+        keys.add("other/" + blockKey(Cid.Codec.Raw));
+
+        AtomicInteger requests = new AtomicInteger();
+        List<String> listed;
+        try (Stream<S3AdminRequests.ObjectMetadata> objects = S3ParallelLister.list("blocks/", bucket(keys, 100, requests), 8)) {
+            listed = objects.map(o -> o.key).collect(Collectors.toList());
+        }
+        Set<String> expected = keys.stream()
+                .filter(k -> k.startsWith("blocks/"))
+                .collect(Collectors.toSet());
+        Assert.assertEquals(expected.size(), listed.size());
+        Assert.assertEquals(expected, new HashSet<>(listed));
+        // splitting costs some empty requests, but stays proportional to the number of pages
+        Assert.assertTrue(requests.get() < 5 * keys.size() / 100);
+    }
+
+    @Test
+    public void listsRange() {
+        NavigableSet<String> keys = new TreeSet<>();
+        for (int i = 0; i < 5_000; i++)
+            keys.add(blockKey(Cid.Codec.Raw));
+        List<String> sorted = new ArrayList<>(keys);
+        String start = sorted.get(1000), end = sorted.get(4000);
+        try (Stream<S3AdminRequests.ObjectMetadata> objects = S3ParallelLister.list("", Optional.of(start),
+                Optional.of(end), bucket(keys, 50, new AtomicInteger()), 4, 2)) {
+            List<String> listed = objects.map(o -> o.key).sorted().collect(Collectors.toList());
+            Assert.assertEquals(sorted.subList(1001, 4001), listed);
+        }
+    }
+
+    @Test
+    public void stopsWhenClosedEarly() {
+        NavigableSet<String> keys = new TreeSet<>();
+        for (int i = 0; i < 10_000; i++)
+            keys.add(blockKey(Cid.Codec.Raw));
+        AtomicInteger requests = new AtomicInteger();
+        try (Stream<S3AdminRequests.ObjectMetadata> objects = S3ParallelLister.list("", Optional.empty(),
+                Optional.empty(), bucket(keys, 10, requests), 4, 2)) {
+            Assert.assertEquals(10, objects.limit(10).count());
+        }
+        // backpressure means we only listed a little further than was consumed
+        Assert.assertTrue(requests.get() < 200);
+    }
+}
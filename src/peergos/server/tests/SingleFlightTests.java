@@ -0,0 +1,58 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class SingleFlightTests {
+
+    @Test
+    public void concurrentCallersShareOneFetch() {
+        SingleFlight<Integer, String> flight = new SingleFlight<>();
+        AtomicInteger fetches = new AtomicInteger();
+        Map<Integer, CompletableFuture<String>> downstream = new HashMap<>();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        // many more distinct keys in flight than the old bounded maps could hold
+        for (int round = 0; round < 3; round++)
+            for (int key = 0; key < 1000; key++) {
+                int k = key;
+                results.add(flight.get(key, () -> {
+                    fetches.incrementAndGet();
+                    CompletableFuture<String> res = new CompletableFuture<>();
+                    downstream.put(k, res);
+                    return res;
+                }));
+            }
+        Assert.assertEquals(1000, fetches.get());
+        Assert.assertEquals(1000, flight.inFlight());
+        Assert.assertEquals(2000, flight.savedCount());
+
+        downstream.forEach((k, f) -> f.complete("v" + k));
+        for (int i = 0; i < results.size(); i++)
+            Assert.assertEquals("v" + (i % 1000), results.get(i).join());
+        Assert.assertEquals(0, flight.inFlight());
+
+        // completed keys are fetched again
+        flight.get(0, () -> {
+            fetches.incrementAndGet();
+            return Futures.of("again");
+        }).join();
+        Assert.assertEquals(1001, fetches.get());
+    }
+
+    @Test
+    public void failuresAreSharedAndCleared() {
+        SingleFlight<Integer, String> flight = new SingleFlight<>();
+        CompletableFuture<String> downstream = new CompletableFuture<>();
+        CompletableFuture<String> first = flight.get(7, () -> downstream);
+        CompletableFuture<String> second = flight.get(7, () -> Futures.of("unused"));
+        downstream.completeExceptionally(new IllegalStateException("boom"));
+        Assert.assertTrue(first.isCompletedExceptionally());
+        Assert.assertTrue(second.isCompletedExceptionally());
+        Assert.assertEquals(0, flight.inFlight());
+        Assert.assertEquals("retry", flight.get(7, () -> Futures.of("retry")).join());
+    }
+}
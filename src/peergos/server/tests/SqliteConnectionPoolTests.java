@@ -0,0 +1,110 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.util.*;
+
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SqliteConnectionPoolTests {
+
+    private static SqliteConnectionPool build() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-sqlite");
+        SqliteConnectionPool pool = new SqliteConnectionPool(dir.resolve("test.sql").toString(), 4);
+        try (Connection conn = pool.get();
+             Statement create = conn.createStatement()) {
+            create.executeUpdate("CREATE TABLE IF NOT EXISTS kv (k varchar(64) primary key not null, v BIGINT not null);");
+        }
+        return pool;
+    }
+
+    private static void insert(SqliteConnectionPool pool, String key, long value) throws SQLException {
+        try (Connection conn = pool.get();
+             PreparedStatement insert = conn.prepareStatement("INSERT INTO kv (k, v) VALUES(?, ?);")) {
+            insert.setString(1, key);
+            insert.setLong(2, value);
+            insert.executeUpdate();
+        }
+    }
+
+    private static long count(SqliteConnectionPool pool) throws SQLException {
+        try (Connection conn = pool.get();
+             PreparedStatement select = conn.prepareStatement("SELECT COUNT(*) FROM kv;")) {
+            ResultSet rs = select.executeQuery();
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void concurrentWritersAreGroupCommitted() throws Exception {
+        SqliteConnectionPool pool = build();
+        int writers = 16, perWriter = 100;
+        ExecutorService threads = Executors.newFixedThreadPool(writers);
+        List<Future<Long>> done = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            done.add(threads.submit(() -> {
+                for (int i = 0; i < perWriter; i++)
+                    insert(pool, writer + "-" + i, i);
+                // read our own writes
+                return count(pool);
+            }));
+        }
+        for (Future<Long> f : done)
+            Assert.assertTrue(f.get() >= perWriter);
+        threads.shutdown();
+        Assert.assertEquals(writers * perWriter, count(pool));
+        pool.close();
+    }
+
+    @Test
+    public void failedStatementOnlyFailsItsCaller() throws Exception {
+        SqliteConnectionPool pool = build();
+        insert(pool, "a", 1);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> done = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String key = i % 2 == 0 ? "a" : "b" + i;
+            done.add(threads.submit(() -> {
+                try {
+                    insert(pool, key, 2);
+                    return true;
+                } catch (SQLException e) {
+                    return false;
+                }
+            }));
+        }
+        for (int i = 0; i < 8; i++)
+            Assert.assertEquals(i % 2 != 0, done.get(i).get());
+        threads.shutdown();
+        Assert.assertEquals(5, count(pool));
+        pool.close();
+    }
+
+    @Test
+    public void explicitTransactions() throws Exception {
+        SqliteConnectionPool pool = build();
+        try (Connection conn = pool.get();
+             PreparedStatement insert = conn.prepareStatement("INSERT INTO kv (k, v) VALUES(?, ?);")) {
+            conn.setAutoCommit(false);
+            for (int i = 0; i < 10; i++) {
+                insert.setString(1, "k" + i);
+                insert.setLong(2, i);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            conn.rollback();
+            Assert.assertEquals(0, count(pool));
+
+            insert.setString(1, "x");
+            insert.setLong(2, 1);
+            insert.executeUpdate();
+            conn.commit();
+        }
+        Assert.assertEquals(1, count(pool));
+        pool.close();
+    }
+}
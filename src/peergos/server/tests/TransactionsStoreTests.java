@@ -15,6 +15,7 @@ import peergos.shared.storage.*;
 import java.security.*;
 import java.sql.*;
 import java.util.*;
+import java.util.function.*;
 
 @RunWith(Parameterized.class)
 public class TransactionsStoreTests {
@@ -28,8 +29,10 @@ public class TransactionsStoreTests {
     @Parameterized.Parameters()
     public static Collection<Object[]> parameters() throws Exception {
         TransactionStore ram = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        TransactionStore buffered = new BufferedTransactionStore(JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()));
         return Arrays.asList(new Object[][] {
-                {ram}
+                {ram},
+                {buffered}
         });
     }
 
@@ -66,4 +69,19 @@ public class TransactionsStoreTests {
         List<Multihash> empty = store.getOpenTransactionBlocks();
         Assert.assertTrue("All blocks removed", empty.isEmpty());
     }
+
+    @Test
+    public void batchLeavesSharedConnectionInAutoCommit() throws SQLException {
+        Supplier<Connection> shared = Main.buildEphemeralSqlite();
+        JdbcTransactionStore jdbc = JdbcTransactionStore.build(shared, new SqliteCommands());
+        PublicKeyHash owner = new PublicKeyHash(hashToCid(new byte[3], true));
+        TransactionId tid = jdbc.startTransaction(owner);
+        List<Multihash> blocks = new ArrayList<>();
+        for (int i=0; i < 20; i++)
+            blocks.add(hashToCid(new byte[]{(byte) i, 1}, false));
+        jdbc.addBlocks(blocks, tid, owner);
+
+        Assert.assertTrue("Shared connection still in auto commit", shared.get().getAutoCommit());
+        Assert.assertTrue("All blocks present", jdbc.getOpenTransactionBlocks().containsAll(blocks));
+    }
 }
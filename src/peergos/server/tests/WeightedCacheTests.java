@@ -0,0 +1,78 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class WeightedCacheTests {
+
+    @Test
+    public void boundedByWeight() {
+        WeightedCache<Integer, byte[]> cache = new WeightedCache<>(1, 10_000, b -> b.length);
+        for (int i = 0; i < 10; i++)
+            Assert.assertTrue(cache.put(i, new byte[1000]));
+        Assert.assertEquals(10_000, cache.weightedSize());
+        // a large value displaces several small ones
+        cache.get(9);
+        cache.get(9);
+        Assert.assertTrue(cache.put(100, new byte[3500]));
+        Assert.assertTrue(cache.weightedSize() <= 10_000);
+        Assert.assertEquals(4, cache.evictionCount());
+        Assert.assertNull(cache.get(0));
+        Assert.assertNotNull(cache.get(9));
+        Assert.assertFalse(cache.put(101, new byte[10_001]));
+    }
+
+    @Test
+    public void frequentEntriesSurviveScans() {
+        WeightedCache<Integer, byte[]> cache = new WeightedCache<>(1, 100, b -> 1);
+        for (int round = 0; round < 5; round++)
+            for (int i = 0; i < 50; i++) {
+                if (cache.get(i) == null)
+                    cache.put(i, new byte[0]);
+            }
+        // a one-off scan of many more keys than fit
+        for (int i = 1000; i < 1300; i++) {
+            if (cache.get(i) == null)
+                cache.put(i, new byte[0]);
+        }
+        // an LRU cache would have lost all of them, the frequency sketch is only approximate
+        long survivors = IntStream.range(0, 50)
+                .filter(i -> cache.get(i) != null)
+                .count();
+        Assert.assertTrue(survivors >= 45);
+        Assert.assertTrue(cache.rejectionCount() > 0);
+        Assert.assertTrue(cache.size() <= 100);
+    }
+
+    @Test
+    public void concurrentAccess() throws Exception {
+        WeightedCache<Integer, byte[]> cache = WeightedCache.bytes(64 * 1024 * 1024);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> tasks = IntStream.range(0, 8)
+                .mapToObj(t -> pool.submit(() -> {
+                    Random r = new Random(t);
+                    for (int i = 0; i < 100_000; i++) {
+                        int key = r.nextInt(20_000);
+                        byte[] val = cache.get(key);
+                        if (val == null)
+                            cache.put(key, new byte[key % 4096]);
+                        else
+                            Assert.assertEquals(key % 4096, val.length);
+                        if (i % 1000 == 0)
+                            cache.remove(key);
+                    }
+                }))
+                .collect(Collectors.toList());
+        for (Future<?> task : tasks)
+            task.get();
+        pool.shutdown();
+        Assert.assertTrue(cache.weightedSize() <= cache.maxWeight());
+        long actual = cache.values().stream().mapToLong(v -> v.length + 96).sum();
+        Assert.assertEquals(actual, cache.weightedSize());
+        Assert.assertTrue(cache.hitRate() > 0);
+    }
+}
@@ -0,0 +1,143 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class WriteBackTierTests {
+    private static final Random r = new Random(42);
+
+    private static Cid randomCid() {
+        byte[] hash = new byte[32];
+        r.nextBytes(hash);
+        return Cid.buildCidV1(Cid.Codec.Raw, Multihash.Type.sha2_256, hash);
+    }
+
+    private static void waitFor(WriteBackTier tier) throws Exception {
+        for (int i = 0; i < 200 && ! tier.getBacklog().isEmpty(); i++)
+            Thread.sleep(50);
+    }
+
+    @Test
+    public void uploadInBackground() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-write-back");
+        WriteBackTier tier = new WriteBackTier(dir, 1_000_000, 4);
+        Map<Cid, byte[]> uploaded = new ConcurrentHashMap<>();
+        CountDownLatch release = new CountDownLatch(1);
+        tier.start((c, b) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {}
+            uploaded.put(c, b);
+        });
+        List<Cid> blocks = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Cid c = randomCid();
+            blocks.add(c);
+            Assert.assertTrue(tier.put(c, ("block " + i).getBytes()));
+        }
+        // served locally before the upload completes
+        Assert.assertEquals("block 3", new String(tier.get(blocks.get(3)).get()));
+        Assert.assertEquals(20, tier.getBacklog().size());
+
+        release.countDown();
+        waitFor(tier);
+        Assert.assertTrue(tier.getBacklog().isEmpty());
+        Assert.assertEquals(20, uploaded.size());
+        Assert.assertEquals("block 7", new String(uploaded.get(blocks.get(7))));
+        Assert.assertTrue(tier.get(blocks.get(3)).isEmpty());
+        tier.stop();
+    }
+
+    @Test
+    public void retryRateLimitedUploads() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-write-back");
+        WriteBackTier tier = new WriteBackTier(dir, 1_000_000, 4);
+        AtomicInteger attempts = new AtomicInteger();
+        Set<Cid> uploaded = ConcurrentHashMap.newKeySet();
+        tier.start((c, b) -> {
+            if (attempts.incrementAndGet() <= 3)
+                throw new RateLimitException();
+            uploaded.add(c);
+        });
+        Cid c = randomCid();
+        tier.put(c, new byte[100]);
+        waitFor(tier);
+        Assert.assertEquals(Set.of(c), uploaded);
+        Assert.assertEquals(4, attempts.get());
+        tier.stop();
+    }
+
+    @Test
+    public void failingBlockDoesNotDelayOthers() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-write-back");
+        WriteBackTier tier = new WriteBackTier(dir, 1_000_000, 4);
+        Cid poisoned = randomCid();
+        AtomicInteger poisonedAttempts = new AtomicInteger();
+        Set<Cid> uploaded = ConcurrentHashMap.newKeySet();
+        tier.start((c, b) -> {
+            if (c.equals(poisoned)) {
+                poisonedAttempts.incrementAndGet();
+                throw new IllegalStateException("Upload failed");
+            }
+            uploaded.add(c);
+        });
+        tier.put(poisoned, new byte[100]);
+        // let the failing block build up a long backoff
+        for (int i = 0; i < 200 && poisonedAttempts.get() < 6; i++)
+            Thread.sleep(50);
+        Assert.assertTrue(poisonedAttempts.get() >= 6);
+
+        long start = System.currentTimeMillis();
+        Cid c = randomCid();
+        tier.put(c, new byte[100]);
+        for (int i = 0; i < 200 && ! uploaded.contains(c); i++)
+            Thread.sleep(10);
+        Assert.assertTrue(uploaded.contains(c));
+        Assert.assertTrue("New blocks are uploaded without waiting for the failed block's backoff",
+                System.currentTimeMillis() - start < 1_000);
+        Assert.assertEquals(List.of(poisoned), tier.getBacklog());
+        tier.stop();
+    }
+
+    @Test
+    public void resumeBacklogAfterRestart() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-write-back");
+        WriteBackTier tier = new WriteBackTier(dir, 1_000_000, 4);
+        tier.start((c, b) -> {
+            throw new IllegalStateException("S3 is down");
+        });
+        Cid a = randomCid(), b = randomCid();
+        tier.put(a, new byte[100]);
+        tier.put(b, new byte[200]);
+        Assert.assertEquals(300, tier.getBacklogBytes());
+        tier.stop();
+
+        WriteBackTier reopened = new WriteBackTier(dir, 1_000_000, 4);
+        Assert.assertEquals(Set.of(a, b), new HashSet<>(reopened.getBacklog()));
+        Set<Cid> uploaded = ConcurrentHashMap.newKeySet();
+        reopened.start((c, data) -> uploaded.add(c));
+        waitFor(reopened);
+        Assert.assertEquals(Set.of(a, b), uploaded);
+        reopened.stop();
+    }
+
+    @Test
+    public void refusePutsWhenBacklogIsFull() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-write-back");
+        WriteBackTier tier = new WriteBackTier(dir, 1_000, 4);
+        tier.start((c, b) -> {
+            throw new IllegalStateException("S3 is down");
+        });
+        Assert.assertTrue(tier.put(randomCid(), new byte[800]));
+        Assert.assertFalse(tier.put(randomCid(), new byte[800]));
+        tier.stop();
+    }
+}
@@ -0,0 +1,198 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.server.tests.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+public class ChampBenchmark {
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Random r = new Random(28);
+    private static final Function<Cborable, CborObject.CborMerkleLink> fromCbor = c -> (CborObject.CborMerkleLink) c;
+
+    private static class CountingStorage extends RAMStorage {
+        public final AtomicLong puts = new AtomicLong(), blocks = new AtomicLong();
+
+        public CountingStorage() {
+            super(crypto.hasher);
+        }
+
+        @Override
+        public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
+                                                PublicKeyHash writer,
+                                                List<byte[]> signedHashes,
+                                                List<byte[]> blocks,
+                                                TransactionId tid) {
+            puts.incrementAndGet();
+            this.blocks.addAndGet(blocks.size());
+            return super.put(owner, writer, signedHashes, blocks, tid);
+        }
+    }
+
+    private static List<Triple<byte[], Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> randomPuts(int n) {
+        return IntStream.range(0, n)
+                .mapToObj(i -> {
+                    byte[] key = new byte[32];
+                    r.nextBytes(key);
+                    byte[] value = new byte[32];
+                    r.nextBytes(value);
+                    return new Triple<>(key, Optional.<CborObject.CborMerkleLink>empty(),
+                            Optional.of(new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, value))));
+                }).collect(Collectors.toList());
+    }
+
+    private static ChampWrapper<CborObject.CborMerkleLink> emptyChamp(CountingStorage storage, SigningPrivateKeyAndPublicHash user, TransactionId tid) {
+        return ChampWrapper.create(user.publicKeyHash, user, IpfsCoreNode::keyHash, tid, storage, crypto.hasher,
+                fromCbor).join();
+    }
+
+    // Sequential: 10000 puts, 43401 blocks written in 43401 calls, took 132208ms
+    // Bulk: 10000 puts, 1015 blocks written in 2 calls, took 3416ms
+    @Test
+    public void bulkInsert() {
+        int n = 10_000;
+        List<Triple<byte[], Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> puts = randomPuts(n);
+
+        CountingStorage sequentialStorage = new CountingStorage();
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(sequentialStorage, crypto);
+        TransactionId tid = sequentialStorage.startTransaction(user.publicKeyHash).join();
+        ChampWrapper<CborObject.CborMerkleLink> sequential = emptyChamp(sequentialStorage, user, tid);
+        long t0 = System.currentTimeMillis();
+        Multihash sequentialRoot = null;
+        for (Triple<byte[], Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>> put : puts)
+            sequentialRoot = sequential.put(user.publicKeyHash, user, put.left, put.middle, put.right.get(), tid).join();
+        long t1 = System.currentTimeMillis();
+        System.out.println("Sequential: " + n + " puts, " + sequentialStorage.blocks.get() + " blocks written in "
+                + sequentialStorage.puts.get() + " calls, took " + (t1 - t0) + "ms");
+
+        CountingStorage bulkStorage = new CountingStorage();
+        TransactionId tid2 = bulkStorage.startTransaction(user.publicKeyHash).join();
+        ChampWrapper<CborObject.CborMerkleLink> bulk = emptyChamp(bulkStorage, user, tid2);
+        long t2 = System.currentTimeMillis();
+        Multihash bulkRoot = bulk.applyMutations(user.publicKeyHash, user, puts, tid2).join();
+        long t3 = System.currentTimeMillis();
+        System.out.println("Bulk: " + n + " puts, " + bulkStorage.blocks.get() + " blocks written in "
+                + bulkStorage.puts.get() + " calls, took " + (t3 - t2) + "ms");
+        Assert.assertEquals(sequentialRoot, bulkRoot);
+    }
+
+    private static long lookupAll(Cid root, List<byte[]> keys, CountingStorage storage, int rounds) {
+        long t0 = System.nanoTime();
+        for (int i=0; i < rounds; i++) {
+            // a fresh wrapper per round, as for independent requests
+            ChampWrapper<CborObject.CborMerkleLink> champ = ChampWrapper.create(root, IpfsCoreNode::keyHash, storage,
+                    crypto.hasher, fromCbor).join();
+            for (byte[] key : keys)
+                Assert.assertTrue(champ.get(key).join().isPresent());
+        }
+        return System.nanoTime() - t0;
+    }
+
+    // Uncached: 21838ns per lookup
+    // Cached: 4735ns per lookup
+    @Test
+    public void cachedLookups() {
+        int n = 10_000, rounds = 10;
+        List<Triple<byte[], Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> puts = randomPuts(n);
+        CountingStorage storage = new CountingStorage();
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).join();
+        Cid root = (Cid) emptyChamp(storage, user, tid).applyMutations(user.publicKeyHash, user, puts, tid).join();
+        List<byte[]> keys = puts.stream().map(t -> t.left).collect(Collectors.toList());
+
+        long defaultSize = ChampCache.cache().maxWeight();
+        try {
+            ChampCache.setMaxSize(0);
+            lookupAll(root, keys, storage, 1);
+            long uncached = lookupAll(root, keys, storage, rounds);
+            ChampCache.setMaxSize(defaultSize);
+            lookupAll(root, keys, storage, 1);
+            long cached = lookupAll(root, keys, storage, rounds);
+            System.out.println("Uncached: " + (uncached / rounds / n) + "ns per lookup");
+            System.out.println("Cached: " + (cached / rounds / n) + "ns per lookup");
+        } finally {
+            ChampCache.setMaxSize(defaultSize);
+        }
+    }
+
+    /** Simulate a remote store with a fixed round trip time
+     */
+    private static class LatencyStorage extends DelegatingStorage {
+        private final ContentAddressedStorage target;
+        private final ScheduledExecutorService delays = Executors.newScheduledThreadPool(16);
+        private final long latencyMillis;
+        public final AtomicLong gets = new AtomicLong();
+
+        public LatencyStorage(ContentAddressedStorage target, long latencyMillis) {
+            super(target);
+            this.target = target;
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public ContentAddressedStorage directToOrigin() {
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<Optional<CborObject>> get(Cid hash, Optional<BatWithId> bat) {
+            gets.incrementAndGet();
+            CompletableFuture<Optional<CborObject>> res = new CompletableFuture<>();
+            delays.schedule(() -> res.complete(target.get(hash, bat).join()), latencyMillis, TimeUnit.MILLISECONDS);
+            return res;
+        }
+    }
+
+    private static long diff(Multihash original, Multihash updated, LatencyStorage storage, int parallelism, int expectedChanges) {
+        ChampCache.clear();
+        storage.gets.set(0);
+        AtomicInteger changes = new AtomicInteger();
+        long t0 = System.currentTimeMillis();
+        Champ.applyToDiff(MaybeMultihash.of(original), MaybeMultihash.of(updated), 0, IpfsCoreNode::keyHash,
+                Collections.emptyList(), Collections.emptyList(), t -> changes.incrementAndGet(),
+                ChampWrapper.BIT_WIDTH, parallelism, storage, fromCbor).join();
+        long duration = System.currentTimeMillis() - t0;
+        Assert.assertEquals(expectedChanges, changes.get());
+        System.out.println("Diff with parallelism " + parallelism + ": " + changes.get() + " changes, "
+                + storage.gets.get() + " nodes fetched, took " + duration + "ms");
+        return duration;
+    }
+
+    // Diff with parallelism 1: 5 changes, 58 nodes fetched, took 281ms
+    // Diff with parallelism 16: 5 changes, 58 nodes fetched, took 198ms
+    @Test
+    public void sparseDiff() {
+        int n = 1_000_000, changed = 5;
+        List<Triple<byte[], Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> puts = randomPuts(n);
+        CountingStorage storage = new CountingStorage();
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).join();
+        ChampWrapper<CborObject.CborMerkleLink> champ = emptyChamp(storage, user, tid);
+        Multihash original = champ.applyMutations(user.publicKeyHash, user, puts, tid).join();
+        List<Triple<byte[], Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> updates = puts.subList(0, changed).stream()
+                .map(t -> new Triple<>(t.left, t.right, randomPuts(1).get(0).right))
+                .collect(Collectors.toList());
+        Multihash updated = champ.applyMutations(user.publicKeyHash, user, updates, tid).join();
+
+        LatencyStorage remote = new LatencyStorage(storage, 5);
+        diff(original, updated, remote, 1, changed);
+        diff(original, updated, remote, ChampDiff.DEFAULT_PARALLELISM, changed);
+    }
+}
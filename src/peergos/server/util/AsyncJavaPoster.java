@@ -0,0 +1,185 @@
+package peergos.server.util;
+
+import peergos.shared.io.ipfs.api.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.zip.*;
+
+/** An HttpPoster on top of the pooled, non-blocking PooledHttpClient. Requests reuse kept-alive (or multiplexed
+ *  HTTP/2) connections and no thread is held while waiting for a response.
+ */
+public class AsyncJavaPoster implements HttpPoster {
+	private static final Logger LOG = Logging.LOG();
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(1);
+
+    private final URL dht;
+    private final boolean useGet;
+    private final Optional<String> basicAuth;
+
+    public AsyncJavaPoster(URL dht, boolean isPublicServer, Optional<String> basicAuth) {
+        this.dht = dht;
+        this.useGet = isPublicServer;
+        this.basicAuth = basicAuth;
+    }
+
+    public AsyncJavaPoster(URL dht, boolean isPublicServer) {
+        this(dht, isPublicServer, Optional.empty());
+    }
+
+    public URL buildURL(String method) throws IOException {
+        try {
+            return new URL(dht, method);
+        } catch (MalformedURLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private HttpRequest.Builder request(String url, Map<String, String> headers) throws IOException {
+        HttpRequest.Builder req = PooledHttpClient.request(buildURL(url).toString(), headers);
+        basicAuth.ifPresent(auth -> req.header("Authorization", auth));
+        return req;
+    }
+
+    private static Optional<Duration> timeout(int timeoutMillis) {
+        return timeoutMillis >= 0 ? Optional.of(Duration.ofMillis(timeoutMillis)) : Optional.empty();
+    }
+
+    private static byte[] body(HttpResponse<byte[]> resp, boolean unzip) throws IOException {
+        boolean isGzipped = resp.headers().firstValue("Content-Encoding").map("gzip"::equals).orElse(false);
+        if (! isGzipped || ! unzip)
+            return resp.body();
+        return Serialize.readFully(new GZIPInputStream(new ByteArrayInputStream(resp.body())));
+    }
+
+    private static Optional<String> trailer(HttpResponse<byte[]> resp) {
+        return resp.headers().firstValue("Trailer");
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postUnzip(String url, byte[] payload, int timeoutMillis) {
+        return post(url, payload, true, timeoutMillis);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip, int timeoutMillis) {
+        try {
+            HttpRequest.Builder req = request(url, Collections.emptyMap());
+            return PooledHttpClient.send(req, "POST", Optional.of(payload), CONNECT_TIMEOUT, timeout(timeoutMillis)).thenApply(resp -> {
+                if (resp.statusCode() >= 400) {
+                    Optional<String> trailer = trailer(resp);
+                    if (trailer.isPresent()) {
+                        LOG.warning("Trailer: " + trailer.get());
+                        throw new RuntimeException(trailer.get());
+                    }
+                    LOG.warning("HTTP " + resp.statusCode() + " retrieving " + url);
+                    throw new UncheckedIOException(new IOException("HTTP " + resp.statusCode() + " retrieving " + url));
+                }
+                try {
+                    return body(resp, unzip);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException e) {
+            return Futures.errored(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
+        try {
+            String boundary = Multipart.createBoundary();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            for (byte[] file : files) {
+                body.write(("--" + boundary + "\r\n" +
+                        "Content-Disposition: file; name=\"file\";\r\n" +
+                        "Content-Type: application/octet-stream\r\n" +
+                        "Content-Transfer-Encoding: binary\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                body.write(file);
+                body.write("\r\n".getBytes(StandardCharsets.UTF_8));
+            }
+            body.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+            HttpRequest.Builder req = request(url, Collections.emptyMap())
+                    .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                    .header("User-Agent", "Java IPFS Client");
+            return PooledHttpClient.send(req, "POST", Optional.of(body.toByteArray()), CONNECT_TIMEOUT, Optional.empty()).thenApply(resp -> {
+                String text = new String(resp.body(), StandardCharsets.UTF_8);
+                if (resp.statusCode() == 204)
+                    return new byte[0];
+                if (resp.statusCode() != 200)
+                    throw new UncheckedIOException(new IOException("Server returned status: " + resp.statusCode() +
+                            " with body: " + text + " and Trailer header: " + trailer(resp)));
+                // Match Multipart, which joins the response lines
+                return text.replace("\r", "").replace("\n", "").getBytes(StandardCharsets.UTF_8);
+            });
+        } catch (IOException e) {
+            return Futures.errored(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> put(String url, byte[] body, Map<String, String> headers) {
+        try {
+            HttpRequest.Builder req = request(url, headers);
+            return PooledHttpClient.send(req, "PUT", Optional.of(body), CONNECT_TIMEOUT, Optional.empty()).thenApply(resp -> {
+                if (resp.statusCode() >= 400)
+                    throw new UncheckedIOException(new IOException("HTTP " + resp.statusCode()));
+                return resp.body();
+            });
+        } catch (IOException e) {
+            return Futures.errored(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String url) {
+        return get(url, Collections.emptyMap());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String url, Map<String, String> headers) {
+        if (useGet) {
+            return publicGet(url, headers);
+        } else {
+            // This changes to a POST with an empty body
+            // The reason for this is browsers allow any website to do a get request to localhost
+            // but they block POST requests. So this prevents random websites from calling APIs on localhost
+            return postUnzip(url, new byte[0]);
+        }
+    }
+
+    private CompletableFuture<byte[]> publicGet(String url, Map<String, String> headers) {
+        try {
+            HttpRequest.Builder req = request(url, headers);
+            return PooledHttpClient.send(req, "GET", Optional.empty(), CONNECT_TIMEOUT, timeout(15_000)).thenApply(resp -> {
+                if (resp.statusCode() >= 400) {
+                    Optional<String> trailer = trailer(resp);
+                    if (trailer.isPresent())
+                        throw new IllegalStateException(URLDecoder.decode(trailer.get(), StandardCharsets.UTF_8));
+                    throw new RuntimeException(new IOException("HTTP " + resp.statusCode() + " retrieving " + url));
+                }
+                try {
+                    return body(resp, true);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException e) {
+            return Futures.errored(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return dht.toString();
+    }
+}
@@ -6,7 +6,10 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.net.*;
+import java.net.http.*;
+import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 public class HttpUtil {
@@ -67,63 +70,60 @@ public class HttpUtil {
         }
     }
 
-    public static byte[] get(PresignedUrl url) throws IOException {
-        try {
-            HttpURLConnection conn = (HttpURLConnection) new URI(url.base).toURL().openConnection();
-            conn.setConnectTimeout(10_000);
-            conn.setReadTimeout(60_000);
-            conn.setRequestMethod("GET");
-            for (Map.Entry<String, String> e : url.fields.entrySet()) {
-                conn.setRequestProperty(e.getKey(), e.getValue());
-            }
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration GET_TIMEOUT = Duration.ofSeconds(60);
+
+    /** S3 requests go through the shared connection pool, so they reuse TLS connections (and HTTP/2 streams)
+     */
+    private static HttpResponse<byte[]> send(String method,
+                                             PresignedUrl url,
+                                             Optional<byte[]> body,
+                                             Optional<Duration> responseTimeout) throws IOException {
+        return PooledHttpClient.sendSync(PooledHttpClient.request(url.base, url.fields), method, body,
+                CONNECT_TIMEOUT, responseTimeout);
+    }
 
+    public static CompletableFuture<byte[]> getAsync(PresignedUrl url) {
+        return PooledHttpClient.send(PooledHttpClient.request(url.base, url.fields), "GET", Optional.empty(),
+                CONNECT_TIMEOUT, Optional.of(GET_TIMEOUT)).thenApply(resp -> {
             try {
-                int respCode = conn.getResponseCode();
-                if (respCode == 503)
-                    throw new RateLimitException();
-                if (respCode == 404)
-                    throw new FileNotFoundException();
-                InputStream in = conn.getInputStream();
-                return Serialize.readFully(in);
+                return getBody(resp);
             } catch (IOException e) {
-                InputStream err = conn.getErrorStream();
-                if (err == null)
-                    throw e;
-                byte[] errBody = Serialize.readFully(err);
-                throw new IOException(new String(errBody), e);
+                throw new UncheckedIOException(e);
             }
-        } catch (URISyntaxException e) {
-            throw new RuntimeException(e);
-        }
+        });
     }
 
-    public static Map<String, List<String>> head(PresignedUrl head) throws IOException {
-        try {
-            HttpURLConnection conn = (HttpURLConnection) new URI(head.base).toURL().openConnection();
-            conn.setRequestMethod("HEAD");
-            for (Map.Entry<String, String> e : head.fields.entrySet()) {
-                conn.setRequestProperty(e.getKey(), e.getValue());
-            }
+    private static byte[] getBody(HttpResponse<byte[]> resp) throws IOException {
+        int respCode = resp.statusCode();
+        if (respCode == 503)
+            throw new RateLimitException();
+        if (respCode == 404)
+            throw new FileNotFoundException();
+        if (respCode >= 400)
+            throw new IOException(new String(resp.body()));
+        return resp.body();
+    }
 
-            try {
-                int respCode = conn.getResponseCode();
-                if (respCode == 200)
-                    return conn.getHeaderFields();
-                if (respCode == 503)
-                    throw new RateLimitException();
-                if (respCode == 404)
-                    throw new FileNotFoundException();
-                throw new IllegalStateException("HTTP " + respCode);
-            } catch (IOException e) {
-                InputStream err = conn.getErrorStream();
-                if (err == null)
-                    throw e;
-                byte[] errBody = Serialize.readFully(err);
-                throw new IOException(new String(errBody));
-            }
-        } catch (URISyntaxException e) {
-            throw new RuntimeException(e);
+    public static byte[] get(PresignedUrl url) throws IOException {
+        return getBody(send("GET", url, Optional.empty(), Optional.of(GET_TIMEOUT)));
+    }
+
+    public static Map<String, List<String>> head(PresignedUrl head) throws IOException {
+        HttpResponse<byte[]> resp = send("HEAD", head, Optional.empty(), Optional.empty());
+        int respCode = resp.statusCode();
+        if (respCode == 200) {
+            Map<String, List<String>> res = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            res.putAll(resp.headers().map());
+            return res;
         }
+        if (respCode == 503)
+            throw new RateLimitException();
+        if (respCode == 404)
+            throw new FileNotFoundException();
+        if (resp.body().length > 0)
+            throw new IOException(new String(resp.body()));
+        throw new IllegalStateException("HTTP " + respCode);
     }
 
     public static byte[] put(PresignedUrl target, byte[] body) throws IOException {
@@ -135,57 +135,25 @@ public class HttpUtil {
     }
 
     private static byte[] putOrPost(String method, PresignedUrl target, byte[] body) throws IOException {
-        HttpURLConnection conn = null;
-        try {
-            conn = (HttpURLConnection) new URI(target.base).toURL().openConnection();
-            conn.setRequestMethod(method);
-            for (Map.Entry<String, String> e : target.fields.entrySet()) {
-                conn.setRequestProperty(e.getKey(), e.getValue());
-            }
-            conn.setDoOutput(true);
-            OutputStream out = conn.getOutputStream();
-            out.write(body);
-            out.flush();
-            out.close();
-
-            int httpCode = conn.getResponseCode();
-            if (httpCode == 503)
-                throw new RateLimitException();
-            InputStream in = conn.getInputStream();
-            return Serialize.readFully(in);
-        } catch (IOException e) {
-            if (conn != null) {
-                InputStream err = conn.getErrorStream();
-                byte[] errBody = Serialize.readFully(err);
-                throw new IOException(new String(errBody));
-            }
-            throw new RuntimeException(e);
-        } catch (URISyntaxException e) {
-            throw new RuntimeException(e);
-        }
+        HttpResponse<byte[]> resp = send(method, target, Optional.of(body), Optional.empty());
+        int httpCode = resp.statusCode();
+        if (httpCode == 503)
+            throw new RateLimitException();
+        if (httpCode >= 400)
+            throw new IOException(new String(resp.body()));
+        return resp.body();
     }
 
     public static void delete(PresignedUrl target) throws Exception {
-        HttpURLConnection conn = (HttpURLConnection) new URI(target.base).toURL().openConnection();
-        conn.setRequestMethod("DELETE");
-        for (Map.Entry<String, String> e : target.fields.entrySet()) {
-            conn.setRequestProperty(e.getKey(), e.getValue());
-        }
-
-        try {
-            int code = conn.getResponseCode();
-            if (code == 204)
-                return;
-            if (code == 503)
-                throw new RateLimitException();
-            InputStream in = conn.getInputStream();
-            byte[] body = Serialize.readFully(in);
-            throw new IllegalStateException("HTTP " + code + "-" + body);
-        } catch (IOException e) {
-            InputStream err = conn.getErrorStream();
-            byte[] errBody = Serialize.readFully(err);
-            throw new IllegalStateException(new String(errBody), e);
-        }
+        HttpResponse<byte[]> resp = send("DELETE", target, Optional.empty(), Optional.empty());
+        int code = resp.statusCode();
+        if (code == 204)
+            return;
+        if (code == 503)
+            throw new RateLimitException();
+        if (code >= 400)
+            throw new IllegalStateException(new String(resp.body()));
+        throw new IllegalStateException("HTTP " + code + "-" + new String(resp.body()));
     }
 
     public static URL toURL(String url) {
@@ -0,0 +1,208 @@
+package peergos.server.util;
+
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Shared non-blocking HTTP clients which keep connections alive between requests. TLS hosts negotiate HTTP/2, so
+ *  concurrent requests to them are multiplexed over a single connection. Cleartext hosts use pooled HTTP/1.1
+ *  connections, because h2c upgrades are not understood by every server we talk to.
+ *
+ *  The number of concurrent requests to each host is limited, and further requests queue without holding a thread.
+ *  Redirects are followed, as HttpURLConnection does, except from https to http.
+ */
+public class PooledHttpClient {
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 64;
+
+    // the connect timeout is per client, so there is a pair of clients for each one in use
+    private static final Map<String, HttpClient> clients = new ConcurrentHashMap<>();
+    private static final Map<String, HostLimiter> limiters = new ConcurrentHashMap<>();
+    private static volatile int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+
+    public static void setMaxRequestsPerHost(int max) {
+        if (max < 1)
+            throw new IllegalArgumentException("Max requests per host must be positive!");
+        maxRequestsPerHost = max;
+    }
+
+    private static HttpClient client(boolean isHttps, Duration connectTimeout) {
+        HttpClient.Version version = isHttps ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+        return clients.computeIfAbsent(version + " " + connectTimeout, k -> HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build());
+    }
+
+    /** Send a request without blocking the calling thread
+     *
+     * @param req the request, without its method, body or a timeout
+     * @param method
+     * @param body
+     * @param connectTimeout
+     * @param responseTimeout how long to wait for the response headers once the request body has been sent. Like a
+     *                        socket read timeout, and unlike HttpRequest.timeout, it doesn't limit the upload. Neither
+     *                        limits the download of the response body.
+     * @return The response, with the complete body
+     */
+    public static CompletableFuture<HttpResponse<byte[]>> send(HttpRequest.Builder req,
+                                                               String method,
+                                                               Optional<byte[]> body,
+                                                               Duration connectTimeout,
+                                                               Optional<Duration> responseTimeout) {
+        CompletableFuture<Boolean> sent = new CompletableFuture<>();
+        CompletableFuture<Boolean> headers = new CompletableFuture<>();
+        HttpRequest.BodyPublisher publisher = body.isPresent() && body.get().length > 0 ?
+                new SentNotifier(HttpRequest.BodyPublishers.ofByteArray(body.get()), sent) :
+                HttpRequest.BodyPublishers.noBody();
+        HttpRequest built = req.method(method, publisher).build();
+        URI uri = built.uri();
+        HttpClient client = client("https".equals(uri.getScheme()), connectTimeout);
+        HostLimiter limiter = limiters.computeIfAbsent(uri.getScheme() + "://" + uri.getAuthority(),
+                h -> new HostLimiter());
+        return limiter.acquire()
+                .thenCompose(x -> {
+                    CompletableFuture<HttpResponse<byte[]>> exchange;
+                    try {
+                        exchange = client.sendAsync(built, info -> {
+                            headers.complete(true);
+                            return HttpResponse.BodySubscribers.ofByteArray();
+                        });
+                    } catch (Throwable t) {
+                        exchange = Futures.errored(t);
+                    }
+                    exchange.whenComplete((r, t) -> limiter.release());
+                    CompletableFuture<HttpResponse<byte[]>> res = new CompletableFuture<>();
+                    exchange.thenApply(res::complete)
+                            .exceptionally(res::completeExceptionally);
+                    if (responseTimeout.isPresent()) {
+                        if (publisher.contentLength() == 0)
+                            sent.complete(true);
+                        CompletableFuture<HttpResponse<byte[]>> toCancel = exchange;
+                        sent.thenRun(() -> CompletableFuture.delayedExecutor(responseTimeout.get().toMillis(),
+                                TimeUnit.MILLISECONDS).execute(() -> {
+                            if (! headers.isDone() && res.completeExceptionally(new HttpTimeoutException("Response timeout")))
+                                toCancel.cancel(true);
+                        }));
+                    }
+                    return res;
+                })
+                .exceptionally(t -> {
+                    Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                    if (cause instanceof HttpTimeoutException)
+                        throw new CompletionException(new SocketTimeoutException("Timeout on: " + uri));
+                    throw new CompletionException(cause);
+                });
+    }
+
+    /** Send a request and wait for the response, for callers which are already synchronous
+     */
+    public static HttpResponse<byte[]> sendSync(HttpRequest.Builder req,
+                                                String method,
+                                                Optional<byte[]> body,
+                                                Duration connectTimeout,
+                                                Optional<Duration> responseTimeout) throws IOException {
+        try {
+            return send(req, method, body, connectTimeout, responseTimeout).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    // these are set by the client itself, from the url and body
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+    public static HttpRequest.Builder request(String url, Map<String, String> headers) {
+        HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(url));
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            if (RESTRICTED_HEADERS.contains(e.getKey().toLowerCase()))
+                continue;
+            req.header(e.getKey(), e.getValue());
+        }
+        return req;
+    }
+
+    /** Passes a request body through, and records when all of it has been handed to the client
+     */
+    private static class SentNotifier implements HttpRequest.BodyPublisher {
+        private final HttpRequest.BodyPublisher body;
+        private final CompletableFuture<Boolean> sent;
+
+        SentNotifier(HttpRequest.BodyPublisher body, CompletableFuture<Boolean> sent) {
+            this.body = body;
+            this.sent = sent;
+        }
+
+        @Override
+        public long contentLength() {
+            return body.contentLength();
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            body.subscribe(new Flow.Subscriber<ByteBuffer>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscriber.onSubscribe(subscription);
+                }
+
+                @Override
+                public void onNext(ByteBuffer item) {
+                    subscriber.onNext(item);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    subscriber.onError(t);
+                }
+
+                @Override
+                public void onComplete() {
+                    sent.complete(true);
+                    subscriber.onComplete();
+                }
+            });
+        }
+    }
+
+    /** A counting semaphore whose waiters are futures rather than threads
+     */
+    private static class HostLimiter {
+        private final Queue<CompletableFuture<Boolean>> waiting = new ArrayDeque<>();
+        private int active = 0;
+
+        synchronized CompletableFuture<Boolean> acquire() {
+            if (active < maxRequestsPerHost) {
+                active++;
+                return Futures.of(true);
+            }
+            CompletableFuture<Boolean> res = new CompletableFuture<>();
+            waiting.add(res);
+            return res;
+        }
+
+        void release() {
+            CompletableFuture<Boolean> next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    active--;
+                    return;
+                }
+            }
+            // hand our permit straight to the next waiter
+            next.complete(true);
+        }
+    }
+}
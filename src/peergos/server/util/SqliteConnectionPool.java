@@ -0,0 +1,559 @@
+package peergos.server.util;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** Concurrent access to a SQLite database in WAL mode.
+ *
+ *  Each connection handed out is a lightweight session. Queries run on a pool of read only connections, which WAL mode
+ *  lets proceed concurrently with writes. Writes from all sessions are queued for a single writer thread, which commits
+ *  them in groups, so many concurrent writers share an fsync. Each write runs inside its own savepoint, so a failing
+ *  statement only fails its own caller, as it would in auto-commit mode.
+ *
+ *  A session which turns off auto-commit takes exclusive use of the writer connection until it commits, rolls back or
+ *  is closed, and all its statements, including queries, run there.
+ */
+public class SqliteConnectionPool implements Supplier<Connection> {
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_READ_CONNECTIONS = 4;
+    private static final int MAX_GROUP_SIZE = 256;
+    private static final int BUSY_TIMEOUT_MILLIS = 10_000;
+
+    private static final Counter groupCommits = Counter.build()
+            .name("sqlite_group_commits")
+            .help("Number of group commits of sqlite writes")
+            .register();
+    private static final Histogram groupSizes = Histogram.build()
+            .name("sqlite_group_commit_size")
+            .help("Number of statements in each sqlite group commit")
+            .exponentialBuckets(1, 2, 9)
+            .register();
+
+    private interface SqlOperation {
+        Object apply(Connection c) throws SQLException;
+    }
+
+    private static class Write {
+        public final SqlOperation op;
+        public final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        public Write(SqlOperation op) {
+            this.op = op;
+        }
+    }
+
+    private final String path;
+    private final Connection writer;
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private final BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Connection> readers;
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+
+    public SqliteConnectionPool(String path, int readConnections) throws SQLException {
+        this.path = path;
+        // the writer switches the database to WAL mode, which is persistent, before any readers are opened
+        this.writer = open(path, false);
+        this.readers = new ArrayBlockingQueue<>(readConnections);
+        for (int i=0; i < readConnections; i++)
+            readers.add(open(path, true));
+        this.writerThread = new Thread(this::writeLoop, "Sqlite writer " + path);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private static Connection open(String path, boolean readOnly) throws SQLException {
+        Connection conn = Sqlite.build(path);
+        try (Statement s = conn.createStatement()) {
+            s.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS + ";");
+            if (readOnly) {
+                s.execute("PRAGMA query_only = true;");
+            } else {
+                s.execute("PRAGMA journal_mode = WAL;");
+                s.execute("PRAGMA synchronous = FULL;");
+            }
+        }
+        return conn;
+    }
+
+    @Override
+    public Connection get() {
+        if (closed)
+            throw new IllegalStateException("Sqlite pool is closed: " + path);
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, new Session());
+    }
+
+    public void close() {
+        closed = true;
+        writerThread.interrupt();
+        List<Connection> all = new ArrayList<>();
+        readers.drainTo(all);
+        all.add(writer);
+        for (Connection c : all) {
+            try {
+                c.close();
+            } catch (SQLException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    private Object write(SqlOperation op) throws SQLException {
+        Write w = new Write(op);
+        writes.add(w);
+        try {
+            return w.result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new SQLException(cause);
+        }
+    }
+
+    private void writeLoop() {
+        while (! closed) {
+            try {
+                Write first = writes.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                List<Write> group = new ArrayList<>();
+                group.add(first);
+                writes.drainTo(group, MAX_GROUP_SIZE - 1);
+                writerLock.lock();
+                try {
+                    commit(group);
+                } finally {
+                    writerLock.unlock();
+                }
+            } catch (InterruptedException e) {
+                // closing
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, t.getMessage(), t);
+            }
+        }
+    }
+
+    private void commit(List<Write> group) {
+        Object[] results = new Object[group.size()];
+        Throwable[] errors = new Throwable[group.size()];
+        try {
+            writer.setAutoCommit(false);
+            for (int i=0; i < group.size(); i++) {
+                Savepoint sp = writer.setSavepoint();
+                try {
+                    results[i] = group.get(i).op.apply(writer);
+                    writer.releaseSavepoint(sp);
+                } catch (Throwable t) {
+                    errors[i] = t;
+                    writer.rollback(sp);
+                    writer.releaseSavepoint(sp);
+                }
+            }
+            writer.commit();
+            groupCommits.inc();
+            groupSizes.observe(group.size());
+            for (int i=0; i < group.size(); i++) {
+                if (errors[i] != null)
+                    group.get(i).result.completeExceptionally(errors[i]);
+                else
+                    group.get(i).result.complete(results[i]);
+            }
+        } catch (Throwable t) {
+            try {
+                writer.rollback();
+            } catch (SQLException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+            for (Write w : group)
+                w.result.completeExceptionally(t);
+        } finally {
+            try {
+                writer.setAutoCommit(true);
+            } catch (SQLException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    private static boolean isQuery(String sql) {
+        String trimmed = sql.trim();
+        return trimmed.regionMatches(true, 0, "SELECT", 0, 6);
+    }
+
+    private static Object invoke(Object target, Method m, Object[] args) throws SQLException {
+        try {
+            return m.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new SQLException(cause);
+        } catch (IllegalAccessException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    private static class Call {
+        public final Method method;
+        public final Object[] args;
+
+        public Call(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+        }
+    }
+
+    private class Session implements InvocationHandler {
+        private Connection proxy;
+        private boolean exclusive = false;
+        private boolean closed = false;
+        private int isolation = Connection.TRANSACTION_SERIALIZABLE;
+        private final List<StatementHandler> statements = new ArrayList<>();
+        // a session holds at most one reader, shared by its open queries, so sessions can't deadlock on the pool
+        private Connection reader;
+        private int openQueries = 0;
+
+        private Connection borrowReader() throws SQLException {
+            if (reader == null) {
+                try {
+                    reader = readers.take();
+                } catch (InterruptedException e) {
+                    throw new SQLException(e);
+                }
+            }
+            openQueries++;
+            return reader;
+        }
+
+        private void returnReader() {
+            openQueries--;
+            if (openQueries == 0) {
+                readers.add(reader);
+                reader = null;
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            this.proxy = (Connection) proxy;
+            switch (method.getName()) {
+                case "prepareStatement":
+                    if (args.length != 1)
+                        throw new SQLFeatureNotSupportedException("prepareStatement with options");
+                    return statement(PreparedStatement.class, (String) args[0]);
+                case "createStatement":
+                    if (args != null && args.length > 0)
+                        throw new SQLFeatureNotSupportedException("createStatement with options");
+                    return statement(Statement.class, null);
+                case "setAutoCommit":
+                    setAutoCommit((Boolean) args[0]);
+                    return null;
+                case "getAutoCommit":
+                    return ! exclusive;
+                case "commit":
+                    if (! exclusive)
+                        throw new SQLException("database in auto-commit mode");
+                    writer.commit();
+                    return null;
+                case "rollback":
+                    if (! exclusive)
+                        throw new SQLException("database in auto-commit mode");
+                    if (args != null && args.length > 0)
+                        writer.rollback((Savepoint) args[0]);
+                    else
+                        writer.rollback();
+                    return null;
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "isValid":
+                    return ! closed;
+                case "setTransactionIsolation":
+                    // sqlite transactions are always serializable
+                    isolation = (Integer) args[0];
+                    return null;
+                case "getTransactionIsolation":
+                    return isolation;
+                case "setReadOnly":
+                case "clearWarnings":
+                    return null;
+                case "isReadOnly":
+                    return false;
+                case "getWarnings":
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "SqliteConnectionPool session " + path;
+                default:
+                    throw new SQLFeatureNotSupportedException(method.getName());
+            }
+        }
+
+        private Object statement(Class<? extends Statement> type, String sql) {
+            StatementHandler handler = new StatementHandler(this, sql);
+            statements.add(handler);
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+        }
+
+        private void setAutoCommit(boolean autoCommit) throws SQLException {
+            if (! autoCommit && ! exclusive) {
+                writerLock.lock();
+                exclusive = true;
+                try {
+                    writer.setAutoCommit(false);
+                } catch (SQLException e) {
+                    exclusive = false;
+                    writerLock.unlock();
+                    throw e;
+                }
+            } else if (autoCommit && exclusive) {
+                try {
+                    // commits any open transaction
+                    writer.setAutoCommit(true);
+                } finally {
+                    exclusive = false;
+                    writerLock.unlock();
+                }
+            }
+        }
+
+        private void close() throws SQLException {
+            if (closed)
+                return;
+            closed = true;
+            for (StatementHandler s : new ArrayList<>(statements))
+                s.close();
+            if (reader != null) {
+                readers.add(reader);
+                reader = null;
+                openQueries = 0;
+            }
+            if (exclusive) {
+                try {
+                    writer.rollback();
+                    writer.setAutoCommit(true);
+                } finally {
+                    exclusive = false;
+                    writerLock.unlock();
+                }
+            }
+        }
+    }
+
+    /** Records parameters and runs each execution on the appropriate real connection
+     */
+    private class StatementHandler implements InvocationHandler {
+        private final Session session;
+        private final String sql;
+        private final List<Call> config = new ArrayList<>();
+        private final List<Call> params = new ArrayList<>();
+        private final List<List<Call>> batch = new ArrayList<>();
+        private final List<String> sqlBatch = new ArrayList<>();
+        private Statement openQuery;
+        private boolean borrowedReader = false;
+        private ResultSet lastResult;
+        private int lastUpdateCount = -1;
+        private boolean closed = false;
+
+        public StatementHandler(Session session, String sql) {
+            this.session = session;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "clearParameters":
+                    params.clear();
+                    return null;
+                case "addBatch":
+                    if (args != null && args.length > 0)
+                        sqlBatch.add((String) args[0]);
+                    else
+                        batch.add(new ArrayList<>(params));
+                    return null;
+                case "clearBatch":
+                    batch.clear();
+                    sqlBatch.clear();
+                    return null;
+                case "executeQuery":
+                    lastResult = query(sql(args));
+                    return lastResult;
+                case "executeUpdate":
+                    lastResult = null;
+                    lastUpdateCount = update(sql(args));
+                    return lastUpdateCount;
+                case "executeLargeUpdate":
+                    lastResult = null;
+                    lastUpdateCount = update(sql(args));
+                    return (long) lastUpdateCount;
+                case "execute":
+                    String toRun = sql(args);
+                    if (isQuery(toRun)) {
+                        lastResult = query(toRun);
+                        return true;
+                    }
+                    lastResult = null;
+                    lastUpdateCount = update(toRun);
+                    return false;
+                case "executeBatch":
+                    lastResult = null;
+                    return executeBatch();
+                case "getResultSet":
+                    return lastResult;
+                case "getUpdateCount":
+                    return lastResult != null ? -1 : lastUpdateCount;
+                case "getMoreResults":
+                    return false;
+                case "getConnection":
+                    return session.proxy;
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getWarnings":
+                    return null;
+                case "clearWarnings":
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "SqliteConnectionPool statement " + sql;
+                default:
+                    if (name.startsWith("set") && args != null) {
+                        // parameters are indexed, other setters configure the statement
+                        if (sql != null && args.length >= 2 && args[0] instanceof Integer)
+                            params.add(new Call(method, args));
+                        else
+                            config.add(new Call(method, args));
+                        return null;
+                    }
+                    throw new SQLFeatureNotSupportedException(name);
+            }
+        }
+
+        private String sql(Object[] args) throws SQLException {
+            if (args != null && args.length > 0)
+                return (String) args[0];
+            if (sql == null)
+                throw new SQLException("No sql to execute!");
+            return sql;
+        }
+
+        private Statement prepare(Connection c, List<Call> params) throws SQLException {
+            Statement s = sql == null ? c.createStatement() : c.prepareStatement(sql);
+            try {
+                for (Call call : config)
+                    SqliteConnectionPool.invoke(s, call.method, call.args);
+                for (Call call : params)
+                    SqliteConnectionPool.invoke(s, call.method, call.args);
+                return s;
+            } catch (SQLException | RuntimeException e) {
+                s.close();
+                throw e;
+            }
+        }
+
+        private ResultSet query(String toRun) throws SQLException {
+            releaseQuery();
+            Connection c;
+            if (session.exclusive) {
+                c = writer;
+            } else {
+                c = session.borrowReader();
+                borrowedReader = true;
+            }
+            try {
+                openQuery = prepare(c, params);
+                return sql == null ?
+                        openQuery.executeQuery(toRun) :
+                        ((PreparedStatement) openQuery).executeQuery();
+            } catch (SQLException | RuntimeException e) {
+                releaseQuery();
+                throw e;
+            }
+        }
+
+        private int update(String toRun) throws SQLException {
+            List<Call> bound = new ArrayList<>(params);
+            SqlOperation op = c -> {
+                try (Statement s = prepare(c, bound)) {
+                    return sql == null ?
+                            s.executeUpdate(toRun) :
+                            ((PreparedStatement) s).executeUpdate();
+                }
+            };
+            return (Integer) (session.exclusive ? op.apply(writer) : write(op));
+        }
+
+        private int[] executeBatch() throws SQLException {
+            List<List<Call>> rows = new ArrayList<>(batch);
+            List<String> statements = new ArrayList<>(sqlBatch);
+            batch.clear();
+            sqlBatch.clear();
+            SqlOperation op = c -> {
+                try (Statement s = prepare(c, Collections.emptyList())) {
+                    if (sql == null) {
+                        for (String toRun : statements)
+                            s.addBatch(toRun);
+                    } else {
+                        for (List<Call> row : rows) {
+                            for (Call call : row)
+                                SqliteConnectionPool.invoke(s, call.method, call.args);
+                            ((PreparedStatement) s).addBatch();
+                        }
+                    }
+                    return s.executeBatch();
+                }
+            };
+            return (int[]) (session.exclusive ? op.apply(writer) : write(op));
+        }
+
+        private void releaseQuery() {
+            if (openQuery != null) {
+                try {
+                    openQuery.close();
+                } catch (SQLException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+                openQuery = null;
+            }
+            if (borrowedReader) {
+                session.returnReader();
+                borrowedReader = false;
+            }
+            lastResult = null;
+        }
+
+        private void close() {
+            if (closed)
+                return;
+            closed = true;
+            releaseQuery();
+            session.statements.remove(this);
+        }
+    }
+}
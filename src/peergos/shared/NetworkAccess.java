@@ -407,6 +407,95 @@ public class NetworkAccess {
     }
 
     public CompletableFuture<List<RetrievedCapability>> retrieveAllMetadata(List<AbsoluteCapability> links, Snapshot current) {
+        if (links.size() < 2)
+            return retrieveEachMetadata(links, current);
+        // look up all the links together in a few batched requests, falling back to a lookup per link
+        return Futures.asyncExceptionally(
+                () -> retrieveAllMetadataBatched(links, current),
+                t -> retrieveEachMetadata(links, current));
+    }
+
+    private CompletableFuture<List<RetrievedCapability>> retrieveAllMetadataBatched(List<AbsoluteCapability> links, Snapshot current) {
+        return Futures.combineAllInOrder(links.stream()
+                        .map(link -> current.withWriter(link.owner, link.writer, this))
+                        .collect(Collectors.toList()))
+                .thenCompose(versions -> Futures.combineAllInOrder(links.stream()
+                                .map(cap -> cap.bat.map(b -> b.calculateId(hasher).thenApply(id -> Optional.of(new BatWithId(b, id.id))))
+                                        .orElse(Futures.of(Optional.empty())))
+                                .collect(Collectors.toList()))
+                        .thenCompose(bats -> {
+                            List<Optional<CryptreeNode>> res = new ArrayList<>(Collections.nCopies(links.size(), Optional.empty()));
+                            List<Integer> toLookup = new ArrayList<>();
+                            for (int i=0; i < links.size(); i++) {
+                                AbsoluteCapability cap = links.get(i);
+                                WriterData base = versions.get(i).get(cap.writer).props;
+                                if (base.tree.isEmpty())
+                                    continue;
+                                Pair<Multihash, ByteArrayWrapper> cacheKey = new Pair<>(base.tree.get(), new ByteArrayWrapper(cap.getMapKey()));
+                                if (cache.containsKey(cacheKey))
+                                    res.set(i, cache.get(cacheKey));
+                                else
+                                    toLookup.add(i);
+                            }
+                            List<Cid> roots = toLookup.stream()
+                                    .map(i -> (Cid) versions.get(i).get(links.get(i).writer).props.tree.get())
+                                    .collect(Collectors.toList());
+                            List<byte[]> keys = toLookup.stream()
+                                    .map(i -> links.get(i).getMapKey())
+                                    .collect(Collectors.toList());
+                            List<PublicKeyHash> owners = toLookup.stream()
+                                    .map(i -> links.get(i).owner)
+                                    .collect(Collectors.toList());
+                            List<Optional<BatWithId>> lookupBats = ArrayOps.select(bats, toLookup);
+                            return prefetchChampLookups(owners, roots, keys, lookupBats)
+                                    .thenCompose(known -> BatchedChampLookup.lookup(roots, keys, lookupBats, dhtClient, hasher, known))
+                                    .thenApply(values -> {
+                                        for (int j=0; j < toLookup.size(); j++) {
+                                            int i = toLookup.get(j);
+                                            AbsoluteCapability cap = links.get(i);
+                                            Optional<CryptreeNode> node = values.get(j)
+                                                    .map(v -> CryptreeNode.fromCbor(v.right, cap.rBaseKey, v.left));
+                                            if (node.isPresent())
+                                                cache.put(new Pair<>(roots.get(j), new ByteArrayWrapper(keys.get(j))), node);
+                                            res.set(i, node);
+                                        }
+                                        return IntStream.range(0, links.size())
+                                                .mapToObj(i -> res.get(i).map(c -> new RetrievedCapability(links.get(i), c)))
+                                                .flatMap(Optional::stream)
+                                                .collect(Collectors.toList());
+                                    });
+                        }));
+    }
+
+    /** Retrieve the champ paths for all the keys with a single champ lookup per champ, verifying the returned blocks.
+     *  Anything not returned will be retrieved by the batched lookup instead.
+     */
+    private CompletableFuture<Map<Cid, byte[]>> prefetchChampLookups(List<PublicKeyHash> owners,
+                                                                     List<Cid> roots,
+                                                                     List<byte[]> keys,
+                                                                     List<Optional<BatWithId>> bats) {
+        Map<Pair<PublicKeyHash, Cid>, List<Integer>> byChamp = new LinkedHashMap<>();
+        for (int i=0; i < roots.size(); i++)
+            byChamp.computeIfAbsent(new Pair<>(owners.get(i), roots.get(i)), x -> new ArrayList<>()).add(i);
+        List<CompletableFuture<List<byte[]>>> lookups = byChamp.entrySet().stream()
+                .map(e -> Futures.asyncExceptionally(
+                        () -> dhtClient.getChampLookups(e.getKey().left, e.getKey().right,
+                                ArrayOps.select(keys, e.getValue()), ArrayOps.select(bats, e.getValue())),
+                        t -> Futures.of(Collections.<byte[]>emptyList())))
+                .collect(Collectors.toList());
+        return Futures.combineAllInOrder(lookups)
+                .thenCompose(all -> Futures.combineAllInOrder(all.stream()
+                        .flatMap(List::stream)
+                        .map(b -> hasher.hash(b, false).thenApply(h -> new Pair<>(h, b)))
+                        .collect(Collectors.toList())))
+                .thenApply(hashed -> {
+                    Map<Cid, byte[]> known = new HashMap<>();
+                    hashed.forEach(p -> known.put(p.left, p.right));
+                    return known;
+                });
+    }
+
+    private CompletableFuture<List<RetrievedCapability>> retrieveEachMetadata(List<AbsoluteCapability> links, Snapshot current) {
         List<CompletableFuture<Optional<RetrievedCapability>>> all = links.stream()
                 .map(link -> current.withWriter(link.owner, link.writer, this)
                         .thenCompose(version -> getMetadata(version.get(link.writer).props, link)
@@ -674,16 +763,14 @@ public class NetworkAccess {
                                                                 List<byte[]> mapKeys,
                                                                 TransactionId tid) {
         CommittedWriterData version = current.get(writer);
-        List<CompletableFuture<Pair<byte[], MaybeMultihash>>> withValues = mapKeys.stream()
-                .parallel()
-                .map(mapKey -> tree.get(version.props, owner, writer.publicKeyHash, mapKey)
-                        .thenApply(valueHash -> new Pair<>(mapKey, valueHash)))
-                .collect(Collectors.toList());
-        return Futures.reduceAll(withValues, version.props,
-                        (wd, f) -> f.thenCompose(p -> p.right.isPresent() ?
+        return tree.getAll(version.props, owner, writer.publicKeyHash, mapKeys)
+                .thenCompose(valueHashes -> Futures.reduceAll(IntStream.range(0, mapKeys.size())
+                                .mapToObj(i -> new Pair<>(mapKeys.get(i), valueHashes.get(i)))
+                                .collect(Collectors.toList()), version.props,
+                        (wd, p) -> p.right.isPresent() ?
                                 tree.remove(wd, owner, writer, p.left, p.right, tid) :
-                                Futures.of(wd)),
-                        (a, b) -> b)
+                                Futures.of(wd),
+                        (a, b) -> b))
                 .thenCompose(wd -> committer.commit(owner, writer, wd, version, tid))
                 .thenApply(committed -> current.withVersion(writer.publicKeyHash, committed.get(writer)));
     }
@@ -11,6 +11,7 @@ package peergos.shared.cbor;
 import static peergos.shared.cbor.CborConstants.*;
 
 import java.io.*;
+import java.util.*;
 
 /**
  * Provides an encoder capable of encoding data into CBOR format to a given {@link OutputStream}.
@@ -18,7 +19,15 @@ import java.io.*;
 public class CborEncoder {
     private static final int NEG_INT_MASK = TYPE_NEGATIVE_INTEGER << 5;
 
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    // don't keep large buffers alive in idle threads
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<CborEncoder> reusable = ThreadLocal.withInitial(CborEncoder::new);
+
     private final OutputStream m_os;
+    private byte[] m_buf;
+    private int m_pos;
+    private boolean m_inUse;
 
     /**
      * Creates a new {@link CborEncoder} instance.
@@ -32,6 +41,84 @@ public class CborEncoder {
         m_os = os;
     }
 
+    /**
+     * Creates a new {@link CborEncoder} instance which writes to a growable internal buffer, which can be reused after
+     * calling {@link #reset()}.
+     */
+    public CborEncoder() {
+        m_os = null;
+        m_buf = new byte[INITIAL_BUFFER_SIZE];
+    }
+
+    /**
+     * Serializes an object using a reusable per thread buffer.
+     *
+     * @param cbor the object to serialize.
+     * @return the CBOR encoding of the object.
+     */
+    public static byte[] encode(CborObject cbor) {
+        CborEncoder encoder = reusable.get();
+        if (encoder.m_inUse) // a nested serialization
+            encoder = new CborEncoder();
+        encoder.m_inUse = true;
+        try {
+            encoder.reset();
+            cbor.serialize(encoder);
+            return encoder.toByteArray();
+        } finally {
+            encoder.m_inUse = false;
+            if (encoder.m_buf.length > MAX_RETAINED_BUFFER_SIZE)
+                encoder.m_buf = new byte[INITIAL_BUFFER_SIZE];
+        }
+    }
+
+    /**
+     * @return a copy of the bytes written so far, only valid for an encoder writing to an internal buffer.
+     */
+    public byte[] toByteArray() {
+        if (m_buf == null)
+            throw new IllegalStateException("Encoder is writing to a stream!");
+        return Arrays.copyOf(m_buf, m_pos);
+    }
+
+    /**
+     * @return the number of bytes written so far to the internal buffer.
+     */
+    public int size() {
+        return m_pos;
+    }
+
+    /**
+     * Discards anything written to the internal buffer, retaining its capacity.
+     */
+    public void reset() {
+        m_pos = 0;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (m_pos + extra > m_buf.length)
+            m_buf = Arrays.copyOf(m_buf, Math.max(m_buf.length * 2, m_pos + extra));
+    }
+
+    private void write(int b) throws IOException {
+        if (m_os != null) {
+            m_os.write(b);
+            return;
+        }
+        ensureCapacity(1);
+        m_buf[m_pos++] = (byte) b;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (m_os != null) {
+            m_os.write(bytes);
+            return;
+        }
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, m_buf, m_pos, bytes.length);
+        m_pos += bytes.length;
+    }
+
     /**
      * Interprets a given float-value as a half-precision float value and
      * converts it to its raw integer form, as defined in IEEE 754.
@@ -318,7 +405,7 @@ public class CborEncoder {
         // complement negative value...
         value = Math.min(0x17, (sign ^ value));
 
-        m_os.write((int) (mt | value));
+        write((int) (mt | value));
     }
 
     /**
@@ -346,9 +433,25 @@ public class CborEncoder {
      * @throws IOException in case of I/O problems writing the CBOR-encoded value to the underlying output stream.
      */
     public void writeTextString(String value) throws IOException {
+        if (m_os == null && value != null && isAscii(value)) {
+            // avoid encoding to an intermediate array
+            int len = value.length();
+            writeType(TYPE_TEXT_STRING, len);
+            ensureCapacity(len);
+            for (int i = 0; i < len; i++)
+                m_buf[m_pos++] = (byte) value.charAt(i);
+            return;
+        }
         writeString(TYPE_TEXT_STRING, value == null ? null : value.getBytes("UTF-8"));
     }
 
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++)
+            if (value.charAt(i) >= 0x80)
+                return false;
+        return true;
+    }
+
     /**
      * Writes the start of an indefinite-length UTF-8 string.
      * <p>
@@ -379,7 +482,7 @@ public class CborEncoder {
      * @throws IOException in case of I/O problems writing the CBOR-encoded value to the underlying output stream.
      */
     protected void writeSimpleType(int majorType, int value) throws IOException {
-        m_os.write((majorType << 5) | (value & 0x1f));
+        write((majorType << 5) | (value & 0x1f));
     }
 
     /**
@@ -393,7 +496,7 @@ public class CborEncoder {
         int len = (bytes == null) ? 0 : bytes.length;
         writeType(majorType, len);
         if (len > 0){
-            m_os.write(bytes);
+            write(bytes);
         }
     }
 
@@ -417,7 +520,7 @@ public class CborEncoder {
      */
     protected void writeUInt(int mt, long value) throws IOException {
         if (value < 0x18L) {
-            m_os.write((int) (mt | value));
+            write((int) (mt | value));
         } else if (value < 0x100L) {
             writeUInt8(mt, (int) value);
         } else if (value < 0x10000L) {
@@ -437,9 +540,9 @@ public class CborEncoder {
      * @throws IOException in case of I/O problems writing the CBOR-encoded value to the underlying output stream.
      */
     protected void writeUInt16(int mt, int value) throws IOException {
-        m_os.write(mt | TWO_BYTES);
-        m_os.write(value >> 8);
-        m_os.write(value & 0xFF);
+        write(mt | TWO_BYTES);
+        write(value >> 8);
+        write(value & 0xFF);
     }
 
     /**
@@ -450,11 +553,11 @@ public class CborEncoder {
      * @throws IOException in case of I/O problems writing the CBOR-encoded value to the underlying output stream.
      */
     protected void writeUInt32(int mt, int value) throws IOException {
-        m_os.write(mt | FOUR_BYTES);
-        m_os.write(value >> 24);
-        m_os.write(value >> 16);
-        m_os.write(value >> 8);
-        m_os.write(value & 0xFF);
+        write(mt | FOUR_BYTES);
+        write(value >> 24);
+        write(value >> 16);
+        write(value >> 8);
+        write(value & 0xFF);
     }
 
     /**
@@ -465,15 +568,15 @@ public class CborEncoder {
      * @throws IOException in case of I/O problems writing the CBOR-encoded value to the underlying output stream.
      */
     protected void writeUInt64(int mt, long value) throws IOException {
-        m_os.write(mt | EIGHT_BYTES);
-        m_os.write((int) (value >> 56));
-        m_os.write((int) (value >> 48));
-        m_os.write((int) (value >> 40));
-        m_os.write((int) (value >> 32));
-        m_os.write((int) (value >> 24));
-        m_os.write((int) (value >> 16));
-        m_os.write((int) (value >> 8));
-        m_os.write((int) (value & 0xFF));
+        write(mt | EIGHT_BYTES);
+        write((int) (value >> 56));
+        write((int) (value >> 48));
+        write((int) (value >> 40));
+        write((int) (value >> 32));
+        write((int) (value >> 24));
+        write((int) (value >> 16));
+        write((int) (value >> 8));
+        write((int) (value & 0xFF));
     }
 
     /**
@@ -484,7 +587,7 @@ public class CborEncoder {
      * @throws IOException in case of I/O problems writing the CBOR-encoded value to the underlying output stream.
      */
     protected void writeUInt8(int mt, int value) throws IOException {
-        m_os.write(mt | ONE_BYTE);
-        m_os.write(value & 0xFF);
+        write(mt | ONE_BYTE);
+        write(value & 0xFF);
     }
 }
\ No newline at end of file
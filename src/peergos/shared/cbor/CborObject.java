@@ -17,10 +17,7 @@ public interface CborObject extends Cborable {
     List<Multihash> links();
 
     default byte[] toByteArray() {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        CborEncoder encoder = new CborEncoder(bout);
-        serialize(encoder);
-        return bout.toByteArray();
+        return CborEncoder.encode(this);
     }
 
     @Override
@@ -31,7 +28,7 @@ public interface CborObject extends Cborable {
     int LINK_TAG = 42;
 
     static CborObject fromByteArray(byte[] cbor) {
-        return deserialize(new CborDecoder(new ByteArrayInputStream(cbor)), cbor.length);
+        return CborReader.read(cbor);
     }
 
     static CborObject read(InputStream in, int maxBytes) {
@@ -115,6 +112,10 @@ public interface CborObject extends Cborable {
             this.values = values;
         }
 
+        static CborMap wrap(SortedMap<CborString, CborObject> values) {
+            return new CborMap(values);
+        }
+
         public static CborMap build(Map<String, Cborable> values) {
             SortedMap<CborString, CborObject> transformed = values.entrySet()
                     .stream()
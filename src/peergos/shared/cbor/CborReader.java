@@ -0,0 +1,258 @@
+package peergos.shared.cbor;
+
+import peergos.shared.io.ipfs.cid.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.stream.*;
+
+import static peergos.shared.cbor.CborConstants.*;
+
+/** Decodes CBOR directly from a byte[] with a cursor, into the same model as {@link CborObject#deserialize}, without
+ *  wrapping the input in a stream or copying headers into temporary arrays.
+ */
+public final class CborReader {
+    private final byte[] data;
+    private final int end, maxGroupSize;
+    private int pos;
+
+    private CborReader(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length)
+            throw new IllegalArgumentException("Invalid range!");
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+        this.maxGroupSize = length;
+    }
+
+    public static CborObject read(byte[] data) {
+        return read(data, 0, data.length);
+    }
+
+    public static CborObject read(byte[] data, int offset, int length) {
+        return new CborReader(data, offset, length).readObject();
+    }
+
+    /** Extract the merkle links from a cbor block, in the same order as {@link CborObject#links()} on the decoded
+     *  object, by skipping over the encoding without building the object tree.
+     */
+    public static List<Cid> links(byte[] data) {
+        List<Cid> res = new ArrayList<>();
+        if (new CborReader(data, 0, data.length).scanLinks(res))
+            return res;
+        // Anything unusual, like a map not in canonical key order, gets the full decoder's ordering and errors
+        return read(data).links().stream()
+                .map(h -> (Cid) h)
+                .collect(Collectors.toList());
+    }
+
+    private static IllegalStateException fail(String msg) {
+        return new IllegalStateException("Invalid cbor: " + msg);
+    }
+
+    private int readByte() {
+        if (pos >= end)
+            throw fail("unexpected end of input!");
+        return data[pos++] & 0xFF;
+    }
+
+    private long readUInt(int info) {
+        if (info < ONE_BYTE)
+            return info;
+        int len;
+        switch (info) {
+            case ONE_BYTE: len = 1; break;
+            case TWO_BYTES: len = 2; break;
+            case FOUR_BYTES: len = 4; break;
+            case EIGHT_BYTES: len = 8; break;
+            default: throw fail("unsupported length " + info + "!");
+        }
+        if (pos + len > end)
+            throw fail("unexpected end of input!");
+        long res = 0;
+        for (int i=0; i < len; i++)
+            res = (res << 8) | (data[pos++] & 0xFFL);
+        if (res < 0)
+            throw fail("integer too large!");
+        return res;
+    }
+
+    private int readLength(int info, String tooLong) {
+        long len = readUInt(info);
+        if (len > maxGroupSize)
+            throw fail(tooLong);
+        return (int) len;
+    }
+
+    private void skip(int len) {
+        if (pos + len > end)
+            throw fail("unexpected end of input!");
+        pos += len;
+    }
+
+    private boolean isAscii(int start, int len) {
+        for (int i=0; i < len; i++)
+            if (data[start + i] < 0)
+                return false;
+        return true;
+    }
+
+    /** Compare two ascii text strings the way CborString does: shorter first, then lexicographically
+     */
+    private int compareAsciiKeys(int aStart, int aLen, int bStart, int bLen) {
+        if (aLen != bLen)
+            return aLen - bLen;
+        for (int i=0; i < aLen; i++) {
+            int diff = data[aStart + i] - data[bStart + i];
+            if (diff != 0)
+                return diff;
+        }
+        return 0;
+    }
+
+    /** Append any merkle links in the next object to links, skipping everything else.
+     *
+     * @return false if the object must be fully decoded to get its links in the right order
+     */
+    private boolean scanLinks(List<Cid> links) {
+        int initial = readByte();
+        int majorType = initial >>> 5;
+        int info = initial & 0x1F;
+        switch (majorType) {
+            case TYPE_UNSIGNED_INTEGER:
+            case TYPE_NEGATIVE_INTEGER:
+                readUInt(info);
+                return true;
+            case TYPE_BYTE_STRING:
+                skip(readLength(info, "byte string longer than original bytes!"));
+                return true;
+            case TYPE_TEXT_STRING:
+                skip(readLength(info, "text string longer than original bytes!"));
+                return true;
+            case TYPE_ARRAY: {
+                int nItems = readLength(info, "more array elements than original bytes!");
+                for (int i=0; i < nItems; i++)
+                    if (! scanLinks(links))
+                        return false;
+                return true;
+            }
+            case TYPE_MAP: {
+                int nValues = readLength(info, "more map elements than original bytes!");
+                int prevStart = -1, prevLen = 0;
+                for (int i=0; i < nValues; i++) {
+                    int keyHeader = readByte();
+                    if (keyHeader >>> 5 != TYPE_TEXT_STRING)
+                        return false;
+                    int keyLen = readLength(keyHeader & 0x1F, "text string longer than original bytes!");
+                    int keyStart = pos;
+                    skip(keyLen);
+                    // links are returned in sorted key order, so only ascii keys in strictly increasing order can be
+                    // scanned in place
+                    if (! isAscii(keyStart, keyLen))
+                        return false;
+                    if (prevStart >= 0 && compareAsciiKeys(prevStart, prevLen, keyStart, keyLen) >= 0)
+                        return false;
+                    prevStart = keyStart;
+                    prevLen = keyLen;
+                    if (! scanLinks(links))
+                        return false;
+                }
+                return true;
+            }
+            case TYPE_TAG: {
+                long tag = readUInt(info);
+                if (tag != CborObject.LINK_TAG)
+                    throw new IllegalStateException("Unknown TAG in CBOR: " + info);
+                int valueHeader = readByte();
+                if (valueHeader >>> 5 != TYPE_BYTE_STRING)
+                    return false;
+                int len = readLength(valueHeader & 0x1F, "byte string longer than original bytes!");
+                if (pos + len > end)
+                    throw fail("unexpected end of input!");
+                if (len == 0 || data[pos] != 0) // multibase for binary
+                    return false;
+                links.add(Cid.cast(Arrays.copyOfRange(data, pos + 1, pos + len)));
+                pos += len;
+                return true;
+            }
+            case TYPE_FLOAT_SIMPLE:
+                return info == NULL || info == TRUE || info == FALSE;
+            default:
+                return false;
+        }
+    }
+
+    private CborObject readObject() {
+        int initial = readByte();
+        int majorType = initial >>> 5;
+        int info = initial & 0x1F;
+        switch (majorType) {
+            case TYPE_UNSIGNED_INTEGER:
+                return new CborObject.CborLong(readUInt(info));
+            case TYPE_NEGATIVE_INTEGER:
+                return new CborObject.CborLong(-1 - readUInt(info));
+            case TYPE_BYTE_STRING: {
+                int len = readLength(info, "byte string longer than original bytes!");
+                if (pos + len > end)
+                    throw fail("unexpected end of input!");
+                byte[] res = Arrays.copyOfRange(data, pos, pos + len);
+                pos += len;
+                return new CborObject.CborByteArray(res);
+            }
+            case TYPE_TEXT_STRING: {
+                int len = readLength(info, "text string longer than original bytes!");
+                if (pos + len > end)
+                    throw fail("unexpected end of input!");
+                String res;
+                try {
+                    res = new String(data, pos, len, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+                pos += len;
+                return new CborObject.CborString(res);
+            }
+            case TYPE_ARRAY: {
+                int nItems = readLength(info, "more array elements than original bytes!");
+                List<CborObject> res = new ArrayList<>(nItems);
+                for (int i=0; i < nItems; i++)
+                    res.add(readObject());
+                return new CborObject.CborList(res);
+            }
+            case TYPE_MAP: {
+                int nValues = readLength(info, "more map elements than original bytes!");
+                SortedMap<CborObject.CborString, CborObject> res = new TreeMap<>();
+                for (int i=0; i < nValues; i++) {
+                    CborObject.CborString key = (CborObject.CborString) readObject();
+                    res.put(key, readObject());
+                }
+                return CborObject.CborMap.wrap(res);
+            }
+            case TYPE_TAG: {
+                long tag = readUInt(info);
+                if (tag != CborObject.LINK_TAG)
+                    throw new IllegalStateException("Unknown TAG in CBOR: " + info);
+                CborObject value = readObject();
+                if (value instanceof CborObject.CborString)
+                    return new CborObject.CborMerkleLink(Cid.decode(((CborObject.CborString) value).value));
+                if (value instanceof CborObject.CborByteArray) {
+                    byte[] bytes = ((CborObject.CborByteArray) value).value;
+                    if (bytes[0] == 0) // multibase for binary
+                        return new CborObject.CborMerkleLink(Cid.cast(Arrays.copyOfRange(bytes, 1, bytes.length)));
+                    throw new IllegalStateException("Unknown Multibase decoding Merkle link: " + bytes[0]);
+                }
+                throw new IllegalStateException("Invalid type for merkle link: " + value);
+            }
+            case TYPE_FLOAT_SIMPLE:
+                if (info == NULL)
+                    return new CborObject.CborNull();
+                if (info == TRUE)
+                    return new CborObject.CborBoolean(true);
+                if (info == FALSE)
+                    return new CborObject.CborBoolean(false);
+                throw new IllegalStateException("Unimplemented simple type! " + info);
+            default:
+                throw new IllegalStateException("Unimplemented cbor type: " + majorType);
+        }
+    }
+}
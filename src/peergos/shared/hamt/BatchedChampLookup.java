@@ -0,0 +1,193 @@
+package peergos.shared.hamt;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Looks up many keys in champs with a few batched requests, rather than a request per key.
+ *
+ *  Each round runs every unfinished lookup against the blocks retrieved so far, and the blocks they are missing are
+ *  then retrieved together with getAll. Every round descends at least one level in each unfinished lookup, so the
+ *  number of rounds is about the depth of the champs, plus one for the values.
+ */
+public class BatchedChampLookup {
+
+    /**
+     *
+     * @param roots The champ root to look up each key in
+     * @param keys
+     * @param bats The bat to retrieve each value with
+     * @param dht
+     * @param hasher
+     * @return The hash and block of the value for each key, or Optional.empty() if it is absent
+     */
+    public static CompletableFuture<List<Optional<Pair<Cid, CborObject>>>> lookup(List<Cid> roots,
+                                                                                 List<byte[]> keys,
+                                                                                 List<Optional<BatWithId>> bats,
+                                                                                 ContentAddressedStorage dht,
+                                                                                 Hasher hasher) {
+        return lookup(roots, keys, bats, dht, hasher, Collections.emptyMap());
+    }
+
+    /**
+     *
+     * @param known Blocks which have already been retrieved, e.g. from a champ lookup, which must have been verified
+     *              against their hash
+     */
+    public static CompletableFuture<List<Optional<Pair<Cid, CborObject>>>> lookup(List<Cid> roots,
+                                                                                 List<byte[]> keys,
+                                                                                 List<Optional<BatWithId>> bats,
+                                                                                 ContentAddressedStorage dht,
+                                                                                 Hasher hasher,
+                                                                                 Map<Cid, byte[]> known) {
+        // null marks an unfinished lookup
+        List<Optional<Pair<Cid, CborObject>>> results = new ArrayList<>(Collections.nCopies(roots.size(), null));
+        return round(roots, keys, bats, dht, hasher, new LinkedHashMap<>(known), new HashSet<>(), results);
+    }
+
+    /** Retrieve every block needed to look up the keys in a single champ, i.e. the champ nodes on the path to each key
+     *  and the values themselves. Each block is included once. Values we are not authorised to retrieve are omitted.
+     *
+     * @return The blocks, starting with the root
+     */
+    public static CompletableFuture<List<byte[]>> collect(Cid root,
+                                                          List<byte[]> keys,
+                                                          List<Optional<BatWithId>> bats,
+                                                          ContentAddressedStorage dht,
+                                                          Hasher hasher) {
+        Map<Cid, byte[]> blocks = new LinkedHashMap<>();
+        List<Optional<Pair<Cid, CborObject>>> results = new ArrayList<>(Collections.nCopies(keys.size(), null));
+        return round(Collections.nCopies(keys.size(), root), keys, bats, dht, hasher, blocks, new HashSet<>(), results)
+                .thenApply(x -> new ArrayList<>(blocks.values()));
+    }
+
+    private static CompletableFuture<List<Optional<Pair<Cid, CborObject>>>> round(List<Cid> roots,
+                                                                                 List<byte[]> keys,
+                                                                                 List<Optional<BatWithId>> bats,
+                                                                                 ContentAddressedStorage dht,
+                                                                                 Hasher hasher,
+                                                                                 Map<Cid, byte[]> blocks,
+                                                                                 Set<Cid> absent,
+                                                                                 List<Optional<Pair<Cid, CborObject>>> results) {
+        Set<Cid> missingNodes = new LinkedHashSet<>();
+        Map<Cid, Optional<BatWithId>> missingValues = new LinkedHashMap<>();
+        List<CompletableFuture<Boolean>> lookups = new ArrayList<>();
+        for (int i=0; i < roots.size(); i++) {
+            if (results.get(i) != null)
+                continue;
+            int index = i;
+            Retrieved local = new Retrieved(blocks);
+            lookups.add(Futures.asyncExceptionally(
+                    () -> ChampWrapper.create(roots.get(index), x -> Futures.of(x.data), new LocalOnlyStorage(local), hasher,
+                                    c -> (CborObject.CborMerkleLink) c)
+                            .thenCompose(tree -> tree.get(keys.get(index)))
+                            .thenApply(link -> {
+                                if (link.isEmpty()) {
+                                    results.set(index, Optional.empty());
+                                    return true;
+                                }
+                                Cid value = (Cid) link.get().target;
+                                byte[] block = blocks.get(value);
+                                if (block != null)
+                                    results.set(index, Optional.of(new Pair<>(value, CborObject.fromByteArray(block))));
+                                else if (absent.contains(value))
+                                    results.set(index, Optional.empty());
+                                else
+                                    missingValues.put(value, bats.get(index));
+                                return true;
+                            }),
+                    t -> {
+                        if (local.missing.isEmpty())
+                            return Futures.errored(t);
+                        if (local.missing.stream().anyMatch(absent::contains))
+                            results.set(index, Optional.empty());
+                        else
+                            missingNodes.addAll(local.missing);
+                        return Futures.of(true);
+                    }));
+        }
+        return Futures.combineAll(lookups).thenCompose(x -> {
+            if (missingNodes.isEmpty() && missingValues.isEmpty())
+                return Futures.of(results);
+            List<Cid> nodes = new ArrayList<>(missingNodes);
+            List<Cid> values = new ArrayList<>(missingValues.keySet());
+            CompletableFuture<List<Optional<byte[]>>> fetchedNodes = nodes.isEmpty() ?
+                    Futures.of(Collections.emptyList()) :
+                    dht.getAll(nodes, Collections.nCopies(nodes.size(), Optional.empty()));
+            CompletableFuture<List<Optional<byte[]>>> fetchedValues =
+                    getValues(values, values.stream().map(missingValues::get).collect(Collectors.toList()), dht);
+            return fetchedNodes.thenCompose(n -> fetchedValues.thenApply(v -> {
+                        store(nodes, n, blocks, absent);
+                        return store(values, v, blocks, absent);
+                    })).thenCompose(y -> round(roots, keys, bats, dht, hasher, blocks, absent, results));
+        });
+    }
+
+    /** A value we can't retrieve, e.g. because its bat is wrong, shouldn't stop the other lookups
+     */
+    private static CompletableFuture<List<Optional<byte[]>>> getValues(List<Cid> hashes,
+                                                                       List<Optional<BatWithId>> bats,
+                                                                       ContentAddressedStorage dht) {
+        if (hashes.isEmpty())
+            return Futures.of(Collections.emptyList());
+        return Futures.asyncExceptionally(
+                () -> dht.getAll(hashes, bats),
+                t -> Futures.combineAllInOrder(IntStream.range(0, hashes.size())
+                        .mapToObj(i -> dht.getAll(Collections.singletonList(hashes.get(i)), Collections.singletonList(bats.get(i)))
+                                .thenApply(res -> res.get(0))
+                                .exceptionally(e -> Optional.empty()))
+                        .collect(Collectors.toList())));
+    }
+
+    private static boolean store(List<Cid> hashes, List<Optional<byte[]>> fetched, Map<Cid, byte[]> blocks, Set<Cid> absent) {
+        for (int j=0; j < hashes.size(); j++) {
+            if (fetched.get(j).isPresent())
+                blocks.put(hashes.get(j), fetched.get(j).get());
+            else
+                absent.add(hashes.get(j));
+        }
+        return true;
+    }
+
+    /** The blocks retrieved so far, recording any others that are requested
+     */
+    private static class Retrieved implements BlockCache {
+        private final Map<Cid, byte[]> blocks;
+        private final Set<Cid> missing = new HashSet<>();
+
+        public Retrieved(Map<Cid, byte[]> blocks) {
+            this.blocks = blocks;
+        }
+
+        @Override
+        public CompletableFuture<Boolean> put(Cid hash, byte[] data) {
+            blocks.put(hash, data);
+            return Futures.of(true);
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> get(Cid hash) {
+            byte[] block = blocks.get(hash);
+            if (block == null)
+                missing.add(hash);
+            return Futures.of(Optional.ofNullable(block));
+        }
+
+        @Override
+        public boolean hasBlock(Cid hash) {
+            return blocks.containsKey(hash);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> clear() {
+            throw new IllegalStateException("Unimplemented!");
+        }
+    }
+}
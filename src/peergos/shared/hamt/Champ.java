@@ -153,8 +153,8 @@ public class Champ<V extends Cborable> implements Cborable {
         int bitpos = mask(hash, depth, bitWidth);
         int index = contents.length - 1 - getIndex(this.nodeMap, bitpos);
         Multihash childHash = contents[index].link.get();
-        return storage.get((Cid) childHash, Optional.empty())
-                .thenApply(x -> new Pair<>(childHash, x.map(y -> Champ.fromCbor(y, fromCbor))));
+        return ChampCache.get((Cid) childHash, storage, fromCbor)
+                .thenApply(x -> new Pair<>(childHash, x));
     }
 
     public CompletableFuture<Long> size(int depth, ContentAddressedStorage storage) {
@@ -167,8 +167,8 @@ public class Champ<V extends Cborable> implements Cborable {
             HashPrefixPayload<V> pointer = contents[i];
             if (! pointer.isShard())
                 break; // we reach the key section
-            childCounts.add(storage.get((Cid) pointer.link.get(), Optional.empty())
-                    .thenApply(x -> new Pair<>(pointer.link.get(), x.map(y -> Champ.fromCbor(y, fromCbor))))
+            childCounts.add(ChampCache.get((Cid) pointer.link.get(), storage, fromCbor)
+                    .thenApply(x -> new Pair<>(pointer.link.get(), x))
                     .thenCompose(child -> child.right.map(c -> c.size(depth + 1, storage))
                             .orElse(CompletableFuture.completedFuture(0L)))
             );
@@ -587,46 +587,334 @@ public class Champ<V extends Cborable> implements Cborable {
         return new Champ<>(newDataMap, nodeMap, dst, fromCbor);
     }
 
+    /** A single put or remove to apply as part of a bulk mutation
+     */
+    public static final class Mutation<V extends Cborable> {
+        public final ByteArrayWrapper key;
+        public final byte[] hash;
+        public final Optional<V> expected;
+        public final Optional<V> value;
+        public final boolean isRemove;
+
+        private Mutation(ByteArrayWrapper key, byte[] hash, Optional<V> expected, Optional<V> value, boolean isRemove) {
+            this.key = key;
+            this.hash = hash;
+            this.expected = expected;
+            this.value = value;
+            this.isRemove = isRemove;
+        }
+
+        public static <V extends Cborable> Mutation<V> put(ByteArrayWrapper key, byte[] hash, Optional<V> expected, Optional<V> value) {
+            return new Mutation<>(key, hash, expected, value, false);
+        }
+
+        public static <V extends Cborable> Mutation<V> remove(ByteArrayWrapper key, byte[] hash, Optional<V> expected) {
+            return new Mutation<>(key, hash, expected, Optional.empty(), true);
+        }
+    }
+
+    /** The result of mutating a subtree, before it is written. If the subtree is unchanged it has its existing hash.
+     */
+    private static final class BulkResult<V extends Cborable> {
+        public final Champ<V> champ;
+        public final Optional<Multihash> unchanged;
+        public final List<byte[]> newBlocks;
+
+        public BulkResult(Champ<V> champ, Optional<Multihash> unchanged, List<byte[]> newBlocks) {
+            this.champ = champ;
+            this.unchanged = unchanged;
+            this.newBlocks = newBlocks;
+        }
+    }
+
+    /** The target state of one hash prefix of a node after a bulk mutation: mappings, a link, or nothing
+     */
+    private static final class Bucket<V extends Cborable> {
+        public final HashPrefixPayload<V> payload;
+        public final List<byte[]> newBlocks;
+
+        public Bucket(HashPrefixPayload<V> payload, List<byte[]> newBlocks) {
+            this.payload = payload;
+            this.newBlocks = newBlocks;
+        }
+    }
+
+    /** Apply many puts and removes in a single pass over the tree. Each changed node is serialized and written exactly
+     *  once, in a single batch, and the result is the same canonical tree as applying the mutations one at a time.
+     *
+     * @param writer The writer key with permission to write
+     * @param mutations The puts and removes to apply, in order
+     * @param bitWidth The champ bitwidth
+     * @param maxCollisions The maximum number of hash collision per layer in this champ
+     * @param hasher The function to calculate the hash of keys
+     * @param tid The transaction id for this write operation
+     * @param storage The storage
+     * @param ourHash The hash of the current champ node
+     * @return A new champ and its hash after the mutations
+     */
+    public CompletableFuture<Pair<Champ<V>, Multihash>> applyMutations(PublicKeyHash owner,
+                                                                       SigningPrivateKeyAndPublicHash writer,
+                                                                       List<Mutation<V>> mutations,
+                                                                       int bitWidth,
+                                                                       int maxCollisions,
+                                                                       Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+                                                                       TransactionId tid,
+                                                                       ContentAddressedStorage storage,
+                                                                       Hasher writeHasher,
+                                                                       Multihash ourHash) {
+        return mutate(mutations, 0, bitWidth, maxCollisions, hasher, storage, writeHasher, Optional.of(ourHash))
+                .thenCompose(res -> {
+                    if (res.unchanged.isPresent())
+                        return Futures.of(new Pair<>(this, res.unchanged.get()));
+                    byte[] raw = res.champ.serialize();
+                    List<byte[]> blocks = new ArrayList<>(res.newBlocks);
+                    blocks.add(raw);
+                    return writeBlocks(owner, writer, blocks, tid, storage, writeHasher)
+                            .thenApply(hashes -> new Pair<>(res.champ, hashes.get(hashes.size() - 1)));
+                });
+    }
+
+    private static CompletableFuture<List<Cid>> writeBlocks(PublicKeyHash owner,
+                                                            SigningPrivateKeyAndPublicHash writer,
+                                                            List<byte[]> blocks,
+                                                            TransactionId tid,
+                                                            ContentAddressedStorage storage,
+                                                            Hasher writeHasher) {
+        return Futures.collectInOrder(blocks.stream()
+                        .map(writeHasher::sha256)
+                        .collect(Collectors.toList()))
+                .thenCompose(hashes -> storage.put(owner, writer.publicKeyHash,
+                        hashes.stream()
+                                .map(writer.secret::signMessage)
+                                .collect(Collectors.toList()),
+                        blocks, tid));
+    }
+
+    private CompletableFuture<BulkResult<V>> mutate(List<Mutation<V>> mutations,
+                                                    int depth,
+                                                    int bitWidth,
+                                                    int maxCollisions,
+                                                    Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+                                                    ContentAddressedStorage storage,
+                                                    Hasher writeHasher,
+                                                    Optional<Multihash> ourHash) {
+        SortedMap<Integer, List<Mutation<V>>> byPrefix = new TreeMap<>();
+        for (Mutation<V> m : mutations)
+            byPrefix.computeIfAbsent(mask(m.hash, depth, bitWidth), b -> new ArrayList<>()).add(m);
+
+        List<Integer> prefixes = new ArrayList<>(byPrefix.keySet());
+        return Futures.combineAllInOrder(prefixes.stream()
+                .map(bitpos -> mutateBucket(bitpos, byPrefix.get(bitpos), depth, bitWidth, maxCollisions, hasher, storage, writeHasher))
+                .collect(Collectors.toList()))
+                .thenApply(buckets -> {
+                    SortedMap<Integer, HashPrefixPayload<V>> result = new TreeMap<>();
+                    for (int bitpos = Math.max(dataMap.length(), nodeMap.length()) - 1; bitpos >= 0; bitpos--) {
+                        if (dataMap.get(bitpos))
+                            result.put(bitpos, contents[getIndex(dataMap, bitpos)]);
+                        else if (nodeMap.get(bitpos))
+                            result.put(bitpos, contents[contents.length - 1 - getIndex(nodeMap, bitpos)]);
+                    }
+                    boolean changed = false;
+                    List<byte[]> newBlocks = new ArrayList<>();
+                    for (int i=0; i < prefixes.size(); i++) {
+                        int bitpos = prefixes.get(i);
+                        Bucket<V> bucket = buckets.get(i);
+                        HashPrefixPayload<V> before = result.get(bitpos);
+                        if (bucket.payload == null)
+                            result.remove(bitpos);
+                        else
+                            result.put(bitpos, bucket.payload);
+                        if (! Objects.equals(before, bucket.payload))
+                            changed = true;
+                        newBlocks.addAll(bucket.newBlocks);
+                    }
+                    if (! changed)
+                        return new BulkResult<>(this, ourHash, Collections.emptyList());
+                    return new BulkResult<>(fromPayloads(result, fromCbor), Optional.empty(), newBlocks);
+                });
+    }
+
+    /** Data payloads are stored in ascending bit order, followed by links in descending bit order
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <V extends Cborable> Champ<V> fromPayloads(SortedMap<Integer, HashPrefixPayload<V>> payloads,
+                                                             Function<Cborable, V> fromCbor) {
+        BitSet dataMap = new BitSet(), nodeMap = new BitSet();
+        List<HashPrefixPayload<V>> data = new ArrayList<>();
+        LinkedList<HashPrefixPayload<V>> links = new LinkedList<>();
+        for (Map.Entry<Integer, HashPrefixPayload<V>> e : payloads.entrySet()) {
+            if (e.getValue().isShard()) {
+                nodeMap.set(e.getKey());
+                links.addFirst(e.getValue());
+            } else {
+                dataMap.set(e.getKey());
+                data.add(e.getValue());
+            }
+        }
+        data.addAll(links);
+        return new Champ<>(dataMap, nodeMap, data.toArray(new HashPrefixPayload[0]), fromCbor);
+    }
+
+    private CompletableFuture<Bucket<V>> mutateBucket(int bitpos,
+                                                      List<Mutation<V>> mutations,
+                                                      int depth,
+                                                      int bitWidth,
+                                                      int maxCollisions,
+                                                      Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+                                                      ContentAddressedStorage storage,
+                                                      Hasher writeHasher) {
+        if (nodeMap.get(bitpos)) {
+            Multihash childHash = contents[contents.length - 1 - getIndex(nodeMap, bitpos)].link.get();
+            return ChampCache.get((Cid) childHash, storage, fromCbor)
+                    .thenApply(node -> node.orElseThrow(() -> new IllegalStateException("Hash not present! " + childHash)))
+                    .thenCompose(child -> child.mutate(mutations, depth + 1, bitWidth, maxCollisions, hasher, storage,
+                            writeHasher, Optional.of(childHash)))
+                    .thenCompose(res -> {
+                        if (res.unchanged.isPresent())
+                            return Futures.of(new Bucket<>(new HashPrefixPayload<>(MaybeMultihash.of(res.unchanged.get())), Collections.emptyList()));
+                        Champ<V> child = res.champ;
+                        if (child.nodeCount() == 0 && child.keyCount() <= maxCollisions)
+                            return Futures.of(inline(child.getMappings()));
+                        return link(child, res.newBlocks, writeHasher);
+                    });
+        }
+        List<KeyElement<V>> current = dataMap.get(bitpos) ?
+                Arrays.asList(contents[getIndex(dataMap, bitpos)].mappings) :
+                Collections.emptyList();
+        Map<ByteArrayWrapper, Optional<V>> updated = new LinkedHashMap<>();
+        for (KeyElement<V> e : current)
+            updated.put(e.key, e.valueHash);
+        for (Mutation<V> m : mutations) {
+            if (updated.containsKey(m.key)) {
+                Optional<V> currentVal = updated.get(m.key);
+                if (! currentVal.equals(m.expected))
+                    return Futures.errored(new CasException(currentVal, m.expected));
+                if (m.isRemove)
+                    updated.remove(m.key);
+                else
+                    updated.put(m.key, m.value);
+            } else if (! m.isRemove)
+                updated.put(m.key, m.value);
+        }
+        List<KeyElement<V>> mappings = updated.entrySet().stream()
+                .map(e -> new KeyElement<>(e.getKey(), e.getValue()))
+                .collect(Collectors.toList());
+        if (mappings.size() <= maxCollisions)
+            return Futures.of(inline(mappings));
+
+        // too many mappings for this prefix, push them all down a level
+        if (depth + 1 >= HASH_CODE_LENGTH)
+            throw new IllegalStateException("Hash collision!");
+        // only the existing inline mappings need hashing
+        Map<ByteArrayWrapper, byte[]> knownHashes = new HashMap<>();
+        for (Mutation<V> m : mutations)
+            knownHashes.put(m.key, m.hash);
+        return Futures.collectInOrder(mappings.stream()
+                        .map(e -> {
+                            byte[] known = knownHashes.get(e.key);
+                            return (known != null ? Futures.of(known) : hasher.apply(e.key))
+                                    .thenApply(h -> Mutation.put(e.key, h, Optional.<V>empty(), e.valueHash));
+                        })
+                        .collect(Collectors.toList()))
+                .thenCompose(puts -> Champ.<V>empty(fromCbor).mutate(puts, depth + 1, bitWidth, maxCollisions, hasher,
+                        storage, writeHasher, Optional.empty()))
+                .thenCompose(res -> link(res.champ, res.newBlocks, writeHasher));
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <V extends Cborable> Bucket<V> inline(List<KeyElement<V>> mappings) {
+        if (mappings.isEmpty())
+            return new Bucket<>(null, Collections.emptyList());
+        KeyElement<V>[] sorted = mappings.toArray(new KeyElement[0]);
+        // ensure canonical structure
+        Arrays.sort(sorted, Comparator.comparing(m -> m.key));
+        return new Bucket<>(new HashPrefixPayload<>(sorted), Collections.emptyList());
+    }
+
+    private static <V extends Cborable> CompletableFuture<Bucket<V>> link(Champ<V> child,
+                                                                         List<byte[]> childBlocks,
+                                                                         Hasher writeHasher) {
+        byte[] raw = child.serialize();
+        return writeHasher.sha256(raw)
+                .thenApply(h -> {
+                    List<byte[]> blocks = new ArrayList<>(childBlocks);
+                    blocks.add(raw);
+                    Cid cid = Cid.buildCidV1(Cid.Codec.DagCbor, Multihash.Type.sha2_256, h);
+                    return new Bucket<>(new HashPrefixPayload<>(MaybeMultihash.of(cid)), blocks);
+                });
+    }
+
+    /** A depth first traversal of every mapping under this node, which fetches up to parallelism child nodes at once
+     */
+    public ChampTraversal<V> traverse(int parallelism, ContentAddressedStorage storage) {
+        return new ChampTraversal<>(this, parallelism, storage);
+    }
+
     public <T> CompletableFuture<T> reduceAllMappings(T identity,
                                                       BiFunction<T, Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<T>> consumer,
                                                       ContentAddressedStorage storage) {
-        return Futures.reduceAll(Arrays.stream(contents).collect(Collectors.toList()), identity, (res, payload) ->
-                (! payload.isShard() ?
-                        Futures.reduceAll(
-                                Arrays.stream(payload.mappings).collect(Collectors.toList()),
-                                res,
-                                (x, mapping) -> consumer.apply(x, new Pair<>(mapping.key, mapping.valueHash)),
-                                (a, b) ->  a) :
-                        CompletableFuture.completedFuture(res)
-                ).thenCompose(newRes ->
-                        payload.isShard() && payload.link.isPresent() ?
-                                storage.get((Cid)payload.link.get(), Optional.empty())
-                                        .thenApply(rawOpt -> Champ.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + payload.link)), fromCbor))
-                                        .thenCompose(child -> child.reduceAllMappings(newRes, consumer, storage)) :
-                                CompletableFuture.completedFuture(newRes)
-                ), (a, b) -> a);
+        return reduceAllMappings(identity, consumer, ChampTraversal.DEFAULT_PARALLELISM, storage);
+    }
+
+    public <T> CompletableFuture<T> reduceAllMappings(T identity,
+                                                      BiFunction<T, Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<T>> consumer,
+                                                      int parallelism,
+                                                      ContentAddressedStorage storage) {
+        return traverse(parallelism, storage).reduce(identity, (acc, batch) ->
+                Futures.reduceAll(batch, acc, consumer, (a, b) -> a));
+    }
+
+    public CompletableFuture<Boolean> applyToAllMappings(Function<Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<Boolean>> mapper,
+                                                         ContentAddressedStorage storage) {
+        return applyToAllMappings(mapper, ChampTraversal.DEFAULT_PARALLELISM, storage);
     }
 
+    /** Apply mapper to every mapping, with no ordering between calls. The mappers for up to parallelism nodes are
+     *  outstanding at once, so a slow mapper doesn't stop the traversal moving on to other nodes.
+     */
     public CompletableFuture<Boolean> applyToAllMappings(Function<Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<Boolean>> mapper,
+                                                         int parallelism,
                                                          ContentAddressedStorage storage) {
-        return Futures.combineAll(Arrays.stream(contents).parallel().map(payload ->
-                        (! payload.isShard() ?
-                                Futures.combineAll(
-                                                Arrays.stream(payload.mappings).parallel()
-                                                        .map(mapping -> mapper.apply(new Pair<>(mapping.key, mapping.valueHash)))
-                                                        .collect(Collectors.toList()))
-                                        .thenApply(x -> true) :
-                                Futures.of(true)
-                        ).thenCompose(newRes ->
-                                payload.isShard() && payload.link.isPresent() ?
-                                        storage.get((Cid)payload.link.get(), Optional.empty())
-                                                .thenApply(rawOpt -> Champ.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + payload.link)), fromCbor))
-                                                .thenCompose(child -> child.applyToAllMappings(mapper, storage)) :
-                                        Futures.of(true)
-                        )).collect(Collectors.toList()))
+        // only touched from the sequential reduce steps
+        LinkedList<CompletableFuture<Boolean>> outstanding = new LinkedList<>();
+        return traverse(parallelism, storage).reduce(true, (acc, batch) -> {
+                    outstanding.add(Futures.combineAll(batch.stream()
+                                    .map(mapper)
+                                    .collect(Collectors.toList()))
+                            .thenApply(x -> true));
+                    if (outstanding.size() < parallelism)
+                        return Futures.of(true);
+                    return outstanding.removeFirst();
+                })
+                .thenCompose(x -> Futures.combineAll(outstanding))
                 .thenApply(x -> true);
     }
 
+    /**
+     *
+     * @return The mappings stored directly in this node, in champ order
+     */
+    List<Pair<ByteArrayWrapper, Optional<V>>> inlineMappings() {
+        return getMappings().stream()
+                .map(m -> new Pair<>(m.key, m.valueHash))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     *
+     * @return The links to the child nodes of this node, in champ order
+     */
+    List<Cid> childLinks() {
+        return getLinks().stream()
+                .filter(p -> p.link.isPresent())
+                .map(p -> (Cid) p.link.get())
+                .collect(Collectors.toList());
+    }
+
+    Function<Cborable, V> valueDecoder() {
+        return fromCbor;
+    }
+
     private List<KeyElement<V>> getMappings() {
         return Arrays.stream(contents)
                 .filter(p -> !p.isShard())
@@ -672,6 +960,27 @@ public class Champ<V extends Cborable> implements Cborable {
                 );
     }
 
+    /** A pair of corresponding subtrees of two champs to compare, along with any mappings which are inline at a
+     *  higher level on one side
+     */
+    static final class DiffTask<V extends Cborable> {
+        public final MaybeMultihash original, updated;
+        public final int depth;
+        private final List<KeyElement<V>> higherLeftMappings, higherRightMappings;
+
+        DiffTask(MaybeMultihash original,
+                 MaybeMultihash updated,
+                 int depth,
+                 List<KeyElement<V>> higherLeftMappings,
+                 List<KeyElement<V>> higherRightMappings) {
+            this.original = original;
+            this.updated = updated;
+            this.depth = depth;
+            this.higherLeftMappings = higherLeftMappings;
+            this.higherRightMappings = higherRightMappings;
+        }
+    }
+
     public static <V extends Cborable> CompletableFuture<Boolean> applyToDiff(
             MaybeMultihash original,
             MaybeMultihash updated,
@@ -683,23 +992,59 @@ public class Champ<V extends Cborable> implements Cborable {
             int bitWidth,
             ContentAddressedStorage storage,
             Function<Cborable, V> fromCbor) {
+        return applyToDiff(original, updated, depth, hasher, higherLeftMappings, higherRightMappings, consumer, bitWidth,
+                ChampDiff.DEFAULT_PARALLELISM, storage, fromCbor);
+    }
 
-        if (updated.equals(original))
-            return CompletableFuture.completedFuture(true);
-        return original.map(h -> storage.get((Cid)h, Optional.empty())).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                .thenApply(rawOpt -> rawOpt.map(y -> Champ.fromCbor(y, fromCbor)))
-                .thenCompose(left -> updated.map(h -> storage.get((Cid)h, Optional.empty())).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                        .thenApply(rawOpt -> rawOpt.map(y -> Champ.fromCbor(y, fromCbor)))
-                        .thenCompose(right -> hashAndMaskKeys(higherLeftMappings, depth, bitWidth, hasher)
-                                .thenCompose(leftHigherMappingsByBit -> hashAndMaskKeys(higherRightMappings, depth, bitWidth, hasher)
-                                        .thenCompose(rightHigherMappingsByBit -> {
+    public static <V extends Cborable> CompletableFuture<Boolean> applyToDiff(
+            MaybeMultihash original,
+            MaybeMultihash updated,
+            int depth,
+            Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+            List<KeyElement<V>> higherLeftMappings,
+            List<KeyElement<V>> higherRightMappings,
+            Consumer<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>> consumer,
+            int bitWidth,
+            int parallelism,
+            ContentAddressedStorage storage,
+            Function<Cborable, V> fromCbor) {
+        DiffTask<V> root = new DiffTask<>(original, updated, depth, higherLeftMappings, higherRightMappings);
+        return new ChampDiff<>(root, hasher, bitWidth, parallelism, storage, fromCbor)
+                .reduce(true, (x, changes) -> {
+                    changes.forEach(consumer);
+                    return Futures.of(true);
+                });
+    }
+
+    /** Compare a single layer of two champs
+     *
+     * @return The changed mappings in this layer, and the differing subtrees below it
+     */
+    static <V extends Cborable> CompletableFuture<Pair<List<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>>, List<DiffTask<V>>>> diffLayer(
+            DiffTask<V> task,
+            Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+            int bitWidth,
+            ContentAddressedStorage storage,
+            Function<Cborable, V> fromCbor) {
+        if (task.updated.equals(task.original))
+            return Futures.of(new Pair<>(Collections.emptyList(), Collections.emptyList()));
+        int depth = task.depth;
+        CompletableFuture<Optional<Champ<V>>> leftFut = task.original.map(h -> ChampCache.get((Cid)h, storage, fromCbor))
+                .orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()));
+        CompletableFuture<Optional<Champ<V>>> rightFut = task.updated.map(h -> ChampCache.get((Cid)h, storage, fromCbor))
+                .orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()));
+        return leftFut.thenCompose(left -> rightFut
+                .thenCompose(right -> hashAndMaskKeys(task.higherLeftMappings, depth, bitWidth, hasher)
+                        .thenCompose(leftHigherMappingsByBit -> hashAndMaskKeys(task.higherRightMappings, depth, bitWidth, hasher)
+                                .thenApply(rightHigherMappingsByBit -> {
 
                             int leftMax = left.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
                             int rightMax = right.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
                             int maxBit = Math.max(leftMax, rightMax);
                             int leftDataIndex = 0, rightDataIndex = 0, leftNodeCount = 0, rightNodeCount = 0;
 
-                            List<CompletableFuture<Boolean>> deeperLayers = new ArrayList<>();
+                            List<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>> changes = new ArrayList<>();
+                            List<DiffTask<V>> deeperLayers = new ArrayList<>();
 
                             for (int i = 0; i < maxBit; i++) {
                                 // either the payload is present OR higher mappings are non empty OR the champ is absent
@@ -726,10 +1071,11 @@ public class Champ<V extends Cborable> implements Cborable {
                                         .map(p -> p.link);
 
                                 if (leftShard.isPresent() || rightShard.isPresent()) {
-                                    deeperLayers.add(applyToDiff(
-                                            leftShard.orElse(MaybeMultihash.empty()),
-                                            rightShard.orElse(MaybeMultihash.empty()), depth + 1, hasher,
-                                            leftMappings, rightMappings, consumer, bitWidth, storage, fromCbor));
+                                    DiffTask<V> deeper = new DiffTask<>(leftShard.orElse(MaybeMultihash.empty()),
+                                            rightShard.orElse(MaybeMultihash.empty()), depth + 1, leftMappings, rightMappings);
+                                    // prune identical subtrees
+                                    if (! deeper.original.equals(deeper.updated))
+                                        deeperLayers.add(deeper);
                                 } else {
                                     Map<ByteArrayWrapper, Optional<V>> leftMap = leftMappings.stream()
                                             .collect(Collectors.toMap(e -> e.key, e -> e.valueHash));
@@ -741,13 +1087,13 @@ public class Champ<V extends Cborable> implements Cborable {
 
                                     for (Map.Entry<ByteArrayWrapper, Optional<V>> entry : leftMap.entrySet()) {
                                         if (! both.contains(entry.getKey()))
-                                            consumer.accept(new Triple<>(entry.getKey(), entry.getValue(), Optional.empty()));
+                                            changes.add(new Triple<>(entry.getKey(), entry.getValue(), Optional.empty()));
                                         else if (! entry.getValue().equals(rightMap.get(entry.getKey())))
-                                            consumer.accept(new Triple<>(entry.getKey(), entry.getValue(), rightMap.get(entry.getKey())));
+                                            changes.add(new Triple<>(entry.getKey(), entry.getValue(), rightMap.get(entry.getKey())));
                                     }
                                     for (Map.Entry<ByteArrayWrapper, Optional<V>> entry : rightMap.entrySet()) {
                                         if (! both.contains(entry.getKey()))
-                                            consumer.accept(new Triple<>(entry.getKey(), Optional.empty(), entry.getValue()));
+                                            changes.add(new Triple<>(entry.getKey(), Optional.empty(), entry.getValue()));
                                     }
                                 }
 
@@ -765,7 +1111,7 @@ public class Champ<V extends Cborable> implements Cborable {
                                 }
                             }
 
-                            return Futures.combineAll(deeperLayers).thenApply(x -> true);
+                            return new Pair<>(changes, deeperLayers);
                         })))
         );
     }
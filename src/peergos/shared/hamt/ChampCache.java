@@ -0,0 +1,97 @@
+package peergos.shared.hamt;
+
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** A process wide cache of decoded champ nodes, keyed by their cid, and bounded by their estimated heap size.
+ *
+ *  Champ nodes are immutable, so a decoded node can be shared by every traversal of any champ which contains it, which
+ *  avoids re-fetching and re-decoding hot nodes like the roots of the pki, owned key and large directory champs.
+ */
+public class ChampCache {
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+    // decoded nodes take a few times the space of their serialization
+    private static final int DECODED_SIZE_FACTOR = 4;
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /** A storage which needs to see every block used by a traversal, e.g. to return them to a client
+     */
+    public interface Recorder {
+        void record(Cid hash, byte[] block);
+    }
+
+    private static final class Entry {
+        public final Champ<?> node;
+        public final byte[] block;
+        public final Function<Cborable, ?> fromCbor;
+
+        public Entry(Champ<?> node, byte[] block, Function<Cborable, ?> fromCbor) {
+            this.node = node;
+            this.block = block;
+            this.fromCbor = fromCbor;
+        }
+    }
+
+    private static volatile WeightedCache<Cid, Entry> cache = build(DEFAULT_MAX_BYTES);
+
+    private static WeightedCache<Cid, Entry> build(long maxBytes) {
+        return new WeightedCache<>(16, maxBytes, e -> e.block.length * DECODED_SIZE_FACTOR + ENTRY_OVERHEAD);
+    }
+
+    /** Replace the cache with an empty one of a different size, a size of 0 disables caching
+     *
+     * @return The new cache, for monitoring
+     */
+    public static WeightedCache<Cid, ?> setMaxSize(long maxBytes) {
+        WeightedCache<Cid, Entry> resized = build(maxBytes);
+        cache = resized;
+        return resized;
+    }
+
+    public static WeightedCache<Cid, ?> cache() {
+        return cache;
+    }
+
+    public static void clear() {
+        cache.clear();
+    }
+
+    /**
+     *
+     * @param hash
+     * @param storage The storage to retrieve the node from if it isn't cached
+     * @param fromCbor The value decoder of the champ, cached nodes are only reused with the same decoder
+     * @return The decoded node, or Optional.empty() if it is absent
+     */
+    @SuppressWarnings("unchecked")
+    public static <V extends Cborable> CompletableFuture<Optional<Champ<V>>> get(Cid hash,
+                                                                              ContentAddressedStorage storage,
+                                                                              Function<Cborable, V> fromCbor) {
+        WeightedCache<Cid, Entry> current = cache;
+        if (current.maxWeight() > 0) {
+            Entry cached = current.get(hash);
+            if (cached != null) {
+                if (storage instanceof Recorder)
+                    ((Recorder) storage).record(hash, cached.block);
+                if (cached.fromCbor == fromCbor)
+                    return Futures.of(Optional.of((Champ<V>) cached.node));
+                Champ<V> node = Champ.fromCbor(CborObject.fromByteArray(cached.block), fromCbor);
+                current.put(hash, new Entry(node, cached.block, fromCbor));
+                return Futures.of(Optional.of(node));
+            }
+        }
+        return storage.get(hash, Optional.empty())
+                .thenApply(cborOpt -> cborOpt.map(cbor -> {
+                    Champ<V> node = Champ.fromCbor(cbor, fromCbor);
+                    if (current.maxWeight() > 0)
+                        current.put(hash, new Entry(node, cbor.toByteArray(), fromCbor));
+                    return node;
+                }));
+    }
+}
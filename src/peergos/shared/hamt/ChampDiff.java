@@ -0,0 +1,54 @@
+package peergos.shared.hamt;
+
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** A pull based stream of the differences between two champs, as (key, original value, updated value), in batches of
+ *  one layer.
+ *
+ *  Identical subtrees are pruned by their cid, and up to parallelism of the next differing subtrees are fetched
+ *  concurrently, so a diff with few changes costs a round trip per level regardless of the size of the champs.
+ */
+public class ChampDiff<V extends Cborable> extends PrefetchingTraversal<Champ.DiffTask<V>, Triple<ByteArrayWrapper, Optional<V>, Optional<V>>> {
+    public static final int DEFAULT_PARALLELISM = 16;
+
+    private final Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher;
+    private final int bitWidth;
+    private final ContentAddressedStorage storage;
+    private final Function<Cborable, V> fromCbor;
+
+    ChampDiff(Champ.DiffTask<V> root,
+              Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+              int bitWidth,
+              int parallelism,
+              ContentAddressedStorage storage,
+              Function<Cborable, V> fromCbor) {
+        super(Collections.singletonList(root), parallelism);
+        this.hasher = hasher;
+        this.bitWidth = bitWidth;
+        this.storage = storage;
+        this.fromCbor = fromCbor;
+    }
+
+    public ChampDiff(MaybeMultihash original,
+                     MaybeMultihash updated,
+                     Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+                     int bitWidth,
+                     int parallelism,
+                     ContentAddressedStorage storage,
+                     Function<Cborable, V> fromCbor) {
+        this(new Champ.DiffTask<>(original, updated, 0, Collections.emptyList(), Collections.emptyList()),
+                hasher, bitWidth, parallelism, storage, fromCbor);
+    }
+
+    @Override
+    protected CompletableFuture<Pair<List<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>>, List<Champ.DiffTask<V>>>> expand(Champ.DiffTask<V> task) {
+        return Champ.diffLayer(task, hasher, bitWidth, storage, fromCbor);
+    }
+}
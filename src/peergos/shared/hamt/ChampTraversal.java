@@ -0,0 +1,36 @@
+package peergos.shared.hamt;
+
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** A pull based, depth first stream of all the mappings in a champ, in batches of one node, which fetches up to
+ *  parallelism of the next nodes to be visited concurrently.
+ */
+public class ChampTraversal<V extends Cborable> extends PrefetchingTraversal<Either<Champ<V>, Cid>, Pair<ByteArrayWrapper, Optional<V>>> {
+    public static final int DEFAULT_PARALLELISM = 16;
+
+    private final ContentAddressedStorage storage;
+    private final Function<Cborable, V> fromCbor;
+
+    public ChampTraversal(Champ<V> root, int parallelism, ContentAddressedStorage storage) {
+        super(Collections.singletonList(Either.a(root)), parallelism);
+        this.storage = storage;
+        this.fromCbor = root.valueDecoder();
+    }
+
+    @Override
+    protected CompletableFuture<Pair<List<Pair<ByteArrayWrapper, Optional<V>>>, List<Either<Champ<V>, Cid>>>> expand(Either<Champ<V>, Cid> task) {
+        return task.map(Futures::of, link -> ChampCache.get(link, storage, fromCbor)
+                        .thenApply(node -> node.orElseThrow(() -> new IllegalStateException("Hash not present! " + link))))
+                .thenApply(node -> new Pair<>(node.inlineMappings(), node.childLinks().stream()
+                        .map(Either::<Champ<V>, Cid>b)
+                        .collect(Collectors.toList())));
+    }
+}
@@ -13,6 +13,7 @@ import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
 {
@@ -47,10 +48,10 @@ public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
                                                                                  ContentAddressedStorage dht,
                                                                                  Hasher writeHasher,
                                                                                  Function<Cborable, V> fromCbor) {
-        return dht.get(rootHash, Optional.empty()).thenApply(rawOpt -> {
-            if (! rawOpt.isPresent())
+        return ChampCache.get(rootHash, dht, fromCbor).thenApply(rootOpt -> {
+            if (! rootOpt.isPresent())
                 throw new IllegalStateException("Champ root not present: " + rootHash);
-            return new ChampWrapper<>(Champ.fromCbor(rawOpt.get(), fromCbor), rootHash, hasher, dht, writeHasher, BIT_WIDTH);
+            return new ChampWrapper<>(rootOpt.get(), rootHash, hasher, dht, writeHasher, BIT_WIDTH);
         });
     }
 
@@ -121,6 +122,30 @@ public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
+    /** Apply many puts and removes, writing each changed node once
+     *
+     * @param mutations The key, expected current value, and new value of each mapping to change. An empty new value
+     *                  removes the mapping.
+     * @return hash of new tree root
+     */
+    public CompletableFuture<Multihash> applyMutations(PublicKeyHash owner,
+                                                      SigningPrivateKeyAndPublicHash writer,
+                                                      List<Triple<byte[], Optional<V>, Optional<V>>> mutations,
+                                                      TransactionId tid) {
+        return Futures.collectInOrder(mutations.stream()
+                        .map(t -> {
+                            ByteArrayWrapper key = new ByteArrayWrapper(t.left);
+                            return keyHasher.apply(key)
+                                    .thenApply(keyHash -> t.right.isPresent() ?
+                                            Champ.Mutation.put(key, keyHash, t.middle, t.right) :
+                                            Champ.Mutation.remove(key, keyHash, t.middle));
+                        })
+                        .collect(Collectors.toList()))
+                .thenCompose(muts -> root.left.applyMutations(owner, writer, muts, BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL,
+                        keyHasher, tid, storage, writeHasher, root.right))
+                .thenCompose(newRoot -> commit(writer, newRoot));
+    }
+
     private CompletableFuture<Multihash> commit(SigningPrivateKeyAndPublicHash writer, Pair<Champ<V>, Multihash> newRoot) {
         root = newRoot;
         return CompletableFuture.completedFuture(newRoot.right);
@@ -153,4 +178,13 @@ public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
     public CompletableFuture<Boolean> applyToAllMappings(Function<Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<Boolean>> mapper) {
         return root.left.applyToAllMappings(mapper, storage);
     }
+
+    /**
+     *
+     * @param parallelism The maximum number of nodes to fetch concurrently
+     * @return A stream of all the mappings, in batches of one node
+     */
+    public ChampTraversal<V> traverse(int parallelism) {
+        return root.left.traverse(parallelism, storage);
+    }
 }
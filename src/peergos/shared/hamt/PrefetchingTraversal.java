@@ -0,0 +1,134 @@
+package peergos.shared.hamt;
+
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** A pull based, depth first traversal of a tree of asynchronous tasks, each of which produces a batch of results and
+ *  some child tasks.
+ *
+ *  Up to parallelism of the next tasks to be visited are run concurrently. When any of them completes, its children
+ *  are spliced in after it and become candidates to run, so a sparse tree is walked down every branch at once rather
+ *  than one path at a time. Tasks are only run ahead of what the consumer has pulled, so a slow consumer bounds both
+ *  the requests in flight and the results buffered in memory.
+ *  The results are returned in the same order as a sequential depth first traversal.
+ *
+ * @param <T> task type
+ * @param <R> result type
+ */
+public abstract class PrefetchingTraversal<T, R> {
+
+    private static final class Pending<T, R> {
+        public final T task;
+        public boolean isStarted, isDone, isPulled;
+        public CompletableFuture<List<R>> result;
+
+        public Pending(T task) {
+            this.task = task;
+        }
+    }
+
+    private final int parallelism;
+    // the tasks still to be pulled, in depth first order
+    private final LinkedList<Pending<T, R>> toVisit = new LinkedList<>();
+    // tasks which have been started, but not both completed and pulled
+    private int started = 0;
+
+    protected PrefetchingTraversal(List<T> roots, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive!");
+        this.parallelism = parallelism;
+        for (T root : roots)
+            toVisit.add(new Pending<>(root));
+    }
+
+    /**
+     *
+     * @param task
+     * @return The results of this task and its child tasks, in order
+     */
+    protected abstract CompletableFuture<Pair<List<R>, List<T>>> expand(T task);
+
+    private void prefetch() {
+        List<Pending<T, R>> toStart = new ArrayList<>();
+        for (Pending<T, R> next : toVisit) {
+            if (started >= parallelism)
+                break;
+            if (! next.isStarted) {
+                next.isStarted = true;
+                started++;
+                toStart.add(next);
+            }
+        }
+        // tasks can complete synchronously and modify toVisit, so only start them once we have finished iterating
+        for (Pending<T, R> task : toStart)
+            start(task);
+    }
+
+    private void start(Pending<T, R> pending) {
+        pending.result = expand(pending.task).thenApply(res -> {
+            completed(pending, res.right);
+            return res.left;
+        });
+    }
+
+    private synchronized void completed(Pending<T, R> parent, List<T> children) {
+        List<Pending<T, R>> pending = new ArrayList<>();
+        for (T child : children)
+            pending.add(new Pending<>(child));
+        // if the parent has already been pulled, everything left comes after its children
+        toVisit.addAll(toVisit.indexOf(parent) + 1, pending);
+        parent.isDone = true;
+        // a pulled task keeps its slot until it completes, so its first child can always start
+        if (parent.isPulled)
+            started--;
+        prefetch();
+    }
+
+    /** The next call must not be made until the returned future has completed
+     *
+     * @return The results of the next task, or Optional.empty() if the traversal is complete
+     */
+    public synchronized CompletableFuture<Optional<List<R>>> next() {
+        if (toVisit.isEmpty())
+            return Futures.of(Optional.empty());
+        prefetch();
+        Pending<T, R> first = toVisit.removeFirst();
+        first.isPulled = true;
+        if (first.isDone)
+            started--;
+        prefetch();
+        return first.result.thenApply(Optional::of);
+    }
+
+    /** Fold over the batches of results in order, without growing the stack when results are already available
+     */
+    public <A> CompletableFuture<A> reduce(A identity, BiFunction<A, List<R>, CompletableFuture<A>> consumer) {
+        A acc = identity;
+        while (true) {
+            CompletableFuture<Optional<List<R>>> batch = next();
+            if (! batch.isDone() || batch.isCompletedExceptionally()) {
+                A current = acc;
+                return batch.thenCompose(b -> consumeAndContinue(b, current, consumer));
+            }
+            Optional<List<R>> b = batch.join();
+            if (! b.isPresent())
+                return Futures.of(acc);
+            CompletableFuture<A> res = consumer.apply(acc, b.get());
+            if (! res.isDone() || res.isCompletedExceptionally())
+                return res.thenCompose(r -> reduce(r, consumer));
+            acc = res.join();
+        }
+    }
+
+    private <A> CompletableFuture<A> consumeAndContinue(Optional<List<R>> batch,
+                                                        A acc,
+                                                        BiFunction<A, List<R>, CompletableFuture<A>> consumer) {
+        if (! batch.isPresent())
+            return Futures.of(acc);
+        return consumer.apply(acc, batch.get())
+                .thenCompose(r -> reduce(r, consumer));
+    }
+}
@@ -65,6 +65,19 @@ public class BufferedStorage extends DelegatingStorage {
         );
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        if (storage.isEmpty())
+            return target.getChampLookups(owner, root, champKeys, bats);
+        return Futures.asyncExceptionally(
+                () -> getChampLookups(root, champKeys, bats, hasher),
+                t -> target.getChampLookups(owner, root, champKeys, bats)
+        );
+    }
+
     @Override
     public CompletableFuture<List<byte[]>> getChampLookup(Cid root, byte[] champKey, Optional<BatWithId> bat, Hasher hasher) {
         CachingStorage cache = new CachingStorage(this, 100, 100 * 1024);
@@ -185,9 +198,9 @@ public class BufferedStorage extends DelegatingStorage {
 
         if (current.isRaw())
             return;
-        List<Multihash> links = CborObject.fromByteArray(block.block).links();
-        for (Multihash link : links) {
-            markReachable((Cid)link, reachable, all, storage);
+        List<Cid> links = CborReader.links(block.block);
+        for (Cid link : links) {
+            markReachable(link, reachable, all, storage);
         }
     }
 
@@ -2,6 +2,7 @@ package peergos.shared.storage;
 
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.auth.*;
@@ -10,21 +11,35 @@ import peergos.shared.util.*;
 import java.util.*;
 import java.util.concurrent.*;
 
-public class CachingStorage extends DelegatingStorage {
+public class CachingStorage extends DelegatingStorage implements ChampCache.Recorder {
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
+    private final WeightedCache<Multihash, byte[]> cache;
+    private final SingleFlight<Multihash, Optional<CborObject>> pending;
+    private final SingleFlight<Multihash, Optional<byte[]>> pendingRaw;
     private final int maxValueSize, cacheSize;
 
     public CachingStorage(ContentAddressedStorage target, int cacheSize, int maxValueSize) {
         super(target);
         this.target = target;
-        this.cache = new LRUCache<>(cacheSize);
+        this.cache = WeightedCache.bytes((long) cacheSize * maxValueSize);
         this.maxValueSize = maxValueSize;
         this.cacheSize = cacheSize;
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+        this.pending = new SingleFlight<>();
+        this.pendingRaw = new SingleFlight<>();
+    }
+
+    /**
+     *
+     * @return The number of downstream requests avoided by sharing an in flight fetch
+     */
+    public long savedRequests() {
+        return pending.savedCount() + pendingRaw.savedCount();
+    }
+
+    @Override
+    public void record(Cid hash, byte[] block) {
+        if (block.length < maxValueSize)
+            cache.put(hash, block);
     }
 
     public Collection<byte[]> getCached() {
@@ -66,32 +81,18 @@ public class CachingStorage extends DelegatingStorage {
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Cid key, Optional<BatWithId> bat) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cache.get(key))));
+        byte[] cached = cache.get(key);
+        if (cached != null)
+            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cached)));
 
-        if (pending.containsKey(key))
-            return pending.get(key);
-
-        CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
-
-        CompletableFuture<Optional<CborObject>> result = new CompletableFuture<>();
-        target.get(key, bat).thenAccept(cborOpt -> {
+        return pending.get(key, () -> target.get(key, bat).thenApply(cborOpt -> {
             if (cborOpt.isPresent()) {
                 byte[] value = cborOpt.get().toByteArray();
                 if (value.length > 0 && value.length < maxValueSize)
                     cache.put(key, value);
             }
-            pending.remove(key);
-            pipe.complete(cborOpt);
-            result.complete(cborOpt);
-        }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            result.completeExceptionally(t);
-            return null;
-        });
-        return result;
+            return cborOpt;
+        }));
     }
 
     @Override
@@ -114,27 +115,54 @@ public class CachingStorage extends DelegatingStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Cid key, Optional<BatWithId> bat) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(cache.get(key)));
-
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key);
+        byte[] cached = cache.get(key);
+        if (cached != null)
+            return CompletableFuture.completedFuture(Optional.of(cached));
+
+        boolean[] fetched = {false};
+        CompletableFuture<Optional<byte[]>> shared = pendingRaw.get(key, () -> {
+            fetched[0] = true;
+            return fetchRaw(key, bat);
+        });
+        if (fetched[0])
+            return shared.exceptionally(t -> Optional.empty());
+        // the shared fetch may have failed only because of the first caller's bat, so retry with ours
+        return Futures.asyncExceptionally(() -> shared, t -> fetchRaw(key, bat));
+    }
 
-        CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
+    private CompletableFuture<Optional<byte[]>> fetchRaw(Cid key, Optional<BatWithId> bat) {
         return target.getRaw(key, bat).thenApply(rawOpt -> {
             if (rawOpt.isPresent()) {
                 byte[] value = rawOpt.get();
                 if (value.length > 0 && value.length < maxValueSize)
                     cache.put(key, value);
             }
-            pendingRaw.remove(key);
-            pipe.complete(rawOpt);
             return rawOpt;
-        }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            return Optional.empty();
         });
     }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+        List<Optional<byte[]>> res = new ArrayList<>(hashes.size());
+        List<Integer> misses = new ArrayList<>();
+        for (int i=0; i < hashes.size(); i++) {
+            byte[] cached = cache.get(hashes.get(i));
+            res.add(Optional.ofNullable(cached));
+            if (cached == null)
+                misses.add(i);
+        }
+        if (misses.isEmpty())
+            return Futures.of(res);
+        return target.getAll(ArrayOps.select(hashes, misses), ArrayOps.select(bats, misses))
+                .thenApply(fetched -> {
+                    for (int j=0; j < misses.size(); j++) {
+                        int i = misses.get(j);
+                        Optional<byte[]> block = fetched.get(j);
+                        res.set(i, block);
+                        if (block.isPresent() && block.get().length > 0 && block.get().length < maxValueSize)
+                            cache.put(hashes.get(i), block.get());
+                    }
+                    return res;
+                });
+    }
 }
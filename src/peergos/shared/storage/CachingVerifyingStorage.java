@@ -15,9 +15,9 @@ import java.util.stream.*;
 public class CachingVerifyingStorage extends DelegatingStorage {
 
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
+    private final WeightedCache<Multihash, byte[]> cache;
+    private final SingleFlight<Multihash, Optional<CborObject>> pending;
+    private final SingleFlight<Multihash, Optional<byte[]>> pendingRaw;
     private final int maxValueSize, cacheSize;
     private final Cid nodeId;
     private final Hasher hasher;
@@ -25,9 +25,9 @@ public class CachingVerifyingStorage extends DelegatingStorage {
     public CachingVerifyingStorage(ContentAddressedStorage target, int maxValueSize, int cacheSize, Cid nodeId, Hasher hasher) {
         super(target);
         this.target = target;
-        this.cache =  new LRUCache<>(cacheSize);
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+        this.cache = WeightedCache.count(cacheSize);
+        this.pending = new SingleFlight<>();
+        this.pendingRaw = new SingleFlight<>();
         this.maxValueSize = maxValueSize;
         this.cacheSize = cacheSize;
         this.nodeId = nodeId;
@@ -93,6 +93,19 @@ public class CachingVerifyingStorage extends DelegatingStorage {
                         .thenApply(x -> blocks));
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        return target.getChampLookups(owner, root, champKeys, bats)
+                .thenCompose(blocks -> Futures.combineAllInOrder(blocks.stream()
+                        .map(b -> hasher.hash(b, false)
+                                .thenApply(h -> cache(h, b)))
+                        .collect(Collectors.toList()))
+                        .thenApply(x -> blocks));
+    }
+
     @Override
     public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
                                             PublicKeyHash writer,
@@ -114,36 +127,22 @@ public class CachingVerifyingStorage extends DelegatingStorage {
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Cid key, Optional<BatWithId> bat) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cache.get(key))));
-
-        if (pending.containsKey(key))
-            return pending.get(key);
-
-        CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
+        byte[] cached = cache.get(key);
+        if (cached != null)
+            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cached)));
 
-        CompletableFuture<Optional<CborObject>> result = new CompletableFuture<>();
-        target.get(key, bat)
+        return pending.get(key, () -> target.get(key, bat)
                 .thenCompose(cborOpt -> cborOpt.map(cbor -> verify(cbor.toByteArray(), key, () -> cbor)
                         .thenApply(Optional::of))
                         .orElseGet(() -> Futures.of(Optional.empty())))
-                .thenAccept(cborOpt -> {
+                .thenApply(cborOpt -> {
                     if (cborOpt.isPresent()) {
                         byte[] value = cborOpt.get().toByteArray();
                         if (value.length > 0)
                             cache(key, value);
                     }
-                    pending.remove(key);
-                    pipe.complete(cborOpt);
-                    result.complete(cborOpt);
-                }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            result.completeExceptionally(t);
-            return null;
-        });
-        return result;
+                    return cborOpt;
+                }));
     }
 
     @Override
@@ -168,14 +167,22 @@ public class CachingVerifyingStorage extends DelegatingStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Cid key, Optional<BatWithId> bat) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(cache.get(key)));
-
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key);
+        byte[] cached = cache.get(key);
+        if (cached != null)
+            return CompletableFuture.completedFuture(Optional.of(cached));
+
+        boolean[] fetched = {false};
+        CompletableFuture<Optional<byte[]>> shared = pendingRaw.get(key, () -> {
+            fetched[0] = true;
+            return fetchRaw(key, bat);
+        });
+        if (fetched[0])
+            return shared.exceptionally(t -> Optional.empty());
+        // the shared fetch may have failed only because of the first caller's bat, so retry with ours
+        return Futures.asyncExceptionally(() -> shared, t -> fetchRaw(key, bat));
+    }
 
-        CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
+    private CompletableFuture<Optional<byte[]>> fetchRaw(Cid key, Optional<BatWithId> bat) {
         return target.getRaw(key, bat)
                 .thenCompose(arrOpt -> arrOpt.map(bytes -> verify(bytes, key, () -> bytes)
                         .thenApply(Optional::of))
@@ -186,13 +193,37 @@ public class CachingVerifyingStorage extends DelegatingStorage {
                         if (value.length > 0)
                             cache(key, value);
                     }
-                    pendingRaw.remove(key);
-                    pipe.complete(rawOpt);
                     return rawOpt;
-                }).exceptionally(t -> {
-                    pending.remove(key);
-                    pipe.completeExceptionally(t);
-                    return Optional.empty();
                 });
     }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+        List<Optional<byte[]>> res = new ArrayList<>(hashes.size());
+        List<Integer> misses = new ArrayList<>();
+        for (int i=0; i < hashes.size(); i++) {
+            byte[] cached = cache.get(hashes.get(i));
+            res.add(Optional.ofNullable(cached));
+            if (cached == null)
+                misses.add(i);
+        }
+        if (misses.isEmpty())
+            return Futures.of(res);
+        return target.getAll(ArrayOps.select(hashes, misses), ArrayOps.select(bats, misses))
+                .thenCompose(fetched -> Futures.combineAllInOrder(IntStream.range(0, misses.size())
+                        .mapToObj(j -> {
+                            int i = misses.get(j);
+                            Cid key = hashes.get(i);
+                            return fetched.get(j)
+                                    .map(bytes -> verify(bytes, key, () -> {
+                                        res.set(i, Optional.of(bytes));
+                                        if (bytes.length > 0)
+                                            cache(key, bytes);
+                                        return true;
+                                    }))
+                                    .orElseGet(() -> Futures.of(true));
+                        })
+                        .collect(Collectors.toList())))
+                .thenApply(x -> res);
+    }
 }
@@ -0,0 +1,51 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.auth.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** A request to look up many keys in a single champ
+ */
+public class ChampLookupRequest implements Cborable {
+
+    public final Cid root;
+    public final List<byte[]> keys;
+    public final List<Optional<BatWithId>> bats;
+
+    public ChampLookupRequest(Cid root, List<byte[]> keys, List<Optional<BatWithId>> bats) {
+        if (keys.size() != bats.size())
+            throw new IllegalArgumentException("Need a bat (or none) for every key!");
+        this.root = root;
+        this.keys = keys;
+        this.bats = bats;
+    }
+
+    @Override
+    public CborObject toCbor() {
+        SortedMap<String, Cborable> state = new TreeMap<>();
+        state.put("r", new CborObject.CborByteArray(root.toBytes()));
+        state.put("k", new CborObject.CborList(keys.stream()
+                .map(CborObject.CborByteArray::new)
+                .collect(Collectors.toList())));
+        state.put("b", new CborObject.CborList(bats.stream()
+                .map(b -> b.<Cborable>map(x -> x).orElse(new CborObject.CborNull()))
+                .collect(Collectors.toList())));
+        return CborObject.CborMap.build(state);
+    }
+
+    public static ChampLookupRequest fromCbor(Cborable cbor) {
+        if (! (cbor instanceof CborObject.CborMap))
+            throw new IllegalStateException("Incorrect cbor for ChampLookupRequest: " + cbor);
+
+        CborObject.CborMap m = (CborObject.CborMap) cbor;
+        Cid root = m.get("r", c -> Cid.cast(((CborObject.CborByteArray)c).value));
+        List<byte[]> keys = m.getList("k", c -> ((CborObject.CborByteArray)c).value);
+        List<Optional<BatWithId>> bats = m.getList("b", c -> c instanceof CborObject.CborNull ?
+                Optional.<BatWithId>empty() :
+                Optional.of(BatWithId.fromCbor(c)));
+        return new ChampLookupRequest(root, keys, bats);
+    }
+}
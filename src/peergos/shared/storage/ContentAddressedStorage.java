@@ -28,6 +28,8 @@ public interface ContentAddressedStorage {
     boolean DEBUG_GC = false;
     int MAX_BLOCK_SIZE  = Fragment.MAX_LENGTH_WITH_BAT_PREFIX;
     int MAX_BLOCK_AUTHS = 50;
+    int MAX_BLOCKS_PER_GET = 50;
+    int MAX_CHAMP_KEYS_PER_LOOKUP = 1000;
 
     default CompletableFuture<BlockStoreProperties> blockStoreProperties() {
         return Futures.of(BlockStoreProperties.empty());
@@ -155,6 +157,26 @@ public interface ContentAddressedStorage {
      */
     CompletableFuture<Optional<byte[]>> getRaw(Cid hash, Optional<BatWithId> bat);
 
+    /**
+     * Get many blocks of either cbor or raw type at once
+     * @param hashes
+     * @param bats The bat to authorise the read of each block with
+     * @return The serialized block for each hash in order, or Optional.empty() where a block can't be found
+     */
+    default CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+        if (hashes.size() != bats.size())
+            return Futures.errored(new IllegalArgumentException("Need a bat (or none) for every block!"));
+        List<CompletableFuture<Optional<byte[]>>> all = IntStream.range(0, hashes.size())
+                .mapToObj(i -> {
+                    Cid hash = hashes.get(i);
+                    return hash.isRaw() ?
+                            getRaw(hash, bats.get(i)) :
+                            get(hash, bats.get(i)).thenApply(opt -> opt.map(CborObject::toByteArray));
+                })
+                .collect(Collectors.toList());
+        return Futures.combineAllInOrder(all);
+    }
+
     CompletableFuture<List<byte[]>> getChampLookup(PublicKeyHash owner, Cid root, byte[] champKey, Optional<BatWithId> bat);
 
     default CompletableFuture<List<byte[]>> getChampLookup(Cid root, byte[] champKey, Optional<BatWithId> bat, Hasher hasher) {
@@ -169,6 +191,33 @@ public interface ContentAddressedStorage {
                 }).thenApply(x -> new ArrayList<>(cache.getCached()));
     }
 
+    /** Look up many keys in the same champ
+     *
+     * @return The champ nodes on the path to each key, and the values, each included once
+     */
+    default CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                            Cid root,
+                                                            List<byte[]> champKeys,
+                                                            List<Optional<BatWithId>> bats) {
+        List<CompletableFuture<List<byte[]>>> lookups = IntStream.range(0, champKeys.size())
+                .mapToObj(i -> getChampLookup(owner, root, champKeys.get(i), bats.get(i)))
+                .collect(Collectors.toList());
+        return Futures.combineAllInOrder(lookups)
+                .thenApply(all -> all.stream()
+                        .flatMap(List::stream)
+                        .map(ByteArrayWrapper::new)
+                        .distinct()
+                        .map(b -> b.data)
+                        .collect(Collectors.toList()));
+    }
+
+    default CompletableFuture<List<byte[]>> getChampLookups(Cid root,
+                                                            List<byte[]> champKeys,
+                                                            List<Optional<BatWithId>> bats,
+                                                            Hasher hasher) {
+        return BatchedChampLookup.collect(root, champKeys, bats, this, hasher);
+    }
+
     /**
      * Get the size in bytes of the object with the requested hash
      * @param block The hash of the object
@@ -249,8 +298,10 @@ public interface ContentAddressedStorage {
         public static final String TRANSACTION_START = "transaction/start";
         public static final String TRANSACTION_CLOSE = "transaction/close";
         public static final String CHAMP_GET = "champ/get";
+        public static final String CHAMP_GET_ALL = "champ/get-all";
         public static final String BLOCK_PUT = "block/put";
         public static final String BLOCK_GET = "block/get";
+        public static final String BLOCK_GET_ALL = "block/get-all";
         public static final String BLOCK_RM = "block/rm";
         public static final String BLOOM_ADD = "bloom/add";
         public static final String BLOCK_PRESENT = "block/has";
@@ -373,6 +424,32 @@ public interface ContentAddressedStorage {
                     .thenApply(res -> res.map(c -> ((CborObject.CborByteArray)c).value));
         }
 
+        @Override
+        public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                               Cid root,
+                                                               List<byte[]> champKeys,
+                                                               List<Optional<BatWithId>> bats) {
+            if (! isPeergosServer) {
+                return getChampLookups(root, champKeys, bats, hasher);
+            }
+            List<CompletableFuture<List<byte[]>>> batches = ArrayOps.group(IntStream.range(0, champKeys.size())
+                            .boxed()
+                            .collect(Collectors.toList()), MAX_CHAMP_KEYS_PER_LOOKUP).stream()
+                    .map(batch -> new ChampLookupRequest(root, ArrayOps.select(champKeys, batch), ArrayOps.select(bats, batch)))
+                    .map(req -> poster.postUnzip(apiPrefix + CHAMP_GET_ALL + "?owner=" + encode(owner.toString()), req.serialize())
+                            .thenApply(CborObject::fromByteArray)
+                            .thenApply(c -> (CborObject.CborList)c)
+                            .thenApply(res -> res.map(c -> ((CborObject.CborByteArray)c).value)))
+                    .collect(Collectors.toList());
+            return Futures.combineAllInOrder(batches)
+                    .thenApply(all -> all.size() == 1 ? all.get(0) : all.stream()
+                            .flatMap(List::stream)
+                            .map(ByteArrayWrapper::new)
+                            .distinct()
+                            .map(b -> b.data)
+                            .collect(Collectors.toList()));
+        }
+
         @Override
         public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
                                                 PublicKeyHash writer,
@@ -493,6 +570,41 @@ public interface ContentAddressedStorage {
                     .thenApply(raw -> raw.length == 0 ? Optional.empty() : Optional.of(raw));
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+            if (! isPeergosServer)
+                return ContentAddressedStorage.super.getAll(hashes, bats);
+            if (hashes.size() != bats.size())
+                return Futures.errored(new IllegalArgumentException("Need a bat (or none) for every block!"));
+            List<Optional<byte[]>> res = new ArrayList<>(Collections.nCopies(hashes.size(), Optional.empty()));
+            List<Integer> toFetch = new ArrayList<>();
+            for (int i=0; i < hashes.size(); i++) {
+                if (hashes.get(i).isIdentity())
+                    res.set(i, Optional.of(hashes.get(i).getHash()));
+                else
+                    toFetch.add(i);
+            }
+            List<CompletableFuture<Boolean>> batches = ArrayOps.group(toFetch, MAX_BLOCKS_PER_GET).stream()
+                    .map(batch -> {
+                        List<MirrorCap> caps = batch.stream()
+                                .map(i -> new MirrorCap(hashes.get(i), bats.get(i)))
+                                .collect(Collectors.toList());
+                        return poster.postUnzip(apiPrefix + BLOCK_GET_ALL, new CborObject.CborList(caps).serialize())
+                                .thenApply(raw -> {
+                                    List<Optional<byte[]>> blocks = ((CborObject.CborList) CborObject.fromByteArray(raw))
+                                            .map(c -> c instanceof CborObject.CborByteArray ?
+                                                    Optional.of(((CborObject.CborByteArray) c).value) :
+                                                    Optional.<byte[]>empty());
+                                    if (blocks.size() != batch.size())
+                                        throw new IllegalStateException("Incorrect number of blocks returned: " + blocks.size() + " != " + batch.size());
+                                    for (int j=0; j < batch.size(); j++)
+                                        res.set(batch.get(j), blocks.get(j));
+                                    return true;
+                                });
+                    }).collect(Collectors.toList());
+            return Futures.combineAll(batches).thenApply(x -> res);
+        }
+
         @Override
         public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
             return poster.get(apiPrefix + BLOCK_STAT + "?stream-channels=true&arg=" + block.toString() + "&auth=letmein")
@@ -570,6 +682,18 @@ public interface ContentAddressedStorage {
                     target -> p2p.getChampLookup(target, owner, root, champKey, bat));
         }
 
+        @Override
+        public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                               Cid root,
+                                                               List<byte[]> champKeys,
+                                                               List<Optional<BatWithId>> bats) {
+            return Proxy.redirectCall(core,
+                    ourNodeId,
+                    owner,
+                    () -> local.getChampLookups(owner, root, champKeys, bats),
+                    target -> p2p.getChampLookups(target, owner, root, champKeys, bats));
+        }
+
         @Override
         public CompletableFuture<Optional<CborObject>> get(Cid object, Optional<BatWithId> bat) {
             return local.get(object, bat);
@@ -580,6 +704,11 @@ public interface ContentAddressedStorage {
             return local.getRaw(object, bat);
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+            return local.getAll(hashes, bats);
+        }
+
         @Override
         public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
             return local.getSize(block);
@@ -24,6 +24,12 @@ public interface ContentAddressedStorageProxy {
 
     CompletableFuture<List<byte[]>> getChampLookup(Multihash targetServerId, PublicKeyHash owner, Multihash root, byte[] champKey, Optional<BatWithId> bat);
 
+    CompletableFuture<List<byte[]>> getChampLookups(Multihash targetServerId,
+                                                    PublicKeyHash owner,
+                                                    Cid root,
+                                                    List<byte[]> champKeys,
+                                                    List<Optional<BatWithId>> bats);
+
     CompletableFuture<List<Cid>> put(Multihash targetServerId,
                                      PublicKeyHash owner,
                                      PublicKeyHash writer,
@@ -102,6 +108,19 @@ public interface ContentAddressedStorageProxy {
                     .thenApply(res -> res.map(c -> ((CborObject.CborByteArray)c).value));
         }
 
+        @Override
+        public CompletableFuture<List<byte[]>> getChampLookups(Multihash targetServerId,
+                                                               PublicKeyHash owner,
+                                                               Cid root,
+                                                               List<byte[]> champKeys,
+                                                               List<Optional<BatWithId>> bats) {
+            return poster.postUnzip(getProxyUrlPrefix(targetServerId) + apiPrefix
+                    + "champ/get-all?owner=" + encode(owner.toString()), new ChampLookupRequest(root, champKeys, bats).serialize())
+                    .thenApply(CborObject::fromByteArray)
+                    .thenApply(c -> (CborObject.CborList)c)
+                    .thenApply(res -> res.map(c -> ((CborObject.CborByteArray)c).value));
+        }
+
         @Override
         public CompletableFuture<List<Cid>> put(Multihash targetServerId,
                                                 PublicKeyHash owner,
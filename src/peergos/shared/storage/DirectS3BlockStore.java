@@ -325,4 +325,18 @@ public class DirectS3BlockStore implements ContentAddressedStorage {
                     return getChampLookup(root, champKey, bat, hasher);
                 });
     }
+
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        return Futures.asyncExceptionally(
+                () -> fallback.getChampLookups(owner, root, champKeys, bats),
+                t -> {
+                    if (!(t instanceof RateLimitException))
+                        return Futures.errored(t);
+                    return getChampLookups(root, champKeys, bats, hasher);
+                });
+    }
 }
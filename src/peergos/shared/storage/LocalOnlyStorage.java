@@ -2,6 +2,7 @@ package peergos.shared.storage;
 
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.auth.*;
@@ -11,7 +12,7 @@ import peergos.shared.util.*;
 import java.util.*;
 import java.util.concurrent.*;
 
-public class LocalOnlyStorage implements ContentAddressedStorage {
+public class LocalOnlyStorage implements ContentAddressedStorage, ChampCache.Recorder {
     public static final IllegalStateException ABSENT_BLOCK = new IllegalStateException("Block not present locally!");
 
     private final BlockCache cache;
@@ -26,6 +27,11 @@ public class LocalOnlyStorage implements ContentAddressedStorage {
                 .thenApply(opt -> Optional.of(opt.orElseThrow(() -> ABSENT_BLOCK)));
     }
 
+    @Override
+    public void record(Cid hash, byte[] block) {
+        cache.put(hash, block);
+    }
+
     @Override
     public CompletableFuture<BlockStoreProperties> blockStoreProperties() {
         return Futures.of(BlockStoreProperties.empty());
@@ -0,0 +1,44 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Serves blocks which have already been retrieved and verified, e.g. by a champ lookup, falling back to the target
+ *  for any others.
+ */
+public class PrefetchedStorage extends DelegatingStorage {
+    private final ContentAddressedStorage target;
+    private final Map<Cid, byte[]> blocks;
+
+    public PrefetchedStorage(ContentAddressedStorage target, Map<Cid, byte[]> blocks) {
+        super(target);
+        this.target = target;
+        this.blocks = blocks;
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return new PrefetchedStorage(target.directToOrigin(), blocks);
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Cid hash, Optional<BatWithId> bat) {
+        byte[] block = blocks.get(hash);
+        if (block != null)
+            return Futures.of(Optional.of(CborObject.fromByteArray(block)));
+        return target.get(hash, bat);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, Optional<BatWithId> bat) {
+        byte[] block = blocks.get(hash);
+        if (block != null)
+            return Futures.of(Optional.of(block));
+        return target.getRaw(hash, bat);
+    }
+}
@@ -9,11 +9,11 @@ import java.util.concurrent.*;
 
 public class RamBlockCache implements BlockCache {
 
-    private final LRUCache<Multihash, byte[]> cache;
+    private final WeightedCache<Multihash, byte[]> cache;
     private final int maxValueSize, cacheSize;
 
     public RamBlockCache(int maxValueSize, int cacheSize) {
-        this.cache = new LRUCache<>(cacheSize);
+        this.cache = WeightedCache.bytes((long) cacheSize * maxValueSize);
         this.maxValueSize = maxValueSize;
         this.cacheSize = cacheSize;
     }
@@ -124,11 +124,24 @@ public class RetryStorage implements ContentAddressedStorage {
         return runWithRetry(() -> target.getRaw(hash, bat));
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+        return runWithRetry(() -> target.getAll(hashes, bats));
+    }
+
     @Override
     public CompletableFuture<List<byte[]>> getChampLookup(PublicKeyHash owner, Cid root, byte[] champKey, Optional<BatWithId> bat) {
         return runWithRetry(() -> target.getChampLookup(owner, root, champKey, bat));
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        return runWithRetry(() -> target.getChampLookups(owner, root, champKeys, bats));
+    }
+
     @Override
     public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
         return runWithRetry(() -> target.getSize(block));
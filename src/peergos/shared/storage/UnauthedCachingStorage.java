@@ -16,14 +16,14 @@ import java.util.stream.*;
 public class UnauthedCachingStorage extends DelegatingStorage {
     private final ContentAddressedStorage target;
     private final BlockCache cache;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pending;
+    private final SingleFlight<Multihash, Optional<byte[]>> pending;
     private final Hasher hasher;
 
     public UnauthedCachingStorage(ContentAddressedStorage target, BlockCache cache, Hasher hasher) {
         super(target);
         this.target = target;
         this.cache = cache;
-        this.pending = new LRUCache<>(200);
+        this.pending = new SingleFlight<>();
         this.hasher = hasher;
     }
 
@@ -50,25 +50,52 @@ public class UnauthedCachingStorage extends DelegatingStorage {
                     if (res.isPresent())
                         return Futures.of(res);
 
-                    if (pending.containsKey(key))
-                        return pending.get(key);
-
-                    CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-                    pending.put(key, pipe);
-
-                    return target.getRaw(key, bat).thenApply(blockOpt -> {
-                        if (blockOpt.isPresent()) {
-                            byte[] value = blockOpt.get();
-                            cache.put(key, value);
-                        }
-                        pending.remove(key);
-                        pipe.complete(blockOpt);
-                        return blockOpt;
-                    }).exceptionally(t -> {
-                        pending.remove(key);
-                        pipe.completeExceptionally(t);
-                        return Optional.empty();
+                    boolean[] fetched = {false};
+                    CompletableFuture<Optional<byte[]>> shared = pending.get(key, () -> {
+                        fetched[0] = true;
+                        return fetchRaw(key, bat);
                     });
+                    if (fetched[0])
+                        return shared.exceptionally(t -> Optional.empty());
+                    // the shared fetch may have failed only because of the first caller's bat, so retry with ours
+                    return Futures.asyncExceptionally(() -> shared, t -> fetchRaw(key, bat));
+                });
+    }
+
+    private CompletableFuture<Optional<byte[]>> fetchRaw(Cid key, Optional<BatWithId> bat) {
+        return target.getRaw(key, bat).thenApply(blockOpt -> {
+            if (blockOpt.isPresent()) {
+                byte[] value = blockOpt.get();
+                cache.put(key, value);
+            }
+            return blockOpt;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Cid> hashes, List<Optional<BatWithId>> bats) {
+        return Futures.combineAllInOrder(hashes.stream()
+                        .map(cache::get)
+                        .collect(Collectors.toList()))
+                .thenCompose(cached -> {
+                    List<Integer> misses = IntStream.range(0, hashes.size())
+                            .filter(i -> cached.get(i).isEmpty())
+                            .boxed()
+                            .collect(Collectors.toList());
+                    if (misses.isEmpty())
+                        return Futures.of(cached);
+                    List<Optional<byte[]>> res = new ArrayList<>(cached);
+                    return target.getAll(ArrayOps.select(hashes, misses), ArrayOps.select(bats, misses))
+                            .thenApply(fetched -> {
+                                for (int j=0; j < misses.size(); j++) {
+                                    int i = misses.get(j);
+                                    Optional<byte[]> block = fetched.get(j);
+                                    res.set(i, block);
+                                    if (block.isPresent())
+                                        cache.put(hashes.get(i), block.get());
+                                }
+                                return res;
+                            });
                 });
     }
 
@@ -81,6 +108,15 @@ public class UnauthedCachingStorage extends DelegatingStorage {
         );
     }
 
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookups(PublicKeyHash owner,
+                                                           Cid root,
+                                                           List<byte[]> champKeys,
+                                                           List<Optional<BatWithId>> bats) {
+        return target.getChampLookups(owner, root, champKeys, bats)
+                .thenApply(blocks -> cacheBlocks(blocks, hasher));
+    }
+
     public CompletableFuture<List<byte[]>> localChampLookup(Cid root, byte[] champKey, Optional<BatWithId> bat, Hasher hasher) {
         CachingStorage cache = new CachingStorage(new LocalOnlyStorage(this.cache), 100, 1024*1024);
         return ChampWrapper.create((Cid)root, x -> Futures.of(x.data), cache, hasher, c -> (CborObject.CborMerkleLink) c)
@@ -5,9 +5,12 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.MaybeMultihash;
 import peergos.shared.storage.*;
+import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public interface MutableTree {
 
@@ -40,6 +43,23 @@ public interface MutableTree {
      */
     CompletableFuture<MaybeMultihash> get(WriterData base, PublicKeyHash owner, PublicKeyHash writer, byte[] mapKey);
 
+    /**
+     *
+     * @param base The WriterData at the current mutable pointer for the writer
+     * @param owner
+     * @param writer
+     * @param mapKeys
+     * @return the value stored under each of mapKeys
+     */
+    default CompletableFuture<List<MaybeMultihash>> getAll(WriterData base,
+                                                           PublicKeyHash owner,
+                                                           PublicKeyHash writer,
+                                                           List<byte[]> mapKeys) {
+        return Futures.combineAllInOrder(mapKeys.stream()
+                .map(mapKey -> get(base, owner, writer, mapKey))
+                .collect(Collectors.toList()));
+    }
+
     /**
      *
      * @param owner
@@ -12,8 +12,10 @@ import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class MutableTreeImpl implements MutableTree {
 	private static final Logger LOG = Logger.getGlobal();
@@ -61,13 +63,50 @@ public class MutableTreeImpl implements MutableTree {
     public CompletableFuture<MaybeMultihash> get(WriterData base, PublicKeyHash owner, PublicKeyHash writer, byte[] mapKey) {
         if (! base.tree.isPresent())
             throw new IllegalStateException("Tree root not present for " + writer);
-        return ChampWrapper.create((Cid)base.tree.get(), hasher, dht, writeHasher, c -> (CborObject.CborMerkleLink)c).thenCompose(tree -> tree.get(mapKey))
+        return get(dht, base, mapKey);
+    }
+
+    private CompletableFuture<MaybeMultihash> get(ContentAddressedStorage storage, WriterData base, byte[] mapKey) {
+        return ChampWrapper.create((Cid)base.tree.get(), hasher, storage, writeHasher, c -> (CborObject.CborMerkleLink)c).thenCompose(tree -> tree.get(mapKey))
                 .thenApply(c -> c.map(x -> x.target).map(MaybeMultihash::of).orElse(MaybeMultihash.empty()))
                 .thenApply(maybe -> LOGGING ?
                         log(maybe, "TREE.get (" + ArrayOps.bytesToHex(mapKey)
                                 + ", root="+base.tree.get()+" => " + maybe) : maybe);
     }
 
+    @Override
+    public CompletableFuture<List<MaybeMultihash>> getAll(WriterData base,
+                                                          PublicKeyHash owner,
+                                                          PublicKeyHash writer,
+                                                          List<byte[]> mapKeys) {
+        if (! base.tree.isPresent())
+            throw new IllegalStateException("Tree root not present for " + writer);
+        if (mapKeys.size() < 2 || writeHasher == null)
+            return MutableTree.super.getAll(base, owner, writer, mapKeys);
+        return prefetchPaths(owner, (Cid) base.tree.get(), mapKeys)
+                .thenCompose(storage -> Futures.combineAllInOrder(mapKeys.stream()
+                        .map(mapKey -> get(storage, base, mapKey))
+                        .collect(Collectors.toList())));
+    }
+
+    /** Retrieve the champ nodes on the paths to all the keys in a single request, rather than one per key and level
+     */
+    private CompletableFuture<ContentAddressedStorage> prefetchPaths(PublicKeyHash owner, Cid root, List<byte[]> mapKeys) {
+        return Futures.asyncExceptionally(
+                        () -> dht.getChampLookups(owner, root, mapKeys, Collections.nCopies(mapKeys.size(), Optional.empty())),
+                        t -> Futures.of(Collections.<byte[]>emptyList()))
+                .thenCompose(blocks -> Futures.combineAllInOrder(blocks.stream()
+                        .map(b -> writeHasher.hash(b, false).thenApply(h -> new Pair<>(h, b)))
+                        .collect(Collectors.toList())))
+                .thenApply(hashed -> {
+                    if (hashed.isEmpty())
+                        return dht;
+                    Map<Cid, byte[]> blocks = new HashMap<>();
+                    hashed.forEach(p -> blocks.put(p.left, p.right));
+                    return new PrefetchedStorage(dht, blocks);
+                });
+    }
+
     @Override
     public CompletableFuture<WriterData> remove(WriterData base,
                                                 PublicKeyHash owner,
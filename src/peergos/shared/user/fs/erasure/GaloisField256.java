@@ -1,5 +1,7 @@
 package peergos.shared.user.fs.erasure;
 
+import java.util.*;
+
 public class GaloisField256 extends GaloisField
 {
     // Theory obtained from BBC White paper WHP 031 - Reed-solomon error correction, C.K.P. Clarke
@@ -32,6 +34,19 @@ public class GaloisField256 extends GaloisField
         }
     }
 
+    // The full multiplication table, MUL[x][y] = x * y. Each row is the product of a constant with every byte, which
+    // lets the bulk operations below multiply a whole array with a single lookup per byte rather than two logs and
+    // an exp.
+    private static final byte[][] MUL = new byte[SIZE][SIZE];
+    private static final int[] INV = new int[SIZE];
+    static {
+        for (int x=1; x < SIZE; x++) {
+            for (int y=1; y < SIZE; y++)
+                MUL[x][y] = (byte) exp[log[x] + log[y]];
+            INV[x] = exp[255 - log[x]];
+        }
+    }
+
     public int size()
     {
         return SIZE;
@@ -49,21 +64,53 @@ public class GaloisField256 extends GaloisField
 
     public int mul(int x, int y)
     {
-        if ((x==0) || (y==0))
-            return 0;
-        return exp[log[x]+log[y]];
+        return MUL[x][y] & 0xFF;
     }
 
     public int div(int x, int y)
     {
         if (y==0)
             throw new IllegalStateException("Divided by zero! Blackhole created.. ");
+        return MUL[x][INV[y]] & 0xFF;
+    }
+
+    public static int inverse(int x)
+    {
         if (x==0)
-            return 0;
-        return exp[log[x]+255-log[y]];
+            throw new IllegalStateException("Zero has no inverse!");
+        return INV[x];
     }
 
-    public static void main(String[] a) {
+    /** dst[dstOffset..] = c * src[srcOffset..]
+     */
+    public static void mul(int c, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+    {
+        if (c == 0) {
+            Arrays.fill(dst, dstOffset, dstOffset + length, (byte) 0);
+            return;
+        }
+        if (c == 1) {
+            System.arraycopy(src, srcOffset, dst, dstOffset, length);
+            return;
+        }
+        byte[] row = MUL[c];
+        for (int i=0; i < length; i++)
+            dst[dstOffset + i] = row[src[srcOffset + i] & 0xFF];
+    }
 
+    /** dst[dstOffset..] ^= c * src[srcOffset..]
+     */
+    public static void mulAdd(int c, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+    {
+        if (c == 0)
+            return;
+        if (c == 1) {
+            for (int i=0; i < length; i++)
+                dst[dstOffset + i] ^= src[srcOffset + i];
+            return;
+        }
+        byte[] row = MUL[c];
+        for (int i=0; i < length; i++)
+            dst[dstOffset + i] ^= row[src[srcOffset + i] & 0xFF];
     }
 }
@@ -0,0 +1,179 @@
+package peergos.shared.user.fs.erasure;
+
+/** A systematic Reed-Solomon erasure code over GF(256), which splits data into k data shards plus m parity shards,
+ *  any k of which are enough to recover the data.
+ *
+ *  The encoding matrix is the identity stacked on a Cauchy matrix. Every square submatrix of a Cauchy matrix is
+ *  invertible, so any k rows of the encoding matrix are too. Encoding and decoding work on whole shards with the
+ *  table driven bulk operations in GaloisField256.
+ */
+public class ReedSolomon {
+
+    public final int dataShards, parityShards;
+    private final int[][] parity;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0)
+            throw new IllegalArgumentException("Need at least one data shard and a non negative number of parity shards!");
+        if (dataShards + parityShards > 256)
+            throw new IllegalArgumentException("At most 256 shards are supported in GF(256)!");
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.parity = new int[parityShards][dataShards];
+        for (int i=0; i < parityShards; i++)
+            for (int j=0; j < dataShards; j++)
+                parity[i][j] = GaloisField256.inverse((dataShards + i) ^ j);
+    }
+
+    public int totalShards() {
+        return dataShards + parityShards;
+    }
+
+    /**
+     *
+     * @param shards The data shards followed by space for the parity shards, all the same length
+     */
+    public void encodeParity(byte[][] shards) {
+        int length = shards[0].length;
+        for (int i=0; i < parityShards; i++) {
+            byte[] out = shards[dataShards + i];
+            GaloisField256.mul(parity[i][0], shards[0], 0, out, 0, length);
+            for (int j=1; j < dataShards; j++)
+                GaloisField256.mulAdd(parity[i][j], shards[j], 0, out, 0, length);
+        }
+    }
+
+    /** Split data into shards, padding the last data shard with zeros
+     *
+     * @return The data shards followed by the parity shards
+     */
+    public byte[][] encode(byte[] data) {
+        int shardSize = shardSize(data.length);
+        byte[][] shards = new byte[totalShards()][shardSize];
+        for (int i=0; i < dataShards; i++) {
+            int start = i * shardSize;
+            if (start < data.length)
+                System.arraycopy(data, start, shards[i], 0, Math.min(shardSize, data.length - start));
+        }
+        encodeParity(shards);
+        return shards;
+    }
+
+    public int shardSize(int dataLength) {
+        return Math.max(1, (dataLength + dataShards - 1) / dataShards);
+    }
+
+    /** Recover any missing shards, in place
+     *
+     * @param shards Every shard, with missing ones null. The present shards must all be the same length.
+     */
+    public void reconstruct(byte[][] shards) {
+        int[] present = new int[dataShards];
+        int found = 0, length = -1;
+        boolean dataComplete = true;
+        for (int i=0; i < shards.length && found < dataShards; i++) {
+            if (shards[i] == null) {
+                if (i < dataShards)
+                    dataComplete = false;
+                continue;
+            }
+            present[found++] = i;
+            length = shards[i].length;
+        }
+        if (found < dataShards)
+            throw new IllegalStateException("Need " + dataShards + " shards to reconstruct, but only have " + found);
+
+        if (! dataComplete) {
+            // rows of the encoding matrix for the shards we have
+            int[][] sub = new int[dataShards][];
+            for (int r=0; r < dataShards; r++)
+                sub[r] = row(present[r]);
+            int[][] decode = invert(sub);
+            byte[][] data = new byte[dataShards][];
+            for (int j=0; j < dataShards; j++) {
+                if (shards[j] != null) {
+                    data[j] = shards[j];
+                    continue;
+                }
+                byte[] out = new byte[length];
+                for (int r=0; r < dataShards; r++)
+                    GaloisField256.mulAdd(decode[j][r], shards[present[r]], 0, out, 0, length);
+                data[j] = out;
+            }
+            for (int j=0; j < dataShards; j++)
+                shards[j] = data[j];
+        }
+        for (int i=0; i < parityShards; i++) {
+            if (shards[dataShards + i] != null)
+                continue;
+            byte[] out = new byte[length];
+            for (int j=0; j < dataShards; j++)
+                GaloisField256.mulAdd(parity[i][j], shards[j], 0, out, 0, length);
+            shards[dataShards + i] = out;
+        }
+    }
+
+    /**
+     *
+     * @param shards Every shard, with missing ones null
+     * @param dataLength The length of the original data
+     * @return The original data
+     */
+    public byte[] decode(byte[][] shards, int dataLength) {
+        reconstruct(shards);
+        byte[] res = new byte[dataLength];
+        int shardSize = shards[0].length;
+        for (int i=0; i < dataShards; i++) {
+            int start = i * shardSize;
+            if (start >= dataLength)
+                break;
+            System.arraycopy(shards[i], 0, res, start, Math.min(shardSize, dataLength - start));
+        }
+        return res;
+    }
+
+    private int[] row(int shard) {
+        if (shard >= dataShards)
+            return parity[shard - dataShards].clone();
+        int[] res = new int[dataShards];
+        res[shard] = 1;
+        return res;
+    }
+
+    /** Gauss-Jordan elimination over GF(256)
+     */
+    private static int[][] invert(int[][] m) {
+        int n = m.length;
+        int[][] a = new int[n][];
+        int[][] inv = new int[n][n];
+        for (int i=0; i < n; i++) {
+            a[i] = m[i].clone();
+            inv[i][i] = 1;
+        }
+        GaloisField256 f = new GaloisField256();
+        for (int col=0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && a[pivot][col] == 0)
+                pivot++;
+            if (pivot == n)
+                throw new IllegalStateException("Singular matrix!");
+            int[] tmp = a[col]; a[col] = a[pivot]; a[pivot] = tmp;
+            tmp = inv[col]; inv[col] = inv[pivot]; inv[pivot] = tmp;
+            int scale = GaloisField256.inverse(a[col][col]);
+            for (int j=0; j < n; j++) {
+                a[col][j] = f.mul(a[col][j], scale);
+                inv[col][j] = f.mul(inv[col][j], scale);
+            }
+            for (int r=0; r < n; r++) {
+                if (r == col || a[r][col] == 0)
+                    continue;
+                int factor = a[r][col];
+                for (int j=0; j < n; j++) {
+                    a[r][j] ^= f.mul(factor, a[col][j]);
+                    inv[r][j] ^= f.mul(factor, inv[col][j]);
+                }
+            }
+        }
+        return inv;
+    }
+}
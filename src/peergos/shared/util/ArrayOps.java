@@ -14,6 +14,17 @@ public class ArrayOps
                 .collect(Collectors.toList());
     }
 
+    /**
+     *
+     * @return The elements of x at the given indices, in order
+     */
+    public static <X> List<X> select(List<X> x, List<Integer> indices) {
+        List<X> res = new ArrayList<>(indices.size());
+        for (int i : indices)
+            res.add(x.get(i));
+        return res;
+    }
+
     /*
     Due to an unfortunate bug in GWT emulation for Arrays.copyPrimitiveArray (introduced by us), It is necessary to call this version instead.
      */
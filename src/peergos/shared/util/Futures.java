@@ -50,6 +50,34 @@ public class Futures {
                         a.thenApply(seta -> Stream.concat(seta.stream(), setb.stream()).collect(Collectors.toList()))));
     }
 
+    /*** Collect the results of futures which have all already been started, in order. Unlike combineAllInOrder this
+     * is linear in the number of futures.
+     *
+     * @param futures independent futures whose results we want in order
+     * @param <T> result type of each future
+     * @return
+     */
+    public static <T> CompletableFuture<List<T>> collectInOrder(List<CompletableFuture<T>> futures) {
+        return collectInOrder(futures, 0, new ArrayList<>(futures.size()));
+    }
+
+    private static <T> CompletableFuture<List<T>> collectInOrder(List<CompletableFuture<T>> futures,
+                                                                 int from,
+                                                                 List<T> results) {
+        for (int i = from; i < futures.size(); i++) {
+            CompletableFuture<T> next = futures.get(i);
+            if (! next.isDone() || next.isCompletedExceptionally()) {
+                int remaining = i + 1;
+                return next.thenCompose(r -> {
+                    results.add(r);
+                    return collectInOrder(futures, remaining, results);
+                });
+            }
+            results.add(next.join());
+        }
+        return of(results);
+    }
+
     /*** Reduce a set of input values against an Identity where the composition step is asynchronous
      *
      * @param input the values to reduce
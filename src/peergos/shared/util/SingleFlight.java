@@ -0,0 +1,69 @@
+package peergos.shared.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Coalesces concurrent requests for the same key, so that only the first caller triggers a fetch and the rest share
+ *  its result. A key is only tracked while its fetch is in flight, so there is no bound on how many distinct keys can
+ *  be outstanding.
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> inFlight = new HashMap<>();
+    private long requests, saved;
+
+    /**
+     *
+     * @param key
+     * @param fetch called at most once per in flight key; any caching of the result should happen within it
+     * @return The shared result of the in flight fetch for key
+     */
+    public CompletableFuture<V> get(K key, Supplier<CompletableFuture<V>> fetch) {
+        CompletableFuture<V> res;
+        synchronized (this) {
+            requests++;
+            CompletableFuture<V> existing = inFlight.get(key);
+            if (existing != null) {
+                saved++;
+                return existing;
+            }
+            res = new CompletableFuture<>();
+            inFlight.put(key, res);
+        }
+        CompletableFuture<V> fetched;
+        try {
+            fetched = fetch.get();
+        } catch (Throwable t) {
+            fetched = Futures.errored(t);
+        }
+        fetched.thenAccept(v -> {
+            done(key);
+            res.complete(v);
+        }).exceptionally(t -> {
+            done(key);
+            res.completeExceptionally(t);
+            return null;
+        });
+        return res;
+    }
+
+    private synchronized void done(K key) {
+        inFlight.remove(key);
+    }
+
+    public synchronized int inFlight() {
+        return inFlight.size();
+    }
+
+    public synchronized long requestCount() {
+        return requests;
+    }
+
+    /**
+     *
+     * @return The number of requests which were served by another caller's fetch
+     */
+    public synchronized long savedCount() {
+        return saved;
+    }
+}
@@ -0,0 +1,310 @@
+package peergos.shared.util;
+
+import java.util.*;
+import java.util.function.*;
+
+/** A thread safe cache bounded by the total weight (usually bytes) of its values rather than by entry count.
+ *
+ *  Keys are split across independently locked shards, each an access ordered map with its own share of the weight
+ *  budget. When a shard is full, a new key is only admitted if it has been requested more often recently than the
+ *  least recently used entry it would evict (TinyLFU). Frequencies are estimated with a count-min sketch of 4-bit
+ *  counters which are periodically halved, so one-off reads (e.g. streaming a large file) can't flush the hot
+ *  working set.
+ */
+public class WeightedCache<K, V> {
+    private static final int MAX_SHARDS = 16;
+    private static final int BYTE_ENTRY_OVERHEAD = 96;
+    private static final long MIN_SHARD_BYTES = 4 * 1024 * 1024;
+    private static final int MIN_SHARD_ENTRIES = 1024;
+
+    private final Shard<K, V>[] shards;
+    private final int shardMask;
+    private final long maxWeight;
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public WeightedCache(int shardCount, long maxWeight, Function<V, Integer> weigher) {
+        int n = 1;
+        while (n < shardCount && n < MAX_SHARDS)
+            n <<= 1;
+        this.shards = new Shard[n];
+        for (int i = 0; i < n; i++)
+            shards[i] = new Shard<>(Math.max(1, maxWeight / n), weigher);
+        this.shardMask = n - 1;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     *
+     * @param maxBytes
+     * @return A cache of byte arrays bounded by their total size, including a per entry overhead
+     */
+    public static <K> WeightedCache<K, byte[]> bytes(long maxBytes) {
+        return new WeightedCache<>((int) Math.min(MAX_SHARDS, maxBytes / MIN_SHARD_BYTES), maxBytes,
+                v -> v.length + BYTE_ENTRY_OVERHEAD);
+    }
+
+    /**
+     *
+     * @param maxEntries
+     * @return A cache bounded by entry count
+     */
+    public static <K, V> WeightedCache<K, V> count(int maxEntries) {
+        return new WeightedCache<>(maxEntries / MIN_SHARD_ENTRIES, maxEntries, v -> 1);
+    }
+
+    private Shard<K, V> shard(Object key) {
+        return shards[spread(key.hashCode()) & shardMask];
+    }
+
+    public V get(K key) {
+        return shard(key).get(key);
+    }
+
+    public boolean containsKey(K key) {
+        return shard(key).containsKey(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @param value
+     * @return true if the value is now in the cache, false if it was too heavy or not admitted
+     */
+    public boolean put(K key, V value) {
+        return shard(key).put(key, value);
+    }
+
+    public void remove(K key) {
+        shard(key).remove(key);
+    }
+
+    public void clear() {
+        for (Shard<K, V> shard : shards)
+            shard.clear();
+    }
+
+    /**
+     *
+     * @return A snapshot of the cached values
+     */
+    public List<V> values() {
+        List<V> res = new ArrayList<>();
+        for (Shard<K, V> shard : shards)
+            shard.addValuesTo(res);
+        return res;
+    }
+
+    public int size() {
+        int res = 0;
+        for (Shard<K, V> shard : shards)
+            res += shard.size();
+        return res;
+    }
+
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    public long weightedSize() {
+        return sum(s -> s.weight);
+    }
+
+    public long hitCount() {
+        return sum(s -> s.hits);
+    }
+
+    public long missCount() {
+        return sum(s -> s.misses);
+    }
+
+    public long evictionCount() {
+        return sum(s -> s.evictions);
+    }
+
+    public long evictedWeight() {
+        return sum(s -> s.evictedWeight);
+    }
+
+    /**
+     *
+     * @return The number of new entries which were not admitted because they were less popular than the entry they
+     * would have replaced
+     */
+    public long rejectionCount() {
+        return sum(s -> s.rejections);
+    }
+
+    public double hitRate() {
+        long hits = hitCount(), total = hits + missCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private long sum(Function<Shard<K, V>, Long> stat) {
+        long res = 0;
+        for (Shard<K, V> shard : shards)
+            synchronized (shard) {
+                res += stat.apply(shard);
+            }
+        return res;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        h *= 0xac4c1b51;
+        h ^= h >>> 15;
+        return h;
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final int weight;
+
+        Entry(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static class Shard<K, V> {
+        private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch = new FrequencySketch();
+        private final long maxWeight;
+        private final Function<V, Integer> weigher;
+        long weight, hits, misses, evictions, evictedWeight, rejections;
+
+        Shard(long maxWeight, Function<V, Integer> weigher) {
+            this.maxWeight = maxWeight;
+            this.weigher = weigher;
+        }
+
+        synchronized V get(K key) {
+            sketch.increment(key);
+            Entry<V> e = map.get(key);
+            if (e == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return e.value;
+        }
+
+        synchronized boolean containsKey(K key) {
+            return map.containsKey(key);
+        }
+
+        synchronized boolean put(K key, V value) {
+            int w = weigher.apply(value);
+            if (w > maxWeight)
+                return false;
+            Entry<V> existing = map.get(key);
+            if (existing == null) {
+                sketch.increment(key);
+                if (weight + w > maxWeight && ! map.isEmpty()) {
+                    K victim = map.keySet().iterator().next();
+                    if (sketch.frequency(victim) > sketch.frequency(key)) {
+                        rejections++;
+                        return false;
+                    }
+                }
+            } else
+                weight -= existing.weight;
+            map.put(key, new Entry<>(value, w));
+            weight += w;
+            Iterator<Map.Entry<K, Entry<V>>> eldest = map.entrySet().iterator();
+            while (weight > maxWeight) {
+                Map.Entry<K, Entry<V>> victim = eldest.next();
+                if (victim.getKey().equals(key))
+                    continue;
+                eldest.remove();
+                weight -= victim.getValue().weight;
+                evictions++;
+                evictedWeight += victim.getValue().weight;
+            }
+            sketch.ensureCapacity(map.size());
+            return true;
+        }
+
+        synchronized void remove(K key) {
+            Entry<V> removed = map.remove(key);
+            if (removed != null)
+                weight -= removed.weight;
+        }
+
+        synchronized void clear() {
+            map.clear();
+            weight = 0;
+        }
+
+        synchronized void addValuesTo(List<V> res) {
+            for (Entry<V> e : map.values())
+                res.add(e.value);
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+
+    /** A count-min sketch of 4 rows of 4-bit counters, 8 to an int, with ~16 counters per cached entry. All counters
+     *  are halved once the number of increments reaches 10x the table size, so frequencies reflect recent history.
+     */
+    private static class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0xc2b2ae35, 0x27d4eb2f, 0x165667b1};
+        private int[] table = new int[16];
+        private int additions, sampleSize = 10 * 16 * 8;
+
+        void ensureCapacity(int entries) {
+            if (2 * entries <= table.length || table.length >= 1 << 24)
+                return;
+            int size = table.length;
+            while (size < 2 * entries)
+                size <<= 1;
+            // a counter's index in the larger table only adds high bits, so copying preserves every estimate
+            int[] larger = new int[size];
+            for (int i = 0; i < size; i++)
+                larger[i] = table[i & (table.length - 1)];
+            table = larger;
+            sampleSize = 10 * size;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash + SEEDS[row]) * SEEDS[row];
+            h ^= h >>> 16;
+            return h & (table.length - 1);
+        }
+
+        private int nibble(int hash, int row) {
+            return ((hash >>> (row * 8)) & 7) << 2;
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int min = 15;
+            for (int row = 0; row < 4; row++)
+                min = Math.min(min, (table[index(hash, row)] >>> nibble(hash, row)) & 0xF);
+            return min;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                int i = index(hash, row), shift = nibble(hash, row);
+                if (((table[i] >>> shift) & 0xF) < 15) {
+                    table[i] += 1 << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize)
+                reset();
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++)
+                table[i] = (table[i] >>> 1) & 0x77777777;
+            additions /= 2;
+        }
+    }
+}